@@ -0,0 +1,95 @@
+package edu.mit.yingyin.calib;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.vecmath.Point2f;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the conversion from image to display coordinates with the
+ * calibration in test_data.
+ *
+ * @author yingyin
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CalibModelBenchmark {
+  private static final String CALIBRATION_FILE = "test_data/calibration.txt";
+  private static final int WIDTH = 640, HEIGHT = 480, STEP = 16;
+
+  @State(Scope.Benchmark)
+  public static class Model {
+    CalibModel calibModel;
+    float[] xs, ys;
+    /**
+     * x and y of all the points, and their converted coordinates.
+     */
+    float[] points, display;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      calibModel = new CalibModel(CALIBRATION_FILE);
+      int n = (WIDTH / STEP) * (HEIGHT / STEP);
+      xs = new float[n];
+      ys = new float[n];
+      int i = 0;
+      for (int y = 0; y < HEIGHT; y += STEP)
+        for (int x = 0; x < WIDTH; x += STEP) {
+          xs[i] = x;
+          ys[i] = y;
+          i++;
+        }
+      points = new float[2 * n];
+      display = new float[2 * n];
+      for (i = 0; i < n; i++) {
+        points[2 * i] = xs[i];
+        points[2 * i + 1] = ys[i];
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      calibModel.release();
+    }
+  }
+
+  @Benchmark
+  public Point2f imageToDisplayCoords(Model m) {
+    int i = m.next;
+    m.next = (i + 1) % m.xs.length;
+    return m.calibModel.imageToDisplayCoords(m.xs[i], m.ys[i]);
+  }
+
+  @Benchmark
+  public Point2f imageToDisplayCoordsExact(Model m) {
+    int i = m.next;
+    m.next = (i + 1) % m.xs.length;
+    return m.calibModel.imageToDisplayCoordsExact(m.xs[i], m.ys[i]);
+  }
+
+  /**
+   * Converts all the points of the grid in one call.
+   */
+  @Benchmark
+  public float[] imageToDisplayCoordsBatch(Model m) {
+    m.calibModel.imageToDisplayCoords(m.points, m.display, m.xs.length);
+    return m.display;
+  }
+}
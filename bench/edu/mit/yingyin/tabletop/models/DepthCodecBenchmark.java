@@ -0,0 +1,63 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks encoding and decoding the raw frame of the table in test_data.
+ * The size of the encoded frame is logged on setup.
+ *
+ * @author yingyin
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DepthCodecBenchmark {
+  private static final Logger LOGGER = Logger.getLogger(
+      DepthCodecBenchmark.class.getName());
+
+  @State(Scope.Thread)
+  public static class Frame {
+    int width = RecordedFrames.RAW_WIDTH, height = RecordedFrames.RAW_HEIGHT;
+    int[] depth, decoded;
+    byte[] encoded;
+    int length;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      depth = RecordedFrames.readRaw(RecordedFrames.RAW_FILE, width, height);
+      decoded = new int[depth.length];
+      encoded = new byte[DepthCodec.maxEncodedSize(depth.length)];
+      length = DepthCodec.encode(depth, width, height, encoded, 0);
+      LOGGER.info(String.format("%d pixels encoded in %d bytes, %.3f bytes " +
+          "per pixel.", depth.length, length, (float) length / depth.length));
+    }
+  }
+
+  @Benchmark
+  public int encode(Frame f) {
+    return DepthCodec.encode(f.depth, f.width, f.height, f.encoded, 0);
+  }
+
+  @Benchmark
+  public int[] decode(Frame f) {
+    DepthCodec.decode(f.encoded, 0, f.length, f.width, f.height, f.decoded);
+    return f.decoded;
+  }
+}
@@ -0,0 +1,79 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.yingyin.image.ImageConvertUtils;
+
+/**
+ * Benchmarks the histogram equalized depth views on the raw frame in
+ * test_data.
+ *
+ * @author yingyin
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class HistogramViewBenchmark {
+  private static final int MAX_DEPTH = 65535;
+
+  @State(Scope.Benchmark)
+  public static class Frame {
+    int[] depth;
+    ByteBuffer depth8U;
+    float[] histogram = new float[MAX_DEPTH + 1];
+    BufferedImage image = new BufferedImage(RecordedFrames.RAW_WIDTH,
+        RecordedFrames.RAW_HEIGHT, BufferedImage.TYPE_USHORT_GRAY);
+    HistogramImageComponent component = new HistogramImageComponent(
+        RecordedFrames.RAW_WIDTH, RecordedFrames.RAW_HEIGHT, MAX_DEPTH);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      depth = RecordedFrames.readRaw(RecordedFrames.RAW_FILE,
+          RecordedFrames.RAW_WIDTH, RecordedFrames.RAW_HEIGHT);
+      int max = 1;
+      for (int d : depth)
+        max = Math.max(max, d);
+      depth8U = ByteBuffer.allocateDirect(depth.length);
+      for (int i = 0; i < depth.length; i++)
+        depth8U.put(i, (byte) (depth[i] * 255 / max));
+    }
+  }
+
+  @Benchmark
+  public BufferedImage histogramToImage(Frame f) {
+    ImageConvertUtils.arrayToHistogram(f.depth, f.histogram);
+    ImageConvertUtils.histogramToBufferedImageUShort(f.depth, f.histogram,
+                                                     f.image);
+    return f.image;
+  }
+
+  @Benchmark
+  public HistogramImageComponent setImageDepth(Frame f) {
+    f.component.setImage(f.depth);
+    return f.component;
+  }
+
+  @Benchmark
+  public HistogramImageComponent setImage8U(Frame f) {
+    f.component.setImage(f.depth8U, RecordedFrames.RAW_WIDTH);
+    return f.component;
+  }
+}
@@ -0,0 +1,139 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.OpenNI.GeneralException;
+import org.OpenNI.StatusException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+import edu.mit.yingyin.tabletop.models.ProcessPacket.ForelimbFeatures;
+
+/**
+ * Benchmarks each stage of the hand tracking pipeline in isolation on frames
+ * from the recording in test_data. The earlier stages are run once during
+ * setup so each benchmark only measures its own stage.
+ *
+ * @author yingyin
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Frames {
+    /**
+     * Number of processed frames to cycle through.
+     */
+    @Param("8")
+    int frames;
+
+    OpenNIDevice openni;
+    ForelimbFeatureDetector detector;
+    HandFeatureDetector handFeatureDetector;
+    ForelimbModelEstimator modelEstimator;
+    ProcessPacket[] packets;
+    IplImage mask;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws GeneralException {
+      openni = new OpenNIDevice(RecordedFrames.RECORDING_FILE);
+      int width = openni.getDepthWidth(), height = openni.getDepthHeight();
+      detector = new ForelimbFeatureDetector(width, height, openni);
+      handFeatureDetector = new HandFeatureDetector(width, height, openni);
+      modelEstimator = new ForelimbModelEstimator(width, height, openni,
+          new TrackingParameters(), detector.interactionSurface());
+      packets = RecordedFrames.process(openni, detector, frames);
+      mask = IplImage.create(width, height, IPL_DEPTH_8U, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      for (ProcessPacket p : packets)
+        p.release();
+      mask.release();
+      handFeatureDetector.release();
+      detector.release();
+      openni.release();
+    }
+
+    ProcessPacket nextPacket() {
+      ProcessPacket p = packets[next];
+      next = (next + 1) % packets.length;
+      return p;
+    }
+  }
+
+  @Benchmark
+  public IplImage backgroundDiff(Frames f) {
+    ProcessPacket p = f.nextPacket();
+    f.detector.background().backgroundDiff(p.depthRawData, f.mask);
+    return f.mask;
+  }
+
+  /**
+   * The float images and the segmentation in one pass, to compare with
+   * subtractBackground, which only segments.
+   */
+  @Benchmark
+  public IplImage convertDepth(Frames f) {
+    ProcessPacket p = f.nextPacket();
+    f.detector.convertDepth(p);
+    return p.depthImage8U;
+  }
+
+  @Benchmark
+  public IplImage subtractBackground(Frames f) {
+    ProcessPacket p = f.nextPacket();
+    f.detector.subtractBackground(p);
+    return p.depthImage8U;
+  }
+
+  @Benchmark
+  public List<ForelimbFeatures> findConnectedComponents(Frames f) {
+    ProcessPacket p = f.nextPacket();
+    p.clear();
+    f.detector.findForelimbs(p);
+    return p.forelimbFeatures;
+  }
+
+  @Benchmark
+  public List<ForelimbFeatures> handFeatureDetect(Frames f)
+      throws StatusException {
+    ProcessPacket p = f.nextPacket();
+    f.handFeatureDetector.detect(p);
+    return p.forelimbFeatures;
+  }
+
+  @Benchmark
+  public List<Forelimb> updateModel(Frames f) throws StatusException {
+    ProcessPacket p = f.nextPacket();
+    // Fingertips are appended by the estimator.
+    for (ForelimbFeatures ff : p.forelimbFeatures)
+      ff.fingertips.clear();
+    p.forelimbs.clear();
+    f.modelEstimator.updateModel(p);
+    return p.forelimbs;
+  }
+}
@@ -0,0 +1,78 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.OpenNI.StatusException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.yingyin.tabletop.models.PlaneEstimator.Plane;
+import edu.mit.yingyin.util.RowBandExecutor;
+
+/**
+ * Benchmarks the plane estimation with the default parameters on the surface
+ * map of the raw frame in test_data, converted without OpenNI.
+ *
+ * @author yingyin
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PlaneEstimatorBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Surface {
+    /**
+     * Number of threads.
+     */
+    @Param({"1"})
+    int threads;
+
+    RowBandExecutor executor;
+    PlaneEstimator estimator;
+    SurfaceMap map;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, StatusException {
+      int width = RecordedFrames.RAW_WIDTH, height = RecordedFrames.RAW_HEIGHT;
+      int[] depth = RecordedFrames.readRaw(RecordedFrames.RAW_FILE, width,
+                                           height);
+      FloatBuffer avg = FloatBuffer.allocate(depth.length);
+      for (int i = 0; i < depth.length; i++)
+        avg.put(i, depth[i]);
+      map = SurfaceMap.build(avg, width, width, height,
+          new RawFrameSource(width, height, new int[][] {depth}));
+      executor = new RowBandExecutor(threads,
+                                     RowBandExecutor.DEFAULT_BAND_PIXELS);
+      estimator = new PlaneEstimator(PlaneEstimator.DEFAULT_STRIDE,
+          PlaneEstimator.DEFAULT_ITERATIONS, PlaneEstimator.DEFAULT_TOLERANCE,
+          executor);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      executor.release();
+    }
+  }
+
+  @Benchmark
+  public Plane estimate(Surface s) {
+    return s.estimator.estimate(s.map);
+  }
+}
@@ -0,0 +1,103 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.OpenNI.StatusException;
+
+/**
+ * Loads depth frames from the recordings in test_data for the benchmarks.
+ *
+ * @author yingyin
+ *
+ */
+public class RecordedFrames {
+  public static final String RAW_FILE = "test_data/Depth_0.raw";
+  public static final String RECORDING_FILE = "test_data/Captured.oni";
+  public static final int RAW_WIDTH = 640, RAW_HEIGHT = 480;
+
+  /**
+   * Maximum number of frames to play when looking for frames with forelimbs.
+   */
+  private static final int MAX_PLAYED_FRAMES = 2000;
+
+  /**
+   * Reads a frame of 16-bit little-endian depth values.
+   * @param fileName
+   * @param width
+   * @param height
+   * @return depth values in row-major order.
+   * @throws IOException
+   */
+  public static int[] readRaw(String fileName, int width, int height)
+      throws IOException {
+    byte[] bytes = new byte[width * height * 2];
+    DataInputStream in = new DataInputStream(new FileInputStream(fileName));
+    try {
+      in.readFully(bytes);
+    } finally {
+      in.close();
+    }
+    ShortBuffer sb = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).
+        asShortBuffer();
+    int[] depth = new int[width * height];
+    for (int i = 0; i < depth.length; i++)
+      depth[i] = sb.get(i) & 0xffff;
+    return depth;
+  }
+
+  /**
+   * Plays the recording through <code>detector</code> until the background is
+   * initialized and then returns up to <code>n</code> processed packets.
+   * Frames containing forelimbs are preferred so that the later stages have
+   * work to do.
+   *
+   * @param openni device playing a recording.
+   * @param detector
+   * @param n
+   * @return processed packets. The caller should release them.
+   * @throws StatusException
+   */
+  public static ProcessPacket[] process(OpenNIDevice openni,
+      ForelimbFeatureDetector detector, int n) throws StatusException {
+    int width = openni.getDepthWidth();
+    int height = openni.getDepthHeight();
+    List<ProcessPacket> withForelimbs = new ArrayList<ProcessPacket>(n);
+    List<ProcessPacket> others = new ArrayList<ProcessPacket>(n);
+    ProcessPacket packet = new ProcessPacket(width, height, openni);
+    for (int i = 0; i < MAX_PLAYED_FRAMES && withForelimbs.size() < n; i++) {
+      openni.waitDepthUpdateAll();
+      openni.getDepthArray(packet.depthRawData);
+      packet.depthFrameID = openni.getDepthFrameID();
+      detector.detect(packet);
+      if (detector.isCalibratingBackground())
+        continue;
+      if (!packet.forelimbFeatures.isEmpty())
+        withForelimbs.add(packet);
+      else if (others.size() < n)
+        others.add(packet);
+      else
+        continue;
+      packet = new ProcessPacket(width, height, openni);
+    }
+    packet.release();
+    for (int i = 0; i < others.size(); i++) {
+      if (withForelimbs.size() < n)
+        withForelimbs.add(others.get(i));
+      else
+        others.get(i).release();
+    }
+    if (withForelimbs.isEmpty())
+      throw new IllegalStateException("No frame after background " +
+          "initialization in the recording.");
+    return withForelimbs.toArray(new ProcessPacket[withForelimbs.size()]);
+  }
+
+  private RecordedFrames() {}
+}
@@ -0,0 +1,162 @@
+package edu.mit.yingyin.util;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.yingyin.tabletop.models.Background;
+import edu.mit.yingyin.tabletop.models.RecordedFrames;
+
+/**
+ * Benchmarks the pixel kernels on the raw frame in test_data, on one thread.
+ * The baseline, <code>inline</code>, is the loops of
+ * <code>CvUtil.intToIplImage32F</code>,
+ * <code>ForelimbFeatureDetector.subtractBackground</code> and
+ * <code>ImageConvertUtils.histogramToBufferedImageUShort</code> before they
+ * called the kernels. The range comparison was done by OpenCV before, see
+ * <code>PipelineBenchmark.backgroundDiff</code>, so its baseline is the scalar
+ * kernel. The vector kernels are only selected if they are
+ * built and the vector module is added, e.g.
+ * <pre>
+ * ant build-vector bench -Dbench.args="PixelKernelsBenchmark
+ *     -jvmArgsAppend --add-modules=jdk.incubator.vector"
+ * </pre>
+ *
+ * @author yingyin
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PixelKernelsBenchmark {
+  private static final int MAX_DEPTH = 65535;
+  /**
+   * Half width in mm of the background bounds.
+   */
+  private static final float BAND = 20;
+
+  /**
+   * The per-pixel loops as they were written in the image stages.
+   */
+  static class Inline extends PixelKernels.Scalar {
+    @Override
+    public String name() {
+      return "inline";
+    }
+
+    @Override
+    public void toFloat(int[] raw, int srcPos, float[] row, int dstPos,
+                        int width, float scale) {
+      int offset = srcPos;
+      for (int w = 0; w < width; w++)
+        row[dstPos + w] = (float) raw[offset + w] * scale;
+    }
+
+    @Override
+    public int maskedToByte(int[] depthData, int srcPos, byte[] mask,
+        byte[] depth, int dstPos, int regionWidth, int maxDepth) {
+      int count = 0;
+      int offset = srcPos;
+      for (int i = 0; i < regionWidth; i++) {
+        if (Background.isForeground(mask[dstPos + i])) {
+          count++;
+          depth[dstPos + i] = (byte) (depthData[offset + i] * 255 / maxDepth);
+        } else {
+          depth[dstPos + i] = 0;
+        }
+      }
+      return count;
+    }
+
+    @Override
+    public void lookup(int[] array, int start, float[] histogram, float max,
+                       short[] imageArray, int length) {
+      for (int i = start; i < start + length; i++) {
+        int v = array[i];
+        v = MathUtil.clip(v, 0, histogram.length - 1);
+        imageArray[i] = (short)(histogram[v] * max);
+      }
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Frame {
+    @Param({"inline", "scalar", "selected"})
+    String kernels;
+
+    PixelKernels k;
+    int[] depth;
+    int maxDepth = 1;
+    float[] f, low, high, histogram = new float[MAX_DEPTH + 1];
+    byte[] mask, depth8U;
+    short[] grey;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      if (kernels.equals("inline"))
+        k = new Inline();
+      else if (kernels.equals("scalar"))
+        k = PixelKernels.scalar();
+      else
+        k = PixelKernels.get();
+      depth = RecordedFrames.readRaw(RecordedFrames.RAW_FILE,
+          RecordedFrames.RAW_WIDTH, RecordedFrames.RAW_HEIGHT);
+      int n = depth.length;
+      f = new float[n];
+      low = new float[n];
+      high = new float[n];
+      mask = new byte[n];
+      depth8U = new byte[n];
+      grey = new short[n];
+      // The bounds of a background shifted by a row, so that edges are
+      // foreground.
+      for (int i = 0; i < n; i++) {
+        int d = depth[(i + RecordedFrames.RAW_WIDTH) % n];
+        low[i] = d - BAND;
+        high[i] = d + BAND;
+        maxDepth = Math.max(maxDepth, depth[i]);
+      }
+      for (int i = 0; i < histogram.length; i++)
+        histogram[i] = (float) i / histogram.length;
+      PixelKernels.scalar().outsideRange(depth, 0, low, high, mask, 0, n);
+    }
+  }
+
+  @Benchmark
+  public float[] toFloat(Frame s) {
+    s.k.toFloat(s.depth, 0, s.f, 0, s.depth.length, 1f / s.maxDepth);
+    return s.f;
+  }
+
+  @Benchmark
+  public int outsideRange(Frame s) {
+    return s.k.outsideRange(s.depth, 0, s.low, s.high, s.mask, 0,
+                            s.depth.length);
+  }
+
+  @Benchmark
+  public int maskedToByte(Frame s) {
+    return s.k.maskedToByte(s.depth, 0, s.mask, s.depth8U, 0, s.depth.length,
+                            s.maxDepth);
+  }
+
+  @Benchmark
+  public short[] lookup(Frame s) {
+    s.k.lookup(s.depth, 0, s.histogram, 65536, s.grey, s.depth.length);
+    return s.grey;
+  }
+}
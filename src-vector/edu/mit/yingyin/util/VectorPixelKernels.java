@@ -0,0 +1,86 @@
+package edu.mit.yingyin.util;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link PixelKernels} with the Java Vector API.
+ *
+ * Built separately by <code>ant build-vector</code> and loaded by name, so the
+ * rest of the project still builds and runs on Java 7. The JVM has to be run
+ * with <code>--add-modules jdk.incubator.vector</code>.
+ *
+ * The kernels use 256-bit int and float vectors, narrowed to byte vectors
+ * with the same 8 lanes. The species are constants so that the compiler maps
+ * the operations to instructions; wider vectors are not used because masks of
+ * 512-bit vectors are slow on current JVMs. The last elements of a range that
+ * do not fill a vector are processed by the scalar kernels.
+ *
+ * The kernels that convert floats to ints, i.e. the scaling to 8 bits and the
+ * lookup, are inherited from the scalar kernels: the JDK 17 compiler does not
+ * vectorize the conversion, and those kernels are several times slower with
+ * vectors.
+ *
+ * @author yingyin
+ *
+ */
+public class VectorPixelKernels extends PixelKernels.Scalar {
+  private static final VectorSpecies<Integer> INT = IntVector.SPECIES_256;
+  private static final VectorSpecies<Float> FLOAT = FloatVector.SPECIES_256;
+  private static final VectorSpecies<Byte> BYTE = ByteVector.SPECIES_64;
+  private static final int LANES = INT.length();
+
+  /**
+   * @throws UnsupportedOperationException if the CPU has no 256-bit vectors.
+   */
+  public VectorPixelKernels() {
+    if (IntVector.SPECIES_PREFERRED.vectorBitSize() < INT.vectorBitSize())
+      throw new UnsupportedOperationException("Vectors are too short: " +
+                                              IntVector.SPECIES_PREFERRED);
+  }
+
+  @Override
+  public String name() {
+    return "vector (" + LANES + " lanes)";
+  }
+
+  @Override
+  public void toFloat(int[] src, int srcPos, float[] dst, int dstPos,
+                      int length, float scale) {
+    int bound = INT.loopBound(length);
+    for (int i = 0; i < bound; i += LANES) {
+      FloatVector v = (FloatVector) IntVector.fromArray(INT, src, srcPos + i).
+          convert(VectorOperators.I2F, 0);
+      v.mul(scale).intoArray(dst, dstPos + i);
+    }
+    super.toFloat(src, srcPos + bound, dst, dstPos + bound, length - bound,
+                   scale);
+  }
+
+  @Override
+  public int outsideRange(int[] src, int srcPos, float[] low, float[] high,
+                          byte[] mask, int maskPos, int length) {
+    int bound = INT.loopBound(length);
+    int count = 0;
+    IntVector zero = IntVector.zero(INT);
+    for (int i = 0; i < bound; i += LANES) {
+      int p = srcPos + i;
+      FloatVector v = (FloatVector) IntVector.fromArray(INT, src, p).
+          convert(VectorOperators.I2F, 0);
+      VectorMask<Float> inside =
+          v.compare(VectorOperators.GE, FloatVector.fromArray(FLOAT, low, p)).
+          and(v.compare(VectorOperators.LT,
+                        FloatVector.fromArray(FLOAT, high, p)));
+      VectorMask<Integer> outside = inside.not().cast(INT);
+      count += outside.trueCount();
+      ((ByteVector) zero.blend(255, outside).convertShape(
+          VectorOperators.I2B, BYTE, 0)).intoArray(mask, maskPos + i);
+    }
+    return count + super.outsideRange(src, srcPos + bound, low, high, mask,
+        maskPos + bound, length - bound);
+  }
+}
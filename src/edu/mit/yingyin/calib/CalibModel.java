@@ -5,8 +5,6 @@ import static com.googlecode.javacv.cpp.opencv_core.CV_32FC2;
 import static com.googlecode.javacv.cpp.opencv_calib3d.cvFindExtrinsicCameraParams2;
 import static com.googlecode.javacv.cpp.opencv_calib3d.cvFindHomography;
 import static com.googlecode.javacv.cpp.opencv_calib3d.cvRodrigues2;
-import static com.googlecode.javacv.cpp.opencv_core.cvGEMM;
-import static com.googlecode.javacv.cpp.opencv_core.cvTranspose;
 import static com.googlecode.javacv.cpp.opencv_imgproc.cvUndistortPoints;
 
 import java.io.File;
@@ -21,6 +19,8 @@ import javax.vecmath.Point2f;
 
 import com.googlecode.javacv.cpp.opencv_core.CvMat;
 
+import edu.mit.yingyin.util.CvUtil;
+
 /**
  * Computes extrinsic camera parameters.
  * @author yingyin
@@ -39,11 +39,23 @@ public class CalibModel {
     public void release();
     public void save(PrintStream ps);
     public String toString();
-    public Point2f imageToDisplayCoords(float x, float y);
+    /**
+     * Converts points in the image coordinate to the display coordinate.
+     * @param imagePoints x and y of each point.
+     * @param displayPoints x and y of each converted point. May be the same
+     *    array as <code>imagePoints</code>.
+     * @param numPoints
+     */
+    public void imageToDisplayCoords(float[] imagePoints,
+        float[] displayPoints, int numPoints);
   }
 
   private class HomographyMethod implements CalibrationMethod {
-    private CvMat homographyMat = CvMat.create(3, 3, CV_32FC1);
+    private CvMat homographyMat = CvUtil.createMat(3, 3, CV_32FC1);
+    /**
+     * Copy of the homography in row-major order.
+     */
+    private final double[] h = new double[9];
 
     /**
      * Given the correspondence of points in two planes, finds the projective 
@@ -58,8 +70,8 @@ public class CalibModel {
     public HomographyMethod(List<Point2f> objectPoints,
         List<Point2f> imagePoints) {
 
-      CvMat objectPointsMat = CvMat.create(objectPoints.size(), 1, CV_32FC2);
-      CvMat imagePointsMat = CvMat.create(imagePoints.size(), 1, CV_32FC2);
+      CvMat objectPointsMat = CvUtil.createMat(objectPoints.size(), 1, CV_32FC2);
+      CvMat imagePointsMat = CvUtil.createMat(imagePoints.size(), 1, CV_32FC2);
 
       for (int i = 0; i < objectPoints.size(); i++) {
         objectPointsMat.put(i * 2, objectPoints.get(i).x);
@@ -76,12 +88,14 @@ public class CalibModel {
       
       objectPointsMat.release();
       imagePointsMat.release();
+      copyHomography();
     }
     
     public HomographyMethod(Scanner scanner) {
       for (int i = 0; i < 3; i++)
         for (int j = 0; j < 3; j++)
           homographyMat.put(i, j, scanner.nextFloat());
+      copyHomography();
     }
     
     public void release() {
@@ -105,40 +119,34 @@ public class CalibModel {
       ps.println();
     }
     
-    /**
-     * Converts a point in the image coordinate to the display coordinate.
-     */
-    public Point2f imageToDisplayCoords(float x, float y) {
-      CvMat imageCoords = null;
+    public void imageToDisplayCoords(float[] imagePoints,
+        float[] displayPoints, int numPoints) {
       if (methodName == CalibMethodName.UNDISTORT) {
-        imageCoords = CvMat.create(1, 1, CV_32FC2);
-        imageCoords.put(0, x);
-        imageCoords.put(1, y);
-        cvUndistortPoints(imageCoords, imageCoords, intrinsicMatrixMat, 
-            distortionCoeffsMat, null, null);
-      } else {
-        imageCoords = CvMat.create(2, 1, CV_32FC1);
-        imageCoords.put(0, x);
-        imageCoords.put(1, y);
+        undistortPoints(imagePoints, displayPoints, numPoints);
+        imagePoints = displayPoints;
       }
-      CvMat src = CvMat.create(3, 1, CV_32FC1);
-      CvMat dst = CvMat.create(3, 1, CV_32FC1);
-      src.put(0, imageCoords.get(0));
-      src.put(1, imageCoords.get(1));
-      src.put(2, 1);
-      cvGEMM(homographyMat, src, 1, null, 0, dst, 0);
-      Point2f displayPoint = new Point2f((float)(dst.get(0) / dst.get(2)), 
-                                         (float)(dst.get(1) / dst.get(2)));
-      src.release();
-      dst.release();
-      imageCoords.release();
-      return displayPoint;
+      for (int i = 0; i < 2 * numPoints; i += 2) {
+        double x = imagePoints[i], y = imagePoints[i + 1];
+        double w = h[6] * x + h[7] * y + h[8];
+        displayPoints[i] = (float) ((h[0] * x + h[1] * y + h[2]) / w);
+        displayPoints[i + 1] = (float) ((h[3] * x + h[4] * y + h[5]) / w);
+      }
+    }
+
+    private void copyHomography() {
+      for (int i = 0; i < 3; i++)
+        for (int j = 0; j < 3; j++)
+          h[i * 3 + j] = homographyMat.get(i, j);
     }
   }
   
   private class ExtrinsicMethod implements CalibrationMethod {
-    private CvMat rotationMat = CvMat.create(3, 3, CV_32FC1);
-    private CvMat translationMat = CvMat.create(3, 1, CV_32FC1);
+    private CvMat rotationMat = CvUtil.createMat(3, 3, CV_32FC1);
+    private CvMat translationMat = CvUtil.createMat(3, 1, CV_32FC1);
+    /**
+     * R^-1 = R^T in row-major order, and R^-1 * T.
+     */
+    private final double[] rInv = new double[9], rInvT = new double[3];
     
     /**
      * Requires objectPoints.size = imagePoints.size
@@ -148,9 +156,9 @@ public class CalibModel {
     public ExtrinsicMethod(List<Point2f> objectPoints,
         List<Point2f> imagePoints) {
       
-      CvMat objectPointsMat = CvMat.create(objectPoints.size(), 3, CV_32FC1);
-      CvMat imagePointsMat = CvMat.create(imagePoints.size(), 2, CV_32FC1);
-      CvMat rodrigues = CvMat.create(3, 1, CV_32FC1);
+      CvMat objectPointsMat = CvUtil.createMat(objectPoints.size(), 3, CV_32FC1);
+      CvMat imagePointsMat = CvUtil.createMat(imagePoints.size(), 2, CV_32FC1);
+      CvMat rodrigues = CvUtil.createMat(3, 1, CV_32FC1);
       
       for (int i = 0; i < objectPoints.size(); i++) {
         objectPointsMat.put(i, 0, objectPoints.get(i).x);
@@ -167,6 +175,7 @@ public class CalibModel {
       objectPointsMat.release();
       imagePointsMat.release();
       rodrigues.release();
+      invert();
     }
     
     public ExtrinsicMethod(Scanner scanner) {
@@ -175,6 +184,7 @@ public class CalibModel {
           rotationMat.put(i, j, scanner.nextFloat());
       for (int i = 0; i < 3; i++)
         translationMat.put(i, scanner.nextFloat());
+      invert();
     }
     
     public void release() {
@@ -209,49 +219,35 @@ public class CalibModel {
     
     /**
      * Transforms image coordinates to display coordinates P_d.
-     * 
-     * @param imagePoint 2D point in image coordinates.
-     * @return 2D point in display coordinates.
      */
-    public Point2f imageToDisplayCoords(float x, float y) {
-      CvMat imageCoords = CvMat.create(1, 1, CV_32FC2);
-      imageCoords.put(0, x);
-      imageCoords.put(1, y);
-      cvUndistortPoints(imageCoords, imageCoords, intrinsicMatrixMat, 
-          distortionCoeffsMat, null, null);
-      
-      // P_cn = [X_c / Z_c, Y_c / Z_c, 1]
-      // P_c = Z_c * P_cn
-      CvMat normalizedCameraCoords = CvMat.create(3, 1, CV_32FC1);
-      normalizedCameraCoords.put(0, imageCoords.get(0));
-      normalizedCameraCoords.put(1, imageCoords.get(1));
-      normalizedCameraCoords.put(2, 1);
-
-      // P_c = R * P_d + T
-      // P_d = R^-1 * (P_c - T) = Z_c * (R^-1 * P_cn) - R^-1 * T
-      CvMat rotationInverse = CvMat.create(3, 3, CV_32FC1);
-      cvTranspose(rotationMat, rotationInverse);
-      
-      // result1 = R^-1 * P_cn
-      CvMat result1 = CvMat.create(3, 1, CV_32FC1);
-      // result2 = R^-1 * T
-      CvMat result2 = CvMat.create(3, 1, CV_32FC1);
-      cvGEMM(rotationInverse, normalizedCameraCoords, 1, null, 0, result1, 0);
-      cvGEMM(rotationInverse, translationMat, 1, null, 0, result2, 0);
-      
-      float cameraZ = (float)(result2.get(2) / result1.get(2));
-
-      Point2f converted = new Point2f(
-          (float)(result1.get(0) * cameraZ - result2.get(0)),
-          (float)(result1.get(1) * cameraZ - result2.get(1)));
-      
-      imageCoords.release();
-      imageCoords.release();
-      rotationInverse.release();
-      result1.release();
-      result2.release();
+    public void imageToDisplayCoords(float[] imagePoints,
+        float[] displayPoints, int numPoints) {
+      undistortPoints(imagePoints, displayPoints, numPoints);
+      for (int i = 0; i < 2 * numPoints; i += 2) {
+        // P_cn = [X_c / Z_c, Y_c / Z_c, 1]
+        // P_c = Z_c * P_cn
+        // P_c = R * P_d + T
+        // P_d = R^-1 * (P_c - T) = Z_c * (R^-1 * P_cn) - R^-1 * T
+        // The display plane is Z_d = 0, which gives Z_c.
+        double x = displayPoints[i], y = displayPoints[i + 1];
+        double px = rInv[0] * x + rInv[1] * y + rInv[2];
+        double py = rInv[3] * x + rInv[4] * y + rInv[5];
+        double pz = rInv[6] * x + rInv[7] * y + rInv[8];
+        double cameraZ = rInvT[2] / pz;
+        displayPoints[i] = (float) (px * cameraZ - rInvT[0]);
+        displayPoints[i + 1] = (float) (py * cameraZ - rInvT[1]);
+      }
+    }
 
-      return converted;
+    private void invert() {
+      for (int i = 0; i < 3; i++)
+        for (int j = 0; j < 3; j++)
+          rInv[i * 3 + j] = rotationMat.get(j, i);
+      for (int i = 0; i < 3; i++) {
+        rInvT[i] = 0;
+        for (int j = 0; j < 3; j++)
+          rInvT[i] += rInv[i * 3 + j] * translationMat.get(j);
+      }
     }
   }
   
@@ -275,11 +271,34 @@ public class CalibModel {
       (float)-1.3053628089976321e+00};
   
   private static final int MIN_POINTS = 4;
+  /**
+   * Number of iterations of the undistortion, the same as cvUndistortPoints.
+   */
+  private static final int UNDISTORT_ITERATIONS = 5;
   
-  private CvMat intrinsicMatrixMat = CvMat.create(3, 3, CV_32FC1);
-  private CvMat distortionCoeffsMat = CvMat.create(5, 1, CV_32FC1);
+  /**
+   * Size of the depth images the lookup table covers, which is the image size
+   * of the intrinsic parameters.
+   */
+  private static final int IMAGE_WIDTH = 640, IMAGE_HEIGHT = 480;
+  /**
+   * Distance in pixels between the points of the lookup table. The mapping is
+   * smooth enough that bilinear interpolation between the points is well
+   * within a display pixel.
+   */
+  private static final int LOOKUP_STEP = 4;
+  private static final int LOOKUP_COLS = IMAGE_WIDTH / LOOKUP_STEP + 1;
+  private static final int LOOKUP_ROWS = IMAGE_HEIGHT / LOOKUP_STEP + 1;
+  
+  private CvMat intrinsicMatrixMat = CvUtil.createMat(3, 3, CV_32FC1);
+  private CvMat distortionCoeffsMat = CvUtil.createMat(5, 1, CV_32FC1);
   private CalibMethodName methodName;
   private CalibrationMethod method;
+  /**
+   * Display coordinates of the image points on a grid with
+   * <code>LOOKUP_STEP</code> spacing, in row-major order.
+   */
+  private float[] lookupX, lookupY;
   
   /**
    * Constructs a <code>CalibModel</code> from corresponding object points and 
@@ -309,6 +328,7 @@ public class CalibModel {
     } else {
       method = new HomographyMethod(objectPoints, imagePoints);
     }
+    initLookupTable();
   }
   
   /**
@@ -327,6 +347,7 @@ public class CalibModel {
       } else {
         method = new HomographyMethod(scanner);
       }
+      initLookupTable();
     } catch (FileNotFoundException e) {
       System.err.println(e.getMessage());
       System.exit(-1);
@@ -342,11 +363,76 @@ public class CalibModel {
    * @return corresponding point in the display coordinate.
    */
   public Point2f imageToDisplayCoords(Point2f imagePoint) {
-    return method.imageToDisplayCoords(imagePoint.x, imagePoint.y);
+    return imageToDisplayCoords(imagePoint.x, imagePoint.y);
   }
   
   public Point2f imageToDisplayCoords(float x, float y) {
-    return method.imageToDisplayCoords(x, y);
+    Point2f displayPoint = new Point2f();
+    imageToDisplayCoords(x, y, displayPoint);
+    return displayPoint;
+  }
+
+  /**
+   * Converts a point in the image coordinate to the display coordinate without
+   * allocation. Points in the image are interpolated from the lookup table,
+   * and the others are converted by the calibration method.
+   * 
+   * @param x
+   * @param y
+   * @param displayPoint set to the point in the display coordinate.
+   */
+  public void imageToDisplayCoords(float x, float y, Point2f displayPoint) {
+    if (!(x >= 0 && x <= IMAGE_WIDTH && y >= 0 && y <= IMAGE_HEIGHT)) {
+      displayPoint.set(imageToDisplayCoordsExact(x, y));
+      return;
+    }
+    float gx = x / LOOKUP_STEP, gy = y / LOOKUP_STEP;
+    int col = Math.min((int) gx, LOOKUP_COLS - 2);
+    int row = Math.min((int) gy, LOOKUP_ROWS - 2);
+    float fx = gx - col, fy = gy - row;
+    int i = row * LOOKUP_COLS + col;
+    int j = i + LOOKUP_COLS;
+    float w00 = (1 - fx) * (1 - fy), w01 = fx * (1 - fy);
+    float w10 = (1 - fx) * fy, w11 = fx * fy;
+    displayPoint.x = w00 * lookupX[i] + w01 * lookupX[i + 1] +
+                     w10 * lookupX[j] + w11 * lookupX[j + 1];
+    displayPoint.y = w00 * lookupY[i] + w01 * lookupY[i + 1] +
+                     w10 * lookupY[j] + w11 * lookupY[j + 1];
+  }
+
+  /**
+   * Converts a point with the calibration method directly instead of the
+   * lookup table.
+   * @param x
+   * @param y
+   * @return corresponding point in the display coordinate.
+   */
+  public Point2f imageToDisplayCoordsExact(float x, float y) {
+    float[] point = {x, y};
+    method.imageToDisplayCoords(point, point, 1);
+    return new Point2f(point[0], point[1]);
+  }
+
+  /**
+   * Converts a batch of points in the image coordinate to the display
+   * coordinate with the calibration method.
+   * 
+   * The conversion is done in Java with the inverse transforms precomputed
+   * when the model is created, so its cost is linear in the number of points
+   * without any native call.
+   * 
+   * @param imagePoints x and y of each point in the image coordinate.
+   * @param displayPoints x and y of each point in the display coordinate. May
+   *    be the same array as <code>imagePoints</code>.
+   * @param numPoints number of points to convert.
+   */
+  public void imageToDisplayCoords(float[] imagePoints, float[] displayPoints,
+                                   int numPoints) {
+    if (imagePoints.length < 2 * numPoints ||
+        displayPoints.length < 2 * numPoints)
+      throw new IllegalArgumentException(
+          "Arrays should hold " + numPoints + " points.");
+    method.imageToDisplayCoords(imagePoints, displayPoints, numPoints);
   }
   
   /**
@@ -419,6 +505,57 @@ public class CalibModel {
     assert distortionCoeffsMat.cols() == 1;
   }
   
+  /**
+   * Removes the lens distortion of image points with the intrinsic parameters
+   * of Kinect, in the same way as cvUndistortPoints without rectification.
+   * 
+   * @param src x and y of each point in the image coordinate.
+   * @param dst x and y of each point in the normalized camera coordinate. May
+   *    be the same array as <code>src</code>.
+   * @param numPoints
+   */
+  static void undistortPoints(float[] src, float[] dst, int numPoints) {
+    double fx = INTRINSIC_MATRIX[0][0], fy = INTRINSIC_MATRIX[1][1];
+    double cx = INTRINSIC_MATRIX[0][2], cy = INTRINSIC_MATRIX[1][2];
+    double k1 = DISTORTION_COEFFS[0], k2 = DISTORTION_COEFFS[1];
+    double p1 = DISTORTION_COEFFS[2], p2 = DISTORTION_COEFFS[3];
+    double k3 = DISTORTION_COEFFS[4];
+    for (int i = 0; i < 2 * numPoints; i += 2) {
+      double x0 = (src[i] - cx) / fx, y0 = (src[i + 1] - cy) / fy;
+      double x = x0, y = y0;
+      for (int j = 0; j < UNDISTORT_ITERATIONS; j++) {
+        double r2 = x * x + y * y;
+        double icdist = 1 / (1 + ((k3 * r2 + k2) * r2 + k1) * r2);
+        double deltaX = 2 * p1 * x * y + p2 * (r2 + 2 * x * x);
+        double deltaY = p1 * (r2 + 2 * y * y) + 2 * p2 * x * y;
+        x = (x0 - deltaX) * icdist;
+        y = (y0 - deltaY) * icdist;
+      }
+      dst[i] = (float) x;
+      dst[i + 1] = (float) y;
+    }
+  }
+  
+  /**
+   * Precomputes the display coordinates of the grid of image points, so that
+   * a single conversion is an interpolation of four entries.
+   */
+  private void initLookupTable() {
+    float[] points = new float[2 * LOOKUP_COLS * LOOKUP_ROWS];
+    for (int r = 0, i = 0; r < LOOKUP_ROWS; r++)
+      for (int c = 0; c < LOOKUP_COLS; c++, i += 2) {
+        points[i] = c * LOOKUP_STEP;
+        points[i + 1] = r * LOOKUP_STEP;
+      }
+    method.imageToDisplayCoords(points, points, LOOKUP_COLS * LOOKUP_ROWS);
+    lookupX = new float[LOOKUP_COLS * LOOKUP_ROWS];
+    lookupY = new float[LOOKUP_COLS * LOOKUP_ROWS];
+    for (int i = 0; i < lookupX.length; i++) {
+      lookupX[i] = points[2 * i];
+      lookupY[i] = points[2 * i + 1];
+    }
+  }
+  
   private void initIntrinsicParameters() {
     for (int i = 0; i < 3; i++) 
       for (int j = 0; j < 3; j++) {
@@ -50,6 +50,7 @@ import javax.swing.ImageIcon;
 
 import edu.mit.yingyin.util.DirectBufferUtil;
 import edu.mit.yingyin.util.MathUtil;
+import edu.mit.yingyin.util.PixelKernels;
 
 public class ImageConvertUtils {
   private static final Logger logger = Logger.getLogger(
@@ -574,15 +575,22 @@ public class ImageConvertUtils {
    */
   public static void histogramToBufferedImageUShort(int[] array, 
       float[] histogram, BufferedImage bi) {
+    histogramToBufferedImageUShort(array, histogram, bi, 0, 
+                                   bi.getWidth() * bi.getHeight());
+  }
+  
+  /**
+   * Converts the pixels [start, end) of an integer array to a 
+   * <code>BufferedImage</code> of type USHORT_GRAY with the same size as the 
+   * array. Disjoint ranges can be converted concurrently.
+   */
+  public static void histogramToBufferedImageUShort(int[] array, 
+      float[] histogram, BufferedImage bi, int start, int end) {
     short[] imageArray = ((DataBufferUShort) bi.getRaster().getDataBuffer()).
         getData();
-    int totalPixels = bi.getWidth() * bi.getHeight();
     int max = 2 << 16 - 1;
-    for (int i = 0; i < totalPixels; i++) {
-      int v = array[i];
-      v = MathUtil.clip(v, 0, histogram.length - 1);
-      imageArray[i] = (short)(histogram[v] * max);
-    }
+    PixelKernels.get().lookup(array, start, histogram, max, imageArray, 
+                              end - start);
   }
   
   /**
@@ -0,0 +1,286 @@
+package edu.mit.yingyin.tabletop.apps;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.OpenNI.GeneralException;
+import org.OpenNI.StatusException;
+import org.apache.commons.cli.Option;
+
+import edu.mit.yingyin.calib.CalibModel;
+import edu.mit.yingyin.tabletop.models.ActivityIndex;
+import edu.mit.yingyin.tabletop.models.DepthRecording;
+import edu.mit.yingyin.tabletop.models.EnvConstant;
+import edu.mit.yingyin.tabletop.models.FeatureBuilder;
+import edu.mit.yingyin.tabletop.models.FeatureWriter;
+import edu.mit.yingyin.tabletop.models.FingerEventLog;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngine;
+import edu.mit.yingyin.tabletop.models.OpenNIDevice;
+import edu.mit.yingyin.tabletop.models.ProcessPacket;
+import edu.mit.yingyin.tabletop.models.ReadAheadSource;
+import edu.mit.yingyin.tabletop.models.TrackingParameters;
+import edu.mit.yingyin.util.CommandLineOptions;
+import edu.mit.yingyin.util.FileUtil;
+import edu.mit.yingyin.util.RowBandExecutor;
+
+/**
+ * Headless application that extracts the gesture features and the fingertip
+ * events from all the recordings in a directory.
+ *
+ * Each recording is played once as fast as possible, with the frames read
+ * ahead on another thread, and processed by its own engine without a display.
+ * The recordings are spread over a work-stealing pool with one thread per
+ * core by default, so that short recordings do not leave threads idle while
+ * long ones are still running. The tracking parameters, the calibration file
+ * and the feature image width are read from
+ * <code>&lt;dir&gt;/config/fingertip-tracking.properties</code> as in
+ * {@link HandTrackingApp}. For each recording <code>name.oni</code> or
+ * <code>name.tdr</code>, the features are written to
+ * <code>&lt;dir&gt;/data/gesture/name-&lt;width&gt;.gfet</code> and the
+ * finger events to <code>&lt;dir&gt;/data/fingertip/name.log</code>. The
+ * frames of an empty table in a <code>.tdr</code> recording are skipped using
+ * its {@link ActivityIndex}.
+ *
+ * @author yingyin
+ *
+ */
+public class BatchProcessingApp {
+  private static final Logger LOGGER = Logger.getLogger(
+      BatchProcessingApp.class.getName());
+  private static final String USAGE = "Usage: BatchProcessingApp " +
+      "[-d main dir] [-j threads] [-a] <recording directory>";
+  private static final String APP_PROPS = FileUtil.join(EnvConstant.CONFIG_DIR,
+      "fingertip-tracking.properties");
+  private static final String DEFAULT_CALIB_FILE = FileUtil.join(
+      EnvConstant.DATA_DIR, "calibration", "calibration.txt");
+  private static final String OUTPUT_EXTENSION = ".log";
+
+  /**
+   * Statistics of a processed recording.
+   */
+  static class Result {
+    final String recording;
+    final int frames;
+    final long nanos;
+
+    Result(String recording, int frames, long nanos) {
+      this.recording = recording;
+      this.frames = frames;
+      this.nanos = nanos;
+    }
+
+    double fps() { return nanos == 0 ? 0 : frames * 1e9 / nanos; }
+  }
+
+  public static void main(String[] args) {
+    CommandLineOptions.addOption(new Option("d", true,
+        "The main directory for input and output. Default is the current " +
+        "directory."));
+    CommandLineOptions.addOption(new Option("j", true,
+        "Number of threads. Default is the number of cores."));
+    CommandLineOptions.addOption(new Option("a", false,
+        "Process all the frames of depth recordings. By default, the frames " +
+        "of an empty table are skipped."));
+    CommandLineOptions.parse(args);
+    String[] dirs = CommandLineOptions.getArgs();
+    if (dirs.length < 1) {
+      System.out.println(USAGE);
+      System.exit(-1);
+    }
+    String mainDir = CommandLineOptions.getOptionValue("d", ".");
+
+    try {
+      int jobs = Integer.parseInt(CommandLineOptions.getOptionValue("j",
+          Integer.toString(Runtime.getRuntime().availableProcessors())));
+      BatchProcessingApp app = new BatchProcessingApp(mainDir);
+      app.skipIdle = !CommandLineOptions.hasOption("a");
+      app.run(listRecordings(dirs[0]), jobs);
+    } catch (IOException e) {
+      LOGGER.severe(e.getMessage());
+      System.exit(-1);
+    } catch (InterruptedException e) {
+      LOGGER.severe(e.getMessage());
+      System.exit(-1);
+    } catch (IllegalArgumentException e) {
+      LOGGER.severe(e.getMessage());
+      System.exit(-1);
+    }
+    System.exit(0);
+  }
+
+  /**
+   * @param dir
+   * @return the recordings in <code>dir</code> sorted by name.
+   * @throws IOException if <code>dir</code> is not a directory.
+   */
+  static File[] listRecordings(String dir) throws IOException {
+    File[] files = new File(dir).listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return OpenNIDevice.isRecordingFile(name) ||
+               name.endsWith(DepthRecording.SUFFIX);
+      }
+    });
+    if (files == null)
+      throw new IOException(dir + " is not a directory.");
+    Arrays.sort(files);
+    return files;
+  }
+
+  private final String calibrationFile;
+  private final TrackingParameters params;
+  private final FeatureBuilder featureBuilder;
+  private final File featureDir, fingertipDir;
+  private boolean skipIdle = true;
+
+  public BatchProcessingApp(String mainDir) throws IOException {
+    Properties config = new Properties();
+    FileInputStream in = new FileInputStream(FileUtil.join(mainDir,
+                                                           APP_PROPS));
+    try {
+      config.load(in);
+    } finally {
+      in.close();
+    }
+    params = TrackingParameters.fromProperties(config);
+    LOGGER.info("Tracking parameters: " + params);
+    calibrationFile = FileUtil.join(mainDir,
+        config.getProperty("calibration-file", DEFAULT_CALIB_FILE));
+    String imageWidthStr = config.getProperty("image-width", null);
+    featureBuilder = imageWidthStr == null ? new FeatureBuilder() :
+        new FeatureBuilder(Integer.parseInt(imageWidthStr));
+    featureDir = new File(FileUtil.join(mainDir, EnvConstant.GESUTRE_DIR));
+    fingertipDir = new File(FileUtil.join(mainDir, EnvConstant.FINGERTIP_DIR));
+    featureDir.mkdirs();
+    fingertipDir.mkdirs();
+  }
+
+  /**
+   * Processes the recordings on a pool of <code>jobs</code> threads and prints
+   * the statistics of each recording in order.
+   */
+  public void run(File[] recordings, int jobs) throws InterruptedException {
+    jobs = Math.max(1, Math.min(jobs, recordings.length));
+    RowBandExecutor.setConcurrentJobs(jobs);
+    LOGGER.info(String.format("Processing %d recordings with %d threads.",
+                              recordings.length, jobs));
+    long start = System.nanoTime();
+    ForkJoinPool pool = new ForkJoinPool(jobs);
+    List<Future<Result>> results = new ArrayList<Future<Result>>();
+    for (final File recording : recordings) {
+      results.add(pool.submit(new Callable<Result>() {
+        @Override
+        public Result call() throws GeneralException, IOException {
+          return process(recording);
+        }
+      }));
+    }
+    pool.shutdown();
+
+    System.out.println("#\trecording\tframes\tseconds\tfps");
+    int totalFrames = 0;
+    for (int i = 0; i < results.size(); i++) {
+      try {
+        Result r = results.get(i).get();
+        totalFrames += r.frames;
+        System.out.println(String.format(Locale.US, "%d\t%s\t%d\t%.1f\t%.1f",
+            i, r.recording, r.frames, r.nanos / 1e9, r.fps()));
+      } catch (ExecutionException e) {
+        LOGGER.severe(String.format("%s failed: %s", recordings[i],
+                                    e.getCause()));
+        System.out.println(i + "\t" + recordings[i].getName() + "\tfailed");
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    LOGGER.info(String.format(Locale.US,
+        "Processed %d frames in %.1f s: %.1f frames/s in aggregate.",
+        totalFrames, seconds, seconds == 0 ? 0 : totalFrames / seconds));
+  }
+
+  /**
+   * Runs a new engine over all the frames of <code>recording</code> and writes
+   * its features and finger events.
+   */
+  Result process(File recording) throws GeneralException, IOException {
+    String name = recording.getName();
+    String basename = FileUtil.basename(name,
+        name.endsWith(DepthRecording.SUFFIX) ? DepthRecording.SUFFIX :
+        OpenNIDevice.RECORDING_SUFFIX);
+    ReadAheadSource source = openSource(recording);
+    HandTrackingEngine engine = new HandTrackingEngine(source,
+        new CalibModel(calibrationFile), params.copy());
+    FingerEventLog eventLog = new FingerEventLog();
+    engine.addHandEventListener(eventLog);
+    FeatureWriter featureWriter = new FeatureWriter(
+        new File(featureDir, basename + "-" + featureBuilder.imageWidth() +
+                 EnvConstant.GESTURE_FEATURE_SUFFIX).getPath(),
+        featureBuilder);
+    ProcessPacket packet = new ProcessPacket(engine.depthWidth(),
+                                             engine.depthHeight(), source);
+    int frames = 0;
+    long start = System.nanoTime();
+    try {
+      // Every frame is processed once, ending before the player restarts.
+      while (source.hasNext()) {
+        engine.stepFrame(packet);
+        featureWriter.output(packet);
+        frames++;
+      }
+    } finally {
+      featureWriter.close();
+      packet.release();
+      engine.release();
+    }
+    long elapsed = System.nanoTime() - start;
+
+    PrintWriter pw = new PrintWriter(new File(fingertipDir,
+                                              basename + OUTPUT_EXTENSION));
+    try {
+      eventLog.toOutput(pw);
+    } finally {
+      pw.close();
+    }
+    LOGGER.info(String.format(Locale.US, "%s: %d frames, %.1f frames/s.",
+        recording.getName(), frames, frames * 1e9 / elapsed));
+    return new Result(recording.getName(), frames, elapsed);
+  }
+
+  /**
+   * Opens <code>recording</code> to be played once as fast as possible. The
+   * frames of an empty table in a depth recording are skipped using its
+   * activity index, which is built on the first run.
+   */
+  private ReadAheadSource openSource(File recording) throws GeneralException,
+      IOException {
+    if (recording.getName().endsWith(DepthRecording.SUFFIX)) {
+      DepthRecording depthRecording = DepthRecording.open(recording);
+      DepthRecording.Player player = depthRecording.newPlayer();
+      if (skipIdle) {
+        player.skipIdle(ActivityIndex.loadOrBuild(recording, depthRecording,
+                                                  params));
+      }
+      return new ReadAheadSource(player);
+    }
+    OpenNIDevice openni = new OpenNIDevice(recording.getPath());
+    try {
+      openni.setPlaybackSpeed(OpenNIDevice.PLAYBACK_SPEED_FASTEST);
+    } catch (StatusException e) {
+      openni.release();
+      throw e;
+    }
+    return new ReadAheadSource(openni);
+  }
+}
@@ -85,7 +85,7 @@ public class CheckerboardTestApp {
                         EnvConstant.TABLETOP_HEIGHT));
       engine = new HandTrackingEngine(OPENNI_CONFIG_FILE, CALIB_FILE);
       packetController = new ProcessPacketController(engine.depthWidth(), 
-          engine.depthHeight(), null);
+          engine.depthHeight(), engine.interactionSurface());
       engine.addHandEventListener(heController);
       packetController.addKeyListener(new KeyController());
       
@@ -76,7 +76,7 @@ public class DiecticGestureTest extends KeyAdapter implements
     }
     
     packetController = new ProcessPacketController(engine.depthWidth(),
-        engine.depthHeight(), null);
+        engine.depthHeight(), engine.interactionSurface());
 
     engine.addHandEventListener(this);
     packetController.addKeyListener(this);
@@ -6,10 +6,10 @@ import java.awt.event.KeyEvent;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -21,19 +21,25 @@ import org.OpenNI.GeneralException;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
 
+import edu.mit.yingyin.calib.CalibModel;
 import edu.mit.yingyin.tabletop.controllers.ProcessPacketController;
+import edu.mit.yingyin.tabletop.models.DepthRecorder;
 import edu.mit.yingyin.tabletop.models.EnvConstant;
 import edu.mit.yingyin.tabletop.models.FeatureBuilder;
 import edu.mit.yingyin.tabletop.models.FeatureWriter;
+import edu.mit.yingyin.tabletop.models.FingerEventLog;
+import edu.mit.yingyin.tabletop.models.FingertipEvaluator;
+import edu.mit.yingyin.tabletop.models.FingertipEvaluator.GroundTruth;
 import edu.mit.yingyin.tabletop.models.OpenNIDevice;
-import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
 import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
 import edu.mit.yingyin.tabletop.models.HandTrackingEngine;
-import edu.mit.yingyin.tabletop.models.HandTrackingEngine.IHandEventListener;
 import edu.mit.yingyin.tabletop.models.ProcessPacket;
+import edu.mit.yingyin.tabletop.models.TableRegion;
+import edu.mit.yingyin.tabletop.models.TrackingParameters;
 import edu.mit.yingyin.util.CommandLineOptions;
 import edu.mit.yingyin.util.FileUtil;
 import edu.mit.yingyin.util.ObjectIO;
+import edu.mit.yingyin.util.Tracer;
 
 /**
  * Application that tracks the fingertips in data from an OpenNI device. Saves
@@ -50,43 +56,15 @@ public class HandTrackingApp extends KeyAdapter {
    * @author yingyin
    * 
    */
-  private class HandEventListener implements IHandEventListener {
-    /**
-     * List of finger events detected in a frame.
-     */
-    private List<List<ManipulativeEvent>> fingerEventList = 
-        new ArrayList<List<ManipulativeEvent>>();
-
+  private class HandEventListener extends FingerEventLog {
     @Override
     public void fingerPressed(List<ManipulativeEvent> feList) {
       if (packetController != null) {
         for (ManipulativeEvent fe : feList)
           packetController.drawCircle((int) fe.posImage.x, (int) fe.posImage.y);
       }
-      fingerEventList.add(feList);
-    }
-
-    /**
-     * Outputs finger events.
-     * 
-     * @param pw <code>PrinterWriter</code> for output.
-     */
-    public void toOutput(PrintWriter pw) {
-      pw.println("# frame-id x y z x y z ...");
-      for (List<ManipulativeEvent> list : fingerEventList) {
-        if (list.isEmpty())
-          continue;
-        pw.print(list.get(0).frameID + " ");
-        for (ManipulativeEvent fe : list) {
-          pw.print(String.format("%d %d %d ", (int) fe.posImage.x,
-              (int) fe.posImage.y, (int) fe.posImage.z));
-        }
-        pw.println();
-      }
+      super.fingerPressed(feList);
     }
-
-    @Override
-    public void fingerPointed(DiecticEvent de) {}
   }
 
   private static final Logger LOGGER = Logger.getLogger(
@@ -120,7 +98,7 @@ public class HandTrackingApp extends KeyAdapter {
   }
 
   private String mainDir, openniConfigFile, calibrationFile, labelFile, 
-                 classificationFile;
+                 classificationFile, depthRecordFile, tableRegionFile;
   private HandTrackingEngine engine;
   private ProcessPacketController packetController;
   private HandEventListener handEventListener;
@@ -129,6 +107,11 @@ public class HandTrackingApp extends KeyAdapter {
   private boolean displayOn = true, saveFingertip = false;
   private boolean paused = false;
   private FeatureWriter featureWriter;
+  private FeatureBuilder featureBuilder = new FeatureBuilder();
+  private HashMap<Integer, List<Point>> labels;
+  private FingertipEvaluator evaluator;
+  private TrackingParameters params;
+  private DepthRecorder depthRecorder;
 
   @SuppressWarnings("unchecked")
   public HandTrackingApp(String mainDir) {
@@ -139,35 +122,65 @@ public class HandTrackingApp extends KeyAdapter {
     processConfig();
     
     try {
-      engine = new HandTrackingEngine(openniConfigFile, calibrationFile);
+      engine = new HandTrackingEngine(new OpenNIDevice(openniConfigFile),
+          new CalibModel(calibrationFile), params);
     } catch (GeneralException ge) {
       LOGGER.info("OpenNI config file = " + openniConfigFile);
       LOGGER.severe(ge.getMessage());
       System.exit(-1);
     }
+    if (depthRecordFile != null) {
+      try {
+        depthRecorder = new DepthRecorder(new File(depthRecordFile),
+            engine.depthWidth(), engine.depthHeight());
+      } catch (IOException e) {
+        LOGGER.severe(e.getMessage());
+        System.exit(-1);
+      }
+    }
+    if (tableRegionFile != null && new File(tableRegionFile).exists()) {
+      try {
+        engine.setTableRegion(TableRegion.load(new File(tableRegionFile)));
+      } catch (IOException e) {
+        LOGGER.severe(e.getMessage());
+        System.exit(-1);
+      } catch (IllegalArgumentException e) {
+        LOGGER.severe(e.getMessage());
+        System.exit(-1);
+      }
+    }
     handEventListener = new HandEventListener();
     engine.addHandEventListener(handEventListener);
 
-    if (displayOn) {
+    if (labelFile != null) {
       try {
-        HashMap<ProcessPacketController.Options, Object> options = 
-            new HashMap<ProcessPacketController.Options, Object>();
-        if (labelFile != null) 
-          options.put(ProcessPacketController.Options.LABEL, 
-              (HashMap<Integer, List<Point>>) ObjectIO.readObject(labelFile));
-        if (classificationFile != null)
-          options.put(ProcessPacketController.Options.CLASSIFICATION,
-              readClassificationFile(classificationFile));
-        
-        packetController = new ProcessPacketController(engine.depthWidth(),
-            engine.depthHeight(), options);
-        engine.addHandEventListener(packetController);
-        packetController.addKeyListener(this);
-
+        labels = (HashMap<Integer, List<Point>>) ObjectIO.readObject(
+            labelFile);
       } catch (IOException e) {
         System.err.println(e.getMessage());
         System.exit(-1);
       }
+      evaluator = new FingertipEvaluator(GroundTruth.fromLabels(labels));
+      engine.addHandEventListener(evaluator);
+    }
+
+    if (displayOn) {
+      HashMap<ProcessPacketController.Options, Object> options = 
+          new HashMap<ProcessPacketController.Options, Object>();
+      if (labels != null) 
+        options.put(ProcessPacketController.Options.LABEL, labels);
+      if (classificationFile != null)
+        options.put(ProcessPacketController.Options.CLASSIFICATION,
+            readClassificationFile(classificationFile));
+      options.put(ProcessPacketController.Options.INTERACTION_SURFACE,
+          engine.interactionSurface());
+      options.put(ProcessPacketController.Options.FEATURE_BUILDER,
+          featureBuilder);
+      
+      packetController = new ProcessPacketController(engine.depthWidth(),
+          engine.depthHeight(), options);
+      engine.addHandEventListener(packetController);
+      packetController.addKeyListener(this);
     }
 
     while (isRunning()) {
@@ -190,6 +203,9 @@ public class HandTrackingApp extends KeyAdapter {
       case KeyEvent.VK_P:
         paused = !paused;
         break;
+      case KeyEvent.VK_T:
+        writeTrace();
+        break;
       case KeyEvent.VK_ESCAPE:
       case KeyEvent.VK_Q:
         packetController.hide();
@@ -199,6 +215,28 @@ public class HandTrackingApp extends KeyAdapter {
     }
   }
   
+  /**
+   * Writes the recorded trace to a timestamped file in the working directory.
+   */
+  private void writeTrace() {
+    if (!Tracer.ENABLED) {
+      LOGGER.info("Tracing is disabled. Run with -Dtabletop.trace=true.");
+      return;
+    }
+    String filename = "trace_" + dateFormat.format(new Date()) + ".json";
+    try {
+      FileWriter writer = new FileWriter(filename);
+      try {
+        Tracer.writeChromeTrace(writer);
+      } finally {
+        writer.close();
+      }
+      LOGGER.info("Trace written to " + filename);
+    } catch (IOException e) {
+      LOGGER.severe("Failed to write trace: " + e.getMessage());
+    }
+  }
+  
   private void processConfig() {
     Properties config = new Properties();
     FileInputStream in = null;
@@ -216,6 +254,13 @@ public class HandTrackingApp extends KeyAdapter {
     }
 
     // Processes configuration properties.
+    try {
+      params = TrackingParameters.fromProperties(config);
+    } catch (IllegalArgumentException e) {
+      LOGGER.severe(e.getMessage());
+      System.exit(-1);
+    }
+    LOGGER.info("Tracking parameters: " + params);
     openniConfigFile = FileUtil.join(mainDir,
         config.getProperty("openni-config", DEFAULT_OPENNI_CONFIG_FILE));
     String basename = EnvConstant.DEFAULT_BASENAME;
@@ -239,6 +284,14 @@ public class HandTrackingApp extends KeyAdapter {
 
     calibrationFile = FileUtil.join(mainDir,
         config.getProperty("calibration-file", DEFAULT_CALIB_FILE));
+
+    depthRecordFile = config.getProperty("depth-record-file", null);
+    if (depthRecordFile != null)
+      depthRecordFile = FileUtil.join(mainDir, depthRecordFile);
+
+    tableRegionFile = config.getProperty("table-region-file", null);
+    if (tableRegionFile != null)
+      tableRegionFile = FileUtil.join(mainDir, tableRegionFile);
     
     String descriptorFile = config.getProperty(DESCRIPTOR_FILE_PROP, null);
     if (descriptorFile != null) {
@@ -260,22 +313,26 @@ public class HandTrackingApp extends KeyAdapter {
                                          classificationFile);
     
     String imageWidthStr = config.getProperty("image-width", null);
-    if (imageWidthStr != null) {
-      FeatureBuilder.imageWidth(Integer.parseInt(imageWidthStr));
-    }
+    if (imageWidthStr != null)
+      featureBuilder = new FeatureBuilder(Integer.parseInt(imageWidthStr));
 
     String saveFeatures = config.getProperty("save-features", "false");
     if (saveFeatures.equalsIgnoreCase("true")) {
       String dir = FileUtil.join(mainDir, EnvConstant.GESUTRE_DIR);
       (new File(dir)).mkdirs();
       String filename = FileUtil.join(dir, 
-                        basename + "-" + FeatureBuilder.imageWidth() + 
+                        basename + "-" + featureBuilder.imageWidth() + 
                         EnvConstant.GESTURE_FEATURE_SUFFIX);
-      featureWriter = new FeatureWriter(filename);
+      featureWriter = new FeatureWriter(filename, featureBuilder);
     }
   }
   
   private void cleanUp() {
+    if (evaluator != null) {
+      evaluator.finish();
+      LOGGER.info("Accuracy against " + labelFile + ":\n" + 
+                  evaluator.result());
+    }
     if (descriptorPrintWriter != null) {
       descriptorPrintWriter.close();
       LOGGER.info("Done writing descriptors.");
@@ -284,6 +341,22 @@ public class HandTrackingApp extends KeyAdapter {
       featureWriter.close();
       LOGGER.info("Done writing features.");
     }
+    if (depthRecorder != null) {
+      try {
+        depthRecorder.close();
+      } catch (IOException e) {
+        LOGGER.severe(e.getMessage());
+      }
+    }
+    if (tableRegionFile != null && !new File(tableRegionFile).exists() &&
+        engine.tableRegion() != null) {
+      try {
+        engine.tableRegion().save(new File(tableRegionFile));
+        LOGGER.info("Saved the table region to " + tableRegionFile);
+      } catch (FileNotFoundException e) {
+        LOGGER.severe(e.getMessage());
+      }
+    }
     engine.release();
     if (packetController != null)
       packetController.release();
@@ -301,6 +374,9 @@ public class HandTrackingApp extends KeyAdapter {
       
       if (featureWriter != null)
         featureWriter.output(packet);
+
+      if (depthRecorder != null)
+        depthRecorder.record(packet);
       
       packet.release();
     } catch (GeneralException ge) {
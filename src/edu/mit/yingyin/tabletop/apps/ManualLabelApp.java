@@ -26,6 +26,7 @@ import org.OpenNI.StatusException;
 
 import edu.mit.yingyin.gui.ImageComponent;
 import edu.mit.yingyin.gui.ImageFrame;
+import edu.mit.yingyin.tabletop.models.DepthRecording;
 import edu.mit.yingyin.tabletop.models.EnvConstant;
 import edu.mit.yingyin.tabletop.models.ManualGestureLabel;
 import edu.mit.yingyin.tabletop.models.ManualPointLabel;
@@ -109,6 +110,9 @@ public class ManualLabelApp extends KeyAdapter implements MouseListener {
     if (OpenNIDevice.isRecordingFile(openniConfigFile)) {
       basename = FileUtil.basename(openniConfigFile, 
                                    OpenNIDevice.RECORDING_SUFFIX);
+    } else if (DepthRecording.isRecordingFile(openniConfigFile)) {
+      basename = FileUtil.basename(openniConfigFile, 
+          openniConfigFile.substring(openniConfigFile.lastIndexOf('.')));
     }
     
     String labelPoint = config.getProperty("label-point", "false");
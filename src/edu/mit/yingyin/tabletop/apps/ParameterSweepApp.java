@@ -0,0 +1,282 @@
+package edu.mit.yingyin.tabletop.apps;
+
+import java.awt.Point;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.OpenNI.GeneralException;
+import org.OpenNI.StatusException;
+import org.apache.commons.cli.Option;
+
+import edu.mit.yingyin.calib.CalibModel;
+import edu.mit.yingyin.tabletop.models.FingertipEvaluator;
+import edu.mit.yingyin.tabletop.models.FingertipEvaluator.GroundTruth;
+import edu.mit.yingyin.tabletop.models.FingertipEvaluator.Result;
+import edu.mit.yingyin.tabletop.models.FrameCache;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngine;
+import edu.mit.yingyin.tabletop.models.IFrameSource;
+import edu.mit.yingyin.tabletop.models.LatencyMonitor;
+import edu.mit.yingyin.tabletop.models.OpenNIDevice;
+import edu.mit.yingyin.tabletop.models.ProcessPacket;
+import edu.mit.yingyin.tabletop.models.ProcessPacket.Stage;
+import edu.mit.yingyin.tabletop.models.TrackingParameters;
+import edu.mit.yingyin.util.CommandLineOptions;
+import edu.mit.yingyin.util.ObjectIO;
+import edu.mit.yingyin.util.RowBandExecutor;
+
+/**
+ * Evaluates the tracking accuracy and cost on a recording for a grid of
+ * tracking parameters.
+ *
+ * The recording is decoded once into a {@link FrameCache} shared by all the
+ * threads, one per core by default. Each parameter set is evaluated by a
+ * separate engine running over all the cached frames as fast as possible, and
+ * the finger events are scored against the labels.
+ *
+ * The sweep file is a properties file with a comma-separated list of values
+ * for each swept parameter, e.g.
+ *
+ * <pre>
+ * bg-diff-lscale=4,5,6
+ * fingertip-angle=0.7,0.8
+ * </pre>
+ *
+ * Parameters not in the file keep their default values.
+ *
+ * @author yingyin
+ *
+ */
+public class ParameterSweepApp {
+  private static final Logger LOGGER = Logger.getLogger(
+      ParameterSweepApp.class.getName());
+  private static final String USAGE = "Usage: ParameterSweepApp [-j jobs] " +
+      "[-n max frames] [-c cache file] <recording or cache file> " +
+      "<calibration file> <label file> <sweep file>";
+  private static final String DEFAULT_MAX_FRAMES = "100000";
+  private static final Stage[] REPORTED_STAGES = {Stage.PREPROCESSED,
+      Stage.SEGMENTED, Stage.CONTOURS, Stage.HAND_FEATURES, Stage.MODEL,
+      Stage.TRACKED};
+
+  public static void main(String[] args) {
+    CommandLineOptions.addOption(new Option("j", true,
+        "Number of threads. Default is the number of cores."));
+    CommandLineOptions.addOption(new Option("n", true,
+        "Maximum number of frames to decode from the recording."));
+    CommandLineOptions.addOption(new Option("c", true,
+        "File for the decoded frames. Default is a temporary file."));
+    CommandLineOptions.parse(args);
+    String[] files = CommandLineOptions.getArgs();
+    if (files.length < 4) {
+      System.out.println(USAGE);
+      System.exit(-1);
+    }
+
+    try {
+      List<TrackingParameters> grid = expandGrid(readProperties(files[3]));
+      GroundTruth gt = readGroundTruth(files[2]);
+      int jobs = Math.max(1, Math.min(grid.size(), Integer.parseInt(
+          CommandLineOptions.getOptionValue("j", Integer.toString(
+              Runtime.getRuntime().availableProcessors())))));
+      RowBandExecutor.setConcurrentJobs(jobs);
+      int maxFrames = Integer.parseInt(CommandLineOptions.getOptionValue("n",
+          DEFAULT_MAX_FRAMES));
+      File cacheFile = decode(files[0], maxFrames,
+          CommandLineOptions.getOptionValue("c", null));
+      runSweep(FrameCache.open(cacheFile), files[1], gt, grid, jobs);
+    } catch (IOException e) {
+      LOGGER.severe(e.getMessage());
+      System.exit(-1);
+    } catch (GeneralException e) {
+      LOGGER.severe(e.getMessage());
+      System.exit(-1);
+    } catch (InterruptedException e) {
+      LOGGER.severe(e.getMessage());
+      System.exit(-1);
+    } catch (IllegalArgumentException e) {
+      LOGGER.severe(e.getMessage());
+      System.exit(-1);
+    }
+    System.exit(0);
+  }
+
+  /**
+   * Expands the swept values into all the combinations of parameters.
+   * @param sweep comma-separated values for each swept parameter key.
+   * @return parameter sets in a deterministic order.
+   * @throws IllegalArgumentException if there is an unknown key or an invalid
+   *    value.
+   */
+  public static List<TrackingParameters> expandGrid(Properties sweep) {
+    List<TrackingParameters> grid = new ArrayList<TrackingParameters>();
+    grid.add(new TrackingParameters());
+    List<String> keys = new ArrayList<String>();
+    for (String key : TrackingParameters.KEYS) {
+      if (sweep.getProperty(key) != null)
+        keys.add(key);
+    }
+    for (Map.Entry<Object, Object> e : sweep.entrySet()) {
+      if (!keys.contains(e.getKey()))
+        throw new IllegalArgumentException("Unknown parameter: " + e.getKey());
+    }
+    if (keys.contains(TrackingParameters.DEBOUNCE_COUNT))
+      LOGGER.warning(TrackingParameters.DEBOUNCE_COUNT + " does not change " +
+          "the events of the engine, which does not debounce contacts.");
+    for (String key : keys) {
+      List<TrackingParameters> expanded = new ArrayList<TrackingParameters>();
+      for (TrackingParameters params : grid) {
+        for (String value : sweep.getProperty(key).split(",")) {
+          TrackingParameters p = params.copy();
+          p.set(key, value.trim());
+          expanded.add(p);
+        }
+      }
+      grid = expanded;
+    }
+    return grid;
+  }
+
+  /**
+   * Runs the engine with <code>params</code> over all the cached frames.
+   * @return a tab-separated line of the accuracy and the cost.
+   * @throws StatusException if a frame fails.
+   */
+  static String evaluate(FrameCache cache, String calibrationFile,
+      GroundTruth gt, TrackingParameters params) throws StatusException {
+    IFrameSource source = cache.newSource();
+    HandTrackingEngine engine = new HandTrackingEngine(source,
+        new CalibModel(calibrationFile), params);
+    FingertipEvaluator evaluator = new FingertipEvaluator(gt);
+    engine.addHandEventListener(evaluator);
+    ProcessPacket packet = new ProcessPacket(cache.width(), cache.height(),
+                                             source);
+    long start = System.nanoTime(), elapsed;
+    try {
+      for (int i = 0; i < cache.numFrames(); i++)
+        engine.stepFrame(packet);
+      elapsed = System.nanoTime() - start;
+    } finally {
+      packet.release();
+      engine.release();
+    }
+    evaluator.finish();
+    LatencyMonitor latency = engine.latencyMonitor();
+
+    Result r = evaluator.result();
+    StringBuilder sb = new StringBuilder(String.format(Locale.US,
+        "%s\t%d\t%d\t%d\t%.3f\t%.3f\t%.2f\t%.3f\t%.3f\t%.1f", params,
+        r.truePositives, r.falsePositives, r.falseNegatives, r.precision(),
+        r.recall(), r.meanError(), r.clickPrecision(), r.clickRecall(),
+        cache.numFrames() * 1e9 / elapsed));
+    for (Stage s : REPORTED_STAGES)
+      sb.append(String.format(Locale.US, "\t%.3f",
+                              latency.stage(s).mean() / 1e6));
+    return sb.toString();
+  }
+
+  private static String header() {
+    StringBuilder sb = new StringBuilder("#\tparameters\ttp\tfp\tfn\t" +
+        "precision\trecall\terror(px)\tclick-precision\tclick-recall\tfps");
+    for (Stage s : REPORTED_STAGES)
+      sb.append('\t').append(s.name().toLowerCase()).append("(ms)");
+    return sb.toString();
+  }
+
+  /**
+   * @return the cache file of the recording, which is decoded if it is not a
+   *    cache file already.
+   */
+  private static File decode(String recording, int maxFrames,
+      String cacheFileName) throws IOException, GeneralException {
+    if (recording.endsWith(FrameCache.SUFFIX))
+      return new File(recording);
+    File cacheFile;
+    if (cacheFileName != null) {
+      cacheFile = new File(cacheFileName);
+    } else {
+      cacheFile = File.createTempFile("sweep", FrameCache.SUFFIX);
+      cacheFile.deleteOnExit();
+    }
+    OpenNIDevice openni = new OpenNIDevice(recording);
+    try {
+      FrameCache.decode(openni, maxFrames, cacheFile);
+    } finally {
+      openni.release();
+    }
+    return cacheFile;
+  }
+
+  /**
+   * Evaluates the parameter sets on a pool of threads and prints the results
+   * in the order of the grid.
+   */
+  private static void runSweep(final FrameCache cache, 
+      final String calibrationFile, final GroundTruth gt,
+      List<TrackingParameters> grid, int jobs) throws InterruptedException {
+    LOGGER.info(String.format("Evaluating %d parameter sets with %d threads.",
+                              grid.size(), jobs));
+    long start = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(jobs);
+    List<Future<String>> results = new ArrayList<Future<String>>();
+    for (final TrackingParameters params : grid) {
+      results.add(executor.submit(new Callable<String>() {
+        @Override
+        public String call() throws StatusException {
+          return evaluate(cache, calibrationFile, gt, params);
+        }
+      }));
+    }
+    executor.shutdown();
+
+    System.out.println(header());
+    for (int i = 0; i < results.size(); i++) {
+      String result;
+      try {
+        result = results.get(i).get();
+      } catch (ExecutionException e) {
+        LOGGER.severe(String.format("Parameter set %d failed: %s", i,
+                                    e.getCause()));
+        result = grid.get(i) + "\tfailed";
+      }
+      System.out.println(i + "\t" + result);
+    }
+    LOGGER.info(String.format("Sweep done in %.1f s.",
+                              (System.nanoTime() - start) / 1e9));
+  }
+
+  /**
+   * Reads the labels saved by <code>ManualPointLabel</code>, either the
+   * serialized labels or the text file.
+   */
+  @SuppressWarnings("unchecked")
+  private static GroundTruth readGroundTruth(String labelFile)
+      throws IOException {
+    if (labelFile.endsWith(".txt"))
+      return GroundTruth.read(labelFile);
+    return GroundTruth.fromLabels(
+        (Map<Integer, List<Point>>) ObjectIO.readObject(labelFile));
+  }
+
+  private static Properties readProperties(String fileName)
+      throws IOException {
+    Properties props = new Properties();
+    FileInputStream in = new FileInputStream(fileName);
+    try {
+      props.load(in);
+    } finally {
+      in.close();
+    }
+    return props;
+  }
+}
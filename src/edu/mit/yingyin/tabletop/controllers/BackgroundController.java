@@ -15,11 +15,7 @@ public class BackgroundController {
     bf.showUI();
   }
   
-  public void update() {
-    Background bg = Background.instance();
-    if (bg == null)
-      return;
-    
+  public void update(Background bg) {
     if (bg.isInitialized() && !updated ) {
       bf.updateData(bg.diffBuffer(), bg.diffBufferWidthStep());
       updated = true;
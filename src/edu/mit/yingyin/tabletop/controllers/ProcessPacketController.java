@@ -12,9 +12,11 @@ import java.util.logging.Logger;
 
 import org.OpenNI.GeneralException;
 
+import edu.mit.yingyin.tabletop.models.FeatureBuilder;
 import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
 import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
 import edu.mit.yingyin.tabletop.models.HandTrackingEngine.IHandEventListener;
+import edu.mit.yingyin.tabletop.models.InteractionSurface;
 import edu.mit.yingyin.tabletop.models.ProcessPacket;
 import edu.mit.yingyin.tabletop.views.ProcessPacketView;
 import edu.mit.yingyin.tabletop.views.ProcessPacketView.Toggles;
@@ -22,6 +24,7 @@ import edu.mit.yingyin.util.FPSCounter;
 import edu.mit.yingyin.util.Option;
 import edu.mit.yingyin.util.Option.None;
 import edu.mit.yingyin.util.Option.Some;
+import edu.mit.yingyin.util.Tracer;
 
 /**
  * Controls the interaction on the visualization for the ProcessPacket.
@@ -30,7 +33,12 @@ import edu.mit.yingyin.util.Option.Some;
  */
 public class ProcessPacketController extends KeyAdapter 
     implements IHandEventListener {
-  public static enum Options {LABEL, CLASSIFICATION};
+  /**
+   * Optional inputs. INTERACTION_SURFACE is the engine's surface shown in the
+   * 3D view. FEATURE_BUILDER builds the features shown in the debug view.
+   */
+  public static enum Options {LABEL, CLASSIFICATION, INTERACTION_SURFACE,
+                              FEATURE_BUILDER};
   
   private static final Logger LOGGER = Logger.getLogger(
       ProcessPacketController.class.getName());
@@ -39,6 +47,18 @@ public class ProcessPacketController extends KeyAdapter
   private Option<HashMap<Integer, Integer>> classifications;
   private ProcessPacketView packetView;
   
+  /**
+   * Initializes the view of the packets from an engine with the interaction
+   * surface and no other options.
+   * @param width
+   * @param height
+   * @param surface
+   */
+  public ProcessPacketController(int width, int height, 
+      InteractionSurface surface) {
+    this(width, height, surfaceOption(surface));
+  }
+  
   /**
    * Initializes the models and the view.
    * @param width width of the streamed data frame.
@@ -50,6 +70,8 @@ public class ProcessPacketController extends KeyAdapter
       HashMap<Options, Object> options) {
     allLabels = new None<HashMap<Integer, List<Point>>>();
     classifications = new None<HashMap<Integer, Integer>>();
+    InteractionSurface surface = null;
+    FeatureBuilder builder = null;
     
     if (options != null) {
       Object o = options.get(Options.LABEL);
@@ -61,13 +83,25 @@ public class ProcessPacketController extends KeyAdapter
       if (o != null)
         classifications = new Some<HashMap<Integer, Integer>>(
             (HashMap<Integer, Integer>) o);
+      
+      surface = (InteractionSurface) options.get(Options.INTERACTION_SURFACE);
+      builder = (FeatureBuilder) options.get(Options.FEATURE_BUILDER);
     }
-    packetView = new ProcessPacketView(width, height);
+    if (builder == null)
+      builder = new FeatureBuilder();
+    packetView = new ProcessPacketView(width, height, surface, builder);
     fpsCounter = new FPSCounter(ProcessPacketView.ANALYSIS_FRAME_TITLE, 
                                 packetView.analysisFrame());
     packetView.addKeyListener(this);
   }
   
+  private static HashMap<Options, Object> surfaceOption(
+      InteractionSurface surface) {
+    HashMap<Options, Object> options = new HashMap<Options, Object>();
+    options.put(Options.INTERACTION_SURFACE, surface);
+    return options;
+  }
+  
   public void showDepthImage(boolean show) {
     packetView.setToggle(Toggles.SHOW_DEPTH_VIEW,show);
   }
@@ -118,7 +152,12 @@ public class ProcessPacketController extends KeyAdapter
       if (classLabel == null)
         classLabel = -1;
     }
-    packetView.show(packet, labels, classLabel);
+    Tracer.begin("show", packet.depthFrameID);
+    try {
+      packetView.show(packet, labels, classLabel);
+    } finally {
+      Tracer.end("show");
+    }
     fpsCounter.computeFPS();
   }
   
@@ -0,0 +1,310 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Foreground activity of each frame of a {@link DepthRecording}, so that
+ * offline processing and labeling can skip the spans of an empty table.
+ *
+ * The index is built by a fast pass over the recording: the background is
+ * learned from the same frames as {@link ForelimbFeatureDetector} learns it,
+ * and the foreground of every later frame is counted on a sparse grid by a
+ * {@link ForegroundSampler}. A frame is active if its count reaches a minimum,
+ * or if it is within a few frames of such a frame so that the tracker sees
+ * the hands come and go. The frames up to the one the background model is
+ * created at are not measured and always active, whatever the threshold, so
+ * that a player that skips idle frames still lets the engine learn the
+ * background.
+ *
+ * The counts are stored next to the recording in a little-endian file with a
+ * header (magic, sample step, number of samples, number of frames) followed by
+ * one count per frame.
+ *
+ * @author yingyin
+ *
+ */
+public class ActivityIndex {
+  public static final String SUFFIX = ".act";
+  /**
+   * About a tenth of the samples of a hand at 640 x 480 with the default step.
+   */
+  public static final int DEFAULT_MIN_SAMPLES = 12;
+  /**
+   * Number of frames kept active before and after a frame with foreground.
+   */
+  public static final int DEFAULT_PADDING = 15;
+  /**
+   * Count of a frame that is not compared with the background because the
+   * engine learns the background from it or creates the model at it.
+   */
+  public static final int NOT_MEASURED = -1;
+
+  private static final Logger LOGGER = Logger.getLogger(
+      ActivityIndex.class.getName());
+  /**
+   * Version 2 does not measure the frame the model is created at.
+   */
+  private static final int MAGIC = 0x54414932;
+  private static final int HEADER_SIZE = 16;
+
+  /**
+   * @param recording
+   * @return the file of the index of <code>recording</code>.
+   */
+  public static File fileFor(File recording) {
+    return new File(recording.getPath() + SUFFIX);
+  }
+
+  /**
+   * Learns the background from the first frames of <code>recording</code>
+   * and builds the index of the rest.
+   * @param recording
+   * @param params thresholds of the background.
+   * @return a new index.
+   * @throws IOException if a frame cannot be read.
+   */
+  public static ActivityIndex build(DepthRecording recording,
+      TrackingParameters params) throws IOException {
+    int width = recording.width(), height = recording.height();
+    int[] depth = new int[width * height];
+    Background background = new Background(width, height);
+    ForegroundSampler sampler = null;
+    try {
+      boolean learned = false;
+      for (int i = 0; i < recording.numFrames() &&
+           recording.frameID(i) < ForelimbFeatureDetector.BG_INIT_FRAMES;
+           i++) {
+        if (recording.frameID(i) >=
+            ForelimbFeatureDetector.BG_INGNORE_FRAMES) {
+          recording.readDepth(i, depth);
+          background.accumulateBackground(depth);
+          learned = true;
+        }
+      }
+      if (learned) {
+        background.createModelsFromStats(params.bgDiffLowScale,
+                                         params.bgDiffHighScale);
+        sampler = ForegroundSampler.fromBackground(background,
+            ForegroundSampler.DEFAULT_STEP);
+      }
+    } finally {
+      background.release();
+    }
+    if (sampler == null) {
+      LOGGER.warning("Recording is too short to learn the background.");
+      int[] counts = new int[recording.numFrames()];
+      Arrays.fill(counts, NOT_MEASURED);
+      return new ActivityIndex(ForegroundSampler.DEFAULT_STEP, 0, counts);
+    }
+    return build(recording, sampler);
+  }
+
+  /**
+   * Builds the index of <code>recording</code> with the thresholds of
+   * <code>sampler</code>.
+   * @param recording
+   * @param sampler
+   * @return a new index.
+   * @throws IOException if a frame cannot be read.
+   */
+  public static ActivityIndex build(DepthRecording recording,
+      ForegroundSampler sampler) throws IOException {
+    int[] depth = new int[recording.width() * recording.height()];
+    int[] counts = new int[recording.numFrames()];
+    long start = System.nanoTime();
+    for (int i = 0; i < counts.length; i++) {
+      if (recording.frameID(i) <= ForelimbFeatureDetector.BG_INIT_FRAMES) {
+        counts[i] = NOT_MEASURED;
+      } else {
+        recording.readDepth(i, depth);
+        counts[i] = sampler.countForeground(depth);
+      }
+    }
+    ActivityIndex index = new ActivityIndex(sampler.step(),
+        sampler.numSamples(), counts);
+    LOGGER.info(String.format("Indexed %d frames in %.1f s: %d active.",
+        counts.length, (System.nanoTime() - start) / 1e9, index.numActive()));
+    return index;
+  }
+
+  /**
+   * Loads the index of <code>file</code> if it is up to date, or builds and
+   * saves it otherwise.
+   * @param file file of <code>recording</code>.
+   * @param recording
+   * @param params thresholds of the background.
+   * @return the index.
+   * @throws IOException if the recording cannot be read or the index cannot
+   *    be saved.
+   */
+  public static ActivityIndex loadOrBuild(File file, DepthRecording recording,
+      TrackingParameters params) throws IOException {
+    File indexFile = fileFor(file);
+    if (indexFile.exists() && indexFile.lastModified() >= file.lastModified()) {
+      try {
+        ActivityIndex index = load(indexFile);
+        if (index.numFrames() == recording.numFrames())
+          return index;
+      } catch (IOException e) {
+        LOGGER.warning(e.getMessage());
+      }
+    }
+    ActivityIndex index = build(recording, params);
+    index.save(indexFile);
+    return index;
+  }
+
+  /**
+   * Reads an index written by <code>save</code>.
+   * @param file
+   * @return the index.
+   * @throws IOException if the file is not a valid index.
+   */
+  public static ActivityIndex load(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = read(channel, 0, HEADER_SIZE, file);
+      if (header.getInt() != MAGIC)
+        throw new IOException(file + " is not an activity index.");
+      int step = header.getInt(), numSamples = header.getInt();
+      int numFrames = header.getInt();
+      if (numFrames < 0 || channel.size() != HEADER_SIZE + 4L * numFrames)
+        throw new IOException(file + " is truncated.");
+      ByteBuffer buffer = read(channel, HEADER_SIZE, 4 * numFrames, file);
+      int[] counts = new int[numFrames];
+      buffer.asIntBuffer().get(counts);
+      return new ActivityIndex(step, numSamples, counts);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private final int step, numSamples;
+  private final int[] counts;
+  private boolean[] active;
+  private int numActive;
+
+  /**
+   * @param step sample step of the counts.
+   * @param numSamples number of samples per frame.
+   * @param counts foreground samples of each frame, or
+   *    <code>NOT_MEASURED</code>. Not copied.
+   */
+  public ActivityIndex(int step, int numSamples, int[] counts) {
+    this.step = step;
+    this.numSamples = numSamples;
+    this.counts = counts;
+    setThreshold(DEFAULT_MIN_SAMPLES, DEFAULT_PADDING);
+  }
+
+  /**
+   * Marks the frames active with a new threshold.
+   * @param minSamples minimum number of foreground samples of an active frame.
+   * @param padding number of frames kept active before and after it.
+   */
+  public void setThreshold(int minSamples, int padding) {
+    int n = counts.length;
+    active = new boolean[n];
+    numActive = 0;
+    for (int i = 0, last = -padding - 1; i < n; i++) {
+      if (isHot(i, minSamples))
+        last = i;
+      active[i] = i - last <= padding;
+    }
+    for (int i = n - 1, next = n + padding; i >= 0; i--) {
+      if (isHot(i, minSamples))
+        next = i;
+      active[i] |= next - i <= padding;
+      if (active[i])
+        numActive++;
+    }
+  }
+
+  public int numFrames() { return counts.length; }
+
+  public int step() { return step; }
+
+  public int numSamples() { return numSamples; }
+
+  /**
+   * @param index index of a frame in the recording.
+   * @return number of foreground samples of the frame, or
+   *    <code>NOT_MEASURED</code>.
+   */
+  public int foreground(int index) { return counts[index]; }
+
+  public boolean isActive(int index) { return active[index]; }
+
+  public int numActive() { return numActive; }
+
+  /**
+   * @param index
+   * @return index of the first active frame at or after <code>index</code>, or
+   *    -1 if there is none.
+   */
+  public int nextActive(int index) {
+    for (int i = Math.max(index, 0); i < active.length; i++)
+      if (active[i])
+        return i;
+    return -1;
+  }
+
+  /**
+   * @param index
+   * @return index of the last active frame at or before <code>index</code>, or
+   *    -1 if there is none.
+   */
+  public int previousActive(int index) {
+    for (int i = Math.min(index, active.length - 1); i >= 0; i--)
+      if (active[i])
+        return i;
+    return -1;
+  }
+
+  /**
+   * Writes the counts to <code>file</code>.
+   * @param file overwritten if it exists.
+   * @throws IOException
+   */
+  public void save(File file) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 4 * counts.length).
+        order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC).putInt(step).putInt(numSamples).putInt(counts.length);
+    buffer.asIntBuffer().put(counts);
+    buffer.rewind();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private boolean isHot(int index, int minSamples) {
+    return counts[index] == NOT_MEASURED || counts[index] >= minSamples;
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position,
+      int length, File file) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(
+        ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, position + buffer.position());
+      if (n < 0)
+        throw new IOException(file + " is truncated.");
+    }
+    buffer.flip();
+    return buffer;
+  }
+}
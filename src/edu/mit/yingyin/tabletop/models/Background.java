@@ -25,9 +25,11 @@ import java.util.logging.Logger;
 import com.googlecode.javacv.cpp.opencv_core.IplImage;
 
 import edu.mit.yingyin.util.CvUtil;
+import edu.mit.yingyin.util.PixelKernels;
+import edu.mit.yingyin.util.RowBandExecutor;
 
 /**
- * A singleton class that keeps track of the statistics of the background model.
+ * Keeps track of the statistics of the background model.
  * 
  * @author yingyin
  * 
@@ -45,34 +47,6 @@ public class Background {
   
   private static final int PHYSICAL_DIST_FROM_CAMERA = 1160; // mm
 
-  private static Background instance;
-  
-  public static Background initInstance(int width, int height) {
-    if (instance != null) {
-      LOGGER.warning("Instance has been initialized. Cannot initialize again");
-    }
-    instance = new Background(width, height);
-    return instance;
-  }
-  
-  public static Background resetInstance() {
-    if (instance == null) {
-      LOGGER.warning("Instance has been initialized. Cannot initialize again");
-    }   
-    int width = instance.width;
-    int height = instance.height; 
-    instance.release();
-    instance = new Background(width, height);
-    return instance;
-  }
-  
-  public static Background instance() {
-    if (instance == null) {
-      LOGGER.severe("Instance is not initialized!");
-    }
-    return instance;
-  }
-  
   public static boolean isForeground(byte v) {
     return (v & 0xff) == 255;
   }
@@ -89,6 +63,11 @@ public class Background {
    */
   private IplImage diffFI, hiFI, lowFI, scaleFI;
   private IplImage diffMask;
+  /**
+   * Copies of <code>lowFI</code> and <code>hiFI</code> without row padding,
+   * indexed like the raw depth frames.
+   */
+  private float[] low, high;
 
   /**
    * Counts the number of images learned for averaging later.
@@ -101,6 +80,16 @@ public class Background {
   private float avgDiff;
 
   private int width, height;
+  /**
+   * Mask row of the band being segmented on each thread, reused across
+   * frames.
+   */
+  private final ThreadLocal<byte[]> maskRows = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[width];
+    }
+  };
   private boolean initialized = false;
   private double[] min = new double[1];
   private double[] max = new double[1];
@@ -112,18 +101,18 @@ public class Background {
    * @param width width of the background image.
    * @param height height of the background image.
    */
-  private Background(int width, int height) {
+  public Background(int width, int height) {
     this.width = width;
     this.height = height;
 
-    scratchI = IplImage.create(width, height, IPL_DEPTH_32F, 1);
-    scratchI2 = IplImage.create(width, height, IPL_DEPTH_32F, 1);
-    avgFI = IplImage.create(width, height, IPL_DEPTH_32F, 1);
-    diffFI = IplImage.create(width, height, IPL_DEPTH_32F, 1);
-    hiFI = IplImage.create(width, height, IPL_DEPTH_32F, 1);
-    lowFI = IplImage.create(width, height, IPL_DEPTH_32F, 1);
-    scaleFI = IplImage.create(width, height, IPL_DEPTH_32F, 1);
-    diffMask = IplImage.create(width, height, IPL_DEPTH_8U, 1);
+    scratchI = CvUtil.createImage(width, height, IPL_DEPTH_32F, 1);
+    scratchI2 = CvUtil.createImage(width, height, IPL_DEPTH_32F, 1);
+    avgFI = CvUtil.createImage(width, height, IPL_DEPTH_32F, 1);
+    diffFI = CvUtil.createImage(width, height, IPL_DEPTH_32F, 1);
+    hiFI = CvUtil.createImage(width, height, IPL_DEPTH_32F, 1);
+    lowFI = CvUtil.createImage(width, height, IPL_DEPTH_32F, 1);
+    scaleFI = CvUtil.createImage(width, height, IPL_DEPTH_32F, 1);
+    diffMask = CvUtil.createImage(width, height, IPL_DEPTH_8U, 1);
     cvZero(avgFI);
     cvZero(diffFI);
     cvZero(diffMask);
@@ -195,6 +184,7 @@ public class Background {
     createScale(lowScale, highScale);
     setHighThreshold();
     setLowThreshold();
+    copyThresholds();
   }
 
   /**
@@ -211,10 +201,42 @@ public class Background {
    * @param depthRawData input depth image.
    * @param mask a 0 or 255 mask image where 255 means foreground pixel.
    */
-  public void backgroundDiff(int[] depthRawData, IplImage mask) {
-    // To float.
-    depthToImage(depthRawData, scratchI);
-    backgroundDiff(mask);
+  public void backgroundDiff(final int[] depthRawData, IplImage mask) {
+    final ByteBuffer bb = mask.getByteBuffer();
+    final int widthStep = mask.widthStep();
+    // Compares the raw depth directly, without converting it to float first.
+    RowBandExecutor.shared().run(width, height, new RowBandExecutor.Body() {
+      @Override
+      public int run(int startRow, int endRow) {
+        ByteBuffer rows = bb.duplicate();
+        byte[] row = maskRows.get();
+        for (int h = startRow; h < endRow; h++) {
+          backgroundDiff(depthRawData, h * width, row, 0, width);
+          rows.position(h * widthStep);
+          rows.put(row);
+        }
+        return 0;
+      }
+    });
+  }
+
+  /**
+   * Segments a range of pixels of a raw depth frame, so that the subtraction
+   * can be fused with other per-pixel stages. Disjoint ranges can be
+   * segmented concurrently.
+   * 
+   * @param depthRawData input depth image.
+   * @param pos index of the first pixel in <code>depthRawData</code>.
+   * @param mask set to 255 for a foreground pixel and 0 otherwise.
+   * @param maskPos index of the first pixel in <code>mask</code>.
+   * @param length number of pixels.
+   * @return number of foreground pixels.
+   */
+  public int backgroundDiff(int[] depthRawData, int pos, byte[] mask,
+                            int maskPos, int length) {
+    // low is the inclusive lower bound, and high is the exclusive higher bound.
+    return PixelKernels.get().outsideRange(depthRawData, pos, low, high, mask,
+                                           maskPos, length);
   }
   
   public void backgroundDiff(IplImage depth, IplImage mask) {
@@ -288,6 +310,24 @@ public class Background {
     return diffFI.widthStep() * 8 / diffFI.depth();
   }
 
+  /**
+   * Lower bound of the background depth of each pixel, inclusive. Any depth
+   * below it is foreground.
+   * @return a buffer with the same width step as the average depth buffer.
+   */
+  public FloatBuffer lowBuffer() {
+    return lowFI.getFloatBuffer();
+  }
+
+  /**
+   * Upper bound of the background depth of each pixel, exclusive. Any depth at
+   * or above it is foreground.
+   * @return a buffer with the same width step as the average depth buffer.
+   */
+  public FloatBuffer highBuffer() {
+    return hiFI.getFloatBuffer();
+  }
+
   /**
    * @return the average background depth value.
    */
@@ -344,7 +384,7 @@ public class Background {
   }
   
   private void computeAvgDiff() {
-    IplImage mask = IplImage.create(width, height, IPL_DEPTH_8U, 1);
+    IplImage mask = CvUtil.createImage(width, height, IPL_DEPTH_8U, 1);
     ByteBuffer bb = mask.getByteBuffer();
     int widthStep = mask.widthStep();
     for (int h = 0; h < height; h++)
@@ -389,24 +429,48 @@ public class Background {
     cvSub(avgFI, scratchI, lowFI, null);
   }
   
-  private void createScale(float lowScale, float highScale) {
-    FloatBuffer fb = scaleFI.getFloatBuffer();
-    int widthStep = scaleFI.widthStep() * BITS_PER_BYTE / scaleFI.depth();
-    float maxDist = dist2FromCamera(width - 1, height - 1);
-    float minDist = dist2FromCamera((float) (width - 1) / 2, 
+  private void copyThresholds() {
+    low = new float[width * height];
+    high = new float[width * height];
+    FloatBuffer lowRows = lowFI.getFloatBuffer().duplicate();
+    FloatBuffer highRows = hiFI.getFloatBuffer().duplicate();
+    int widthStep = avgBufferWidthStep();
+    for (int h = 0; h < height; h++) {
+      lowRows.position(h * widthStep);
+      lowRows.get(low, h * width, width);
+      highRows.position(h * widthStep);
+      highRows.get(high, h * width, width);
+    }
+  }
+
+  private void createScale(final float lowScale, float highScale) {
+    final FloatBuffer fb = scaleFI.getFloatBuffer();
+    final int widthStep = scaleFI.widthStep() * BITS_PER_BYTE / 
+                          scaleFI.depth();
+    final float maxDist = dist2FromCamera(width - 1, height - 1);
+    final float minDist = dist2FromCamera((float) (width - 1) / 2, 
         (float) (height - 1) / 2);
-    float scaleRange = highScale - lowScale;
-    for (int h = 0; h < height; h++)
-      for (int w = 0; w < width; w++) {
-        float scale;
-        if (isInCenterColumn(w)) {
-          scale = lowScale;
-        } else {
-          scale = (dist2FromCamera(w, h) - minDist) * scaleRange / 
-              (maxDist - minDist) + lowScale;
+    final float scaleRange = highScale - lowScale;
+    RowBandExecutor.shared().run(width, height, new RowBandExecutor.Body() {
+      @Override
+      public int run(int startRow, int endRow) {
+        FloatBuffer rows = fb.duplicate();
+        float[] row = new float[width];
+        for (int h = startRow; h < endRow; h++) {
+          for (int w = 0; w < width; w++) {
+            if (isInCenterColumn(w)) {
+              row[w] = lowScale;
+            } else {
+              row[w] = (dist2FromCamera(w, h) - minDist) * scaleRange / 
+                  (maxDist - minDist) + lowScale;
+            }
+          }
+          rows.position(h * widthStep);
+          rows.put(row);
         }
-        fb.put(h * widthStep + w, scale);
-    }
+        return 0;
+      }
+    });
   }
   
   /**
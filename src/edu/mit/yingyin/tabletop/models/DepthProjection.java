@@ -0,0 +1,60 @@
+package edu.mit.yingyin.tabletop.models;
+
+import org.OpenNI.Point3D;
+
+/**
+ * Converts between projective and real world coordinates with a pinhole model
+ * defined by the field of view, using the same formulas as OpenNI. The z values
+ * of the real world coordinates are flipped as in <code>OpenNIDevice</code>.
+ *
+ * @author yingyin
+ *
+ */
+public class DepthProjection {
+  /**
+   * Field of view of the Kinect depth camera in radians.
+   */
+  public static final double KINECT_HFOV = 1.0144686707507438;
+  public static final double KINECT_VFOV = 0.78980943449644714;
+
+  private final int width, height;
+  private final float xzFactor, yzFactor;
+
+  public DepthProjection(int width, int height, double hFOV, double vFOV) {
+    this.width = width;
+    this.height = height;
+    xzFactor = (float) (Math.tan(hFOV / 2) * 2);
+    yzFactor = (float) (Math.tan(vFOV / 2) * 2);
+  }
+
+  /**
+   * Creates a projection with the Kinect field of view.
+   */
+  public DepthProjection(int width, int height) {
+    this(width, height, KINECT_HFOV, KINECT_VFOV);
+  }
+
+  public Point3D[] convertProjectiveToRealWorld(Point3D[] points) {
+    Point3D[] converted = new Point3D[points.length];
+    for (int i = 0; i < points.length; i++) {
+      Point3D p = points[i];
+      float z = p.getZ();
+      converted[i] = new Point3D((p.getX() / width - 0.5f) * z * xzFactor,
+          (0.5f - p.getY() / height) * z * yzFactor, -z);
+    }
+    return converted;
+  }
+
+  public Point3D[] convertRealWorldToProjective(Point3D[] points) {
+    Point3D[] converted = new Point3D[points.length];
+    for (int i = 0; i < points.length; i++)
+      converted[i] = convertRealWorldToProjective(points[i]);
+    return converted;
+  }
+
+  public Point3D convertRealWorldToProjective(Point3D p) {
+    float z = -p.getZ();
+    return new Point3D(width / xzFactor * p.getX() / z + width / 2f,
+        height / 2f - height / yzFactor * p.getY() / z, z);
+  }
+}
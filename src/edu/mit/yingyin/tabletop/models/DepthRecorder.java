@@ -0,0 +1,299 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+
+import edu.mit.yingyin.util.Metrics;
+
+/**
+ * Records depth frames, and optionally RGB images, into a
+ * {@link DepthRecording} file.
+ *
+ * Frames are copied into a fixed pool of buffers on the calling thread, and
+ * encoded and written by a background thread, so recording does not stall the
+ * pipeline. When all the buffers are waiting to be written, the frame is
+ * dropped and counted instead of blocking the caller.
+ *
+ * @author yingyin
+ *
+ */
+public class DepthRecorder {
+  public static final int DEFAULT_POOL_SIZE = 8;
+
+  private static final Logger LOGGER = Logger.getLogger(
+      DepthRecorder.class.getName());
+  private static final String METRICS = DepthRecorder.class.getSimpleName();
+  private static final Metrics.Counter RECORDED_FRAMES = Metrics.counter(
+      METRICS, "recorded_frames_total", "Frames written to recordings");
+  private static final Metrics.Counter DROPPED_FRAMES = Metrics.counter(
+      METRICS, "dropped_frames_total",
+      "Frames dropped because the writer fell behind");
+
+  /**
+   * A pooled frame buffer.
+   */
+  private static class Frame {
+    final int[] depth;
+    final byte[] image;
+    int frameID;
+    long timestamp;
+    boolean hasImage;
+
+    Frame(int depthSize, int imageSize) {
+      depth = new int[depthSize];
+      image = new byte[imageSize];
+    }
+  }
+
+  /**
+   * Marks the end of the frames in the queue.
+   */
+  private static final Frame END = new Frame(0, 0);
+
+  private final int width, height, imageWidth, imageHeight, codec;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private final BlockingQueue<Frame> free, queue;
+  private final Thread writer;
+  /**
+   * The first error of the writer thread.
+   */
+  private volatile IOException error;
+  private volatile boolean closed = false;
+  private int numRecorded = 0, numDropped = 0;
+
+  /**
+   * Creates a recorder of compressed depth frames without images.
+   */
+  public DepthRecorder(File file, int width, int height) throws IOException {
+    this(file, width, height, 0, 0, DepthRecording.CODEC_DELTA,
+         DEFAULT_POOL_SIZE);
+  }
+
+  /**
+   * @param file overwritten if it exists.
+   * @param width depth width.
+   * @param height depth height.
+   * @param imageWidth RGB image width, or 0 if no images are recorded.
+   * @param imageHeight RGB image height, or 0 if no images are recorded.
+   * @param codec <code>DepthRecording.CODEC_DELTA</code> or
+   *    <code>DepthRecording.CODEC_RAW</code>.
+   * @param poolSize number of frames that can wait to be written.
+   * @throws IOException
+   */
+  public DepthRecorder(File file, int width, int height, int imageWidth,
+      int imageHeight, int codec, int poolSize) throws IOException {
+    if (codec != DepthRecording.CODEC_DELTA &&
+        codec != DepthRecording.CODEC_RAW)
+      throw new IllegalArgumentException("Unknown codec: " + codec);
+    if (poolSize < 1)
+      throw new IllegalArgumentException("Pool size should be positive.");
+    this.width = width;
+    this.height = height;
+    this.imageWidth = imageWidth;
+    this.imageHeight = imageHeight;
+    this.codec = codec;
+    raf = new RandomAccessFile(file, "rw");
+    raf.setLength(0);
+    channel = raf.getChannel();
+    ByteBuffer header = ByteBuffer.allocate(DepthRecording.HEADER_SIZE).order(
+        ByteOrder.LITTLE_ENDIAN);
+    header.putInt(DepthRecording.MAGIC).putInt(codec).putInt(width).
+        putInt(height).putInt(imageWidth).putInt(imageHeight).
+        putInt(DepthRecording.IMAGE_BYTES_PER_PIXEL).putInt(0);
+    header.flip();
+    write(header);
+
+    free = new ArrayBlockingQueue<Frame>(poolSize);
+    queue = new ArrayBlockingQueue<Frame>(poolSize + 1);
+    for (int i = 0; i < poolSize; i++) {
+      free.add(new Frame(width * height, imageWidth * imageHeight *
+                         DepthRecording.IMAGE_BYTES_PER_PIXEL));
+    }
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeFrames();
+      }
+    }, "DepthRecorder");
+    writer.start();
+    LOGGER.info("Started recording to " + file);
+  }
+
+  /**
+   * Records the depth of a packet.
+   * @param packet
+   * @return false if the frame is dropped.
+   */
+  public boolean record(ProcessPacket packet) {
+    return record(packet.depthFrameID, packet.depthTimestamp,
+                  packet.depthRawData, null);
+  }
+
+  /**
+   * Records a frame without blocking.
+   * @param frameID
+   * @param timestamp
+   * @param depth depth values of a frame.
+   * @param image RGB image of the frame, or null. Ignored if the recorder
+   *    does not record images.
+   * @return false if the frame is dropped because the writer is behind or has
+   *    failed.
+   */
+  public boolean record(int frameID, long timestamp, int[] depth,
+                        ByteBuffer image) {
+    if (closed)
+      throw new IllegalStateException("Recorder is closed.");
+    Frame f = error == null ? free.poll() : null;
+    if (f == null) {
+      numDropped++;
+      DROPPED_FRAMES.inc();
+      return false;
+    }
+    f.frameID = frameID;
+    f.timestamp = timestamp;
+    System.arraycopy(depth, 0, f.depth, 0, f.depth.length);
+    f.hasImage = image != null && f.image.length > 0;
+    if (f.hasImage) {
+      ByteBuffer src = image.duplicate();
+      src.position(0);
+      src.get(f.image);
+    }
+    queue.add(f);
+    numRecorded++;
+    return true;
+  }
+
+  /**
+   * @return number of frames accepted for recording.
+   */
+  public int numRecorded() { return numRecorded; }
+
+  /**
+   * @return number of frames dropped.
+   */
+  public int numDropped() { return numDropped; }
+
+  /**
+   * Writes the remaining frames and the index, and closes the file.
+   * @throws IOException if writing any of the frames failed.
+   */
+  public void close() throws IOException {
+    if (closed)
+      return;
+    closed = true;
+    queue.add(END);
+    boolean interrupted = false;
+    while (writer.isAlive()) {
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+    raf.close();
+    if (error != null)
+      throw error;
+    LOGGER.info(String.format("Stopped recording: %d frames, %d dropped.",
+                              numRecorded, numDropped));
+  }
+
+  /**
+   * Runs on the writer thread until the end of the frames.
+   */
+  private void writeFrames() {
+    int maxDepthSize = codec == DepthRecording.CODEC_DELTA ?
+        DepthCodec.maxEncodedSize(width * height) : width * height * 2;
+    ByteBuffer record = ByteBuffer.allocate(DepthRecording.RECORD_HEADER_SIZE
+        + maxDepthSize + 4 + imageWidth * imageHeight *
+        DepthRecording.IMAGE_BYTES_PER_PIXEL).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer index = ByteBuffer.allocate(
+        1024 * DepthRecording.INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    long position = DepthRecording.HEADER_SIZE;
+    int numFrames = 0;
+    while (true) {
+      Frame f;
+      try {
+        f = queue.take();
+      } catch (InterruptedException e) {
+        continue;
+      }
+      if (f == END)
+        break;
+      if (error == null) {
+        try {
+          record.clear();
+          encode(f, record);
+          record.flip();
+          int length = record.remaining();
+          write(record);
+          if (!index.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(index.capacity() * 2).
+                order(ByteOrder.LITTLE_ENDIAN);
+            index.flip();
+            larger.put(index);
+            index = larger;
+          }
+          index.putLong(position).putInt(f.frameID).putLong(f.timestamp);
+          position += length;
+          numFrames++;
+          RECORDED_FRAMES.inc();
+        } catch (IOException e) {
+          LOGGER.severe("Recording failed: " + e.getMessage());
+          error = e;
+        }
+      }
+      free.add(f);
+    }
+    if (error != null)
+      return;
+    try {
+      index.flip();
+      write(index);
+      ByteBuffer trailer = ByteBuffer.allocate(DepthRecording.TRAILER_SIZE).
+          order(ByteOrder.LITTLE_ENDIAN);
+      trailer.putInt(numFrames).putLong(position).putInt(DepthRecording.MAGIC);
+      trailer.flip();
+      write(trailer);
+    } catch (IOException e) {
+      LOGGER.severe("Recording failed: " + e.getMessage());
+      error = e;
+    }
+  }
+
+  private void encode(Frame f, ByteBuffer record) {
+    record.putInt(f.frameID).putLong(f.timestamp);
+    int size = width * height;
+    if (codec == DepthRecording.CODEC_DELTA) {
+      int start = DepthRecording.RECORD_HEADER_SIZE;
+      int length = DepthCodec.encode(f.depth, width, height, record.array(),
+                                     start);
+      record.putInt(length);
+      record.position(start + length);
+    } else {
+      record.putInt(size * 2);
+      for (int i = 0; i < size; i++)
+        record.putShort((short) f.depth[i]);
+    }
+    if (f.hasImage) {
+      record.putInt(f.image.length);
+      record.put(f.image);
+    } else {
+      record.putInt(0);
+    }
+  }
+
+  private void write(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+  }
+}
@@ -0,0 +1,471 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.OpenNI.Point3D;
+
+/**
+ * A recorded depth sequence, memory-mapped read-only for random access.
+ *
+ * A recording written by {@link DepthRecorder} is little-endian. It has a
+ * header (magic, codec, depth width and height, image width and height, bytes
+ * per image pixel), then one record per frame (frame ID, timestamp, length
+ * and bytes of the encoded depth, length and bytes of the RGB image), and an
+ * index at the end with the offset, frame ID and timestamp of each record,
+ * followed by the number of frames and the offset of the index. A
+ * <code>.raw</code> file of concatenated 16-bit depth frames from OpenNI can
+ * be opened as a recording of raw frames as well.
+ *
+ * Any frame is found from the index in constant time, forward or backward,
+ * without reading the frames before it. The frames of raw recordings are
+ * returned as views of the mapped file without copying. The mappings are
+ * shared by all the players of the recording, and each player can be used
+ * from a different thread.
+ *
+ * @author yingyin
+ *
+ */
+public class DepthRecording {
+  public static final String SUFFIX = ".tdr";
+  public static final String RAW_SUFFIX = ".raw";
+  /**
+   * Depth values as little-endian 16-bit values.
+   */
+  public static final int CODEC_RAW = 0;
+  /**
+   * Depth values encoded by {@link DepthCodec}.
+   */
+  public static final int CODEC_DELTA = 1;
+
+  static final int MAGIC = 0x54445231;
+  static final int HEADER_SIZE = 32;
+  /**
+   * Bytes of the frame ID, the timestamp and the length of the depth.
+   */
+  static final int RECORD_HEADER_SIZE = 16;
+  /**
+   * Bytes of the offset, the frame ID and the timestamp of a frame.
+   */
+  static final int INDEX_ENTRY_SIZE = 20;
+  /**
+   * Bytes of the number of frames, the offset of the index and the magic.
+   */
+  static final int TRAILER_SIZE = 16;
+  static final int IMAGE_BYTES_PER_PIXEL = 3;
+  /**
+   * Frame interval in microseconds of the raw files, which have no
+   * timestamps.
+   */
+  private static final long RAW_FRAME_INTERVAL = 33333;
+
+  /**
+   * @param fileName
+   * @return true if the file is a recording or a raw depth file.
+   */
+  public static boolean isRecordingFile(String fileName) {
+    return fileName.endsWith(SUFFIX) || fileName.endsWith(RAW_SUFFIX);
+  }
+
+  /**
+   * Opens a recording written by {@link DepthRecorder}.
+   * @param file
+   * @return the recording.
+   * @throws IOException if the file is not a complete recording or has no
+   *    frame.
+   */
+  public static DepthRecording open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = read(channel, 0, HEADER_SIZE);
+      if (header.getInt() != MAGIC)
+        throw new IOException(file + " is not a depth recording.");
+      int codec = header.getInt();
+      int width = header.getInt(), height = header.getInt();
+      int imageWidth = header.getInt(), imageHeight = header.getInt();
+      if (codec != CODEC_RAW && codec != CODEC_DELTA)
+        throw new IOException("Unknown codec " + codec + " in " + file);
+
+      long size = channel.size();
+      if (size < HEADER_SIZE + TRAILER_SIZE)
+        throw new IOException(file + " is truncated.");
+      ByteBuffer trailer = read(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+      int numFrames = trailer.getInt();
+      long indexOffset = trailer.getLong();
+      if (trailer.getInt() != MAGIC || numFrames < 0 ||
+          indexOffset + (long) numFrames * INDEX_ENTRY_SIZE + TRAILER_SIZE !=
+          size)
+        throw new IOException(file + " is truncated.");
+      // A player of an empty recording would have no frame to wrap around to.
+      if (numFrames == 0)
+        throw new IOException(file + " has no frame.");
+      ByteBuffer index = read(channel, indexOffset,
+                              numFrames * INDEX_ENTRY_SIZE);
+      // One more offset for the end of the last record.
+      long[] offsets = new long[numFrames + 1];
+      int[] frameIDs = new int[numFrames];
+      long[] timestamps = new long[numFrames];
+      for (int i = 0; i < numFrames; i++) {
+        offsets[i] = index.getLong();
+        frameIDs[i] = index.getInt();
+        timestamps[i] = index.getLong();
+      }
+      offsets[numFrames] = indexOffset;
+      return new DepthRecording(channel, codec, width, height, imageWidth,
+          imageHeight, RECORD_HEADER_SIZE, offsets, frameIDs, timestamps);
+    } finally {
+      // The mappings stay valid after the channel is closed.
+      raf.close();
+    }
+  }
+
+  /**
+   * Opens a file of concatenated 16-bit little-endian depth frames. The frame
+   * IDs are the frame indices and the timestamps are at 30 fps.
+   * @param file
+   * @param width
+   * @param height
+   * @return the recording.
+   * @throws IOException if the file has no complete frame.
+   * @throws IllegalArgumentException if the frame size is not positive.
+   */
+  public static DepthRecording openRaw(File file, int width, int height)
+      throws IOException {
+    if (width <= 0 || height <= 0)
+      throw new IllegalArgumentException("Invalid frame size " + width + "x" +
+                                         height);
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long frameBytes = (long) width * height * 2;
+      int numFrames = (int) (channel.size() / frameBytes);
+      if (numFrames == 0)
+        throw new IOException(file + " has no complete frame.");
+      long[] offsets = new long[numFrames + 1];
+      int[] frameIDs = new int[numFrames];
+      long[] timestamps = new long[numFrames];
+      for (int i = 0; i <= numFrames; i++)
+        offsets[i] = i * frameBytes;
+      for (int i = 0; i < numFrames; i++) {
+        frameIDs[i] = i;
+        timestamps[i] = i * RAW_FRAME_INTERVAL;
+      }
+      return new DepthRecording(channel, CODEC_RAW, width, height, 0, 0, 0,
+                                offsets, frameIDs, timestamps);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private final int codec, width, height, imageWidth, imageHeight;
+  /**
+   * Bytes before the depth in a record.
+   */
+  private final int recordHeaderSize;
+  private final long[] offsets;
+  private final int[] frameIDs;
+  private final long[] timestamps;
+  /**
+   * The records are mapped in segments because a mapping is limited to 2GB.
+   * Each record is in one segment.
+   */
+  private final MappedByteBuffer[] segments;
+  private final long[] segmentStarts;
+  private final int[] recordSegments;
+
+  private DepthRecording(FileChannel channel, int codec, int width,
+      int height, int imageWidth, int imageHeight, int recordHeaderSize,
+      long[] offsets, int[] frameIDs, long[] timestamps) throws IOException {
+    this.codec = codec;
+    this.width = width;
+    this.height = height;
+    this.imageWidth = imageWidth;
+    this.imageHeight = imageHeight;
+    this.recordHeaderSize = recordHeaderSize;
+    this.offsets = offsets;
+    this.frameIDs = frameIDs;
+    this.timestamps = timestamps;
+
+    int numFrames = frameIDs.length;
+    recordSegments = new int[numFrames];
+    long[] starts = new long[numFrames + 1];
+    int numSegments = 0;
+    for (int i = 0; i < numFrames; i++) {
+      if (offsets[i + 1] < offsets[i])
+        throw new IOException("Invalid index of the recording.");
+      if (i == 0 ||
+          offsets[i + 1] - starts[numSegments - 1] > Integer.MAX_VALUE)
+        starts[numSegments++] = offsets[i];
+      recordSegments[i] = numSegments - 1;
+    }
+    starts[numSegments] = offsets[numFrames];
+    segments = new MappedByteBuffer[numSegments];
+    for (int s = 0; s < numSegments; s++) {
+      segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, starts[s],
+                                starts[s + 1] - starts[s]);
+    }
+    segmentStarts = Arrays.copyOf(starts, numSegments);
+  }
+
+  public int width() { return width; }
+
+  public int height() { return height; }
+
+  public int imageWidth() { return imageWidth; }
+
+  public int imageHeight() { return imageHeight; }
+
+  public boolean hasImages() { return imageWidth > 0 && imageHeight > 0; }
+
+  public int codec() { return codec; }
+
+  public int numFrames() { return frameIDs.length; }
+
+  public int frameID(int index) { return frameIDs[index]; }
+
+  public long timestamp(int index) { return timestamps[index]; }
+
+  /**
+   * @param frameID
+   * @return index of the frame with <code>frameID</code>, or a negative value
+   *    if there is none. The frame IDs are assumed to be increasing.
+   */
+  public int indexOf(int frameID) {
+    return Arrays.binarySearch(frameIDs, frameID);
+  }
+
+  /**
+   * @param index index of the frame in [0, numFrames()).
+   * @return a read-only view of the depth values of the frame in the mapped
+   *    file.
+   * @throws UnsupportedOperationException if the depth is compressed.
+   */
+  public ShortBuffer frame(int index) {
+    if (codec != CODEC_RAW)
+      throw new UnsupportedOperationException(
+          "Compressed frames have to be decoded with readDepth.");
+    ByteBuffer record = record(index);
+    record.position(recordHeaderSize).limit(recordHeaderSize +
+                                            width * height * 2);
+    return record.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+  }
+
+  /**
+   * Reads the depth of a frame.
+   * @param index index of the frame in [0, numFrames()).
+   * @param depth array of at least <code>width() * height()</code> values.
+   * @throws IOException if the frame is corrupt.
+   */
+  public void readDepth(int index, int[] depth) throws IOException {
+    readDepth(index, depth, null);
+  }
+
+  /**
+   * Reads the RGB image of a frame.
+   * @param index
+   * @param image array of at least <code>imageWidth() * imageHeight() * 3
+   *    </code> bytes.
+   * @return false if the frame has no image.
+   */
+  public boolean readImage(int index, byte[] image) {
+    if (recordHeaderSize == 0)
+      return false;
+    ByteBuffer record = record(index);
+    int imagePosition = recordHeaderSize + depthLength(record);
+    int imageLength = record.getInt(imagePosition);
+    if (imageLength == 0)
+      return false;
+    record.position(imagePosition + 4);
+    record.get(image, 0, imageLength);
+    return true;
+  }
+
+  /**
+   * @return a new frame source that plays the recording from the first frame
+   *    and can seek to any frame.
+   */
+  public Player newPlayer() {
+    return new Player();
+  }
+
+  /**
+   * A frame source over the recording. Each call of
+   * <code>waitDepthUpdateAll</code> moves to the next frame, and after the
+   * last frame the player restarts from the first frame. A seek selects the
+   * frame that the next <code>waitDepthUpdateAll</code> moves to.
+   */
+  public class Player implements IFrameSource {
+    private final DepthProjection projection = new DepthProjection(width,
+                                                                   height);
+    private int index = -1;
+    private byte[] scratch;
+    private ActivityIndex activity;
+    private int numIdleSkipped = 0;
+
+    /**
+     * @return index of the current frame, or -1 before the first frame.
+     */
+    public int index() { return index; }
+
+    public DepthRecording recording() { return DepthRecording.this; }
+
+    /**
+     * Seeks so that the next frame is at <code>index</code>.
+     * @param index clamped to [0, numFrames()).
+     */
+    public void seek(int index) {
+      this.index = Math.max(0, Math.min(frameIDs.length - 1, index)) - 1;
+    }
+
+    /**
+     * Seeks so that the next frame is <code>diff</code> frames away from the
+     * current frame.
+     * @param diff
+     */
+    public void seekBy(int diff) {
+      seek(index + diff);
+    }
+
+    /**
+     * Plays only the active frames of <code>activity</code> from now on.
+     * @param activity index of this recording, or null to play all the frames.
+     */
+    public void skipIdle(ActivityIndex activity) {
+      if (activity != null && activity.numFrames() != frameIDs.length)
+        throw new IllegalArgumentException("Activity index does not match " +
+                                           "the recording.");
+      this.activity = activity;
+    }
+
+    /**
+     * @return number of idle frames skipped so far.
+     */
+    public int numIdleSkipped() { return numIdleSkipped; }
+
+    @Override
+    public int getDepthWidth() { return width; }
+
+    @Override
+    public int getDepthHeight() { return height; }
+
+    @Override
+    public void waitDepthUpdateAll() {
+      int next = (index + 1) % frameIDs.length;
+      if (activity != null) {
+        int active = activity.nextActive(next);
+        if (active >= 0) {
+          numIdleSkipped += active - next;
+        } else {
+          active = activity.nextActive(0);
+          numIdleSkipped += frameIDs.length - next + Math.max(active, 0);
+        }
+        if (active >= 0)
+          next = active;
+      }
+      index = next;
+    }
+
+    @Override
+    public void getDepthArray(int[] depthArray) {
+      try {
+        scratch = readDepth(Math.max(index, 0), depthArray, scratch);
+      } catch (IOException e) {
+        throw new IllegalStateException(e.getMessage());
+      }
+    }
+
+    @Override
+    public int getDepthFrameID() { return frameIDs[Math.max(index, 0)]; }
+
+    @Override
+    public long getDepthTimestamp() { return timestamps[Math.max(index, 0)]; }
+
+    @Override
+    public ByteBuffer getImageBuffer() { return null; }
+
+    @Override
+    public Point3D[] convertProjectiveToRealWorld(Point3D[] points) {
+      return projection.convertProjectiveToRealWorld(points);
+    }
+
+    @Override
+    public Point3D[] convertRealWorldToProjective(Point3D[] points) {
+      return projection.convertRealWorldToProjective(points);
+    }
+
+    @Override
+    public Point3D convertRealWorldToProjective(Point3D p) {
+      return projection.convertRealWorldToProjective(p);
+    }
+
+    @Override
+    public void release() {}
+  }
+
+  /**
+   * @param scratch buffer for the encoded depth, or null.
+   * @return the scratch buffer, which may be reallocated.
+   */
+  private byte[] readDepth(int index, int[] depth, byte[] scratch)
+      throws IOException {
+    int size = width * height;
+    if (codec == CODEC_RAW) {
+      ShortBuffer frame = frame(index);
+      for (int i = 0; i < size; i++)
+        depth[i] = frame.get(i) & 0xffff;
+      return scratch;
+    }
+    ByteBuffer record = record(index);
+    int length = depthLength(record);
+    if (scratch == null || scratch.length < length)
+      scratch = new byte[Math.max(length, size)];
+    record.position(recordHeaderSize);
+    record.get(scratch, 0, length);
+    try {
+      DepthCodec.decode(scratch, 0, length, width, height, depth);
+    } catch (IllegalArgumentException e) {
+      throw new IOException(e.getMessage() + " Frame " + index);
+    }
+    return scratch;
+  }
+
+  /**
+   * @return a little-endian view of the record of a frame.
+   */
+  private ByteBuffer record(int index) {
+    int segment = recordSegments[index];
+    ByteBuffer record = segments[segment].duplicate();
+    int position = (int) (offsets[index] - segmentStarts[segment]);
+    record.position(position).limit(position +
+        (int) (offsets[index + 1] - offsets[index]));
+    return record.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private int depthLength(ByteBuffer record) {
+    if (recordHeaderSize == 0)
+      return width * height * 2;
+    return record.getInt(recordHeaderSize - 4);
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position,
+                                 int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(
+        ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, position);
+      if (n < 0)
+        throw new IOException("Unexpected end of the recording.");
+      position += n;
+    }
+    buffer.flip();
+    return buffer;
+  }
+}
@@ -16,15 +16,20 @@ import edu.mit.yingyin.util.Geometry;
  *
  */
 public class DiecticGestureHandler {
+  private final InteractionSurface is;
+  
+  public DiecticGestureHandler(InteractionSurface is) {
+    this.is = is;
+  }
   
   /**
    * @param forelimbs
-   * @return a list of intersections of diectic gestures.
+   * @return a list of intersections of diectic gestures, empty if the 
+   *    interaction surface is not initialized.
    */
   public List<Point3D> update(List<Forelimb> forelimbs) {
-    InteractionSurface is = InteractionSurface.instance();
     List<Point3D> res = new ArrayList<Point3D>();
-    if (is == null)
+    if (!is.isInitialized())
       return res;
     
     for (Forelimb fl : forelimbs) {
@@ -0,0 +1,552 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.vecmath.Point2f;
+import javax.vecmath.Point3f;
+
+import org.OpenNI.Point3D;
+
+import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngine.IHandEventListener;
+import edu.mit.yingyin.util.Metrics;
+
+/**
+ * Merges the hand events of several sensors covering the same display into
+ * one event stream.
+ *
+ * Each sensor has its own engine, and the engine of sensor <code>i</code>
+ * delivers its events to <code>sensorListener(i)</code>. A frame of a sensor
+ * is complete when its pointing event arrives, which the tracker sends after
+ * the finger events of every frame. Frames are aligned by the monotonic time
+ * at which their depth frames became available, because the sensor
+ * timestamps of different devices are not on the same clock. When every
+ * sensor has a new frame, or a sensor delivers a second frame before the
+ * others, the pending frames are grouped in time order into fused frames of
+ * frames at most <code>windowNanos</code> apart.
+ *
+ * Within a fused frame, fingertips and pointing locations of different
+ * sensors closer than <code>mergeRadius</code> in display coordinates are seen
+ * by more than one sensor, and are merged into one event at their mean display
+ * position. Close events of the same sensor are different fingers and are not
+ * merged. The duplicates are found with a spatial hash of cells of the merge
+ * radius, and at most <code>MAX_EVENTS_PER_FRAME</code> events are kept per
+ * fused frame, so the cost of a fused frame is bounded regardless of the
+ * input.
+ *
+ * The merged events have the fused frame count as the frame ID and the image
+ * positions of the first sensor that saw them. Listeners are called in the
+ * order of the fused frames on the thread of an engine that completed one,
+ * without holding the lock of the fusion, so they may block or call back.
+ *
+ * @author yingyin
+ *
+ */
+public class EventFusion {
+  /**
+   * Default merge radius in display pixels, about 1.5cm on the table.
+   */
+  public static final float DEFAULT_MERGE_RADIUS = 40;
+  /**
+   * Default alignment window, half the frame period of a 30fps sensor, so
+   * each frame is fused with the nearest frame of the other free-running
+   * sensors.
+   */
+  public static final long DEFAULT_WINDOW_NANOS = 17000000L;
+  public static final int MAX_EVENTS_PER_FRAME = 64;
+
+  private static final String METRICS = EventFusion.class.getSimpleName();
+  private static final Metrics.Counter FUSED_FRAMES = Metrics.counter(METRICS,
+      "fused_frames_total", "Fused frames delivered");
+  private static final Metrics.Counter MERGED_EVENTS = Metrics.counter(
+      METRICS, "merged_events_total",
+      "Events merged into an event of another sensor");
+  private static final Metrics.Counter DISCARDED_EVENTS = Metrics.counter(
+      METRICS, "discarded_events_total",
+      "Events over the limit of a fused frame");
+
+  /**
+   * Events of one sensor frame.
+   */
+  private static class SensorFrame {
+    final int sensor;
+    final List<ManipulativeEvent> fingers;
+    final DiecticEvent pointing;
+    final long time;
+
+    SensorFrame(int sensor, List<ManipulativeEvent> fingers,
+                DiecticEvent pointing, long time) {
+      this.sensor = sensor;
+      this.fingers = fingers;
+      this.pointing = pointing;
+      this.time = time;
+    }
+  }
+
+  /**
+   * Events of one fused frame to deliver.
+   */
+  private static class FusedFrame {
+    final List<ManipulativeEvent> fingers;
+    final DiecticEvent pointing;
+
+    FusedFrame(List<ManipulativeEvent> fingers, DiecticEvent pointing) {
+      this.fingers = fingers;
+      this.pointing = pointing;
+    }
+  }
+
+  /**
+   * Receives the events of one sensor.
+   */
+  private class SensorListener implements IHandEventListener {
+    private final int sensor;
+    private List<ManipulativeEvent> fingers;
+
+    SensorListener(int sensor) {
+      this.sensor = sensor;
+    }
+
+    @Override
+    public void fingerPressed(List<ManipulativeEvent> feList) {
+      synchronized (EventFusion.this) {
+        // The pointing event of the previous frame did not arrive.
+        if (fingers != null)
+          add(new SensorFrame(sensor, fingers, null, frameTime(null)));
+        fingers = feList;
+      }
+      deliver();
+    }
+
+    @Override
+    public void fingerPointed(DiecticEvent de) {
+      synchronized (EventFusion.this) {
+        List<ManipulativeEvent> feList = fingers;
+        fingers = null;
+        if (feList == null)
+          feList = new ArrayList<ManipulativeEvent>(0);
+        add(new SensorFrame(sensor, feList, de, frameTime(de)));
+      }
+      deliver();
+    }
+  }
+
+  private final long windowNanos;
+  private final SensorListener[] sensorListeners;
+  private final List<IHandEventListener> listeners =
+      new CopyOnWriteArrayList<IHandEventListener>();
+  /**
+   * Fused frames not delivered yet, in order.
+   */
+  private final Queue<FusedFrame> ready = new ArrayDeque<FusedFrame>();
+  /**
+   * Whether a thread is delivering the ready frames.
+   */
+  private boolean delivering = false;
+  /**
+   * Latest complete frame of each sensor since the last fused frame, or null.
+   */
+  private final SensorFrame[] pending;
+  private final SensorFrame[] sorted;
+  private int numPending = 0;
+  private int fusedFrameID = 0;
+  private final SpatialHash hash;
+  /**
+   * Sums of the display positions of the merged events for averaging.
+   */
+  private final float[] sumX = new float[MAX_EVENTS_PER_FRAME],
+                        sumY = new float[MAX_EVENTS_PER_FRAME];
+  private final int[] counts = new int[MAX_EVENTS_PER_FRAME];
+
+  public EventFusion(int numSensors) {
+    this(numSensors, DEFAULT_MERGE_RADIUS, DEFAULT_WINDOW_NANOS);
+  }
+
+  /**
+   * @param numSensors number of sensors to fuse.
+   * @param mergeRadius distance in display pixels within which events of
+   *    different sensors are the same.
+   * @param windowNanos maximum time difference between frames of different
+   *    sensors fused together.
+   */
+  public EventFusion(int numSensors, float mergeRadius, long windowNanos) {
+    if (numSensors < 1)
+      throw new IllegalArgumentException("There should be at least 1 sensor.");
+    if (mergeRadius <= 0)
+      throw new IllegalArgumentException("Merge radius should be positive.");
+    this.windowNanos = windowNanos;
+    sensorListeners = new SensorListener[numSensors];
+    for (int i = 0; i < numSensors; i++)
+      sensorListeners[i] = new SensorListener(i);
+    pending = new SensorFrame[numSensors];
+    sorted = new SensorFrame[numSensors];
+    hash = new SpatialHash(mergeRadius, MAX_EVENTS_PER_FRAME);
+  }
+
+  /**
+   * @param sensor index of the sensor.
+   * @return the listener to add to the engine of <code>sensor</code>.
+   */
+  public IHandEventListener sensorListener(int sensor) {
+    return sensorListeners[sensor];
+  }
+
+  public int numSensors() {
+    return pending.length;
+  }
+
+  /**
+   * Adds a listener of the fused events.
+   * @param l
+   */
+  public void addListener(IHandEventListener l) {
+    listeners.add(l);
+  }
+
+  public void removeListener(IHandEventListener l) {
+    listeners.remove(l);
+  }
+
+  /**
+   * Delivers the pending frames without waiting for the other sensors, e.g.
+   * when a sensor stops.
+   */
+  public void flush() {
+    synchronized (this) {
+      fusePending();
+    }
+    deliver();
+  }
+
+  private void fusePending() {
+    if (numPending == 0)
+      return;
+    int n = 0;
+    for (int i = 0; i < pending.length; i++) {
+      if (pending[i] != null) {
+        // Insertion sort by time as there are only a few sensors.
+        int j = n++;
+        while (j > 0 && sorted[j - 1].time > pending[i].time) {
+          sorted[j] = sorted[j - 1];
+          j--;
+        }
+        sorted[j] = pending[i];
+        pending[i] = null;
+      }
+    }
+    numPending = 0;
+    int start = 0;
+    for (int i = 1; i <= n; i++) {
+      if (i == n || sorted[i].time - sorted[start].time > windowNanos) {
+        fuse(start, i);
+        start = i;
+      }
+    }
+    Arrays.fill(sorted, 0, n, null);
+  }
+
+  private void add(SensorFrame frame) {
+    if (pending[frame.sensor] != null)
+      fusePending();
+    pending[frame.sensor] = frame;
+    numPending++;
+    if (numPending == pending.length)
+      fusePending();
+  }
+
+  /**
+   * Delivers the ready frames unless another thread is delivering them, in
+   * which case that thread also delivers the frames added meanwhile.
+   */
+  private void deliver() {
+    synchronized (this) {
+      if (delivering || ready.isEmpty())
+        return;
+      delivering = true;
+    }
+    FusedFrame frame = null;
+    try {
+      while ((frame = nextReady()) != null) {
+        if (!frame.fingers.isEmpty()) {
+          for (IHandEventListener l : listeners)
+            l.fingerPressed(frame.fingers);
+        }
+        if (frame.pointing != null) {
+          for (IHandEventListener l : listeners)
+            l.fingerPointed(frame.pointing);
+        }
+      }
+    } finally {
+      // A listener failed.
+      if (frame != null) {
+        synchronized (this) {
+          delivering = false;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the next ready frame, or null if there is none, in which case
+   *    the delivery ends.
+   */
+  private synchronized FusedFrame nextReady() {
+    FusedFrame frame = ready.poll();
+    if (frame == null)
+      delivering = false;
+    return frame;
+  }
+
+  /**
+   * Fuses the sorted frames in <code>[from, to)</code> and adds the result to
+   * the ready frames. The frames are of different sensors.
+   */
+  private void fuse(int from, int to) {
+    fusedFrameID++;
+    long frameReadyNanos = sorted[from].time;
+
+    hash.clear();
+    List<ManipulativeEvent> fingers = new ArrayList<ManipulativeEvent>();
+    for (int f = from; f < to; f++) {
+      int sensor = sorted[f].sensor;
+      for (ManipulativeEvent fe : sorted[f].fingers) {
+        int k = hash.find(fe.posDisplay.x, fe.posDisplay.y, sensor);
+        if (k >= 0) {
+          hash.merge(k, sensor);
+          accumulate(k, fe.posDisplay);
+          MERGED_EVENTS.inc();
+        } else if (fingers.size() < MAX_EVENTS_PER_FRAME) {
+          k = fingers.size();
+          hash.insert(fe.posDisplay.x, fe.posDisplay.y, sensor);
+          ManipulativeEvent merged = new ManipulativeEvent(
+              new Point3f(fe.posImage), new Point2f(fe.posDisplay),
+              fusedFrameID, fe.type);
+          merged.timestamp = fe.timestamp;
+          merged.frameReadyNanos = frameReadyNanos;
+          fingers.add(merged);
+          sumX[k] = sumY[k] = 0;
+          counts[k] = 0;
+          accumulate(k, fe.posDisplay);
+        } else {
+          DISCARDED_EVENTS.inc();
+        }
+      }
+    }
+    for (int k = 0; k < fingers.size(); k++) {
+      if (counts[k] > 1)
+        fingers.get(k).posDisplay.set(sumX[k] / counts[k],
+                                      sumY[k] / counts[k]);
+    }
+
+    DiecticEvent pointing = fusePointing(from, to, frameReadyNanos);
+    ready.add(new FusedFrame(fingers, pointing));
+    FUSED_FRAMES.inc();
+  }
+
+  /**
+   * @return the merged pointing locations of the sorted frames in
+   *    <code>[from, to)</code>, or null if none of them has a pointing event.
+   */
+  private DiecticEvent fusePointing(int from, int to, long frameReadyNanos) {
+    hash.clear();
+    boolean hasPointing = false;
+    long timestamp = 0;
+    List<Point3D> pointsI = new ArrayList<Point3D>(),
+                  pointsW = new ArrayList<Point3D>();
+    List<Point2f> pointsD = new ArrayList<Point2f>();
+    for (int f = from; f < to; f++) {
+      int sensor = sorted[f].sensor;
+      DiecticEvent de = sorted[f].pointing;
+      if (de == null)
+        continue;
+      if (!hasPointing)
+        timestamp = de.timestamp();
+      hasPointing = true;
+      Point2f[] locationsD = de.pointingLocationsD();
+      Point3D[] locationsI = null, locationsW = null;
+      for (int i = 0; i < locationsD.length; i++) {
+        Point2f p = locationsD[i];
+        int k = hash.find(p.x, p.y, sensor);
+        if (k >= 0) {
+          hash.merge(k, sensor);
+          accumulate(k, p);
+          MERGED_EVENTS.inc();
+        } else if (pointsD.size() < MAX_EVENTS_PER_FRAME) {
+          if (locationsI == null) {
+            locationsI = de.pointingLocationsI();
+            locationsW = de.pointingLocationsW();
+          }
+          k = pointsD.size();
+          hash.insert(p.x, p.y, sensor);
+          pointsI.add(locationsI[i]);
+          pointsW.add(locationsW[i]);
+          pointsD.add(new Point2f(p));
+          sumX[k] = sumY[k] = 0;
+          counts[k] = 0;
+          accumulate(k, p);
+        } else {
+          DISCARDED_EVENTS.inc();
+        }
+      }
+    }
+    if (!hasPointing)
+      return null;
+    for (int k = 0; k < pointsD.size(); k++) {
+      if (counts[k] > 1)
+        pointsD.get(k).set(sumX[k] / counts[k], sumY[k] / counts[k]);
+    }
+    int size = pointsD.size();
+    return new DiecticEvent(pointsI.toArray(new Point3D[size]),
+        pointsW.toArray(new Point3D[size]), pointsD.toArray(new Point2f[size]),
+        timestamp, frameReadyNanos);
+  }
+
+  private void accumulate(int k, Point2f p) {
+    sumX[k] += p.x;
+    sumY[k] += p.y;
+    counts[k]++;
+  }
+
+  private static long frameTime(DiecticEvent de) {
+    // Events not from a packet have no frame time.
+    if (de == null || de.frameReadyNanos() == 0)
+      return System.nanoTime();
+    return de.frameReadyNanos();
+  }
+
+  /**
+   * Hash of points in cells of the merge radius, so the points within the
+   * radius of a point are in the 3x3 cells around it. Points are numbered in
+   * the order of insertion.
+   *
+   * Each point records the last sensor inserted or merged into it. The points
+   * of a sensor are added together, so a point is never found for a sensor
+   * that is already part of it.
+   */
+  static class SpatialHash {
+    private final float radius, radiusSq;
+    private final int capacity;
+    private final long[] cellKeys;
+    private final int[] cellHeads;
+    private final boolean[] cellUsed;
+    /**
+     * Slots used since the last clear, so clearing costs the number of
+     * points.
+     */
+    private final int[] usedSlots;
+    private int numUsedSlots = 0;
+    private final float[] xs, ys;
+    private final int[] sensors;
+    private final int[] next;
+    private int size = 0;
+
+    /**
+     * @param radius
+     * @param capacity maximum number of points.
+     */
+    SpatialHash(float radius, int capacity) {
+      this.radius = radius;
+      this.radiusSq = radius * radius;
+      this.capacity = capacity;
+      int tableSize = Integer.highestOneBit(capacity * 4 - 1) << 1;
+      cellKeys = new long[tableSize];
+      cellHeads = new int[tableSize];
+      cellUsed = new boolean[tableSize];
+      usedSlots = new int[capacity];
+      xs = new float[capacity];
+      ys = new float[capacity];
+      sensors = new int[capacity];
+      next = new int[capacity];
+    }
+
+    void clear() {
+      for (int i = 0; i < numUsedSlots; i++)
+        cellUsed[usedSlots[i]] = false;
+      numUsedSlots = 0;
+      size = 0;
+    }
+
+    /**
+     * @return the index of the first point inserted within the radius of
+     *    (x, y) that <code>sensor</code> is not part of, or -1 if there is
+     *    none.
+     */
+    int find(float x, float y, int sensor) {
+      int cx = cell(x), cy = cell(y);
+      int found = -1;
+      for (int dy = -1; dy <= 1; dy++) {
+        for (int dx = -1; dx <= 1; dx++) {
+          int slot = slot(key(cx + dx, cy + dy));
+          if (!cellUsed[slot])
+            continue;
+          for (int i = cellHeads[slot]; i >= 0; i = next[i]) {
+            if (sensors[i] == sensor)
+              continue;
+            float ex = xs[i] - x, ey = ys[i] - y;
+            if (ex * ex + ey * ey <= radiusSq && (found < 0 || i < found))
+              found = i;
+          }
+        }
+      }
+      return found;
+    }
+
+    /**
+     * Records that <code>sensor</code> is part of point <code>i</code>.
+     */
+    void merge(int i, int sensor) {
+      sensors[i] = sensor;
+    }
+
+    /**
+     * @return the index of the inserted point.
+     * @throws IllegalStateException if the hash is full.
+     */
+    int insert(float x, float y, int sensor) {
+      if (size == capacity)
+        throw new IllegalStateException("Spatial hash is full.");
+      long key = key(cell(x), cell(y));
+      int slot = slot(key);
+      int i = size++;
+      xs[i] = x;
+      ys[i] = y;
+      sensors[i] = sensor;
+      if (cellUsed[slot]) {
+        next[i] = cellHeads[slot];
+      } else {
+        cellUsed[slot] = true;
+        cellKeys[slot] = key;
+        usedSlots[numUsedSlots++] = slot;
+        next[i] = -1;
+      }
+      cellHeads[slot] = i;
+      return i;
+    }
+
+    private int cell(float v) {
+      return (int) Math.floor(v / radius);
+    }
+
+    private static long key(int cx, int cy) {
+      return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    /**
+     * Finds the slot of the cell by linear probing.
+     */
+    private int slot(long key) {
+      int mask = cellKeys.length - 1;
+      long h = key * 0x9E3779B97F4A7C15L;
+      int slot = (int) (h >>> 32) & mask;
+      while (cellUsed[slot] && cellKeys[slot] != key)
+        slot = (slot + 1) & mask;
+      return slot;
+    }
+  }
+}
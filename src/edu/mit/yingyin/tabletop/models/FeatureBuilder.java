@@ -7,14 +7,22 @@ public class FeatureBuilder {
   public static final int CONTINUOUS_FEATURE_SIZE = 11;
   public static final int DEFAULT_IMAGE_WIDTH = 50;
   
-  private static int imageWidth = DEFAULT_IMAGE_WIDTH;
+  private final int imageWidth;
   
-  public static int imageWidth() { return imageWidth; }
+  public FeatureBuilder() {
+    this(DEFAULT_IMAGE_WIDTH);
+  }
   
-  public static void imageWidth(int imageWidth) {
-    FeatureBuilder.imageWidth = imageWidth;
+  /**
+   * @param imageWidth width of the hand point cloud image in the features.
+   */
+  public FeatureBuilder(int imageWidth) {
+    this.imageWidth = imageWidth;
   }
-  public static float[] create(Forelimb forelimb) {
+  
+  public int imageWidth() { return imageWidth; }
+  
+  public float[] create(Forelimb forelimb) {
     float[] features = new float[CONTINUOUS_FEATURE_SIZE + 
                                  imageWidth * imageWidth];
     Hand hand = forelimb.hand();
@@ -42,7 +50,7 @@ public class FeatureBuilder {
    * @param features
    * @param hand
    */
-  private static void addHandPoints(float[] features, Hand hand) {
+  private void addHandPoints(float[] features, Hand hand) {
     float scale = imageWidth / hand.width();
     float offset = imageWidth / 2;
     for (Point3f p : hand.pointCloud()) {
@@ -10,8 +10,10 @@ public class FeatureWriter {
       FeatureWriter.class.getName());
   
   private PrintWriter pw;
+  private final FeatureBuilder builder;
   
-  public FeatureWriter(String filename) {
+  public FeatureWriter(String filename, FeatureBuilder builder) {
+    this.builder = builder;
     if (filename != null) {
       File file = new File(filename);
       try {
@@ -28,7 +30,7 @@ public class FeatureWriter {
     if (pw != null) {
       pw.println(String.format("frame_id,continuous_feature_size,%d," +
       		"image_width,%d", FeatureBuilder.CONTINUOUS_FEATURE_SIZE, 
-      		FeatureBuilder.imageWidth()));
+      		builder.imageWidth()));
     }
   }
   
@@ -36,7 +38,7 @@ public class FeatureWriter {
     if (pw != null) {
       for (Forelimb forelimb : packet.forelimbs) {
         pw.println(packet.depthFrameID + "," + 
-                   featureToString(FeatureBuilder.create(forelimb)));
+                   featureToString(builder.create(forelimb)));
       }
     }
   }
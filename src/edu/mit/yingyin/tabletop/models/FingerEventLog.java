@@ -0,0 +1,58 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngine.IHandEventListener;
+
+/**
+ * Keeps the finger events of all the frames and writes them in the format
+ * read by the evaluation scripts.
+ *
+ * @author yingyin
+ *
+ */
+public class FingerEventLog implements IHandEventListener {
+  /**
+   * List of finger events detected in a frame.
+   */
+  private List<List<ManipulativeEvent>> fingerEventList =
+      new ArrayList<List<ManipulativeEvent>>();
+
+  @Override
+  public void fingerPressed(List<ManipulativeEvent> feList) {
+    fingerEventList.add(feList);
+  }
+
+  @Override
+  public void fingerPointed(DiecticEvent de) {}
+
+  /**
+   * @return number of frames with finger events.
+   */
+  public int size() {
+    return fingerEventList.size();
+  }
+
+  /**
+   * Outputs finger events.
+   *
+   * @param pw <code>PrinterWriter</code> for output.
+   */
+  public void toOutput(PrintWriter pw) {
+    pw.println("# frame-id x y z x y z ...");
+    for (List<ManipulativeEvent> list : fingerEventList) {
+      if (list.isEmpty())
+        continue;
+      pw.print(list.get(0).frameID + " ");
+      for (ManipulativeEvent fe : list) {
+        pw.print(String.format("%d %d %d ", (int) fe.posImage.x,
+            (int) fe.posImage.y, (int) fe.posImage.z));
+      }
+      pw.println();
+    }
+  }
+}
@@ -0,0 +1,380 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.awt.Point;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngine.IHandEventListener;
+
+/**
+ * Evaluates the detected finger events against manually labeled fingertips
+ * while the engine runs. It computes the same statistics as
+ * <code>ruby/eval_fingertips.rb</code> and <code>ruby/eval_clicks.rb</code>
+ * on the finger event log, incrementally as the events arrive.
+ *
+ * Fingertips: in a frame with both labels and events, each label is matched
+ * to the nearest remaining event. Matched pairs are true positives and
+ * contribute to the localization error, the rest are false negatives or false
+ * positives.
+ *
+ * Clicks: consecutive labeled frames form a click. The first frame with
+ * events inside a click is a true positive, and clicks without events are
+ * false negatives. Each event before a click and outside the previous clicks
+ * is a false positive. As in <code>eval_clicks.rb</code>, events after the
+ * last click are not counted.
+ *
+ * Events must arrive in increasing frame order. Call <code>finish</code>
+ * after the last frame so that the remaining labels are counted.
+ *
+ * @author yingyin
+ *
+ */
+public class FingertipEvaluator implements IHandEventListener {
+
+  /**
+   * Labeled fingertip positions in image coordinates stored by frame. The
+   * points of the i-th labeled frame are at
+   * <code>[offsets[i], offsets[i + 1])</code> in the coordinate arrays.
+   */
+  public static class GroundTruth {
+    private final int[] frames;
+    private final int[] offsets;
+    private final float[] xs, ys;
+
+    /**
+     * Reads the text label file written by <code>ManualPointLabel</code>.
+     * Each line is <code>frame-id x y</code>, and lines starting with '#'
+     * are comments.
+     * @param fileName
+     * @return the ground truth.
+     * @throws IOException
+     */
+    public static GroundTruth read(String fileName) throws IOException {
+      IntList frameIDs = new IntList();
+      List<float[]> points = new ArrayList<float[]>();
+      BufferedReader br = new BufferedReader(new FileReader(fileName));
+      try {
+        String line;
+        while ((line = br.readLine()) != null) {
+          line = line.trim();
+          if (line.isEmpty() || line.startsWith("#"))
+            continue;
+          String[] tokens = line.split("\\s+");
+          if (tokens.length < 3)
+            throw new IOException("Invalid label line: " + line);
+          frameIDs.add(Integer.parseInt(tokens[0]));
+          points.add(new float[] {Float.parseFloat(tokens[1]),
+                                  Float.parseFloat(tokens[2])});
+        }
+      } finally {
+        br.close();
+      }
+      return new GroundTruth(frameIDs.toArray(),
+                             points.toArray(new float[points.size()][]));
+    }
+
+    /**
+     * Creates the ground truth from the labels saved by
+     * <code>ManualPointLabel</code>.
+     * @param labels map from frame ID to the labeled points.
+     * @return the ground truth.
+     */
+    public static GroundTruth fromLabels(Map<Integer, List<Point>> labels) {
+      List<Integer> keys = new ArrayList<Integer>(labels.keySet());
+      Collections.sort(keys);
+      IntList frameIDs = new IntList();
+      List<float[]> points = new ArrayList<float[]>();
+      for (Integer key : keys) {
+        for (Point p : labels.get(key)) {
+          frameIDs.add(key);
+          points.add(new float[] {p.x, p.y});
+        }
+      }
+      return new GroundTruth(frameIDs.toArray(),
+                             points.toArray(new float[points.size()][]));
+    }
+
+    /**
+     * @param pointFrames frame ID of each point in non-decreasing order.
+     * @param points (x, y) of each point.
+     */
+    GroundTruth(int[] pointFrames, float[][] points) {
+      if (pointFrames.length != points.length)
+        throw new IllegalArgumentException(
+            "There should be one frame ID for each point.");
+      int numFrames = 0;
+      for (int i = 0; i < pointFrames.length; i++) {
+        if (i > 0 && pointFrames[i] < pointFrames[i - 1])
+          throw new IllegalArgumentException("Labels are not sorted by frame.");
+        if (i == 0 || pointFrames[i] != pointFrames[i - 1])
+          numFrames++;
+      }
+      frames = new int[numFrames];
+      offsets = new int[numFrames + 1];
+      xs = new float[points.length];
+      ys = new float[points.length];
+      int f = -1;
+      for (int i = 0; i < pointFrames.length; i++) {
+        if (i == 0 || pointFrames[i] != pointFrames[i - 1]) {
+          f++;
+          frames[f] = pointFrames[i];
+          offsets[f] = i;
+        }
+        xs[i] = points[i][0];
+        ys[i] = points[i][1];
+      }
+      offsets[numFrames] = points.length;
+    }
+
+    public int numFrames() { return frames.length; }
+
+    public int numPoints() { return xs.length; }
+
+    /**
+     * @param frameID
+     * @return index of the labeled frame, or a negative value if the frame is
+     *    not labeled.
+     */
+    public int indexOf(int frameID) {
+      return Arrays.binarySearch(frames, frameID);
+    }
+
+    public int frameID(int index) { return frames[index]; }
+
+    public int numPoints(int index) {
+      return offsets[index + 1] - offsets[index];
+    }
+  }
+
+  /**
+   * Accumulated statistics.
+   */
+  public static class Result {
+    public int truePositives, falsePositives, falseNegatives;
+    /**
+     * Sums of the localization errors of the true positives in pixels.
+     */
+    public double error, xOffset, yOffset;
+    public int clickTruePositives, clickFalsePositives, clickFalseNegatives;
+
+    public double precision() {
+      return ratio(truePositives, truePositives + falsePositives);
+    }
+
+    public double recall() {
+      return ratio(truePositives, truePositives + falseNegatives);
+    }
+
+    public double meanError() { return ratio(error, truePositives); }
+
+    public double clickPrecision() {
+      return ratio(clickTruePositives,
+                   clickTruePositives + clickFalsePositives);
+    }
+
+    public double clickRecall() {
+      return ratio(clickTruePositives,
+                   clickTruePositives + clickFalseNegatives);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "fingertips: tp = %d fp = %d fn = %d precision = %.3f " +
+          "recall = %.3f error = %.2f px (x %.2f, y %.2f)%n" +
+          "clicks: tp = %d fp = %d fn = %d precision = %.3f recall = %.3f",
+          truePositives, falsePositives, falseNegatives, precision(),
+          recall(), meanError(), ratio(xOffset, truePositives),
+          ratio(yOffset, truePositives), clickTruePositives,
+          clickFalsePositives, clickFalseNegatives, clickPrecision(),
+          clickRecall());
+    }
+
+    private Result copy() {
+      Result r = new Result();
+      r.truePositives = truePositives;
+      r.falsePositives = falsePositives;
+      r.falseNegatives = falseNegatives;
+      r.error = error;
+      r.xOffset = xOffset;
+      r.yOffset = yOffset;
+      r.clickTruePositives = clickTruePositives;
+      r.clickFalsePositives = clickFalsePositives;
+      r.clickFalseNegatives = clickFalseNegatives;
+      return r;
+    }
+
+    private static double ratio(double a, double b) {
+      return b == 0 ? 0 : a / b;
+    }
+  }
+
+  private final GroundTruth gt;
+  /**
+   * Clicks as ranges of labeled frame indices.
+   */
+  private final int[] clickStart, clickEnd;
+  private final Result result = new Result();
+  /**
+   * Index of the next labeled frame not yet evaluated.
+   */
+  private int frameCursor = 0;
+  /**
+   * Index of the current click and whether it has been detected.
+   */
+  private int clickCursor = 0;
+  private boolean clickDetected = false;
+  private int lastFrameID = Integer.MIN_VALUE;
+  /**
+   * Per frame scratch space for matching.
+   */
+  private boolean[] matched = new boolean[8];
+
+  public FingertipEvaluator(GroundTruth gt) {
+    this.gt = gt;
+    IntList starts = new IntList(), ends = new IntList();
+    for (int i = 0; i < gt.numFrames(); i++) {
+      if (i == 0 || gt.frames[i] > gt.frames[i - 1] + 1) {
+        if (i > 0)
+          ends.add(i - 1);
+        starts.add(i);
+      }
+    }
+    if (gt.numFrames() > 0)
+      ends.add(gt.numFrames() - 1);
+    clickStart = starts.toArray();
+    clickEnd = ends.toArray();
+  }
+
+  @Override
+  public synchronized void fingerPressed(List<ManipulativeEvent> feList) {
+    if (feList.isEmpty())
+      return;
+    int frameID = feList.get(0).frameID;
+    if (frameID <= lastFrameID)
+      throw new IllegalStateException(String.format(
+          "Frame %d arrived after frame %d.", frameID, lastFrameID));
+    lastFrameID = frameID;
+    evalFingertips(frameID, feList);
+    evalClick(frameID, feList.size());
+  }
+
+  @Override
+  public void fingerPointed(DiecticEvent de) {}
+
+  /**
+   * Counts the labels after the last frame with events as missed.
+   */
+  public synchronized void finish() {
+    skipFramesBefore(Integer.MAX_VALUE);
+    skipClicksBefore(Integer.MAX_VALUE);
+  }
+
+  /**
+   * @return a snapshot of the statistics so far.
+   */
+  public synchronized Result result() {
+    return result.copy();
+  }
+
+  private void evalFingertips(int frameID, List<ManipulativeEvent> feList) {
+    skipFramesBefore(frameID);
+    int numDetected = feList.size();
+    if (frameCursor >= gt.numFrames() || gt.frames[frameCursor] != frameID) {
+      result.falsePositives += numDetected;
+      return;
+    }
+    int begin = gt.offsets[frameCursor], end = gt.offsets[frameCursor + 1];
+    frameCursor++;
+    if (matched.length < numDetected)
+      matched = new boolean[numDetected * 2];
+    Arrays.fill(matched, 0, numDetected, false);
+    int numMatched = 0;
+    for (int i = begin; i < end && numMatched < numDetected; i++) {
+      int best = -1;
+      double bestDist = Double.MAX_VALUE;
+      for (int j = 0; j < numDetected; j++) {
+        if (matched[j])
+          continue;
+        ManipulativeEvent fe = feList.get(j);
+        double dx = fe.posImage.x - gt.xs[i], dy = fe.posImage.y - gt.ys[i];
+        double dist = Math.sqrt(dx * dx + dy * dy);
+        if (dist < bestDist) {
+          bestDist = dist;
+          best = j;
+        }
+      }
+      matched[best] = true;
+      numMatched++;
+      result.error += bestDist;
+      result.xOffset += Math.abs(feList.get(best).posImage.x - gt.xs[i]);
+      result.yOffset += Math.abs(feList.get(best).posImage.y - gt.ys[i]);
+    }
+    result.truePositives += numMatched;
+    result.falseNegatives += end - begin - numMatched;
+    result.falsePositives += numDetected - numMatched;
+  }
+
+  private void evalClick(int frameID, int numEvents) {
+    skipClicksBefore(frameID);
+    if (clickCursor >= clickStart.length)
+      return;
+    if (frameID >= gt.frames[clickStart[clickCursor]]) {
+      // Only the first detection in a click counts.
+      if (!clickDetected) {
+        result.clickTruePositives++;
+        clickDetected = true;
+      }
+    } else {
+      result.clickFalsePositives += numEvents;
+    }
+  }
+
+  /**
+   * Counts the labeled frames before <code>frameID</code> as missed.
+   */
+  private void skipFramesBefore(int frameID) {
+    while (frameCursor < gt.numFrames() && gt.frames[frameCursor] < frameID) {
+      result.falseNegatives += gt.numPoints(frameCursor);
+      frameCursor++;
+    }
+  }
+
+  /**
+   * Moves past the clicks ending before <code>frameID</code>.
+   */
+  private void skipClicksBefore(int frameID) {
+    while (clickCursor < clickStart.length &&
+           gt.frames[clickEnd[clickCursor]] < frameID) {
+      if (!clickDetected)
+        result.clickFalseNegatives++;
+      clickCursor++;
+      clickDetected = false;
+    }
+  }
+
+  /**
+   * Growable array of primitive ints.
+   */
+  private static class IntList {
+    private int[] values = new int[16];
+    private int size = 0;
+
+    void add(int v) {
+      if (size == values.length)
+        values = Arrays.copyOf(values, size * 2);
+      values[size++] = v;
+    }
+
+    int[] toArray() { return Arrays.copyOf(values, size); }
+  }
+}
@@ -5,10 +5,12 @@ import static com.googlecode.javacv.cpp.opencv_core.CV_32SC2;
 import static com.googlecode.javacv.cpp.opencv_core.CV_WHOLE_SEQ;
 import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
 import static com.googlecode.javacv.cpp.opencv_core.cvCopy;
-import static com.googlecode.javacv.cpp.opencv_core.cvCreateMat;
 import static com.googlecode.javacv.cpp.opencv_core.cvCvtSeqToArray;
 import static com.googlecode.javacv.cpp.opencv_core.cvMat;
 import static com.googlecode.javacv.cpp.opencv_core.cvRect;
+import static com.googlecode.javacv.cpp.opencv_core.cvResetImageROI;
+import static com.googlecode.javacv.cpp.opencv_core.cvSetImageROI;
+import static com.googlecode.javacv.cpp.opencv_core.cvZero;
 import static com.googlecode.javacv.cpp.opencv_imgproc.CV_CHAIN_APPROX_SIMPLE;
 import static com.googlecode.javacv.cpp.opencv_imgproc.CV_CLOCKWISE;
 import static com.googlecode.javacv.cpp.opencv_imgproc.CV_MOP_OPEN;
@@ -27,6 +29,9 @@ import static com.googlecode.javacv.cpp.opencv_imgproc.cvStartFindContours;
 import static com.googlecode.javacv.cpp.opencv_imgproc.cvSmooth;
 
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 import org.OpenNI.StatusException;
@@ -40,7 +45,12 @@ import com.googlecode.javacv.cpp.opencv_core.IplImage;
 import com.googlecode.javacv.cpp.opencv_imgproc.CvContourScanner;
 
 import edu.mit.yingyin.tabletop.models.ProcessPacket.ForelimbFeatures;
+import edu.mit.yingyin.tabletop.models.ProcessPacket.Stage;
 import edu.mit.yingyin.util.CvUtil;
+import edu.mit.yingyin.util.Metrics;
+import edu.mit.yingyin.util.PixelKernels;
+import edu.mit.yingyin.util.RowBandExecutor;
+import edu.mit.yingyin.util.Tracer;
 
 /**
  * HandAnalyzer estimates the parameters of the hand model using measurements
@@ -56,27 +66,19 @@ public class ForelimbFeatureDetector {
   /**
    * Number of initial frames to ignore.
    */
-  private static final int BG_INGNORE_FRAMES = 20;
+  static final int BG_INGNORE_FRAMES = 20;
 
   /**
    * Number of initial frames to initialize the background.
    */
-  private static final int BG_INIT_FRAMES = BG_INGNORE_FRAMES + 40;
+  static final int BG_INIT_FRAMES = BG_INGNORE_FRAMES + 40;
 
-  private static final float BG_DIFF_LSCALE = 5;
-  private static final float BG_DIFF_HSCALE = 6;
 
   /**
    * The number of iterations of morphological transformation.
    */
   private static final int MORPH_ITR = 1;
   private static final int CONTOUR_APPROX_LEVEL = 2;
-  /**
-   * The ratio between the perimeter of the table and the perimeter of the hand.
-   * Assumes a fully extended hand's dimension is w = 15cm, h = 15cm, and the 
-   * table's dimension is w = 122cm, h = 92cm.
-   */
-  private static final int HAND_PERIM_SCALE = 7;
   /**
    * The ratio between the height of the table and the maximum (fully extended)
    * height of the hand. 
@@ -91,13 +93,71 @@ public class ForelimbFeatureDetector {
 
   private static final int FORELIMB_BOTTOM_TO_IMAGE_BOTTOM_DIST_THRESH = 10;
   
+  private static final String METRICS = 
+      ForelimbFeatureDetector.class.getSimpleName();
+  private static final Metrics.Counter FRAMES = Metrics.counter(METRICS,
+      "detected_frames_total", "Frames processed after background init");
+  private static final Metrics.Counter CONTOURS_TOTAL = Metrics.counter(
+      METRICS, "contours_total", "Contours found before length filtering");
+  private static final Metrics.Counter FORELIMBS_TOTAL = Metrics.counter(
+      METRICS, "forelimbs_total", "Forelimbs found");
+  private static final Metrics.Counter IDLE_FRAMES = Metrics.counter(METRICS,
+      "idle_frames_total", "Frames of an empty table skipped after the " +
+      "sparse foreground check");
+
+  /**
+   * Rows of a frame used by one band of the depth conversion.
+   */
+  private static class BandRows {
+    final byte[] mask, depth;
+    final float[] depth32F;
+
+    BandRows(int width) {
+      mask = new byte[width];
+      depth = new byte[width];
+      depth32F = new float[width];
+    }
+  }
+  
   private Background background;
+  /**
+   * Sparse foreground check against the background, or null before the
+   * background is learned or if all the frames are processed.
+   */
+  private ForegroundSampler sampler;
+  /**
+   * Region of the table the per-pixel stages are restricted to, or null before
+   * the background is learned.
+   */
+  private TableRegion tableRegion;
+  private boolean fixedTableRegion = false;
+  /**
+   * Rectangle of the table region and the rectangles around it.
+   */
+  private CvRect regionRect;
+  private final List<CvRect> outsideRects = new ArrayList<CvRect>();
   private final IplImage tempImage;
   private final ForelimbModelEstimator forelimbModelEstimator;
-  private final OpenNIDevice openni;
+  private final IFrameSource openni;
   private final HandFeatureDetector hpfd;
+  private final TrackingParameters params;
+  private final InteractionSurface interactionSurface;
+  private final int width, height;
+  /**
+   * Rows of the band being converted on each thread, reused across frames.
+   */
+  private final ThreadLocal<BandRows> bandRows = new ThreadLocal<BandRows>() {
+    @Override
+    protected BandRows initialValue() {
+      return new BandRows(width);
+    }
+  };
   
   private int lastDepthFrameID;
+  /**
+   * Gauges of the last frame.
+   */
+  private Metrics.Gauge foregroundPixelsGauge, contoursGauge, forelimbsGauge;
   
   /**
    * Initializes the data structures.
@@ -106,13 +166,60 @@ public class ForelimbFeatureDetector {
    * @param height
    * @param egnine reference to the <code>HandTrackingEngine</code>.
    */
-  public ForelimbFeatureDetector(int width, int height, OpenNIDevice openni) {
-    tempImage = IplImage.create(width, height, IPL_DEPTH_8U, 1);
-    background = Background.initInstance(width, height);
-    forelimbModelEstimator = new ForelimbModelEstimator(width, height, openni);
+  public ForelimbFeatureDetector(int width, int height, IFrameSource openni) {
+    this(width, height, openni, new TrackingParameters());
+  }
+
+  /**
+   * @param width
+   * @param height
+   * @param openni
+   * @param params parameters of the segmentation and the forelimb model.
+   */
+  public ForelimbFeatureDetector(int width, int height, IFrameSource openni,
+                                 TrackingParameters params) {
+    this(width, height, openni, params, new InteractionSurface(openni));
+  }
+
+  /**
+   * @param width
+   * @param height
+   * @param openni
+   * @param params parameters of the segmentation and the forelimb model.
+   * @param interactionSurface initialized when the background is learned.
+   */
+  public ForelimbFeatureDetector(int width, int height, IFrameSource openni,
+      TrackingParameters params, InteractionSurface interactionSurface) {
+    this.params = params;
+    this.interactionSurface = interactionSurface;
+    this.width = width;
+    this.height = height;
+    tempImage = CvUtil.createImage(width, height, IPL_DEPTH_8U, 1);
+    background = new Background(width, height);
+    forelimbModelEstimator = new ForelimbModelEstimator(width, height, openni,
+        params, interactionSurface);
     this.openni = openni;
     hpfd = new HandFeatureDetector(width, height, openni);
     lastDepthFrameID = 0;
+    publishMetrics(METRICS);
+  }
+
+  /**
+   * Publishes the gauges of the last frame of this detector and its
+   * estimators under <code>component</code>, e.g. the component of its engine,
+   * instead of the component shared by all the detectors. Counters are
+   * process wide totals and stay shared. Should be called before detecting.
+   * @param component
+   */
+  public void publishMetrics(String component) {
+    foregroundPixelsGauge = Metrics.gauge(component, "foreground_pixels",
+        "Foreground pixels in the last frame");
+    contoursGauge = Metrics.gauge(component, "contours",
+        "Contours found in the last frame");
+    forelimbsGauge = Metrics.gauge(component, "forelimbs",
+        "Forelimbs found in the last frame");
+    forelimbModelEstimator.publishMetrics(component);
+    hpfd.publishMetrics(component);
   }
 
   /**
@@ -130,30 +237,100 @@ public class ForelimbFeatureDetector {
     if (packet.depthFrameID < BG_INGNORE_FRAMES)
       return;
 
-    CvUtil.intToIplImage32F(packet.depthRawData, packet.depthImageBlur32F, 
-        1);
-    cvSmooth(packet.depthImageBlur32F, packet.depthImageBlur32F, CV_GAUSSIAN, 5);
-    if (packet.depthFrameID < BG_INIT_FRAMES) {
-      background.accumulateBackground(packet.depthRawData);
+    // An empty table skips all the stages below. The check runs on every
+    // frame, so the first frame with a hand goes through the full pipeline.
+    if (isIdle(packet)) {
+      // So the views and later stages do not see the last hand in any image
+      // of the packet.
+      cvZero(packet.foregroundMask);
+      cvZero(packet.depthImage8U);
+      cvZero(packet.morphedImage);
+      cvZero(packet.depthImage32F);
+      cvZero(packet.depthImageBlur32F);
+      cvZero(packet.derivative);
+      foregroundPixelsGauge.set(0);
+      IDLE_FRAMES.inc();
       return;
-    } else if (packet.depthFrameID == BG_INIT_FRAMES) {
-      background.createModelsFromStats((float) BG_DIFF_LSCALE,
-          (float) BG_DIFF_HSCALE);
-      InteractionSurface.initInstance(background, openni);
-      LOGGER.info(background.stats());
     }
 
-    CvUtil.intToIplImage32F(packet.depthRawData, packet.depthImage32F, 
-        (float) 1 / background.maxDepth());
-    cvSobel(packet.depthImage32F, packet.derivative, 2, 2, 3);
+    Tracer.begin("preprocess");
+    try {
+      if (packet.depthFrameID < BG_INIT_FRAMES) {
+        Tracer.begin("intToIplImage32F");
+        try {
+          CvUtil.intToIplImage32F(packet.depthRawData,
+                                  packet.depthImageBlur32F, 1);
+        } finally {
+          Tracer.end("intToIplImage32F");
+        }
+        smoothDepth(packet);
+        background.accumulateBackground(packet.depthRawData);
+        return;
+      } else if (packet.depthFrameID == BG_INIT_FRAMES) {
+        background.createModelsFromStats(params.bgDiffLowScale,
+            params.bgDiffHighScale);
+        // After a recalibration, the old surface is used until the new one is
+        // computed in the background. The first time, only the contact bands
+        // are computed here and the plane is unknown until the geometry is.
+        if (interactionSurface.isInitialized())
+          interactionSurface.refresh(background);
+        else
+          interactionSurface.initialize(background);
+        if (tableRegion == null) {
+          applyTableRegion(TableRegion.fromBackground(background));
+          LOGGER.info("Table region: " + tableRegion);
+        }
+        updateSampler();
+        LOGGER.info(background.stats());
+      }
 
-    subtractBackground(packet);
-    cleanUpBackground(packet);
-    findConnectedComponents(packet, HAND_PERIM_SCALE);
-    findHandRegions(packet);
-    hpfd.detect(packet);
-    forelimbModelEstimator.updateModel(packet);
+      Tracer.begin("convertDepth");
+      try {
+        convertDepth(packet);
+      } finally {
+        Tracer.end("convertDepth");
+      }
+      smoothDepth(packet);
+      setRegion(packet.depthImage32F, packet.derivative);
+      cvSobel(packet.depthImage32F, packet.derivative, 2, 2, 3);
+      resetRegion(packet.depthImage32F, packet.derivative);
+      packet.markStage(Stage.PREPROCESSED);
+    } finally {
+      Tracer.end("preprocess");
+    }
+
+    Tracer.begin("segment");
+    try {
+      cleanUpBackground(packet);
+      packet.markStage(Stage.SEGMENTED);
+    } finally {
+      Tracer.end("segment");
+    }
+    Tracer.begin("contours");
+    try {
+      findForelimbs(packet);
+      packet.markStage(Stage.CONTOURS);
+    } finally {
+      Tracer.end("contours");
+    }
+    Tracer.begin("handFeatures");
+    try {
+      hpfd.detect(packet);
+      packet.markStage(Stage.HAND_FEATURES);
+    } finally {
+      Tracer.end("handFeatures");
+    }
+    Tracer.begin("model");
+    try {
+      forelimbModelEstimator.updateModel(packet);
+      packet.markStage(Stage.MODEL);
+    } finally {
+      Tracer.end("model");
+    }
     
+    FRAMES.inc();
+    forelimbsGauge.set(packet.forelimbs.size());
+    FORELIMBS_TOTAL.add(packet.forelimbs.size());
   }
 
   /**
@@ -165,12 +342,52 @@ public class ForelimbFeatureDetector {
     LOGGER.info("HandAnalyzer released.");
   }
   
+  /**
+   * Learns the background again from the next frames. The interaction surface
+   * of the old background stays initialized and in use until the new one is
+   * computed.
+   */
   public void recalibrateBackground() {
-    background = Background.resetInstance();
-    InteractionSurface.clearInstancve();
+    lastDepthFrameID = 0;
+    sampler = null;
+    if (!fixedTableRegion)
+      applyTableRegion(null);
+    background.release();
+    background = new Background(width, height);
     LOGGER.info("Background recalibrating.");
   }
   
+  public Background background() {
+    return background;
+  }
+  
+  public InteractionSurface interactionSurface() {
+    return interactionSurface;
+  }
+
+  /**
+   * @return the region of the table the pixels are processed in, or null
+   *    before the background is learned.
+   */
+  public TableRegion tableRegion() {
+    return tableRegion;
+  }
+
+  /**
+   * Uses <code>region</code> instead of the region found from the background,
+   * also after the background is recalibrated.
+   * @param region a region inside the frames, or null to find the region from
+   *    the background again.
+   */
+  public void setTableRegion(TableRegion region) {
+    if (region != null && !region.fits(width, height))
+      throw new IllegalArgumentException("Table region " + region +
+          " is outside the frame.");
+    fixedTableRegion = region != null;
+    applyTableRegion(region);
+    updateSampler();
+  }
+  
   /**
    * Returns true whenever recording frames to subtract from the background.
    * @return
@@ -180,27 +397,141 @@ public class ForelimbFeatureDetector {
   }
   
 
+  /**
+   * Samples the table region of the learned background for the idle check.
+   */
+  private void updateSampler() {
+    if (params.idleMinSamples > 0 && background.isInitialized()) {
+      sampler = ForegroundSampler.fromBackground(background, tableRegion,
+          ForegroundSampler.DEFAULT_STEP);
+    } else {
+      sampler = null;
+    }
+  }
+
+  /**
+   * @return true if the sparse foreground check finds fewer than
+   *    <code>params.idleMinSamples</code> foreground samples in the table
+   *    region.
+   */
+  boolean isIdle(ProcessPacket packet) {
+    if (sampler == null)
+      return false;
+    int minSamples = params.idleMinSamples;
+    return sampler.countForeground(packet.depthRawData, minSamples) <
+           minSamples;
+  }
+
+  /**
+   * Finds the forelimb contours and their hand regions in the segmented 
+   * foreground. The packet should be cleared before calling this again.
+   * @param packet
+   */
+  void findForelimbs(ProcessPacket packet) {
+    findConnectedComponents(packet, params.handPerimScale);
+    findHandRegions(packet);
+  }
+
+  /**
+   * Converts the raw depth of a frame after the background is learned in one
+   * pass over its rows. Each row of <code>packet.depthRawData</code> is read
+   * once and written to <code>depthImageBlur32F</code> unscaled, to 
+   * <code>depthImage32F</code> scaled by the maximum depth, and, inside the
+   * table region, segmented into <code>foregroundMask</code> and
+   * <code>depthImage8U</code>.
+   * @param packet
+   */
+  void convertDepth(ProcessPacket packet) {
+    convert(packet, true);
+  }
+
+  /**
+   * Segments the foreground into <code>packet.foregroundMask</code> and 
+   * <code>packet.depthImage8U</code> without converting the depth to float.
+   * @param packet
+   */
   protected void subtractBackground(ProcessPacket packet) {
-    int[] depthData = packet.depthRawData;
-    IplImage depthImage = packet.depthImage8U;
+    convert(packet, false);
+  }
 
-    background.backgroundDiff(packet.depthRawData, packet.foregroundMask);
-    ByteBuffer depthBuffer = depthImage.getByteBuffer();
-    ByteBuffer maskBuffer = packet.foregroundMask.getByteBuffer();
-    int maskWidthStep = packet.foregroundMask.widthStep();
-    int depthWidthStep = depthImage.widthStep();
-    int width = packet.width;
-    for (int h = 0; h < packet.height; h++)
-      for (int w = 0; w < packet.width; w++) {
-        int pos = h * depthWidthStep + w;
-        if (Background.isForeground(maskBuffer.get(h * maskWidthStep + w))) {
-          byte d = (byte) (depthData[h * width + w] * 255 / 
-                           background.maxDepth());
-          depthBuffer.put(pos, d);
-        } else {
-          depthBuffer.put(pos, (byte) 0);
+  private void convert(ProcessPacket packet, final boolean toFloat) {
+    final int[] depthData = packet.depthRawData;
+    IplImage depthImage = packet.depthImage8U;
+    final ByteBuffer depthBuffer = depthImage.getByteBuffer();
+    final ByteBuffer maskBuffer = packet.foregroundMask.getByteBuffer();
+    final FloatBuffer blurBuffer = packet.depthImageBlur32F.getFloatBuffer();
+    final FloatBuffer scaledBuffer = packet.depthImage32F.getFloatBuffer();
+    final int maskWidthStep = packet.foregroundMask.widthStep();
+    final int depthWidthStep = depthImage.widthStep();
+    final int blurWidthStep = packet.depthImageBlur32F.widthStep() / 4;
+    final int scaledWidthStep = packet.depthImage32F.widthStep() / 4;
+    final int width = packet.width;
+    final int maxDepth = background.maxDepth();
+    final float scale = (float) 1 / maxDepth;
+    final Background bg = background;
+    final PixelKernels kernels = PixelKernels.get();
+    int x0 = 0, y0 = 0, x1 = packet.width, y1 = packet.height;
+    if (tableRegion != null) {
+      // Nothing outside the table is foreground.
+      zeroOutsideRegion(packet.foregroundMask);
+      cvZero(depthImage);
+      x0 = tableRegion.x();
+      y0 = tableRegion.y();
+      x1 = tableRegion.right();
+      y1 = tableRegion.bottom();
+    }
+    final int left = x0, regionWidth = x1 - x0;
+    // The float images cover the whole frame, the segmentation only the
+    // region.
+    final int top = toFloat ? 0 : y0, bottom = toFloat ? packet.height : y1;
+    final int regionTop = y0, regionBottom = y1;
+    // Each row of the raw depth stays in the cache while it is converted to
+    // all the images, which are written a row at a time in bulk.
+    int foreground = RowBandExecutor.shared().run(width, bottom - top,
+        new RowBandExecutor.Body() {
+      @Override
+      public int run(int startRow, int endRow) {
+        ByteBuffer masks = maskBuffer.duplicate();
+        ByteBuffer depths = depthBuffer.duplicate();
+        FloatBuffer blurs = blurBuffer.duplicate();
+        FloatBuffer scaled = scaledBuffer.duplicate();
+        BandRows rows = bandRows.get();
+        byte[] mask = rows.mask, depth = rows.depth;
+        float[] row = rows.depth32F;
+        int count = 0;
+        for (int h = top + startRow; h < top + endRow; h++) {
+          int offset = h * width;
+          if (toFloat) {
+            kernels.toFloat(depthData, offset, row, 0, width, 1);
+            blurs.position(h * blurWidthStep);
+            blurs.put(row);
+            kernels.toFloat(depthData, offset, row, 0, width, scale);
+            scaled.position(h * scaledWidthStep);
+            scaled.put(row);
+          }
+          if (h < regionTop || h >= regionBottom)
+            continue;
+          bg.backgroundDiff(depthData, offset + left, mask, 0, regionWidth);
+          count += kernels.maskedToByte(depthData, offset + left, mask,
+                                        depth, 0, regionWidth, maxDepth);
+          masks.position(h * maskWidthStep + left);
+          masks.put(mask, 0, regionWidth);
+          depths.position(h * depthWidthStep + left);
+          depths.put(depth, 0, regionWidth);
         }
+        return count;
       }
+    });
+    foregroundPixelsGauge.set(foreground);
+  }
+
+  /**
+   * Smoothes <code>packet.depthImageBlur32F</code> inside the table region.
+   */
+  private void smoothDepth(ProcessPacket packet) {
+    setRegion(packet.depthImageBlur32F);
+    cvSmooth(packet.depthImageBlur32F, packet.depthImageBlur32F, CV_GAUSSIAN, 5);
+    resetRegion(packet.depthImageBlur32F);
   }
 
   /**
@@ -213,8 +544,12 @@ public class ForelimbFeatureDetector {
     // The opening operator involves erosion followed by dilation. Its effect is
     // to eliminate lone outliers that are higher in intensity (bumps) than
     // their neighbors.
+    if (tableRegion != null)
+      cvZero(packet.morphedImage);
+    setRegion(packet.depthImage8U, packet.morphedImage);
     cvMorphologyEx(packet.depthImage8U, packet.morphedImage, null, null,
         CV_MOP_OPEN, MORPH_ITR);
+    resetRegion(packet.depthImage8U, packet.morphedImage);
   }
 
   /**
@@ -239,7 +574,17 @@ public class ForelimbFeatureDetector {
     double q =
         (packet.morphedImage.height() + packet.morphedImage.width()) /
             perimScale;
-    while ((c = cvFindNextContour(scanner)) != null) {
+    int contours = 0;
+    while (true) {
+      Tracer.begin("cvFindNextContour");
+      try {
+        c = cvFindNextContour(scanner);
+      } finally {
+        Tracer.end("cvFindNextContour");
+      }
+      if (c == null)
+        break;
+      contours++;
       double len = cvContourPerimeter(c);
       if (len > q) {
         ForelimbFeatures ff = new ForelimbFeatures();
@@ -252,7 +597,7 @@ public class ForelimbFeatureDetector {
         cvCvtSeqToArray(approxPoly, approxPolyPts, CV_WHOLE_SEQ);
         ff.approxPoly = cvMat(1, approxPoly.total(), CV_32SC2, approxPolyPts);
         ff.boundingBox = cvBoundingRect(ff.approxPoly, 0);
-        ff.hull = cvCreateMat(1, approxPoly.total(), CV_32SC1);
+        ff.hull = CvUtil.createMat(1, approxPoly.total(), CV_32SC1);
         // returnPoints = 0: returns pointers to the points in the contour
         cvConvexHull2(ff.approxPoly, ff.hull, CV_CLOCKWISE, 0);
         ff.convexityDefects =
@@ -260,6 +605,8 @@ public class ForelimbFeatureDetector {
         packet.forelimbFeatures.add(ff);
       }
     }
+    contoursGauge.set(contours);
+    CONTOURS_TOTAL.add(contours);
   }
 
   /**
@@ -271,6 +618,8 @@ public class ForelimbFeatureDetector {
     int maxHandHeight = packet.height / HAND_MAX_HEIGHT_SCALE;
     int minHandHeight = packet.height / HAND_MIN_HEIGHT_SCALE;
     int armJointHeight = packet.height / ARM_JOINT_HEIGHT_SCALE;
+    // Forelimbs reaching in from the bottom are cut at the edge of the table.
+    int bottom = tableRegion == null ? packet.height : tableRegion.bottom();
 
     for (ForelimbFeatures ff : packet.forelimbFeatures) {
       CvRect rect = ff.boundingBox;
@@ -280,7 +629,7 @@ public class ForelimbFeatureDetector {
         int y1 = rect.y();
         int y2 = y1 + rect.height();
         int yhand = y1, yarm = y2 - armJointHeight;
-        if (!isForelimbAtBottom(y2, packet.height)) {
+        if (!isForelimbAtBottom(y2, bottom)) {
           yhand = y2 - maxHandHeight;
           yarm = y1;
         }
@@ -293,6 +642,51 @@ public class ForelimbFeatureDetector {
     }
   }
   
+  private void applyTableRegion(TableRegion region) {
+    tableRegion = region;
+    outsideRects.clear();
+    if (region == null) {
+      regionRect = null;
+      return;
+    }
+    int x = region.x(), y = region.y(), right = region.right();
+    int bottom = region.bottom();
+    regionRect = cvRect(x, y, region.width(), region.height());
+    if (y > 0)
+      outsideRects.add(cvRect(0, 0, width, y));
+    if (bottom < height)
+      outsideRects.add(cvRect(0, bottom, width, height - bottom));
+    if (x > 0)
+      outsideRects.add(cvRect(0, y, x, region.height()));
+    if (right < width)
+      outsideRects.add(cvRect(right, y, width - right, region.height()));
+  }
+
+  /**
+   * Restricts the images to the table region until <code>resetRegion</code>.
+   */
+  private void setRegion(IplImage... images) {
+    if (regionRect == null)
+      return;
+    for (IplImage image : images)
+      cvSetImageROI(image, regionRect);
+  }
+
+  private void resetRegion(IplImage... images) {
+    if (regionRect == null)
+      return;
+    for (IplImage image : images)
+      cvResetImageROI(image);
+  }
+
+  private void zeroOutsideRegion(IplImage image) {
+    for (CvRect rect : outsideRects) {
+      cvSetImageROI(image, rect);
+      cvZero(image);
+    }
+    cvResetImageROI(image);
+  }
+
   private boolean isForelimbAtBottom(int forelimbBottom, int imageBottom) {
     return Math.abs(forelimbBottom - imageBottom) < 
            FORELIMB_BOTTOM_TO_IMAGE_BOTTOM_DIST_THRESH;
@@ -28,6 +28,7 @@ import edu.mit.yingyin.tabletop.models.ProcessPacket.HandFeatures;
 import edu.mit.yingyin.util.CvUtil;
 import edu.mit.yingyin.util.Geometry;
 import edu.mit.yingyin.util.Matrix;
+import edu.mit.yingyin.util.Metrics;
 import edu.mit.yingyin.util.ValConfidencePair;
 
 /**
@@ -38,20 +39,22 @@ import edu.mit.yingyin.util.ValConfidencePair;
  * 
  */
 public class ForelimbModelEstimator {
-  // Around 45 deg.
-  private static final float FINGERTIP_ANGLE = (float) 0.8;
-
-  private static final float FINGERTIP_WIDTH = 7;
-
-  private static final float FINGERTIP_WIDTH_THRESHOLD = FINGERTIP_WIDTH
-      * FINGERTIP_WIDTH / 4;
-  
   private static final float SMOOTH_FACTOR = (float) 0.9;
   private static final float TREND_SMOOTH_FACTOR = (float) 0.9;
   
+  private static final String METRICS = 
+      ForelimbModelEstimator.class.getSimpleName();
+  private static final Metrics.Counter FINGERTIPS_TOTAL = Metrics.counter(
+      METRICS, "fingertips_total", "Fingertips found before filtering");
+  private static final Metrics.Counter FORELIMBS = Metrics.counter(METRICS,
+      "modeled_forelimbs_total", "Forelimb models estimated");
+  
   private final int width, height;
-  private final OpenNIDevice openni;
+  private final IFrameSource openni;
   private final DoubleExpFilter filter;
+  private final float fingertipAngle, fingertipWidth, fingertipWidthThreshold;
+  private final InteractionSurface interactionSurface;
+  private Metrics.Gauge fingertipsGauge;
   
   /**
    * Displacement in world coordinates in the previous frame.
@@ -62,12 +65,34 @@ public class ForelimbModelEstimator {
    */
   private Vector3f prevV;
 
-  public ForelimbModelEstimator(int width, int height, 
-      OpenNIDevice openni) {
+  /**
+   * @param width
+   * @param height
+   * @param openni
+   * @param params
+   * @param interactionSurface used to compute the distances of the hands 
+   *    above the surface. Should be initialized before updating the model.
+   */
+  public ForelimbModelEstimator(int width, int height, IFrameSource openni,
+      TrackingParameters params, InteractionSurface interactionSurface) {
+    this.interactionSurface = interactionSurface;
     this.width = width;
     this.height = height;
     this.openni = openni;
+    fingertipAngle = params.fingertipAngle;
+    fingertipWidth = params.fingertipWidth;
+    fingertipWidthThreshold = fingertipWidth * fingertipWidth / 4;
     filter = new DoubleExpFilter(SMOOTH_FACTOR, TREND_SMOOTH_FACTOR);
+    publishMetrics(METRICS);
+  }
+
+  /**
+   * Publishes the gauges of the last frame under <code>component</code>.
+   * @param component
+   */
+  public void publishMetrics(String component) {
+    fingertipsGauge = Metrics.gauge(component, "fingertips",
+        "Fingertips found in the last frame before filtering");
   }
 
   public void updateModel(ProcessPacket packet) throws StatusException {
@@ -77,6 +102,8 @@ public class ForelimbModelEstimator {
 
       findFingertipsConvexityDefects(ff, packet);
     }  
+    if (Metrics.ENABLED)
+      countFingertips(packet);
     
     List<Point3f> filteredFingertips = filter.filter(packet);
     
@@ -107,13 +134,13 @@ public class ForelimbModelEstimator {
           if (prevV != null) {
             a = new Vector3f();
             a.sub(v, prevV);
-            float dist = InteractionSurface.instance().
-                distanceAboveSurface(hf.centroidWorld);
+            float dist = distanceAboveSurface(hf);
             Hand hand = new Hand(dist, hf.handPoseWidth, hf.centroidWorld, v, a, 
                                  hf.rot, hf.pointCloud);
             Forelimb forelimb = new Forelimb(filteredFingertips, fingertipsW, 
                 armJoints, hand);
             packet.forelimbs.add(forelimb);
+            FORELIMBS.inc();
           }
         }
         prevS = hf.centroidWorld;
@@ -125,6 +152,29 @@ public class ForelimbModelEstimator {
     prevV = null;
   }
 
+  /**
+   * @return the height of the hand centroid above the table at its pixel, or
+   *    the distance to the table plane if the table is unknown there.
+   */
+  private float distanceAboveSurface(HandFeatures hf) {
+    Point3D c = hf.centroidImage;
+    if (c != null) {
+      float height = interactionSurface.heightAboveSurface(
+          Math.round(c.getX()), Math.round(c.getY()), c.getZ());
+      if (!Float.isNaN(height))
+        return Math.max(0, height);
+    }
+    return interactionSurface.distanceAboveSurface(hf.centroidWorld);
+  }
+
+  private void countFingertips(ProcessPacket packet) {
+    int n = 0;
+    for (ForelimbFeatures ff : packet.forelimbFeatures)
+      n += ff.fingertips.size();
+    fingertipsGauge.set(n);
+    FINGERTIPS_TOTAL.add(n);
+  }
+
   /**
    * Finds fingertip positions in the image coordinates using convexity defects 
    * method.
@@ -167,8 +217,8 @@ public class ForelimbModelEstimator {
         defect2.depth_point().y() - defect2.start().y());
     float distance2 = CvUtil.distance2(defect1.depth_point(),
         defect2.depth_point());
-    if (Geometry.angle(v1, v2) <= FINGERTIP_ANGLE
-        && distance2 >= FINGERTIP_WIDTH_THRESHOLD) {
+    if (Geometry.angle(v1, v2) <= fingertipAngle
+        && distance2 >= fingertipWidthThreshold) {
       int mx = (defect1.end().x() + defect2.start().x()) / 2;
       int my = (defect1.end().y() + defect2.start().y()) / 2;
 
@@ -206,7 +256,7 @@ public class ForelimbModelEstimator {
     int widthStep = packet.derivative.widthStep() / 4;
 
     int count = 0;
-    while (count <= FINGERTIP_WIDTH && p.y >= 0 && p.y < height && p.x >= 0
+    while (count <= fingertipWidth && p.y >= 0 && p.y < height && p.x >= 0
         && p.x < width) {
       int index = (int) p.y * widthStep + (int) p.x;
       float gradient = fb.get(index);
@@ -218,7 +268,7 @@ public class ForelimbModelEstimator {
     }
 
     Point2f result = new Point2f();
-    result.scaleAdd(-FINGERTIP_WIDTH / 2, unitDir, p);
+    result.scaleAdd(-fingertipWidth / 2, unitDir, p);
     return result;
   }
 
@@ -0,0 +1,254 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+import org.OpenNI.Point3D;
+import org.OpenNI.StatusException;
+
+/**
+ * Depth frames decoded once from a frame source into a file, and memory-mapped
+ * read-only for playback. Any number of sources, in this or other processes,
+ * can play the cached frames concurrently without copying the whole recording
+ * into their heaps.
+ *
+ * The file has a header (magic, width, height, number of frames), the depth
+ * frames as little-endian 16-bit values, and the frame IDs and timestamps of
+ * all the frames at the end.
+ *
+ * @author yingyin
+ *
+ */
+public class FrameCache {
+  public static final String SUFFIX = ".tfc";
+
+  private static final Logger LOGGER = Logger.getLogger(
+      FrameCache.class.getName());
+  private static final int MAGIC = 0x54464331;
+  private static final int HEADER_SIZE = 16;
+  /**
+   * Bytes of the frame ID and timestamp of a frame.
+   */
+  private static final int FRAME_INFO_SIZE = 12;
+
+  /**
+   * Decodes the frames from <code>source</code> into <code>file</code> until
+   * the source restarts or <code>maxFrames</code> frames are decoded.
+   *
+   * @param source
+   * @param maxFrames
+   * @param file overwritten if it exists.
+   * @return the cache of the decoded frames.
+   * @throws IOException
+   * @throws StatusException
+   */
+  public static FrameCache decode(IFrameSource source, int maxFrames,
+      File file) throws IOException, StatusException {
+    int width = source.getDepthWidth(), height = source.getDepthHeight();
+    int frameSize = width * height;
+    int[] depth = new int[frameSize];
+    ByteBuffer frameBuffer = ByteBuffer.allocate(frameSize * 2).order(
+        ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer infoBuffer = ByteBuffer.allocate(
+        Math.min(maxFrames, 1 << 16) * FRAME_INFO_SIZE).order(
+        ByteOrder.LITTLE_ENDIAN);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    int numFrames = 0;
+    try {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      channel.position(HEADER_SIZE);
+      int lastFrameID = -1;
+      while (numFrames < maxFrames) {
+        source.waitDepthUpdateAll();
+        int frameID = source.getDepthFrameID();
+        if (numFrames > 0 && frameID <= lastFrameID)
+          break;
+        lastFrameID = frameID;
+        source.getDepthArray(depth);
+        frameBuffer.clear();
+        for (int i = 0; i < frameSize; i++)
+          frameBuffer.putShort((short) depth[i]);
+        frameBuffer.flip();
+        while (frameBuffer.hasRemaining())
+          channel.write(frameBuffer);
+        if (!infoBuffer.hasRemaining()) {
+          ByteBuffer larger = ByteBuffer.allocate(infoBuffer.capacity() * 2).
+              order(ByteOrder.LITTLE_ENDIAN);
+          infoBuffer.flip();
+          larger.put(infoBuffer);
+          infoBuffer = larger;
+        }
+        infoBuffer.putInt(frameID);
+        infoBuffer.putLong(source.getDepthTimestamp());
+        numFrames++;
+      }
+      infoBuffer.flip();
+      while (infoBuffer.hasRemaining())
+        channel.write(infoBuffer);
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+          ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC).putInt(width).putInt(height).putInt(numFrames);
+      header.flip();
+      channel.position(0);
+      while (header.hasRemaining())
+        channel.write(header);
+    } finally {
+      raf.close();
+    }
+    LOGGER.info(String.format("Decoded %d frames into %s.", numFrames, file));
+    return open(file);
+  }
+
+  /**
+   * Maps a cache file written by <code>decode</code>.
+   * @param file
+   * @return the cache.
+   * @throws IOException if the file is not a valid cache.
+   */
+  public static FrameCache open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return new FrameCache(raf.getChannel(), file);
+    } finally {
+      // The mappings stay valid after the channel is closed.
+      raf.close();
+    }
+  }
+
+  private final int width, height, numFrames;
+  private final int[] frameIDs;
+  private final long[] timestamps;
+  /**
+   * The frames are mapped in segments because a mapping is limited to 2GB.
+   */
+  private final MappedByteBuffer[] segments;
+  private final int framesPerSegment;
+
+  private FrameCache(FileChannel channel, File file) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+        ByteOrder.LITTLE_ENDIAN);
+    while (header.hasRemaining() && channel.read(header) >= 0) {}
+    header.flip();
+    if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+      throw new IOException(file + " is not a frame cache.");
+    width = header.getInt();
+    height = header.getInt();
+    numFrames = header.getInt();
+    if (numFrames <= 0)
+      throw new IOException(file + " has no frames.");
+    long frameBytes = (long) width * height * 2;
+    long infoPosition = HEADER_SIZE + frameBytes * numFrames;
+    if (channel.size() != infoPosition + (long) numFrames * FRAME_INFO_SIZE)
+      throw new IOException(file + " is truncated.");
+
+    ByteBuffer info = channel.map(FileChannel.MapMode.READ_ONLY, infoPosition,
+        (long) numFrames * FRAME_INFO_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    frameIDs = new int[numFrames];
+    timestamps = new long[numFrames];
+    for (int i = 0; i < numFrames; i++) {
+      frameIDs[i] = info.getInt();
+      timestamps[i] = info.getLong();
+    }
+
+    framesPerSegment = (int) Math.max(1, Integer.MAX_VALUE / frameBytes);
+    int numSegments = (numFrames + framesPerSegment - 1) / framesPerSegment;
+    segments = new MappedByteBuffer[numSegments];
+    for (int s = 0; s < numSegments; s++) {
+      int frames = Math.min(framesPerSegment, numFrames - s * framesPerSegment);
+      segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+          HEADER_SIZE + frameBytes * s * framesPerSegment, frameBytes * frames);
+    }
+  }
+
+  public int width() { return width; }
+
+  public int height() { return height; }
+
+  public int numFrames() { return numFrames; }
+
+  public int frameID(int index) { return frameIDs[index]; }
+
+  public long timestamp(int index) { return timestamps[index]; }
+
+  /**
+   * @param index
+   * @return a read-only view of the depth values of the frame at
+   *    <code>index</code>.
+   */
+  public ShortBuffer frame(int index) {
+    ByteBuffer segment = segments[index / framesPerSegment].duplicate();
+    int frameBytes = width * height * 2;
+    int position = (index % framesPerSegment) * frameBytes;
+    segment.position(position).limit(position + frameBytes);
+    return segment.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+  }
+
+  /**
+   * @return a new source that plays the cached frames once from the start
+   *    with their original frame IDs. After the last frame, it restarts from
+   *    the first frame.
+   */
+  public IFrameSource newSource() {
+    return new Source();
+  }
+
+  private class Source implements IFrameSource {
+    private final DepthProjection projection = new DepthProjection(width,
+                                                                   height);
+    private int index = -1;
+
+    @Override
+    public int getDepthWidth() { return width; }
+
+    @Override
+    public int getDepthHeight() { return height; }
+
+    @Override
+    public void waitDepthUpdateAll() {
+      index = (index + 1) % numFrames;
+    }
+
+    @Override
+    public void getDepthArray(int[] depthArray) {
+      ShortBuffer frame = frame(Math.max(index, 0));
+      int size = width * height;
+      for (int i = 0; i < size; i++)
+        depthArray[i] = frame.get(i) & 0xffff;
+    }
+
+    @Override
+    public int getDepthFrameID() { return frameIDs[Math.max(index, 0)]; }
+
+    @Override
+    public long getDepthTimestamp() { return timestamps[Math.max(index, 0)]; }
+
+    @Override
+    public ByteBuffer getImageBuffer() { return null; }
+
+    @Override
+    public Point3D[] convertProjectiveToRealWorld(Point3D[] points) {
+      return projection.convertProjectiveToRealWorld(points);
+    }
+
+    @Override
+    public Point3D[] convertRealWorldToProjective(Point3D[] points) {
+      return projection.convertRealWorldToProjective(points);
+    }
+
+    @Override
+    public Point3D convertRealWorldToProjective(Point3D p) {
+      return projection.convertRealWorldToProjective(p);
+    }
+
+    @Override
+    public void release() {}
+  }
+}
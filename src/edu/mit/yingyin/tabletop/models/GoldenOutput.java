@@ -0,0 +1,220 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.vecmath.Point3f;
+
+import org.OpenNI.Point3D;
+
+import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngine.IHandEventListener;
+
+/**
+ * A canonical text summary of the pipeline output used as golden output in
+ * regression tests. Each frame is written as
+ *
+ * <pre>
+ * frame &lt;id&gt; forelimbs &lt;n&gt;
+ * limb &lt;i&gt; hand &lt;x y z&gt; tips &lt;x y z&gt;...
+ * event &lt;type&gt; &lt;x y&gt;
+ * pointing &lt;x y z&gt;...
+ * </pre>
+ *
+ * where hand centroids are in world coordinates (mm), fingertips and pointing
+ * locations are in image coordinates (pixels) with their depth (mm), and
+ * finger events are in image coordinates. Two outputs are compared token by
+ * token with a tolerance for each kind of coordinate.
+ *
+ * @author yingyin
+ *
+ */
+public class GoldenOutput implements IHandEventListener {
+  /**
+   * Maximum absolute differences for the values to be considered equal.
+   */
+  public static class Tolerance {
+    public final float imagePixels;
+    public final float worldMillimeters;
+    /**
+     * Tolerance of the depth of an image point.
+     */
+    public final float depthMillimeters;
+
+    public Tolerance(float imagePixels, float worldMillimeters,
+                     float depthMillimeters) {
+      this.imagePixels = imagePixels;
+      this.worldMillimeters = worldMillimeters;
+      this.depthMillimeters = depthMillimeters;
+    }
+  }
+
+  private static final String FRAME = "frame", FORELIMBS = "forelimbs",
+      LIMB = "limb", HAND = "hand", TIPS = "tips", EVENT = "event",
+      POINTING = "pointing";
+
+  /**
+   * Maximum number of differences reported by <code>diff</code>.
+   */
+  private static final int MAX_DIFFS = 20;
+
+  private final List<String> lines = new ArrayList<String>();
+  private final List<ManipulativeEvent> frameEvents =
+      new ArrayList<ManipulativeEvent>();
+  private final List<DiecticEvent> framePointing =
+      new ArrayList<DiecticEvent>();
+
+  /**
+   * Reads a golden output file.
+   * @param fileName
+   * @return lines of the file.
+   * @throws IOException
+   */
+  public static List<String> read(String fileName) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader br = new BufferedReader(new FileReader(fileName));
+    try {
+      String line;
+      while ((line = br.readLine()) != null) {
+        if (!line.isEmpty())
+          lines.add(line);
+      }
+    } finally {
+      br.close();
+    }
+    return lines;
+  }
+
+  /**
+   * Compares two outputs.
+   *
+   * @param expected
+   * @param actual
+   * @param tolerance
+   * @return descriptions of the differences, empty if the outputs are
+   *    equivalent.
+   */
+  public static List<String> diff(List<String> expected, List<String> actual,
+                                  Tolerance tolerance) {
+    List<String> diffs = new ArrayList<String>();
+    int n = Math.min(expected.size(), actual.size());
+    for (int i = 0; i < n && diffs.size() < MAX_DIFFS; i++) {
+      if (!lineEquals(expected.get(i), actual.get(i), tolerance)) {
+        diffs.add(String.format("line %d: expected <%s> but was <%s>", i + 1,
+            expected.get(i), actual.get(i)));
+      }
+    }
+    if (expected.size() != actual.size() && diffs.size() < MAX_DIFFS) {
+      diffs.add(String.format("expected %d lines but was %d", expected.size(),
+          actual.size()));
+    }
+    return diffs;
+  }
+
+  /**
+   * Adds the output of a processed frame, including the finger and pointing
+   * events received since the last frame.
+   * @param packet
+   */
+  public void addFrame(ProcessPacket packet) {
+    lines.add(String.format("%s %d %s %d", FRAME, packet.depthFrameID,
+        FORELIMBS, packet.forelimbs.size()));
+    for (int i = 0; i < packet.forelimbs.size(); i++) {
+      Forelimb forelimb = packet.forelimbs.get(i);
+      StringBuilder sb = new StringBuilder();
+      sb.append(LIMB).append(' ').append(i).append(' ').append(HAND);
+      appendPoint(sb, forelimb.hand().position());
+      sb.append(' ').append(TIPS);
+      for (Point3f tip : forelimb.fingertipsI())
+        appendPoint(sb, tip);
+      lines.add(sb.toString());
+    }
+    for (ManipulativeEvent e : frameEvents) {
+      lines.add(String.format(Locale.US, "%s %s %.2f %.2f", EVENT, e.type,
+          e.posImage.x, e.posImage.y));
+    }
+    frameEvents.clear();
+    for (DiecticEvent de : framePointing) {
+      StringBuilder sb = new StringBuilder(POINTING);
+      for (Point3D p : de.pointingLocationsI())
+        appendPoint(sb, p.getX(), p.getY(), p.getZ());
+      lines.add(sb.toString());
+    }
+    framePointing.clear();
+  }
+
+  public List<String> lines() { return lines; }
+
+  public void write(PrintWriter pw) {
+    for (String line : lines)
+      pw.println(line);
+    pw.flush();
+  }
+
+  @Override
+  public void fingerPressed(List<ManipulativeEvent> feList) {
+    frameEvents.addAll(feList);
+  }
+
+  @Override
+  public void fingerPointed(DiecticEvent de) {
+    framePointing.add(de);
+  }
+
+  private static void appendPoint(StringBuilder sb, Point3f p) {
+    appendPoint(sb, p.x, p.y, p.z);
+  }
+
+  private static void appendPoint(StringBuilder sb, float x, float y,
+                                  float z) {
+    sb.append(String.format(Locale.US, " %.2f %.2f %.2f", x, y, z));
+  }
+
+  private static boolean lineEquals(String expected, String actual,
+                                    Tolerance tolerance) {
+    String[] e = expected.split(" ");
+    String[] a = actual.split(" ");
+    if (e.length != a.length)
+      return false;
+    // Integer fields have no tolerance.
+    float tol = 0;
+    // Whether the numbers are image points with their depth, and the index
+    // of the current number among them.
+    boolean imagePoints = false;
+    int index = 0;
+    for (int i = 0; i < e.length; i++) {
+      if (!isNumber(e[i])) {
+        if (!e[i].equals(a[i]))
+          return false;
+        imagePoints = e[i].equals(TIPS) || e[i].equals(POINTING);
+        index = 0;
+        if (e[i].equals(HAND))
+          tol = tolerance.worldMillimeters;
+        else if (e[0].equals(EVENT))
+          tol = tolerance.imagePixels;
+        else
+          tol = 0;
+        continue;
+      }
+      if (imagePoints) {
+        tol = index++ % 3 == 2 ? tolerance.depthMillimeters :
+                                 tolerance.imagePixels;
+      }
+      if (!isNumber(a[i]) ||
+          Math.abs(Float.parseFloat(e[i]) - Float.parseFloat(a[i])) > tol)
+        return false;
+    }
+    return true;
+  }
+
+  private static boolean isNumber(String token) {
+    char c = token.charAt(0);
+    return c == '-' || (c >= '0' && c <= '9');
+  }
+}
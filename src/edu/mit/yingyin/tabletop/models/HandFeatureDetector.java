@@ -25,6 +25,8 @@ import edu.mit.yingyin.tabletop.models.ProcessPacket.ForelimbFeatures;
 import edu.mit.yingyin.tabletop.models.ProcessPacket.HandFeatures;
 import edu.mit.yingyin.util.CvUtil;
 import edu.mit.yingyin.util.Geometry;
+import edu.mit.yingyin.util.Metrics;
+import edu.mit.yingyin.util.Tracer;
 
 /**
  * Detects hand pose features.
@@ -33,6 +35,13 @@ import edu.mit.yingyin.util.Geometry;
  * 
  */
 public class HandFeatureDetector {
+  private static final String METRICS = 
+      HandFeatureDetector.class.getSimpleName();
+  private static final Metrics.Counter HANDS = Metrics.counter(METRICS,
+      "hands_total", "Hand regions aligned with PCA");
+  private static final Metrics.Counter PCA_POINTS_TOTAL = Metrics.counter(
+      METRICS, "pca_points_total", "Points used in PCA over all hands");
+
   /**
    * Dimension of the hand point cloud.
    */
@@ -41,22 +50,33 @@ public class HandFeatureDetector {
    * Depth image width and height.
    */
   private final int width;
-  private final OpenNIDevice openni;
-  private final CvMat mean = CvMat.create(1, DIM, CV_32FC1);
+  private final IFrameSource openni;
+  private final CvMat mean = CvUtil.createMat(1, DIM, CV_32FC1);
   
   /**
    * Eigenvalues with decreasing magnitude.
    */
-  private final CvMat eigenvals = CvMat.create(1, DIM, CV_32FC1);
+  private final CvMat eigenvals = CvUtil.createMat(1, DIM, CV_32FC1);
   /**
    * Each row is an eigenvector.
    */
-  private final CvMat eigenvecs = CvMat.create(DIM, DIM, CV_32FC1);
-  private final CvMat rotMat = CvMat.create(DIM, DIM, CV_32FC1);
+  private final CvMat eigenvecs = CvUtil.createMat(DIM, DIM, CV_32FC1);
+  private final CvMat rotMat = CvUtil.createMat(DIM, DIM, CV_32FC1);
+  private Metrics.Gauge pcaPointsGauge;
 
-  public HandFeatureDetector(int width, int height, OpenNIDevice openni) {
+  public HandFeatureDetector(int width, int height, IFrameSource openni) {
     this.width = width;
     this.openni = openni;
+    publishMetrics(METRICS);
+  }
+
+  /**
+   * Publishes the gauges of the last hand under <code>component</code>.
+   * @param component
+   */
+  public void publishMetrics(String component) {
+    pcaPointsGauge = Metrics.gauge(component, "pca_points",
+        "Points used in PCA for the last hand");
   }
 
   /**
@@ -72,6 +92,9 @@ public class HandFeatureDetector {
                                            packet.morphedImage); 
         if (worldPoints.length < DIM)
           continue;
+        HANDS.inc();
+        PCA_POINTS_TOTAL.add(worldPoints.length);
+        pcaPointsGauge.set(worldPoints.length);
         HandFeatures hf = new HandFeatures();
         // Finds hand pose cloud points in physical coordinates.
         alignPCA(worldPoints, hf);
@@ -114,7 +137,12 @@ public class HandFeatureDetector {
       }
     Point3D[] projective = new Point3D[points.size()];
     points.toArray(projective);
-    return openni.convertProjectiveToRealWorld(projective);
+    Tracer.begin("convertProjectiveToRealWorld");
+    try {
+      return openni.convertProjectiveToRealWorld(projective);
+    } finally {
+      Tracer.end("convertProjectiveToRealWorld");
+    }
   }
   
   private Point3D[] toProjective(List<Point3f> points, Point3f center) 
@@ -142,7 +170,7 @@ public class HandFeatureDetector {
   private void alignPCA(Point3D[] worldPoints, HandFeatures hf) {
     int n = worldPoints.length;
     // Row matrix.
-    CvMat worldPointsMat = CvMat.create(n, DIM, CV_32FC1);
+    CvMat worldPointsMat = CvUtil.createMat(n, DIM, CV_32FC1);
     FloatBuffer fb = worldPointsMat.getFloatBuffer();
     fb.rewind();
     for (int i = 0; i < n; i++) {
@@ -151,7 +179,13 @@ public class HandFeatureDetector {
       fb.put(p.getY());
       fb.put(p.getZ());
     }
-    cvCalcPCA(worldPointsMat, mean, eigenvals, eigenvecs, CV_PCA_DATA_AS_ROW);
+    Tracer.begin("cvCalcPCA");
+    try {
+      cvCalcPCA(worldPointsMat, mean, eigenvals, eigenvecs,
+                CV_PCA_DATA_AS_ROW);
+    } finally {
+      Tracer.end("cvCalcPCA");
+    }
     fb.rewind();
     // Centers the points.
     for (int i = 0; i < n; i++) {
@@ -163,7 +197,7 @@ public class HandFeatureDetector {
     // Rotation matrix is inverse of the PCA space coordinate axes.
     cvT(eigenvecs, rotMat);
 
-    CvMat aligned = CvMat.create(n, DIM, CV_32FC1);
+    CvMat aligned = CvUtil.createMat(n, DIM, CV_32FC1);
     /**
      * aligned = 1 * op(worldPointsMat)* op(eigenvecs) + 0 * op(null) op() = 0
      * means no transposition.
@@ -173,6 +207,7 @@ public class HandFeatureDetector {
     worldPointsMat.release();
     
     hf.pointCloud = CvUtil.cvMatToLinkedList(aligned);
+    aligned.release();
     hf.centroidWorld = new Point3f((float) mean.get(0), (float) mean.get(1), 
                                    (float) mean.get(2));
     hf.rot = Geometry.rotMatrixToEuler(rotMat);
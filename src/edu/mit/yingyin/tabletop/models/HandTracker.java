@@ -13,6 +13,9 @@ import org.OpenNI.StatusException;
 import edu.mit.yingyin.calib.CalibModel;
 import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent.FingerEventType;
 import edu.mit.yingyin.tabletop.models.HandTrackingEngine.IHandEventListener;
+import edu.mit.yingyin.tabletop.models.ProcessPacket.Stage;
+import edu.mit.yingyin.util.Metrics;
+import edu.mit.yingyin.util.Tracer;
 
 /**
  * <code>HandTracker</code> tracks hand events based on estimated hand model 
@@ -30,6 +33,14 @@ public class HandTracker {
     public enum FingerEventType {PRESSED, RELEASED};
     
     public int frameID;
+    /**
+     * Sensor timestamp of the depth frame in microseconds.
+     */
+    public long timestamp;
+    /**
+     * Monotonic time in nanoseconds when the depth frame became available.
+     */
+    public long frameReadyNanos;
     /**
      * Position on depth image and position on display.
      */
@@ -54,6 +65,7 @@ public class HandTracker {
   public static class DiecticEvent {
     private Point3D[] pointingLocationsI, pointingLocationsW;
     private Point2f[] pointingLocationsD;
+    private long timestamp, frameReadyNanos;
     
     /**
      * 
@@ -64,11 +76,36 @@ public class HandTracker {
     public DiecticEvent(Point3D[] imagePoints, 
                         Point3D[] worldPoints,
                         Point2f[] displayPoints) {
+      this(imagePoints, worldPoints, displayPoints, 0, 0);
+    }
+    
+    /**
+     * @param timestamp sensor timestamp of the depth frame in microseconds.
+     * @param frameReadyNanos monotonic time in nanoseconds when the depth 
+     *    frame became available.
+     */
+    public DiecticEvent(Point3D[] imagePoints, 
+                        Point3D[] worldPoints,
+                        Point2f[] displayPoints,
+                        long timestamp, long frameReadyNanos) {
       pointingLocationsI = imagePoints;
       pointingLocationsW = worldPoints;
       pointingLocationsD = displayPoints;
+      this.timestamp = timestamp;
+      this.frameReadyNanos = frameReadyNanos;
     }
     
+    /**
+     * @return sensor timestamp of the depth frame in microseconds.
+     */
+    public long timestamp() { return timestamp; }
+    
+    /**
+     * @return monotonic time in nanoseconds when the depth frame became 
+     *    available.
+     */
+    public long frameReadyNanos() { return frameReadyNanos; }
+    
     public Point3D[] pointingLocationsI() {
       return copyArray(pointingLocationsI);
     }
@@ -97,7 +134,15 @@ public class HandTracker {
 
   private static final Logger LOGGER = Logger.getLogger(
       HandTracker.class.getName());
-  private static final int DEBOUNCE_COUNT = 3;
+  private static final String METRICS = HandTracker.class.getSimpleName();
+  private static final Metrics.Counter FRAMES = Metrics.counter(METRICS,
+      "tracked_frames_total", "Frames passed to the tracker");
+  private static final Metrics.Counter DROPPED_FRAMES = Metrics.counter(
+      METRICS, "dropped_frames_total", "Depth frames skipped between updates");
+  private static final Metrics.Counter FINGER_EVENTS = Metrics.counter(
+      METRICS, "finger_events_total", "Finger events delivered");
+  private static final Metrics.Counter POINTING_EVENTS = Metrics.counter(
+      METRICS, "pointing_events_total", "Pointing events delivered");
 
   private List<IHandEventListener> listeners = 
       new ArrayList<IHandEventListener>();
@@ -107,12 +152,40 @@ public class HandTracker {
   /** True if finger is pressed, false otherwise. */
   private boolean pressed = false;
   private CalibModel calibExample;
-  private DiecticGestureHandler dgh = new DiecticGestureHandler();
-  private OpenNIDevice openni;
+  private final DiecticGestureHandler dgh;
+  private final InteractionSurface interactionSurface;
+  private IFrameSource openni;
+  private int lastFrameID = -1;
+  private final int debounceCount;
+  /**
+   * x and y of the points converted to the display coordinate in one batch.
+   */
+  private float[] points = new float[32];
+  /**
+   * x, y and depth of the fingertips tested for contact, and the results.
+   */
+  private float[] tips = new float[48];
+  private boolean[] tipsInContact = new boolean[16];
+  /**
+   * Fingertips of the frame in <code>filterPressed</code>, reused between
+   * frames.
+   */
+  private final List<Point3f> fingertips = new ArrayList<Point3f>();
   
-  public HandTracker(CalibModel calibExample, OpenNIDevice openni) {
+  /**
+   * @param calibExample
+   * @param openni
+   * @param params
+   * @param interactionSurface surface of the same sensor, which may be 
+   *    initialized later.
+   */
+  public HandTracker(CalibModel calibExample, IFrameSource openni,
+      TrackingParameters params, InteractionSurface interactionSurface) {
     this.calibExample = calibExample;
     this.openni = openni;
+    this.interactionSurface = interactionSurface;
+    debounceCount = params.debounceCount;
+    dgh = new DiecticGestureHandler(interactionSurface);
   }
   
   /**
@@ -121,11 +194,75 @@ public class HandTracker {
    * @param frameID frame ID for the current update.
    */
   public void update(List<Forelimb> forelimbs, int frameID) {
-    List<ManipulativeEvent> fingerEventList = noFilter(forelimbs, frameID);
-    if (fingerEventList != null && !fingerEventList.isEmpty()) {
-      for (IHandEventListener l : listeners) 
-        l.fingerPressed(fingerEventList);
+    update(forelimbs, frameID, 0, 0, null);
+  }
+  
+  /**
+   * Updates forelimbs information from a processed packet and generates 
+   * events stamped with the capture times of the packet. Also marks the 
+   * <code>TRACKED</code> and <code>DELIVERED</code> stages of the packet.
+   * @param packet
+   */
+  public void update(ProcessPacket packet) {
+    update(packet.forelimbs, packet.depthFrameID, packet.depthTimestamp, 
+           packet.stageNanos(Stage.FRAME_READY), packet);
+  }
+  
+  /**
+   * @param packet if not null, the stage times are marked in the packet.
+   */
+  private void update(List<Forelimb> forelimbs, int frameID, long timestamp,
+      long frameReadyNanos, ProcessPacket packet) {
+    if (Metrics.ENABLED)
+      countFrame(frameID);
+    Tracer.begin("track");
+    List<ManipulativeEvent> fingerEventList;
+    DiecticEvent de;
+    try {
+      fingerEventList = noFilter(forelimbs, frameID);
+      for (ManipulativeEvent fe : fingerEventList) {
+        fe.timestamp = timestamp;
+        fe.frameReadyNanos = frameReadyNanos;
+      }
+      de = pointingEvent(forelimbs, timestamp, frameReadyNanos);
+      if (packet != null)
+        packet.markStage(Stage.TRACKED);
+    } finally {
+      Tracer.end("track");
     }
+    
+    if (!fingerEventList.isEmpty()) {
+      for (IHandEventListener l : listeners) {
+        Tracer.begin("fingerPressed");
+        try {
+          l.fingerPressed(fingerEventList);
+        } finally {
+          Tracer.end("fingerPressed");
+        }
+      }
+      FINGER_EVENTS.add(fingerEventList.size());
+    }
+    if (de != null) {
+      for (IHandEventListener l : listeners) {
+        Tracer.begin("fingerPointed");
+        try {
+          l.fingerPointed(de);
+        } finally {
+          Tracer.end("fingerPointed");
+        }
+      }
+      POINTING_EVENTS.inc();
+    }
+    if (packet != null)
+      packet.markStage(Stage.DELIVERED);
+  }
+  
+  /**
+   * @return the event of the locations pointed at by the forelimbs, or null
+   *    if they cannot be converted.
+   */
+  private DiecticEvent pointingEvent(List<Forelimb> forelimbs, long timestamp,
+                                     long frameReadyNanos) {
     try {
       List<Point3D> intersections = dgh.update(forelimbs);
       int size = intersections.size();
@@ -133,21 +270,34 @@ public class HandTracker {
       intersections.toArray(intersectionsW);
       Point3D[] intersectionsI = openni.convertRealWorldToProjective(
           intersectionsW);
-      Point2f[] intersectionsD = new Point2f[size];
+      float[] points = pointBuffer(size);
       for (int i = 0; i < size; i++) {
-        Point3D imageP = intersectionsI[i];
-        intersectionsD[i] = calibExample.imageToDisplayCoords(imageP.getX(), 
-            imageP.getY());
+        points[2 * i] = intersectionsI[i].getX();
+        points[2 * i + 1] = intersectionsI[i].getY();
       }
-      DiecticEvent de = new DiecticEvent(intersectionsI, intersectionsW, 
-          intersectionsD);
-      for (IHandEventListener l : listeners)
-        l.fingerPointed(de);
+      calibExample.imageToDisplayCoords(points, points, size);
+      Point2f[] intersectionsD = new Point2f[size];
+      for (int i = 0; i < size; i++)
+        intersectionsD[i] = new Point2f(points[2 * i], points[2 * i + 1]);
+      return new DiecticEvent(intersectionsI, intersectionsW, intersectionsD,
+                              timestamp, frameReadyNanos);
     } catch (StatusException e) {
       LOGGER.severe(e.getMessage());
+      return null;
     }
   }
   
+  /**
+   * Counts the frame and the frames dropped since the last update. A frame ID 
+   * not larger than the last one means the source restarted.
+   */
+  private void countFrame(int frameID) {
+    FRAMES.inc();
+    if (lastFrameID >= 0 && frameID > lastFrameID + 1)
+      DROPPED_FRAMES.add(frameID - lastFrameID - 1);
+    lastFrameID = frameID;
+  }
+  
   public void addListener(IHandEventListener l) {
     listeners.add(l);
   }
@@ -168,53 +318,97 @@ public class HandTracker {
       for (Point3f tip : forelimb.fingertipsI())
         fingerEventList.add(createFingerEvent(tip, frameID, 
                                               FingerEventType.PRESSED));
+    setDisplayPositions(fingerEventList);
     return fingerEventList;
   }
 
   /**
-   * Filters out finger pressed events.
+   * Filters out finger pressed events. All the fingertips of the frame are
+   * tested for contact in one batch. <code>update</code> uses
+   * <code>noFilter</code> instead, so this is only used when called directly.
    * @param forelimbs
    * @param frameID
    * @return
    */
   public List<ManipulativeEvent> filterPressed(List<Forelimb> forelimbs, 
                                          int frameID) {
-    InteractionSurface table = InteractionSurface.instance();
     List<ManipulativeEvent> fingerEventList = new ArrayList<ManipulativeEvent>();
     
-    if (table == null) 
+    if (!interactionSurface.isInitialized()) 
       return fingerEventList;
     
-    for (Forelimb forelimb : forelimbs) {
-      for (Point3f tip : forelimb.fingertipsI()) {
-        float tipDepth = tip.z + Hand.FINGER_THICKNESS; 
-        boolean inContact = table.isInContact((int)tip.x, (int)tip.y, tipDepth);
-        if (inContact) {
-          pressedCounter++;
-          releasedCounter = 0;
-        } else {
-          releasedCounter++;
-          pressedCounter = 0;
-        }
-        if (pressedCounter == DEBOUNCE_COUNT && !pressed) {
-          pressed = true;
-          fingerEventList.add(createFingerEvent(tip, frameID, 
-                                                FingerEventType.PRESSED));
-        } else if (releasedCounter == DEBOUNCE_COUNT && pressed) {
-          pressed = false;
-          fingerEventList.add(createFingerEvent(tip, frameID, 
-                                                FingerEventType.RELEASED));
-        }
+    fingertips.clear();
+    for (Forelimb forelimb : forelimbs)
+      fingertips.addAll(forelimb.fingertipsI());
+    int numTips = fingertips.size();
+    if (tipsInContact.length < numTips) {
+      tips = new float[3 * numTips];
+      tipsInContact = new boolean[numTips];
+    }
+    for (int i = 0; i < numTips; i++) {
+      Point3f tip = fingertips.get(i);
+      tips[3 * i] = tip.x;
+      tips[3 * i + 1] = tip.y;
+      tips[3 * i + 2] = tip.z + Hand.FINGER_THICKNESS;
+    }
+    interactionSurface.isInContact(tips, numTips, tipsInContact);
+    
+    for (int i = 0; i < numTips; i++) {
+      Point3f tip = fingertips.get(i);
+      if (tipsInContact[i]) {
+        pressedCounter++;
+        releasedCounter = 0;
+      } else {
+        releasedCounter++;
+        pressedCounter = 0;
+      }
+      if (pressedCounter == debounceCount && !pressed) {
+        pressed = true;
+        fingerEventList.add(createFingerEvent(tip, frameID, 
+                                              FingerEventType.PRESSED));
+      } else if (releasedCounter == debounceCount && pressed) {
+        pressed = false;
+        fingerEventList.add(createFingerEvent(tip, frameID, 
+                                              FingerEventType.RELEASED));
       }
     }
+    setDisplayPositions(fingerEventList);
     return fingerEventList;
   }
   
+  /**
+   * Creates an event without the display position, which is set for all the
+   * events of a frame by <code>setDisplayPositions</code>.
+   */
   private ManipulativeEvent createFingerEvent(Point3f posImage, int frameID, 
       FingerEventType type) {
-    return new ManipulativeEvent(posImage, 
-        calibExample.imageToDisplayCoords(posImage.x, posImage.y),
-        frameID, type);
+    return new ManipulativeEvent(posImage, null, frameID, type);
+  }
+  
+  /**
+   * Converts the image positions of the events to the display coordinate in
+   * one batch.
+   */
+  private void setDisplayPositions(List<ManipulativeEvent> events) {
+    int size = events.size();
+    float[] points = pointBuffer(size);
+    for (int i = 0; i < size; i++) {
+      Point3f p = events.get(i).posImage;
+      points[2 * i] = p.x;
+      points[2 * i + 1] = p.y;
+    }
+    calibExample.imageToDisplayCoords(points, points, size);
+    for (int i = 0; i < size; i++)
+      events.get(i).posDisplay = new Point2f(points[2 * i], points[2 * i + 1]);
+  }
+  
+  /**
+   * @return the point buffer, grown to hold at least <code>size</code> points.
+   */
+  private float[] pointBuffer(int size) {
+    if (points.length < 2 * size)
+      points = new float[Math.max(2 * size, 2 * points.length)];
+    return points;
   }
   
 }
@@ -1,13 +1,19 @@
 package edu.mit.yingyin.tabletop.models;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import org.OpenNI.GeneralException;
+import org.OpenNI.StatusException;
 
 import edu.mit.yingyin.calib.CalibModel;
 import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
 import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.ProcessPacket.Stage;
+import edu.mit.yingyin.util.Metrics;
+import edu.mit.yingyin.util.MetricsHttpServer;
+import edu.mit.yingyin.util.Tracer;
 
 /**
  * Main interface to the hand tracking back-end module that tracks the hand
@@ -31,12 +37,22 @@ public class HandTrackingEngine {
 
   private static Logger logger =
       Logger.getLogger(HandTrackingEngine.class.getName());
+  private static final AtomicInteger INSTANCES = new AtomicInteger();
 
-  private final OpenNIDevice openni;
+  private final IFrameSource openni;
   private int depthWidth, depthHeight;
   private int prevDepthFrameID = -1, currentDepthFrameID = -1;
   private HandTracker tracker;
   private ForelimbFeatureDetector featureDetector;
+  private final InteractionSurface interactionSurface;
+  private final LatencyMonitor latencyMonitor = new LatencyMonitor();
+  /**
+   * Component of the metrics of this engine, e.g. one per sensor or
+   * recording.
+   */
+  private final String metricsComponent =
+      HandTrackingEngine.class.getSimpleName() + "-" +
+      INSTANCES.getAndIncrement();
   
   private int depthFrameIDOffset;
 
@@ -49,17 +65,49 @@ public class HandTrackingEngine {
    */
   public HandTrackingEngine(String openniConfigFile, String calibrationFile)
       throws GeneralException {
-
-    openni = new OpenNIDevice(openniConfigFile);
+    this(new OpenNIDevice(openniConfigFile), new CalibModel(calibrationFile));
+  }
+  
+  /**
+   * Creates a new <code>HandTrackingEngine</code> that tracks hands in the 
+   * frames from <code>frameSource</code>.
+   * 
+   * @param frameSource released when the engine is released.
+   * @param calibModel
+   */
+  public HandTrackingEngine(IFrameSource frameSource, CalibModel calibModel) {
+    this(frameSource, calibModel, new TrackingParameters());
+  }
+  
+  /**
+   * Creates a new <code>HandTrackingEngine</code> with the tracking 
+   * parameters <code>params</code>.
+   * 
+   * @param frameSource released when the engine is released.
+   * @param calibModel
+   * @param params not copied, and should not be changed after the engine is
+   *    created.
+   */
+  public HandTrackingEngine(IFrameSource frameSource, CalibModel calibModel,
+                            TrackingParameters params) {
+    openni = frameSource;
 
     depthWidth = openni.getDepthWidth();
     depthHeight = openni.getDepthHeight();
-    featureDetector =
-        new ForelimbFeatureDetector(depthWidth, depthHeight, openni);
+    interactionSurface = new InteractionSurface(openni);
+    featureDetector = new ForelimbFeatureDetector(depthWidth, depthHeight, 
+        openni, params, interactionSurface);
 
-    tracker = new HandTracker(new CalibModel(calibrationFile), openni);
+    tracker = new HandTracker(calibModel, openni, params, interactionSurface);
     
     this.depthFrameIDOffset = 0;
+    
+    if (Metrics.ENABLED) {
+      // Each engine publishes its own latency and gauges of the last frame.
+      latencyMonitor.publish(metricsComponent);
+      featureDetector.publishMetrics(metricsComponent);
+      MetricsHttpServer.startFromProperties();
+    }
   }
   
   public void resetDepthFrameID() {
@@ -80,8 +128,19 @@ public class HandTrackingEngine {
   }
 
   public void release() {
+    logger.info(latencyMonitor.report());
+    // Stops a surface refresh before the source it converts with.
+    interactionSurface.release();
     openni.release();
     featureDetector.release();
+    Metrics.unregister(metricsComponent);
+  }
+  
+  /**
+   * @return the latency statistics of all the frames processed so far.
+   */
+  public LatencyMonitor latencyMonitor() {
+    return latencyMonitor;
   }
 
   public void addHandEventListener(IHandEventListener l) {
@@ -108,30 +167,64 @@ public class HandTrackingEngine {
    *         of the returned object when finished using the object.
    */
   public ProcessPacket step() {
-    ProcessPacket packet = null;
+    // New packet for each frame.
+    ProcessPacket packet = new ProcessPacket(depthWidth, depthHeight, openni);
+    step(packet);
+    return packet;
+  }
+  
+  /**
+   * Steps one frame reusing the buffers of <code>packet</code>. The previous
+   * content of the packet is cleared. Exits the program if the frame fails.
+   * 
+   * @param packet a packet created with the same size as the frames.
+   */
+  public void step(ProcessPacket packet) {
     try {
-      openni.waitDepthUpdateAll();
-      // New packet for each frame.
-      packet = new ProcessPacket(depthWidth, depthHeight, openni);
-      openni.getDepthArray(packet.depthRawData);
-      prevDepthFrameID = currentDepthFrameID;
-      packet.depthFrameID = this.getDepthFrameID();
-      //currentDepthFrameID = packet.depthFrameID;
-
-      featureDetector.detect(packet);
-
-      if (interactionSurfaceInitialized())
-        tracker.update(packet.forelimbs, packet.depthFrameID);
+      stepFrame(packet);
     } catch (Exception e) {
       logger.severe(e.getMessage());
       e.printStackTrace();
       System.exit(-1);
     }
-    return packet;
+  }
+
+  /**
+   * Steps one frame like <code>step</code>, but leaves a failure to the
+   * caller, e.g. to go on with other recordings.
+   * 
+   * @param packet a packet created with the same size as the frames.
+   * @throws StatusException if the frame cannot be read or converted.
+   */
+  public void stepFrame(ProcessPacket packet) throws StatusException {
+    openni.waitDepthUpdateAll();
+    long readyNanos = System.nanoTime();
+    packet.resetStages();
+    packet.markStage(Stage.FRAME_READY, readyNanos);
+    openni.getDepthArray(packet.depthRawData);
+    prevDepthFrameID = currentDepthFrameID;
+    packet.depthFrameID = this.getDepthFrameID();
+    packet.depthTimestamp = openni.getDepthTimestamp();
+    packet.markStage(Stage.ACQUIRED);
+    //currentDepthFrameID = packet.depthFrameID;
+
+    Tracer.begin("frame", packet.depthFrameID);
+    try {
+      featureDetector.detect(packet);
+
+      // The packets of the frames that learn the background are empty.
+      if (interactionSurfaceInitialized() && !isCalibratingBackground())
+        tracker.update(packet);
+    } finally {
+      Tracer.end("frame");
+    }
+    latencyMonitor.record(packet);
   }
   
   /**
-   * Resets the background calibration of the tabletop.
+   * Resets the background calibration of the tabletop. The hands are not
+   * tracked until the background is learned again, but the surface stays
+   * initialized with the old background until the new one is computed.
    */
   public void recalibrateBackground() {
     this.resetDepthFrameID();
@@ -147,10 +240,31 @@ public class HandTrackingEngine {
   }
 
   public boolean interactionSurfaceInitialized() {
-    return InteractionSurface.instanceInitialized();
+    return interactionSurface.isInitialized();
   }
 
+  /**
+   * @return the surface of this engine's sensor, which is initialized after
+   *    the background is learned.
+   */
   public InteractionSurface interactionSurface() {
-    return InteractionSurface.instance();
+    return interactionSurface;
+  }
+
+  /**
+   * @return the region of the table the frames are processed in, or null
+   *    before the background is learned.
+   */
+  public TableRegion tableRegion() {
+    return featureDetector.tableRegion();
+  }
+
+  /**
+   * Processes the frames only in <code>region</code> instead of the region
+   * found from the background.
+   * @param region
+   */
+  public void setTableRegion(TableRegion region) {
+    featureDetector.setTableRegion(region);
   }
 }
\ No newline at end of file
@@ -12,6 +12,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 
 import edu.mit.yingyin.gui.ImageComponent;
 import edu.mit.yingyin.image.ImageConvertUtils;
+import edu.mit.yingyin.util.RowBandExecutor;
 
 /**
  * An {@code ImageComponent} for displaying an image according to histogram
@@ -37,6 +38,21 @@ public class HistogramImageComponent extends ImageComponent {
   private final ConcurrentLinkedQueue<Label> labels = 
       new ConcurrentLinkedQueue<Label>();
   private int[] imageValue;
+  /**
+   * Rows of the band being converted on each thread, reused across frames.
+   */
+  private final ThreadLocal<float[]> floatRows = new ThreadLocal<float[]>() {
+    @Override
+    protected float[] initialValue() {
+      return new float[width];
+    }
+  };
+  private final ThreadLocal<byte[]> byteRows = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[width];
+    }
+  };
   
   /**
    * 
@@ -63,33 +79,63 @@ public class HistogramImageComponent extends ImageComponent {
     }
     imageValue = image;
     ImageConvertUtils.arrayToHistogram(image, histogram);
-    ImageConvertUtils.histogramToBufferedImageUShort(image, histogram, img);
+    final int[] values = image;
+    RowBandExecutor.shared().run(width, height, new RowBandExecutor.Body() {
+      @Override
+      public int run(int startRow, int endRow) {
+        ImageConvertUtils.histogramToBufferedImageUShort(values, histogram,
+            img, startRow * width, endRow * width);
+        return 0;
+      }
+    });
     labels.clear();
     repaint();
   }
   
-  public void setImage(FloatBuffer image, int widthStep) {
+  public void setImage(final FloatBuffer image, final int widthStep) {
     if (image.capacity() < height * width) {
       throw new IllegalArgumentException("The size of input image is samller " +
           "than the size of the image to be displayed.");
     }
-    for (int y = 0; y < height; y++) 
-      for (int x = 0; x < width; x++) {
-        imageValue[y * width + x] = (int) image.get(y * widthStep + x);
+    final int[] values = imageValue;
+    RowBandExecutor.shared().run(width, height, new RowBandExecutor.Body() {
+      @Override
+      public int run(int startRow, int endRow) {
+        FloatBuffer rows = image.duplicate();
+        float[] row = floatRows.get();
+        for (int y = startRow; y < endRow; y++) {
+          rows.position(y * widthStep);
+          rows.get(row);
+          for (int x = 0; x < width; x++)
+            values[y * width + x] = (int) row[x];
+        }
+        return 0;
       }
-    setImage(imageValue);
+    });
+    setImage(values);
   }
   
-  public void setImage(ByteBuffer image, int widthStep) {
+  public void setImage(final ByteBuffer image, final int widthStep) {
     if (image.capacity() < height * width) {
       throw new IllegalArgumentException("The size of input image is samller " +
           "than the size of the image to be displayed.");
     }
-    for (int y = 0; y < height; y++) 
-      for (int x = 0; x < width; x++) {
-        imageValue[y * width + x] = image.get(y * widthStep + x) & 0xff;
+    final int[] values = imageValue;
+    RowBandExecutor.shared().run(width, height, new RowBandExecutor.Body() {
+      @Override
+      public int run(int startRow, int endRow) {
+        ByteBuffer rows = image.duplicate();
+        byte[] row = byteRows.get();
+        for (int y = startRow; y < endRow; y++) {
+          rows.position(y * widthStep);
+          rows.get(row);
+          for (int x = 0; x < width; x++)
+            values[y * width + x] = row[x] & 0xff;
+        }
+        return 0;
       }
-    setImage(imageValue);
+    });
+    setImage(values);
   }
   
   public void addLabel(Point point, Color color) { 
@@ -0,0 +1,62 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.nio.ByteBuffer;
+
+import org.OpenNI.GeneralException;
+import org.OpenNI.Point3D;
+import org.OpenNI.StatusException;
+
+/**
+ * A source of depth frames and the camera model to convert between projective
+ * and real world coordinates. Implemented by <code>OpenNIDevice</code> for the
+ * sensor and recordings, and by sources that do not need OpenNI.
+ *
+ * Real world coordinates obey the right-hand rule, i.e. z values are negative
+ * in front of the camera.
+ *
+ * @author yingyin
+ *
+ */
+public interface IFrameSource {
+  public int getDepthWidth();
+
+  public int getDepthHeight();
+
+  /**
+   * Waits for the next depth frame and makes it the current frame.
+   * @throws StatusException
+   */
+  public void waitDepthUpdateAll() throws StatusException;
+
+  /**
+   * Copies the current depth frame into <code>depthArray</code>.
+   * @param depthArray array of size width * height.
+   * @throws StatusException
+   */
+  public void getDepthArray(int[] depthArray) throws StatusException;
+
+  public int getDepthFrameID();
+
+  /**
+   * @return timestamp of the current depth frame in microseconds, or 0 if not
+   *    available.
+   */
+  public long getDepthTimestamp();
+
+  /**
+   * @return the current RGB image, or null if the source has no image.
+   * @throws GeneralException
+   */
+  public ByteBuffer getImageBuffer() throws GeneralException;
+
+  public Point3D[] convertProjectiveToRealWorld(Point3D[] points)
+      throws StatusException;
+
+  public Point3D[] convertRealWorldToProjective(Point3D[] points)
+      throws StatusException;
+
+  public Point3D convertRealWorldToProjective(Point3D p)
+      throws StatusException;
+
+  public void release();
+}
@@ -1,256 +1,386 @@
 package edu.mit.yingyin.tabletop.models;
 
-import static com.googlecode.javacv.cpp.opencv_core.CV_32FC3;
-import static com.googlecode.javacv.cpp.opencv_imgproc.CV_DIST_L2;
-import static com.googlecode.javacv.cpp.opencv_imgproc.cvFitLine;
-
 import java.nio.FloatBuffer;
-import java.util.Arrays;
-import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.vecmath.Point3f;
 import javax.vecmath.Vector3f;
 
-import org.OpenNI.Point3D;
 import org.OpenNI.StatusException;
 
-import com.googlecode.javacv.cpp.opencv_core.CvMat;
-
-import edu.mit.yingyin.util.Geometry;
+import edu.mit.yingyin.tabletop.models.PlaneEstimator.Plane;
 import edu.mit.yingyin.util.Option;
 import edu.mit.yingyin.util.Option.None;
 import edu.mit.yingyin.util.Option.Some;
 
 /**
  * Model of a tabletop.
- * 
+ *
+ * A point is in contact with the surface if its depth is within a band around
+ * the average depth of the table at its pixel. The bands are computed from the
+ * table statistics when the surface is initialized and kept in an array owned
+ * by the surface, so the statistics may be released or recalibrated after
+ * initialization.
+ *
+ * If a frame source is given, the world coordinates of every pixel of the
+ * table are kept in a {@link SurfaceMap}, from which the plane of the table is
+ * estimated by a {@link PlaneEstimator} and the height of a pixel above the
+ * surface is looked up.
+ *
+ * The surface can be refreshed from a new background on a background thread,
+ * e.g. after the table is bumped. The old model is used until the new one is
+ * complete, and then both are swapped at once. Initializing from a learned
+ * background computes the contact bands right away and the geometry on the
+ * refresh thread, so the frame thread does not stall on the conversion and
+ * the plane estimation.
+ *
  * @author yingyin
- * 
+ *
  */
 public class InteractionSurface {
-  private static final Logger logger = 
+  private static final Logger logger =
       Logger.getLogger(InteractionSurface.class.getName());
   private static final int DIFF_SCALE = 5;
-  private static InteractionSurface instance;
-  
   /**
-   * Average depth and depth difference in mm.
+   * Time to wait for a refresh to stop on release, which cannot interrupt a
+   * conversion in progress.
    */
-  private FloatBuffer avg, diff;
-  private int avgWidthStep, diffWidthStep, width, height;
-  private boolean initialized = false;
-  
-  private Vector3f surfaceNormal;
-  
+  private static final long RELEASE_TIMEOUT_MS = 5000;
+
   /**
-   * Center of the surface in world coordinates.
+   * Everything computed from one background, replaced as a whole.
    */
-  private Point3f center;
-  private OpenNIDevice openni;
-  
-  public static InteractionSurface initInstance(FloatBuffer avg, 
-      FloatBuffer diff, int avgWidthStep, int diffWidthStep, int width, 
-      int height, OpenNIDevice openni) throws StatusException {
-    if (!instanceInitialized()) {
-      instance = new InteractionSurface(avg, diff, avgWidthStep, diffWidthStep,
-          width, height, openni);
-    } else {
-      logger.warning("Instance has already been initialized, and can only be" +
-      		"initialized once.");
-    }
-    return instance;
-  }
-  
-  public static InteractionSurface initInstance(Background background, 
-      OpenNIDevice openni) throws StatusException {
-    if (!instanceInitialized()) {
-      instance = new InteractionSurface(background, openni);
-    } else {
-      logger.warning("Instance has already been initialized, and can only be" +
-          "initialized once.");
+  private static class Model {
+    final int width, height;
+    /**
+     * Exclusive lower and upper bound of the depth in mm of a point in
+     * contact with the surface, interleaved for each pixel in row-major order.
+     */
+    final float[] contactBand;
+    /**
+     * Null if there is no frame source.
+     */
+    final SurfaceMap map;
+    /**
+     * Null if there is no frame source or the plane cannot be estimated.
+     */
+    final Plane plane;
+
+    Model(int width, int height, float[] contactBand, SurfaceMap map,
+          Plane plane) {
+      this.width = width;
+      this.height = height;
+      this.contactBand = contactBand;
+      this.map = map;
+      this.plane = plane;
     }
-    return instance;
-  }
-  
-  public static void clearInstancve() {
-    instance = null;
   }
-  
-  public static InteractionSurface instance() {
-    if (instance == null) {
-      logger.severe("Instance is not initialized. You need to call " +
-      		"initInstance first.");
-      System.exit(-1);
-    }
-    return instance;
+
+  /**
+   * Null if the surface is not initialized.
+   */
+  private volatile Model model;
+  private IFrameSource openni;
+  private final PlaneEstimator planeEstimator = new PlaneEstimator();
+  private ExecutorService refresher;
+
+  /**
+   * Creates an uninitialized surface, which is not in contact with anything
+   * until it is initialized.
+   *
+   * @param openni used to convert the surface to world coordinates. If null,
+   *    the geometry of the surface is not computed.
+   */
+  public InteractionSurface(IFrameSource openni) {
+    this.openni = openni;
   }
-  
-  public static boolean instanceInitialized() {
-    return instance != null;
+
+  /**
+   * Creates a surface initialized with the table statistics.
+   *
+   * @see #initialize(FloatBuffer, FloatBuffer, int, int, int, int)
+   */
+  public InteractionSurface(FloatBuffer avg, FloatBuffer diff,
+      int avgWidthStep, int diffWidthStep, int width, int height,
+      IFrameSource openni) throws StatusException {
+    this(openni);
+    initialize(avg, diff, avgWidthStep, diffWidthStep, width, height);
   }
-  
+
   /**
    * Initializes the table statistics.
-   * 
-   * @param avg
-   * @param diff
+   *
+   * @param avg average depth in mm. Only read during the initialization.
+   * @param diff average depth difference in mm. Only read during the
+   *    initialization.
    * @param avgWidthStep
    * @param diffWidthStep
-   * @param scale used to scale the depth value.
-   * @throws StatusException 
+   * @param width
+   * @param height
+   * @throws StatusException
    */
-  private InteractionSurface(FloatBuffer avg, FloatBuffer diff, 
-      int avgWidthStep, int diffWidthStep, int width, int height, 
-      OpenNIDevice openni) throws StatusException {
-    this.avg = avg;
-    this.diff = diff;
-    this.avgWidthStep = avgWidthStep;
-    this.diffWidthStep = diffWidthStep;
-    this.width = width;
-    this.height = height;
-    this.openni = openni;
-    computeGeometry();
-    initialized = true;
+  public void initialize(FloatBuffer avg, FloatBuffer diff, int avgWidthStep,
+      int diffWidthStep, int width, int height) throws StatusException {
+    model = createModel(avg, diff, avgWidthStep, diffWidthStep, width, height);
   }
 
-  private InteractionSurface(Background background, OpenNIDevice openni) 
-      throws StatusException {
-    this(background.avgBuffer(), background.diffBuffer(),
-        background.avgBufferWidthStep(), background.diffBufferWidthStep(),
-        background.width(), background.height(), openni);
+  /**
+   * Initializes the table statistics from a learned background. The surface
+   * is initialized with the contact bands when this returns, and its geometry
+   * is computed as in <code>refresh</code>, so the plane is unknown until
+   * then.
+   *
+   * @param background
+   * @return the computation of the geometry, or null if there is no frame
+   *    source.
+   */
+  public Future<Void> initialize(Background background) {
+    int width = background.width(), height = background.height();
+    model = new Model(width, height, contactBand(background.avgBuffer(),
+        background.diffBuffer(), background.avgBufferWidthStep(),
+        background.diffBufferWidthStep(), width, height), null, null);
+    return openni == null ? null : refresh(background);
+  }
+
+  /**
+   * Recomputes the surface from a newly learned background on a background
+   * thread. The statistics are copied before this returns, so the background
+   * may be released right after. The current model stays in use until the
+   * new one is complete.
+   *
+   * @param background
+   * @return the result of the refresh, which throws the
+   *    <code>StatusException</code> of a failed conversion. A failure is also
+   *    logged, so the result may be ignored.
+   */
+  public synchronized Future<Void> refresh(Background background) {
+    final int width = background.width(), height = background.height();
+    final FloatBuffer avg = copy(background.avgBuffer(),
+        background.avgBufferWidthStep(), width, height);
+    final FloatBuffer diff = copy(background.diffBuffer(),
+        background.diffBufferWidthStep(), width, height);
+    if (refresher == null) {
+      refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "SurfaceRefresh");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return refresher.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws StatusException {
+        long start = System.nanoTime();
+        try {
+          model = createModel(avg, diff, width, width, width, height);
+        } catch (StatusException e) {
+          logger.severe("Surface refresh failed: " + e.getMessage());
+          throw e;
+        } catch (RuntimeException e) {
+          logger.severe("Surface refresh failed: " + e);
+          throw e;
+        }
+        logger.info(String.format("Surface refreshed in %.1f ms.",
+            (System.nanoTime() - start) / 1e6));
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Makes the surface uninitialized.
+   */
+  public void clear() {
+    model = null;
+  }
+
+  /**
+   * Stops the thread of the refresh, waiting for a refresh in progress so that
+   * its frame source can be released after.
+   */
+  public void release() {
+    ExecutorService r;
+    synchronized (this) {
+      r = refresher;
+    }
+    // Not waited for with the lock held.
+    if (r != null) {
+      r.shutdownNow();
+      try {
+        if (!r.awaitTermination(RELEASE_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+          logger.warning("Surface refresh did not stop in " +
+                         RELEASE_TIMEOUT_MS + " ms.");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  public boolean isInitialized() {
+    return model != null;
   }
 
   /**
    * Checks if the depth value of z at (x, y) is in contact with the table
    * surface.
-   * 
+   *
    * @param x
    * @param y
    * @param z physical depth in millimeter.
-   * @return
+   * @return false if (x, y) is outside the surface.
    */
   public boolean isInContact(int x, int y, float z) {
-    if (!initialized)
+    Model m = model;
+    if (m == null || x < 0 || x >= m.width || y < 0 || y >= m.height)
       return false;
-    float tableDepth = depthAt(x, y);
-    float tableDiff = diffAt(x, y);
-    return z < tableDepth + tableDiff * DIFF_SCALE
-        && z > tableDepth - tableDiff * DIFF_SCALE;
+    int i = 2 * (y * m.width + x);
+    return z > m.contactBand[i] && z < m.contactBand[i + 1];
+  }
+
+  /**
+   * Checks a list of points for contact with the table surface.
+   *
+   * @param points x, y and depth in mm of each point. x and y are truncated to
+   *    the pixel.
+   * @param numPoints
+   * @param inContact set to whether each point is in contact. May be null.
+   * @return number of points in contact.
+   */
+  public int isInContact(float[] points, int numPoints, boolean[] inContact) {
+    Model m = model;
+    int count = 0;
+    for (int i = 0; i < numPoints; i++) {
+      int x = (int) points[3 * i], y = (int) points[3 * i + 1];
+      boolean contact = false;
+      if (m != null && x >= 0 && x < m.width && y >= 0 && y < m.height) {
+        int j = 2 * (y * m.width + x);
+        float z = points[3 * i + 2];
+        contact = z > m.contactBand[j] && z < m.contactBand[j + 1];
+      }
+      if (contact)
+        count++;
+      if (inContact != null)
+        inContact[i] = contact;
+    }
+    return count;
   }
 
   /**
-   * @return the surface normal of the table or null if it cannot be calculated.
+   * @return the unit surface normal of the table pointing towards the camera,
+   *    or null if it cannot be calculated.
    */
   public Vector3f surfaceNormal() {
-    return surfaceNormal == null ? null : new Vector3f(surfaceNormal);
+    Plane plane = plane();
+    return plane == null ? null : new Vector3f(plane.normal);
   }
-  
+
   /**
    * Returns the optional center of the interface in the world coordinates.
    * @return a new point of the center of the interface.
    */
   public Option<Point3f> center() {
-    return center == null ? new None<Point3f>() : 
-                            new Some<Point3f>(new Point3f(center));
-  }
-  
-  /**
-   * Perpendicular distance above the interaction surface.
-   * @param point
-   * @return distance is always greater than or equal to 0.
-   */
-  public float distanceAboveSurface(Point3f point) {
-    float dist = Geometry.distancePointToPlane(surfaceNormal, center, point);
-    return Math.max(0, dist);
+    Plane plane = plane();
+    return plane == null ? new None<Point3f>() :
+                           new Some<Point3f>(new Point3f(plane.center));
   }
 
   /**
-   * Gets the height of the table at point(x, y). The table must be initialized.
-   * 
-   * @param x x coordinate of the point.
-   * @param y y coordinate of the point.
-   * @return average depth of the table at (x, y).
+   * @return the world coordinates of the table, or null if the surface is not
+   *    initialized or has no frame source.
    */
-  private float depthAt(int x, int y) {
-    return avg.get(y * avgWidthStep + x);
+  public SurfaceMap surfaceMap() {
+    Model m = model;
+    return m == null ? null : m.map;
   }
 
   /**
-   * Gets the average height difference of the table at point(x, y). The table
-   * must be initialized.
-   * 
+   * Height above the table of a point at a pixel, from the world coordinates
+   * of the table at that pixel.
+   *
    * @param x
    * @param y
-   * @return
+   * @param z physical depth in millimeter.
+   * @return distance along the surface normal, negative below the table, or
+   *    NaN if there is no table at (x, y).
    */
-  private float diffAt(int x, int y) {
-    return diff.get(y * diffWidthStep + x);
+  public float heightAboveSurface(int x, int y, float z) {
+    Model m = model;
+    if (m == null || m.map == null || m.plane == null)
+      return Float.NaN;
+    return m.map.heightAbove(x, y, z, m.plane.normal);
   }
 
   /**
-   * Computes the geometry of the table in the world coordinates. If openni is
-   * null, the geometry cannot be computed.
-   * @throws StatusException
+   * Perpendicular distance above the interaction surface.
+   * @param point
+   * @return distance is always greater than or equal to 0, and 0 if the plane
+   *    of the table is unknown.
    */
-  private void computeGeometry() throws StatusException {
-    if (openni == null)
-      return;
-    
-    Point3D[] points = new Point3D[width];
-    int h = height / 2;
-    int startIndex = h * avgWidthStep;
-    for (int i = 0; i < width; i++) {
-      float depth = avg.get(startIndex + i);
-      points[i] = new Point3D(i, h, depth);
-    }
+  public float distanceAboveSurface(Point3f point) {
+    Plane plane = plane();
+    if (plane == null)
+      return 0;
+    return Math.max(0, plane.distance(point.x, point.y, point.z));
+  }
 
-    Point3D[] converted = openni.convertProjectiveToRealWorld(points);
-    // projective = image coordinate space ((0,0) is top left corner of the
-    // image)
-    CvMat pointMat = CvMat.create(1, width, CV_32FC3);
-    for (int i = 0; i < converted.length; i++) {
-      pointMat.put(i * 3, converted[i].getX());
-      pointMat.put(i * 3 + 1, converted[i].getY());
-      pointMat.put(i * 3 + 2, converted[i].getZ());
-    }
+  private Plane plane() {
+    Model m = model;
+    return m == null ? null : m.plane;
+  }
 
-    // (hline[0], hline[1], hline[2]) is a normalized vector parallel to the
-    // fitted line and (hline[3], hline[4], hline[5]) is a point on that line.
-    float[] hline = new float[6];
-    cvFitLine(pointMat, CV_DIST_L2, 0, 0.001, 0.001, hline);
-    logger.info("horizontal line: " + Arrays.toString(hline));
-    pointMat.release();
+  private Model createModel(FloatBuffer avg, FloatBuffer diff,
+      int avgWidthStep, int diffWidthStep, int width, int height)
+      throws StatusException {
+    float[] band = contactBand(avg, diff, avgWidthStep, diffWidthStep, width,
+                               height);
+    if (openni == null)
+      return new Model(width, height, band, null, null);
 
-    int w = width / 2;
-    points = new Point3D[height];
-    for (int i = 0; i < height; i++) {
-      points[i] = new Point3D(w, i, avg.get(avgWidthStep * i + w));
-    }
+    SurfaceMap map = SurfaceMap.build(avg, avgWidthStep, width, height,
+                                      openni);
+    long start = System.nanoTime();
+    Plane plane = planeEstimator.estimate(map);
+    logger.info(String.format("Plane estimated in %.1f ms: %s",
+        (System.nanoTime() - start) / 1e6, plane));
+    return new Model(width, height, band, map, plane);
+  }
 
-    converted = openni.convertProjectiveToRealWorld(points);
-    pointMat = CvMat.create(1, height, CV_32FC3);
-    for (int i = 0; i < converted.length; i++) {
-      pointMat.put(i * 3, converted[i].getX());
-      pointMat.put(i * 3 + 1, converted[i].getY());
-      pointMat.put(i * 3 + 2, converted[i].getZ());
+  /**
+   * @return the bounds of the depth in contact with the surface at each
+   *    pixel, as in <code>Model.contactBand</code>.
+   */
+  private static float[] contactBand(FloatBuffer avg, FloatBuffer diff,
+      int avgWidthStep, int diffWidthStep, int width, int height) {
+    float[] band = new float[2 * width * height];
+    for (int y = 0, i = 0; y < height; y++) {
+      int avgIndex = y * avgWidthStep, diffIndex = y * diffWidthStep;
+      for (int x = 0; x < width; x++, i += 2) {
+        float tableDepth = avg.get(avgIndex + x);
+        float tableDiff = diff.get(diffIndex + x) * DIFF_SCALE;
+        band[i] = tableDepth - tableDiff;
+        band[i + 1] = tableDepth + tableDiff;
+      }
     }
+    return band;
+  }
 
-    float[] vline = new float[6];
-    cvFitLine(pointMat, CV_DIST_L2, 0, 0.001, 0.001, vline);
-    logger.info("vertical line: " + Arrays.toString(vline));
-    pointMat.release();
-
-    Point3f p1 = new Point3f(hline[3], hline[4], hline[5]);
-    Vector3f v1 = new Vector3f(hline[0], hline[1], hline[2]);
-    Point3f p2 = new  Point3f(vline[3], vline[4], vline[5]);
-    Vector3f v2 = new Vector3f(vline[0], vline[1], vline[3]);
-    List<Point3f> closestPoints = Geometry.closestPointsLineToLine(p1, v1, p2, 
-                                                                   v2);
-    surfaceNormal = new Vector3f();
-    surfaceNormal.cross(v1, v2);
-    center = Geometry.midpoint(closestPoints.get(0), closestPoints.get(1));
-    logger.info("center: " + center);
-    logger.info("surface normal: " + surfaceNormal);
+  /**
+   * @return a heap copy of the rows of <code>buffer</code> without padding.
+   */
+  private static FloatBuffer copy(FloatBuffer buffer, int widthStep,
+                                  int width, int height) {
+    float[] values = new float[width * height];
+    for (int y = 0; y < height; y++)
+      for (int x = 0; x < width; x++)
+        values[y * width + x] = buffer.get(y * widthStep + x);
+    return FloatBuffer.wrap(values);
   }
 }
@@ -2,7 +2,6 @@ package edu.mit.yingyin.tabletop.models;
 
 import static com.googlecode.javacv.cpp.opencv_core.CV_32FC1;
 import static com.googlecode.javacv.cpp.opencv_core.CV_RAND_NORMAL;
-import static com.googlecode.javacv.cpp.opencv_core.cvCreateMat;
 import static com.googlecode.javacv.cpp.opencv_core.cvRNG;
 import static com.googlecode.javacv.cpp.opencv_core.cvRandArr;
 import static com.googlecode.javacv.cpp.opencv_core.cvRealScalar;
@@ -24,6 +23,7 @@ import com.googlecode.javacv.cpp.opencv_video.CvKalman;
 
 import edu.mit.yingyin.util.ValConfidencePair;
 import edu.mit.yingyin.tabletop.models.ProcessPacket.ForelimbFeatures;
+import edu.mit.yingyin.util.CvUtil;
 
 public class KalmanFilter {
   /**
@@ -40,7 +40,7 @@ public class KalmanFilter {
   /**
    * Measurements at step k: (x, y).
    */
-  private CvMat zk = cvCreateMat(2, 1, CV_32FC1);
+  private CvMat zk = CvUtil.createMat(2, 1, CV_32FC1);
   private boolean initialized = false;
   /**
    * Depth image width and height.
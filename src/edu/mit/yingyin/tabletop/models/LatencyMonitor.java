@@ -0,0 +1,120 @@
+package edu.mit.yingyin.tabletop.models;
+
+import edu.mit.yingyin.tabletop.models.ProcessPacket.Stage;
+import edu.mit.yingyin.util.LatencyHistogram;
+import edu.mit.yingyin.util.Metrics;
+
+/**
+ * Aggregates the per-stage and end-to-end latencies of processed frames.
+ *
+ * The latency of a stage is the time between the end of the previous reached
+ * stage and the end of the stage. The end-to-end latency is the time from when
+ * the depth frame is available to when the hand event listeners return.
+ *
+ * The sensor clock and the monotonic clock are not related, so the sensor
+ * latency is measured as the delay of each frame relative to the fastest frame
+ * observed so far, i.e. it captures the jitter between capture and delivery
+ * from the device.
+ *
+ * @author yingyin
+ *
+ */
+public class LatencyMonitor {
+  private final LatencyHistogram[] stages =
+      new LatencyHistogram[Stage.values().length];
+  private final LatencyHistogram endToEnd =
+      new LatencyHistogram("end-to-end");
+  private final LatencyHistogram sensor = new LatencyHistogram("sensor");
+  private long minSensorOffset = Long.MAX_VALUE;
+
+  public LatencyMonitor() {
+    for (Stage s : Stage.values())
+      stages[s.ordinal()] = new LatencyHistogram(s.name().toLowerCase());
+  }
+
+  /**
+   * Records the stage times of a processed packet.
+   * @param packet
+   */
+  public void record(ProcessPacket packet) {
+    long ready = packet.stageNanos(Stage.FRAME_READY);
+    if (ready == 0)
+      return;
+
+    if (packet.depthTimestamp > 0) {
+      long offset = ready - packet.depthTimestamp * 1000;
+      if (offset < minSensorOffset)
+        minSensorOffset = offset;
+      sensor.record(offset - minSensorOffset);
+    }
+
+    long prev = ready;
+    Stage[] values = Stage.values();
+    for (int i = 1; i < values.length; i++) {
+      long t = packet.stageNanos(values[i]);
+      if (t == 0)
+        continue;
+      stages[i].record(t - prev);
+      prev = t;
+    }
+
+    long delivered = packet.stageNanos(Stage.DELIVERED);
+    if (delivered != 0)
+      endToEnd.record(delivered - ready);
+  }
+
+  /**
+   * @param stage
+   * @return the histogram of the durations of <code>stage</code> in
+   *    nanoseconds. The histogram for <code>FRAME_READY</code> is always empty.
+   */
+  public LatencyHistogram stage(Stage stage) {
+    return stages[stage.ordinal()];
+  }
+
+  /**
+   * @return the histogram of the end-to-end latencies in nanoseconds.
+   */
+  public LatencyHistogram endToEnd() { return endToEnd; }
+
+  /**
+   * @return the histogram of the sensor delivery jitter in nanoseconds.
+   */
+  public LatencyHistogram sensor() { return sensor; }
+
+  /**
+   * Publishes the histograms as timers in {@link Metrics} under 
+   * <code>component</code>.
+   * @param component
+   */
+  public void publish(String component) {
+    for (int i = 1; i < stages.length; i++)
+      Metrics.timer(component, "stage_" + stages[i].name(), stages[i]);
+    Metrics.timer(component, "end_to_end", endToEnd);
+    Metrics.timer(component, "sensor_jitter", sensor);
+  }
+
+  public void reset() {
+    for (LatencyHistogram h : stages)
+      h.reset();
+    endToEnd.reset();
+    sensor.reset();
+    minSensorOffset = Long.MAX_VALUE;
+  }
+
+  /**
+   * @return a multi-line report of all the latency statistics.
+   */
+  public String report() {
+    String lineSeparator = System.getProperty("line.separator");
+    StringBuffer sb = new StringBuffer("Latency:");
+    sb.append(lineSeparator);
+    sb.append(sensor.summary()).append(lineSeparator);
+    for (int i = 1; i < stages.length; i++) {
+      if (stages[i].count() > 0)
+        sb.append(stages[i].summary()).append(lineSeparator);
+    }
+    sb.append(endToEnd.summary());
+    return sb.toString();
+  }
+}
@@ -2,12 +2,15 @@ package edu.mit.yingyin.tabletop.models;
 
 import java.awt.Point;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.logging.Logger;
 
 import org.OpenNI.GeneralException;
 
@@ -15,11 +18,18 @@ import edu.mit.yingyin.image.ImageConvertUtils;
 import edu.mit.yingyin.util.ObjectIO;
 
 /**
- * Model for manual labeling of points per frame in a OpenNI recorded file.
+ * Model for manual labeling of points per frame in a OpenNI recorded file or
+ * a {@link DepthRecording}. Frames of a <code>DepthRecording</code> are
+ * accessed directly by index, so seeking is fast in either direction, and the
+ * frames without any foreground are skipped if the recording has an
+ * {@link ActivityIndex}.
  * @author yingyin
  *
  */
 public class ManualPointLabel {
+  private static final Logger LOGGER = Logger.getLogger(
+      ManualPointLabel.class.getName());
+
   /**
    * Points at each frame. Multiple points at each frame for tracking multiple
    * fingers. 
@@ -27,6 +37,13 @@ public class ManualPointLabel {
   private HashMap<Integer, List<Point>> points;
 
   private OpenNIDevice openni;
+  private DepthRecording.Player player;
+  /**
+   * Activity of the recording, or null if it has not been indexed.
+   */
+  private ActivityIndex activity;
+  private byte[] rgbData;
+  private int[] depthArray;
   private BufferedImage depthImage, rgbImage;
   private short[] depthRawData;
   private int depthWidth, depthHeight, rgbWidth, rgbHeight;
@@ -40,7 +57,7 @@ public class ManualPointLabel {
   /**
    * Creates an {@code ManualPointLabel} object.
    * 
-   * @param configFile OpenNI configuration file.
+   * @param configFile OpenNI configuration file, or a depth recording.
    * @param replayFilename Recorded file with tracked points at each frame.  
    * @throws IOException If reading from <code>replayFilename</code> fails.
    * @throws GeneralException If initialization from OpenNI device fails.
@@ -48,11 +65,38 @@ public class ManualPointLabel {
   @SuppressWarnings("unchecked")
   public ManualPointLabel(String configFile, String replayFilename, 
       int maxDepth) throws IOException, GeneralException {
-    openni = new OpenNIDevice(configFile);
-    depthWidth = openni.getDepthWidth();
-    depthHeight = openni.getDepthHeight();
-    rgbWidth = openni.getImageWidth();
-    rgbHeight = openni.getImageHeight();
+    if (DepthRecording.isRecordingFile(configFile)) {
+      DepthRecording recording = openRecording(configFile);
+      player = recording.newPlayer();
+      File activityFile = ActivityIndex.fileFor(new File(configFile));
+      if (activityFile.exists()) {
+        try {
+          activity = ActivityIndex.load(activityFile);
+          if (activity.numFrames() != recording.numFrames())
+            activity = null;
+        } catch (IOException e) {
+          // E.g. an index of an older version, which is rebuilt by the next
+          // batch run.
+          LOGGER.warning(e.getMessage());
+        }
+      }
+      depthWidth = recording.width();
+      depthHeight = recording.height();
+      if (recording.hasImages()) {
+        rgbWidth = recording.imageWidth();
+        rgbHeight = recording.imageHeight();
+        rgbData = new byte[rgbWidth * rgbHeight * 3];
+      } else {
+        rgbWidth = depthWidth;
+        rgbHeight = depthHeight;
+      }
+    } else {
+      openni = new OpenNIDevice(configFile);
+      depthWidth = openni.getDepthWidth();
+      depthHeight = openni.getDepthHeight();
+      rgbWidth = openni.getImageWidth();
+      rgbHeight = openni.getImageHeight();
+    }
     rgbImage = new BufferedImage(rgbWidth, rgbHeight, 
                                  BufferedImage.TYPE_3BYTE_BGR);
     depthImage = new BufferedImage(depthWidth, depthHeight, 
@@ -112,6 +156,10 @@ public class ManualPointLabel {
    * @throws GeneralException 
    */
   public void update(boolean forward) throws GeneralException {
+    if (player != null) {
+      updateFromRecording(forward);
+      return;
+    }
     openni.seekFrameBy(forward ? skip : -skip);
     openni.waitDepthUpdateAll();
     depthFrameID = openni.getDepthFrameID();
@@ -125,6 +173,37 @@ public class ManualPointLabel {
         rgbImage);
   }
 
+  private void updateFromRecording(boolean forward) {
+    int target = player.index() + (forward ? skip : -skip);
+    if (activity != null) {
+      // Skips the frames of an empty table.
+      int active = forward ? activity.nextActive(target) :
+                             activity.previousActive(target);
+      if (active >= 0)
+        target = active;
+    }
+    player.seek(target);
+    player.waitDepthUpdateAll();
+    depthFrameID = rgbFrameID = player.getDepthFrameID();
+    DepthRecording recording = player.recording();
+    int index = player.index();
+    if (recording.codec() == DepthRecording.CODEC_RAW) {
+      recording.frame(index).get(depthRawData);
+    } else {
+      if (depthArray == null)
+        depthArray = new int[depthRawData.length];
+      player.getDepthArray(depthArray);
+      for (int i = 0; i < depthArray.length; i++)
+        depthRawData[i] = (short) depthArray[i];
+    }
+    ImageConvertUtils.arrayToHistogram(depthRawData, histogram);
+    ImageConvertUtils.histogramToBufferedImageUShort(depthRawData, histogram, 
+        depthImage);
+    if (rgbData != null && recording.readImage(index, rgbData))
+      ImageConvertUtils.byteBuffer2BufferedImage(ByteBuffer.wrap(rgbData), 
+                                                 rgbImage);
+  }
+
   /**
    * Adds a point corresponding to the current frame.
    * @param p the point to be added corresponding to current image's frame ID.
@@ -154,7 +233,8 @@ public class ManualPointLabel {
   }
 
   public void release() {
-    openni.release();
+    if (openni != null)
+      openni.release();
   }
 
   public void save(String filename) throws IOException {
@@ -175,4 +255,14 @@ public class ManualPointLabel {
   
   public int skipRate() { return skip; }
 
+  private static DepthRecording openRecording(String fileName) 
+      throws IOException {
+    if (fileName.endsWith(DepthRecording.RAW_SUFFIX)) {
+      return DepthRecording.openRaw(new File(fileName), 
+          PartialOpenNIDevice.DEFAULT_DEPTH_WIDTH, 
+          PartialOpenNIDevice.DEFAULT_DEPTH_HEIGHT);
+    }
+    return DepthRecording.open(new File(fileName));
+  }
+
 }
@@ -21,14 +21,19 @@ import org.OpenNI.ScriptNode;
 import org.OpenNI.StatusException;
 
 import edu.mit.yingyin.util.DirectBufferUtil;
+import edu.mit.yingyin.util.Tracer;
 
 /**
  * This class provides the full functionality of an OpenNI sensor device.
  * @author yingyin
  *
  */
-public class OpenNIDevice {
+public class OpenNIDevice implements IFrameSource {
   public static final String RECORDING_SUFFIX = ".oni";
+  /**
+   * Playback speed that reads the frames of a recording as fast as possible.
+   */
+  public static final double PLAYBACK_SPEED_FASTEST = 0;
   private static Logger LOGGER = Logger.getLogger(
       OpenNIDevice.class.getName());
   
@@ -111,10 +116,15 @@ public class OpenNIDevice {
 
   public void getDepthArray(int[] depthArray) throws StatusException {
     ShortBuffer sb = getDepthBuffer();
-    sb.rewind();
-    while (sb.remaining() > 0) {
-      int pos = sb.position();
-      depthArray[pos] = sb.get() & 0xffff;
+    Tracer.begin("depthToIntArray");
+    try {
+      sb.rewind();
+      while (sb.remaining() > 0) {
+        int pos = sb.position();
+        depthArray[pos] = sb.get() & 0xffff;
+      }
+    } finally {
+      Tracer.end("depthToIntArray");
     }
   }
   
@@ -135,7 +145,13 @@ public class OpenNIDevice {
    * @return current depth frame ID.
    */
   public int getDepthFrameID() { return depthMD.getFrameID(); }
-  
+
+  /**
+   * Returns the timestamp of the current depth frame.
+   * @return timestamp from the sensor in microseconds.
+   */
+  public long getDepthTimestamp() { return depthMD.getTimestamp(); }
+
   /**
    * Waits for any node to have new data. Once new data is available from any 
    * node, all nodes are updated.
@@ -147,8 +163,13 @@ public class OpenNIDevice {
   }
   
   public void waitDepthUpdateAll() throws StatusException {
-    context.waitOneUpdateAll(depthGen);
-    updateMetaData();
+    Tracer.begin("waitDepth");
+    try {
+      context.waitOneUpdateAll(depthGen);
+      updateMetaData();
+    } finally {
+      Tracer.end("waitDepth");
+    }
   }
   
   /**
@@ -185,6 +206,18 @@ public class OpenNIDevice {
     if (player != null)
       player.seekToFrame(depthGen, PlayerSeekOrigin.CURRENT, diff);
   }
+
+  /**
+   * Sets the playback speed of a recording. Has no effect on a live device.
+   *
+   * @param speed ratio to real time, or <code>PLAYBACK_SPEED_FASTEST</code> to
+   *    not wait between the frames.
+   * @throws StatusException
+   */
+  public void setPlaybackSpeed(double speed) throws StatusException {
+    if (player != null)
+      player.setPlaybackSpeed(speed);
+  }
  
   /**
    * Converts projective coordinates to real world coordinates. The z values are
@@ -264,7 +297,12 @@ public class OpenNIDevice {
    * Updates <code>depthBuffer</code> from meta data.
    */
   private void updateDepthBuffer() {
-    depthMD.getData().copyToBuffer(depthBuffer, depthByteBufferSize);
+    Tracer.begin("copyDepthBuffer");
+    try {
+      depthMD.getData().copyToBuffer(depthBuffer, depthByteBufferSize);
+    } finally {
+      Tracer.end("copyDepthBuffer");
+    }
   }
   
   /**
@@ -1,8 +1,11 @@
 package edu.mit.yingyin.tabletop.models;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -13,15 +16,14 @@ import edu.mit.yingyin.util.DirectBufferUtil;
 
 public class PartialOpenNIDevice {
 
-  static { 
-    System.loadLibrary("openni-java-wrapper"); 
-  }
-  
   public static int MAX_DEPTH = 65535;
   public static int DEFAULT_DEPTH_WIDTH = 640;
   public static int DEFAULT_DEPTH_HEIGHT = 480;
   
-  static public BufferedImage rawDepthToBufferedImage(String fileName) {
+  private static boolean libraryLoaded = false;
+  
+  static public BufferedImage rawDepthToBufferedImage(String fileName) 
+      throws IOException {
     return rawDepthToBufferedImage(fileName, DEFAULT_DEPTH_WIDTH, 
                                    DEFAULT_DEPTH_HEIGHT);
   }
@@ -33,23 +35,42 @@ public class PartialOpenNIDevice {
    * @param height height of the BufferedImage.
    * @return a gray UShort BufferedImage with colors proportional to the depth 
    *    values.
+   * @throws IOException
    */
   static public BufferedImage rawDepthToBufferedImage(String fileName, 
-      int width, int height) {
+      int width, int height) throws IOException {
     int totalPixels = width * height;
     int[] intArray = new int[totalPixels];
-    loadFile(fileName, intArray);
+    loadFile(fileName, width, height, intArray);
     return ImageConvertUtils.depthToGrayBufferedImage(intArray, width, height);
   }
   
-  public static void loadFile(String fileName, int[] depthArray) {
-    IntBuffer buffer = DirectBufferUtil.allocateIntBuffer(depthArray.length);
-    loadFile(fileName, buffer, depthArray.length);
-    buffer.get(depthArray);
+  /**
+   * Reads the first frame of a .raw depth file from the mapped file without 
+   * the native library.
+   * @param fileName
+   * @param width
+   * @param height
+   * @param depthArray
+   * @throws IOException
+   */
+  public static void loadFile(String fileName, int width, int height, 
+      int[] depthArray) throws IOException {
+    ShortBuffer frame = DepthRecording.openRaw(new File(fileName), width, 
+                                               height).frame(0);
+    for (int i = 0; i < depthArray.length; i++)
+      depthArray[i] = frame.get(i) & 0xffff;
   }
   
-  private static native void loadFile(String fileName, IntBuffer buffer, 
-                                      int size);
+  /**
+   * Loads the native library only when a device is created.
+   */
+  private static synchronized void loadLibrary() {
+    if (!libraryLoaded) {
+      System.loadLibrary("openni-java-wrapper");
+      libraryLoaded = true;
+    }
+  }
   
   private IntBuffer ctrlBlock;
   private IntBuffer depthBuf;
@@ -57,6 +78,7 @@ public class PartialOpenNIDevice {
   private boolean initialized = false;
   
   public PartialOpenNIDevice(String configFile) {
+    loadLibrary();
     initialized = initFromXmlFile(configFile);
   }
   
@@ -0,0 +1,276 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.util.Random;
+
+import javax.vecmath.Point3f;
+import javax.vecmath.Vector3f;
+
+import edu.mit.yingyin.util.RowBandExecutor;
+
+/**
+ * Estimates the plane of the table from the world coordinates of a
+ * {@link SurfaceMap} with RANSAC and a least-squares refit.
+ *
+ * The map is sampled every <code>stride</code> pixels in each direction, so
+ * the whole table contributes instead of a single row and column. The
+ * hypotheses are split into a fixed number of chunks, each with its own seeded
+ * random generator, and the chunks run on a {@link RowBandExecutor}, by
+ * default the one shared by the image stages, so that the surfaces of several
+ * engines do not each start a pool. The result does not depend on the number
+ * of threads. The plane with the most inliers is
+ * refitted by least squares to its inliers.
+ *
+ * @author yingyin
+ *
+ */
+public class PlaneEstimator {
+  public static final int DEFAULT_STRIDE = 4;
+  public static final int DEFAULT_ITERATIONS = 256;
+  /**
+   * Maximum distance in mm of an inlier from the plane.
+   */
+  public static final float DEFAULT_TOLERANCE = 10;
+
+  private static final int NUM_CHUNKS = 16;
+  private static final long SEED = 0x5eedL;
+
+  /**
+   * A plane fitted to the table.
+   */
+  public static class Plane {
+    /**
+     * Unit normal pointing towards the camera.
+     */
+    public final Vector3f normal;
+    /**
+     * Centroid of the inliers, which is on the plane.
+     */
+    public final Point3f center;
+    public final int numInliers, numSamples;
+
+    public Plane(Vector3f normal, Point3f center, int numInliers,
+                 int numSamples) {
+      this.normal = normal;
+      this.center = center;
+      this.numInliers = numInliers;
+      this.numSamples = numSamples;
+    }
+
+    /**
+     * @param x
+     * @param y
+     * @param z
+     * @return signed distance of the point from the plane, positive on the
+     *    side of the camera.
+     */
+    public float distance(float x, float y, float z) {
+      return normal.x * (x - center.x) + normal.y * (y - center.y) +
+             normal.z * (z - center.z);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("normal = %s, center = %s, inliers = %d / %d",
+          normal, center, numInliers, numSamples);
+    }
+  }
+
+  /**
+   * Plane hypothesis n . p + d = 0 with its number of inliers.
+   */
+  private static class Hypothesis {
+    float nx, ny, nz, d;
+    int inliers = -1;
+  }
+
+  private final int stride, iterations;
+  private final float tolerance;
+  private final RowBandExecutor executor;
+
+  /**
+   * Creates an estimator with the default parameters on the shared executor
+   * of the image stages.
+   */
+  public PlaneEstimator() {
+    this(DEFAULT_STRIDE, DEFAULT_ITERATIONS, DEFAULT_TOLERANCE,
+         RowBandExecutor.shared());
+  }
+
+  /**
+   * @param stride distance in pixels between the samples of the map.
+   * @param iterations number of RANSAC hypotheses.
+   * @param tolerance maximum distance in mm of an inlier from the plane.
+   * @param executor runs the chunks of hypotheses. Not owned by the
+   *    estimator.
+   */
+  public PlaneEstimator(int stride, int iterations, float tolerance,
+                        RowBandExecutor executor) {
+    if (stride < 1 || iterations < 1)
+      throw new IllegalArgumentException("Stride and iterations should be " +
+                                         "positive.");
+    this.stride = stride;
+    this.iterations = iterations;
+    this.tolerance = tolerance;
+    this.executor = executor;
+  }
+
+  /**
+   * Fits a plane to the known points of the map.
+   * @param map
+   * @return the plane, or null if there are not enough points.
+   */
+  public Plane estimate(SurfaceMap map) {
+    final float[] samples = sample(map);
+    final int n = samples.length / 3;
+    if (n < 3)
+      return null;
+
+    final Hypothesis[] results = new Hypothesis[NUM_CHUNKS];
+    // One chunk per band.
+    executor.runBands(NUM_CHUNKS, 1, new RowBandExecutor.Body() {
+      @Override
+      public int run(int startChunk, int endChunk) {
+        for (int i = startChunk; i < endChunk; i++)
+          results[i] = runChunk(samples, i);
+        return 0;
+      }
+    });
+
+    Hypothesis best = null;
+    for (Hypothesis h : results)
+      if (best == null || h.inliers > best.inliers)
+        best = h;
+    if (best.inliers < 3)
+      return null;
+    Plane plane = refit(samples, n, best.nx, best.ny, best.nz, best.d);
+    if (plane == null)
+      return null;
+    // A second refit with the inliers of the least-squares plane.
+    Plane refined = refit(samples, n, plane.normal.x, plane.normal.y,
+        plane.normal.z, -plane.normal.dot(new Vector3f(plane.center)));
+    return refined == null ? plane : refined;
+  }
+
+  /**
+   * @return x, y and z of the known points of the map on the sample grid.
+   */
+  private float[] sample(SurfaceMap map) {
+    int cols = (map.width() + stride - 1) / stride;
+    int rows = (map.height() + stride - 1) / stride;
+    float[] samples = new float[3 * cols * rows];
+    Point3f p = new Point3f();
+    int i = 0;
+    for (int y = stride / 2; y < map.height(); y += stride)
+      for (int x = stride / 2; x < map.width(); x += stride) {
+        if (!map.isKnown(x, y))
+          continue;
+        map.worldAt(x, y, p);
+        samples[i++] = p.x;
+        samples[i++] = p.y;
+        samples[i++] = p.z;
+      }
+    float[] known = new float[i];
+    System.arraycopy(samples, 0, known, 0, i);
+    return known;
+  }
+
+  /**
+   * Tests the hypotheses of a chunk.
+   * @return the hypothesis of the chunk with the most inliers.
+   */
+  private Hypothesis runChunk(float[] samples, int chunk) {
+    int n = samples.length / 3;
+    int start = iterations * chunk / NUM_CHUNKS;
+    int end = iterations * (chunk + 1) / NUM_CHUNKS;
+    Random random = new Random(SEED + chunk);
+    Hypothesis best = new Hypothesis(), h = new Hypothesis();
+    for (int it = start; it < end; it++) {
+      int a = 3 * random.nextInt(n), b = 3 * random.nextInt(n);
+      int c = 3 * random.nextInt(n);
+      float ux = samples[b] - samples[a], uy = samples[b + 1] - samples[a + 1];
+      float uz = samples[b + 2] - samples[a + 2];
+      float vx = samples[c] - samples[a], vy = samples[c + 1] - samples[a + 1];
+      float vz = samples[c + 2] - samples[a + 2];
+      float nx = uy * vz - uz * vy, ny = uz * vx - ux * vz;
+      float nz = ux * vy - uy * vx;
+      float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+      if (length < 1e-6f)
+        continue;
+      h.nx = nx / length;
+      h.ny = ny / length;
+      h.nz = nz / length;
+      h.d = -(h.nx * samples[a] + h.ny * samples[a + 1] +
+              h.nz * samples[a + 2]);
+      h.inliers = countInliers(samples, n, h.nx, h.ny, h.nz, h.d);
+      if (h.inliers > best.inliers) {
+        Hypothesis t = best;
+        best = h;
+        h = t;
+      }
+    }
+    return best;
+  }
+
+  private int countInliers(float[] samples, int n, float nx, float ny,
+                           float nz, float d) {
+    int count = 0;
+    for (int i = 0; i < 3 * n; i += 3) {
+      float dist = nx * samples[i] + ny * samples[i + 1] +
+                   nz * samples[i + 2] + d;
+      if (dist <= tolerance && dist >= -tolerance)
+        count++;
+    }
+    return count;
+  }
+
+  /**
+   * Fits a plane by least squares to the inliers of the plane n . p + d = 0.
+   * The coordinate along the largest component of n is solved as a linear
+   * function of the other two, so the fit works for any orientation.
+   * @return the plane, or null if the inliers are degenerate.
+   */
+  private Plane refit(float[] samples, int n, float nx, float ny, float nz,
+                      float d) {
+    float ax = Math.abs(nx), ay = Math.abs(ny), az = Math.abs(nz);
+    // Index of the dependent coordinate w and the others u, v.
+    int w = az >= ax && az >= ay ? 2 : (ay >= ax ? 1 : 0);
+    int u = (w + 1) % 3, v = (w + 2) % 3;
+    double suu = 0, suv = 0, su = 0, svv = 0, sv = 0, count = 0;
+    double suw = 0, svw = 0, sw = 0;
+    double cx = 0, cy = 0, cz = 0;
+    for (int i = 0; i < 3 * n; i += 3) {
+      float dist = nx * samples[i] + ny * samples[i + 1] +
+                   nz * samples[i + 2] + d;
+      if (dist > tolerance || dist < -tolerance)
+        continue;
+      double pu = samples[i + u], pv = samples[i + v], pw = samples[i + w];
+      suu += pu * pu; suv += pu * pv; su += pu;
+      svv += pv * pv; sv += pv; count++;
+      suw += pu * pw; svw += pv * pw; sw += pw;
+      cx += samples[i]; cy += samples[i + 1]; cz += samples[i + 2];
+    }
+    if (count < 3)
+      return null;
+    // Solves the normal equations of w = a * u + b * v + c by Cramer's rule.
+    double det = suu * (svv * count - sv * sv) - suv * (suv * count - sv * su) +
+                 su * (suv * sv - svv * su);
+    if (Math.abs(det) < 1e-9)
+      return null;
+    double a = (suw * (svv * count - sv * sv) - suv * (svw * count - sv * sw) +
+                su * (svw * sv - svv * sw)) / det;
+    double b = (suu * (svw * count - sw * sv) - suw * (suv * count - sv * su) +
+                su * (suv * sw - svw * su)) / det;
+    float[] normal = new float[3];
+    normal[w] = 1;
+    normal[u] = (float) -a;
+    normal[v] = (float) -b;
+    Vector3f unit = new Vector3f(normal);
+    unit.normalize();
+    Point3f center = new Point3f((float) (cx / count), (float) (cy / count),
+                                 (float) (cz / count));
+    // The camera is at the origin.
+    if (unit.dot(new Vector3f(center)) > 0)
+      unit.negate();
+    return new Plane(unit, center, (int) count, n);
+  }
+}
@@ -4,11 +4,12 @@ import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_32F;
 import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
 import static com.googlecode.javacv.cpp.opencv_core.cvClearMemStorage;
 import static com.googlecode.javacv.cpp.opencv_core.cvCreateMemStorage;
-import static com.googlecode.javacv.cpp.opencv_core.cvReleaseMat;
 import static com.googlecode.javacv.cpp.opencv_core.cvReleaseMemStorage;
 
 import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.vecmath.Point3f;
@@ -24,6 +25,7 @@ import com.googlecode.javacv.cpp.opencv_core.CvSeq;
 import com.googlecode.javacv.cpp.opencv_core.IplImage;
 
 import edu.mit.yingyin.image.ImageConvertUtils;
+import edu.mit.yingyin.util.CvUtil;
 import edu.mit.yingyin.util.ValConfidencePair;
 
 
@@ -33,6 +35,17 @@ import edu.mit.yingyin.util.ValConfidencePair;
  *
  */
 public class ProcessPacket {
+  /**
+   * Boundaries of the processing pipeline. The time of a stage is the 
+   * monotonic time (<code>System.nanoTime</code>) at which the stage finished,
+   * except for <code>FRAME_READY</code> which is the time the depth frame 
+   * became available from the device.
+   */
+  public enum Stage {
+    FRAME_READY, ACQUIRED, PREPROCESSED, SEGMENTED, CONTOURS, HAND_FEATURES, 
+    MODEL, TRACKED, DELIVERED
+  }
+  
   /**
    * Image features for a forelimb.
    * @author yingyin
@@ -51,7 +64,7 @@ public class ProcessPacket {
       if (approxPoly != null)
         approxPoly.release();
       if (hull != null)
-        cvReleaseMat(hull);
+        hull.release();
     }
   }
   
@@ -80,10 +93,15 @@ public class ProcessPacket {
       new ArrayList<ForelimbFeatures>();
   public List<Forelimb> forelimbs = new ArrayList<Forelimb>();
   public int depthFrameID;
+  /**
+   * Timestamp of the depth frame from the sensor in microseconds.
+   */
+  public long depthTimestamp;
   public int width, height;
   
+  private final long[] stageNanos = new long[Stage.values().length];
   private BufferedImage rgbImage;
-  private OpenNIDevice openni;
+  private IFrameSource openni;
   
   /**
    * Creates a new <code>ProcessPacket</code> and allocates memory.
@@ -92,16 +110,16 @@ public class ProcessPacket {
    * @param engine the <code>HandTrackingEngine</code> that updates this <code>
    *    ProcessPacket</code>.
    */
-  public ProcessPacket(int width, int height, OpenNIDevice openni) {
+  public ProcessPacket(int width, int height, IFrameSource openni) {
     
     depthRawData = new int[width * height];
     // Creates an unsigned 8-bit integer image.
-    depthImage8U = IplImage.create(width, height, IPL_DEPTH_8U, 1);
-    depthImage32F = IplImage.create(width, height, IPL_DEPTH_32F, 1);
-    derivative = IplImage.create(width, height, IPL_DEPTH_32F, 1);
-    depthImageBlur32F = IplImage.create(width, height, IPL_DEPTH_32F, 1); 
-    morphedImage = IplImage.create(width, height, IPL_DEPTH_8U, 1);
-    foregroundMask = IplImage.create(width, height, IPL_DEPTH_8U, 1);
+    depthImage8U = CvUtil.createImage(width, height, IPL_DEPTH_8U, 1);
+    depthImage32F = CvUtil.createImage(width, height, IPL_DEPTH_32F, 1);
+    derivative = CvUtil.createImage(width, height, IPL_DEPTH_32F, 1);
+    depthImageBlur32F = CvUtil.createImage(width, height, IPL_DEPTH_32F, 1); 
+    morphedImage = CvUtil.createImage(width, height, IPL_DEPTH_8U, 1);
+    foregroundMask = CvUtil.createImage(width, height, IPL_DEPTH_8U, 1);
     // Allocates a default size of 64kB of memory.
     tempMem = cvCreateMemStorage(0);
     this.width = width;
@@ -135,6 +153,34 @@ public class ProcessPacket {
     forelimbFeatures.clear();
   }
   
+  /**
+   * Records the current monotonic time as the end of <code>stage</code>.
+   * @param stage
+   */
+  public void markStage(Stage stage) {
+    stageNanos[stage.ordinal()] = System.nanoTime();
+  }
+  
+  public void markStage(Stage stage, long nanos) {
+    stageNanos[stage.ordinal()] = nanos;
+  }
+  
+  /**
+   * @param stage
+   * @return the monotonic time in nanoseconds when <code>stage</code> 
+   *    finished, or 0 if the stage was not reached for this frame.
+   */
+  public long stageNanos(Stage stage) {
+    return stageNanos[stage.ordinal()];
+  }
+  
+  /**
+   * Clears the stage times before the packet is used for a new frame.
+   */
+  public void resetStages() {
+    Arrays.fill(stageNanos, 0);
+  }
+  
   /**
    * Gets one row of depth raw values.
    * @param row
@@ -161,14 +207,16 @@ public class ProcessPacket {
   }
   
   /**
-   * Returns the current updated RGB image.
+   * Returns the current updated RGB image. The image is not updated if the
+   * frame source has no RGB image.
    * @throws GeneralException
    */
   public  BufferedImage rgbImage() throws GeneralException {
     if (rgbImage == null)
       rgbImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-    ImageConvertUtils.byteBuffer2BufferedImage(openni.getImageBuffer(), 
-                                               rgbImage);
+    ByteBuffer imageBuffer = openni.getImageBuffer();
+    if (imageBuffer != null)
+      ImageConvertUtils.byteBuffer2BufferedImage(imageBuffer, rgbImage);
     return rgbImage;
   }
 }
@@ -0,0 +1,129 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import org.OpenNI.Point3D;
+
+/**
+ * A frame source that plays depth frames from memory without OpenNI. The
+ * frames are played in a loop and the frame ID keeps increasing, like a live
+ * sensor. Coordinates are converted with the Kinect field of view.
+ *
+ * @author yingyin
+ *
+ */
+public class RawFrameSource implements IFrameSource {
+  /**
+   * Default frame interval in microseconds at 30 fps.
+   */
+  private static final long FRAME_INTERVAL = 33333;
+
+  /**
+   * Reads a file of concatenated 16-bit little-endian depth frames.
+   * @param fileName
+   * @param width
+   * @param height
+   * @return a source playing all the frames in the file.
+   * @throws IOException
+   */
+  public static RawFrameSource fromFile(String fileName, int width, int height)
+      throws IOException {
+    int frameSize = width * height;
+    long length = new File(fileName).length();
+    int numFrames = (int) (length / (frameSize * 2));
+    if (numFrames == 0)
+      throw new IllegalArgumentException(fileName + " has no complete frame.");
+    byte[] bytes = new byte[numFrames * frameSize * 2];
+    DataInputStream in = new DataInputStream(new FileInputStream(fileName));
+    try {
+      in.readFully(bytes);
+    } finally {
+      in.close();
+    }
+    ShortBuffer sb = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).
+        asShortBuffer();
+    int[][] frames = new int[numFrames][frameSize];
+    for (int f = 0; f < numFrames; f++)
+      for (int i = 0; i < frameSize; i++)
+        frames[f][i] = sb.get() & 0xffff;
+    return new RawFrameSource(width, height, frames);
+  }
+
+  private final int width, height;
+  private final int[][] frames;
+  private final DepthProjection projection;
+  private int frameID = -1;
+
+  /**
+   * @param width
+   * @param height
+   * @param frames depth frames each of size width * height. They are not
+   *    copied.
+   */
+  public RawFrameSource(int width, int height, int[][] frames) {
+    if (frames.length == 0)
+      throw new IllegalArgumentException("There should be at least one frame.");
+    for (int[] frame : frames) {
+      if (frame.length != width * height)
+        throw new IllegalArgumentException("Frame size is not width * height.");
+    }
+    this.width = width;
+    this.height = height;
+    this.frames = frames;
+    projection = new DepthProjection(width, height);
+  }
+
+  @Override
+  public int getDepthWidth() { return width; }
+
+  @Override
+  public int getDepthHeight() { return height; }
+
+  public int numFrames() { return frames.length; }
+
+  @Override
+  public void waitDepthUpdateAll() {
+    frameID++;
+  }
+
+  @Override
+  public void getDepthArray(int[] depthArray) {
+    System.arraycopy(frames[Math.max(frameID, 0) % frames.length], 0,
+                     depthArray, 0, width * height);
+  }
+
+  @Override
+  public int getDepthFrameID() { return Math.max(frameID, 0); }
+
+  @Override
+  public long getDepthTimestamp() {
+    return Math.max(frameID, 0) * FRAME_INTERVAL;
+  }
+
+  @Override
+  public ByteBuffer getImageBuffer() { return null; }
+
+  @Override
+  public Point3D[] convertProjectiveToRealWorld(Point3D[] points) {
+    return projection.convertProjectiveToRealWorld(points);
+  }
+
+  @Override
+  public Point3D[] convertRealWorldToProjective(Point3D[] points) {
+    return projection.convertRealWorldToProjective(points);
+  }
+
+  @Override
+  public Point3D convertRealWorldToProjective(Point3D p) {
+    return projection.convertRealWorldToProjective(p);
+  }
+
+  @Override
+  public void release() {}
+}
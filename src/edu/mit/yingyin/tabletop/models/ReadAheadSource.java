@@ -0,0 +1,269 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+
+import org.OpenNI.Point3D;
+import org.OpenNI.StatusException;
+
+/**
+ * Plays another frame source once, as fast as the consumer takes the frames.
+ *
+ * A background thread reads the frames of the wrapped source ahead into a
+ * bounded buffer, so reading and decoding overlap with processing. Every frame
+ * read is delivered exactly once and in order. The playback ends when the
+ * source restarts, i.e. its frame ID does not increase, or after the maximum
+ * number of frames. Use <code>hasNext</code> to check for the end before
+ * <code>waitDepthUpdateAll</code>.
+ *
+ * For an OpenNI recording, set the playback speed of the device to
+ * <code>OpenNIDevice.PLAYBACK_SPEED_FASTEST</code> first so the player does
+ * not pace the frames in real time.
+ *
+ * Images are not read ahead, and the coordinate conversions are done by the
+ * wrapped source.
+ *
+ * @author yingyin
+ *
+ */
+public class ReadAheadSource implements IFrameSource {
+  public static final int DEFAULT_CAPACITY = 8;
+
+  private static final Logger LOGGER = Logger.getLogger(
+      ReadAheadSource.class.getName());
+
+  private static class Frame {
+    final int[] depth;
+    int frameID;
+    long timestamp;
+
+    Frame(int size) {
+      depth = new int[size];
+    }
+  }
+
+  /**
+   * Marks the end of the frames in the queue.
+   */
+  private static final Frame END = new Frame(0);
+
+  private final IFrameSource source;
+  private final int width, height, maxFrames;
+  private final BlockingQueue<Frame> free, queue;
+  private final Thread reader;
+  private volatile boolean stopped = false;
+  /**
+   * Error of the source, delivered after the frames before it.
+   */
+  private volatile StatusException error;
+  private Frame current, next;
+  private volatile int numSkipped = 0, numIdleSkipped = 0;
+  private int numDelivered = 0;
+  private long startNanos, endNanos;
+
+  public ReadAheadSource(IFrameSource source) {
+    this(source, DEFAULT_CAPACITY, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param source the source to play. It is released with this source.
+   * @param capacity maximum number of frames read ahead.
+   * @param maxFrames maximum number of frames to play.
+   */
+  public ReadAheadSource(IFrameSource source, int capacity, int maxFrames) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("Capacity should be positive.");
+    this.source = source;
+    this.maxFrames = maxFrames;
+    width = source.getDepthWidth();
+    height = source.getDepthHeight();
+    // Two more frames for the current and the next frame of the consumer.
+    free = new ArrayBlockingQueue<Frame>(capacity + 2);
+    for (int i = 0; i < capacity + 2; i++)
+      free.add(new Frame(width * height));
+    queue = new ArrayBlockingQueue<Frame>(capacity + 3);
+    reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        readFrames();
+      }
+    }, "ReadAhead");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Waits until the next frame is read or the end is reached.
+   * @return true if there is a next frame.
+   */
+  public boolean hasNext() {
+    while (next == null) {
+      try {
+        next = queue.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return next != END;
+  }
+
+  @Override
+  public int getDepthWidth() { return width; }
+
+  @Override
+  public int getDepthHeight() { return height; }
+
+  /**
+   * Makes the next frame the current frame.
+   * @throws StatusException if the source failed before the next frame.
+   * @throws IllegalStateException if there are no more frames.
+   */
+  @Override
+  public void waitDepthUpdateAll() throws StatusException {
+    if (numDelivered == 0)
+      startNanos = System.nanoTime();
+    if (!hasNext()) {
+      if (error != null)
+        throw error;
+      throw new IllegalStateException("No more frames.");
+    }
+    if (current != null)
+      free.add(current);
+    current = next;
+    next = null;
+    numDelivered++;
+    endNanos = System.nanoTime();
+  }
+
+  @Override
+  public void getDepthArray(int[] depthArray) {
+    if (current != null)
+      System.arraycopy(current.depth, 0, depthArray, 0, width * height);
+  }
+
+  @Override
+  public int getDepthFrameID() {
+    return current == null ? 0 : current.frameID;
+  }
+
+  @Override
+  public long getDepthTimestamp() {
+    return current == null ? 0 : current.timestamp;
+  }
+
+  @Override
+  public ByteBuffer getImageBuffer() { return null; }
+
+  /**
+   * @return number of frames delivered.
+   */
+  public int numDelivered() { return numDelivered; }
+
+  /**
+   * @return number of frames missing from the frame IDs of the source, not
+   *    counting the idle frames it skipped.
+   */
+  public int numSkipped() { return numSkipped; }
+
+  /**
+   * @return number of idle frames deliberately skipped by the source, e.g. a
+   *    <code>DepthRecording.Player</code> with an activity index.
+   */
+  public int numIdleSkipped() { return numIdleSkipped; }
+
+  /**
+   * @return the rate at which the frames have been delivered.
+   */
+  public double framesPerSecond() {
+    long elapsed = endNanos - startNanos;
+    return elapsed <= 0 ? 0 : (numDelivered - 1) * 1e9 / elapsed;
+  }
+
+  @Override
+  public Point3D[] convertProjectiveToRealWorld(Point3D[] points)
+      throws StatusException {
+    return source.convertProjectiveToRealWorld(points);
+  }
+
+  @Override
+  public Point3D[] convertRealWorldToProjective(Point3D[] points)
+      throws StatusException {
+    return source.convertRealWorldToProjective(points);
+  }
+
+  @Override
+  public Point3D convertRealWorldToProjective(Point3D p)
+      throws StatusException {
+    return source.convertRealWorldToProjective(p);
+  }
+
+  /**
+   * Stops reading and releases the wrapped source.
+   */
+  @Override
+  public void release() {
+    stopped = true;
+    reader.interrupt();
+    boolean interrupted = false;
+    while (reader.isAlive()) {
+      try {
+        reader.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+    source.release();
+    if (numDelivered > 0) {
+      LOGGER.info(String.format("Played %d frames at %.1f frames/s, %d " +
+          "missing, %d idle skipped.", numDelivered, framesPerSecond(),
+          numSkipped, numIdleSkipped));
+    }
+  }
+
+  /**
+   * Runs on the reader thread.
+   */
+  private void readFrames() {
+    int lastFrameID = 0, lastIdleSkipped = idleSkipped();
+    try {
+      for (int count = 0; count < maxFrames && !stopped; count++) {
+        source.waitDepthUpdateAll();
+        int frameID = source.getDepthFrameID();
+        int idle = idleSkipped() - lastIdleSkipped;
+        lastIdleSkipped += idle;
+        if (count > 0) {
+          if (frameID <= lastFrameID)
+            break;
+          // Each idle frame skipped has a frame ID of its own.
+          numIdleSkipped += idle;
+          numSkipped += frameID - lastFrameID - 1 - idle;
+        }
+        lastFrameID = frameID;
+        Frame f = free.take();
+        source.getDepthArray(f.depth);
+        f.frameID = frameID;
+        f.timestamp = source.getDepthTimestamp();
+        queue.add(f);
+      }
+    } catch (StatusException e) {
+      LOGGER.severe(e.getMessage());
+      error = e;
+    } catch (InterruptedException e) {
+      // Stopped by release.
+    }
+    queue.add(END);
+  }
+
+  /**
+   * @return number of idle frames the source has skipped so far.
+   */
+  private int idleSkipped() {
+    return source instanceof DepthRecording.Player ?
+        ((DepthRecording.Player) source).numIdleSkipped() : 0;
+  }
+}
@@ -0,0 +1,134 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.nio.FloatBuffer;
+
+import javax.vecmath.Point3f;
+import javax.vecmath.Vector3f;
+
+import org.OpenNI.Point3D;
+import org.OpenNI.StatusException;
+
+/**
+ * World coordinates of every pixel of the tabletop, converted once per
+ * calibration from the average depth of the background.
+ *
+ * All the pixels are converted in one call on the building thread, as the
+ * OpenNI source is not safe to use from several threads at once. Pixels with
+ * unknown depth have NaN coordinates.
+ *
+ * Because a pixel with depth <code>d</code> lies on the same ray from the
+ * camera as the table at that pixel, its world coordinates are those of the
+ * table scaled by <code>d / tableDepth</code>. So its height above the table
+ * only needs the table point and a surface normal, without converting the
+ * pixel.
+ *
+ * @author yingyin
+ *
+ */
+public class SurfaceMap {
+  /**
+   * Converts the average depth to world coordinates.
+   * @param avg average depth in mm, 0 if unknown.
+   * @param widthStep number of values per row of <code>avg</code>.
+   * @param width
+   * @param height
+   * @param converter converts projective to world coordinates. Only called
+   *    from the calling thread.
+   * @return a new map.
+   * @throws StatusException if a conversion fails.
+   */
+  public static SurfaceMap build(FloatBuffer avg, int widthStep, int width,
+      int height, IFrameSource converter) throws StatusException {
+    float[] depth = new float[width * height];
+    for (int y = 0; y < height; y++)
+      for (int x = 0; x < width; x++)
+        depth[y * width + x] = avg.get(y * widthStep + x);
+    SurfaceMap map = new SurfaceMap(width, height, depth);
+    map.convert(converter);
+    return map;
+  }
+
+  private final int width, height;
+  /**
+   * Depth of the table in mm and its world coordinates, in row-major order.
+   */
+  private final float[] depth, world;
+
+  private SurfaceMap(int width, int height, float[] depth) {
+    this.width = width;
+    this.height = height;
+    this.depth = depth;
+    world = new float[3 * width * height];
+  }
+
+  public int width() { return width; }
+
+  public int height() { return height; }
+
+  /**
+   * @param x
+   * @param y
+   * @return true if (x, y) is inside the map and the table depth there is
+   *    known.
+   */
+  public boolean isKnown(int x, int y) {
+    return x >= 0 && x < width && y >= 0 && y < height &&
+           depth[y * width + x] > 0;
+  }
+
+  /**
+   * @return the depth of the table in mm at (x, y), 0 if unknown.
+   */
+  public float depthAt(int x, int y) {
+    return depth[y * width + x];
+  }
+
+  /**
+   * Gets the world coordinates of the table at (x, y).
+   * @param x
+   * @param y
+   * @param p set to the world coordinates, NaN if unknown.
+   */
+  public void worldAt(int x, int y, Point3f p) {
+    int i = 3 * (y * width + x);
+    p.set(world[i], world[i + 1], world[i + 2]);
+  }
+
+  /**
+   * Height of a point at pixel (x, y) above the table, along the surface
+   * normal.
+   * @param x
+   * @param y
+   * @param d depth of the point in mm.
+   * @param normal unit normal of the surface. Its sign does not matter.
+   * @return the height in mm, negative below the table, or NaN if the table
+   *    depth at (x, y) is unknown or (x, y) is outside the map.
+   */
+  public float heightAbove(int x, int y, float d, Vector3f normal) {
+    if (!isKnown(x, y))
+      return Float.NaN;
+    int i = y * width + x;
+    float tableDepth = depth[i];
+    float distance = Math.abs(normal.x * world[3 * i] +
+        normal.y * world[3 * i + 1] + normal.z * world[3 * i + 2]);
+    return (tableDepth - d) / tableDepth * distance;
+  }
+
+  private void convert(IFrameSource converter) throws StatusException {
+    int n = width * height;
+    Point3D[] points = new Point3D[n];
+    for (int i = 0; i < n; i++)
+      points[i] = new Point3D(i % width, i / width, depth[i]);
+    Point3D[] converted = converter.convertProjectiveToRealWorld(points);
+    for (int i = 0; i < n; i++) {
+      Point3D p = converted[i];
+      if (depth[i] > 0) {
+        world[3 * i] = p.getX();
+        world[3 * i + 1] = p.getY();
+        world[3 * i + 2] = p.getZ();
+      } else {
+        world[3 * i] = world[3 * i + 1] = world[3 * i + 2] = Float.NaN;
+      }
+    }
+  }
+}
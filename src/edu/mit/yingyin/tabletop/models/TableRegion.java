@@ -0,0 +1,268 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+/**
+ * Rectangle of the depth image that contains the tabletop.
+ *
+ * The region is found from the average depth of the learned background. A
+ * plane is fitted to the depth of the center column, which is assumed to be on
+ * the table, and the pixels within a tolerance of the plane are table pixels.
+ * The region spans the rows and the columns that are mostly table, plus a
+ * margin. The floor and the surroundings beyond the edges of the table are
+ * outside the region, so they are neither processed nor segmented as blobs.
+ *
+ * A region is saved as one line of text: x, y, width and height.
+ *
+ * @author yingyin
+ *
+ */
+public class TableRegion {
+  public static final int DEFAULT_MARGIN = 8;
+  /**
+   * Maximum distance in mm of a table pixel from the fitted plane.
+   */
+  static final float DEPTH_TOLERANCE = 20;
+  /**
+   * Minimum fraction of table pixels of a row or column in the region,
+   * relative to the row or column with the most table pixels.
+   */
+  private static final float MIN_LINE_FRACTION = 0.5f;
+  /**
+   * Tolerance of the first plane as a fraction of the median depth.
+   */
+  private static final float INITIAL_TOLERANCE = 0.1f;
+
+  /**
+   * @param width
+   * @param height
+   * @return the region of the full frame.
+   */
+  public static TableRegion full(int width, int height) {
+    return new TableRegion(0, 0, width, height);
+  }
+
+  /**
+   * Finds the table in an initialized background.
+   * @param background
+   * @return the region of the table with the default margin.
+   */
+  public static TableRegion fromBackground(Background background) {
+    return fromDepth(background.avgBuffer(), background.avgBufferWidthStep(),
+        background.width(), background.height(), DEFAULT_MARGIN);
+  }
+
+  /**
+   * Finds the table in the average depth of the background.
+   * @param avg average depth in mm, 0 if unknown.
+   * @param widthStep number of values per row of <code>avg</code>.
+   * @param width
+   * @param height
+   * @param margin number of pixels added on each side of the table.
+   * @return the region of the table, or the full frame if no table is found.
+   */
+  public static TableRegion fromDepth(FloatBuffer avg, int widthStep,
+      int width, int height, int margin) {
+    float center = (float) (width - 1) / 2;
+    float columnWidth = width * Background.CENTER_COLUMN_WIDTH_FACTOR;
+    int x0 = (int) Math.ceil(center - columnWidth);
+    int x1 = (int) Math.floor(center + columnWidth);
+    float median = medianDepth(avg, widthStep, x0, x1, height);
+    if (median <= 0)
+      return full(width, height);
+    // Starts from the level plane at the median depth with a loose tolerance,
+    // so that the floor and objects in the center column are left out.
+    double[] plane = {0, 0, median};
+    plane = fitPlane(avg, widthStep, x0, x1, height, plane,
+                     median * INITIAL_TOLERANCE);
+    for (int i = 0; i < 2 && plane != null; i++) {
+      plane = fitPlane(avg, widthStep, x0, x1, height, plane,
+                       DEPTH_TOLERANCE);
+    }
+    if (plane == null)
+      return full(width, height);
+
+    int[] rowCounts = new int[height], colCounts = new int[width];
+    for (int y = 0; y < height; y++)
+      for (int x = 0; x < width; x++) {
+        float d = avg.get(y * widthStep + x);
+        if (d > 0 && Math.abs(d - depth(plane, x, y)) <= DEPTH_TOLERANCE) {
+          rowCounts[y]++;
+          colCounts[x]++;
+        }
+      }
+    int[] rows = span(rowCounts), cols = span(colCounts);
+    int left = Math.max(0, cols[0] - margin);
+    int top = Math.max(0, rows[0] - margin);
+    int right = Math.min(width, cols[1] + 1 + margin);
+    int bottom = Math.min(height, rows[1] + 1 + margin);
+    return new TableRegion(left, top, right - left, bottom - top);
+  }
+
+  /**
+   * Reads a region written by <code>save</code>.
+   * @param file
+   * @return the region.
+   * @throws IOException if the file cannot be read or is not a region.
+   */
+  public static TableRegion load(File file) throws IOException {
+    Scanner scanner = new Scanner(file);
+    try {
+      return new TableRegion(scanner.nextInt(), scanner.nextInt(),
+                             scanner.nextInt(), scanner.nextInt());
+    } catch (InputMismatchException e) {
+      throw new IOException(file + " is not a table region.");
+    } catch (NoSuchElementException e) {
+      throw new IOException(file + " is not a table region.");
+    } finally {
+      scanner.close();
+    }
+  }
+
+  private final int x, y, width, height;
+
+  public TableRegion(int x, int y, int width, int height) {
+    if (x < 0 || y < 0 || width <= 0 || height <= 0)
+      throw new IllegalArgumentException("Invalid table region: " + x + " " +
+                                         y + " " + width + " " + height);
+    this.x = x;
+    this.y = y;
+    this.width = width;
+    this.height = height;
+  }
+
+  public int x() { return x; }
+
+  public int y() { return y; }
+
+  public int width() { return width; }
+
+  public int height() { return height; }
+
+  /**
+   * @return the exclusive right edge.
+   */
+  public int right() { return x + width; }
+
+  /**
+   * @return the exclusive bottom edge.
+   */
+  public int bottom() { return y + height; }
+
+  public int area() { return width * height; }
+
+  public boolean contains(int px, int py) {
+    return px >= x && px < x + width && py >= y && py < y + height;
+  }
+
+  /**
+   * @param frameWidth
+   * @param frameHeight
+   * @return true if the region is inside a frame of the size.
+   */
+  public boolean fits(int frameWidth, int frameHeight) {
+    return right() <= frameWidth && bottom() <= frameHeight;
+  }
+
+  /**
+   * Writes the region to <code>file</code>.
+   * @param file overwritten if it exists.
+   * @throws FileNotFoundException
+   */
+  public void save(File file) throws FileNotFoundException {
+    PrintWriter pw = new PrintWriter(file);
+    try {
+      pw.println(toString());
+    } finally {
+      pw.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return x + " " + y + " " + width + " " + height;
+  }
+
+  /**
+   * @return the median of the known depth of the columns [x0, x1], or 0 if
+   *    there is none.
+   */
+  private static float medianDepth(FloatBuffer avg, int widthStep, int x0,
+                                   int x1, int height) {
+    float[] values = new float[(x1 - x0 + 1) * height];
+    int n = 0;
+    for (int y = 0; y < height; y++)
+      for (int x = x0; x <= x1; x++) {
+        float d = avg.get(y * widthStep + x);
+        if (d > 0)
+          values[n++] = d;
+      }
+    if (n == 0)
+      return 0;
+    Arrays.sort(values, 0, n);
+    return values[n / 2];
+  }
+
+  /**
+   * Fits a plane d = a * x + b * y + c by least squares to the known depth of
+   * the columns [x0, x1] within <code>tolerance</code> of the previous plane.
+   * @return {a, b, c}, or null if there are too few pixels.
+   */
+  private static double[] fitPlane(FloatBuffer avg, int widthStep, int x0,
+      int x1, int height, double[] previous, double tolerance) {
+    double sxx = 0, sxy = 0, sx = 0, syy = 0, sy = 0, n = 0;
+    double sxd = 0, syd = 0, sd = 0;
+    for (int y = 0; y < height; y++)
+      for (int x = x0; x <= x1; x++) {
+        double d = avg.get(y * widthStep + x);
+        if (d <= 0 || Math.abs(d - depth(previous, x, y)) > tolerance)
+          continue;
+        sxx += x * x; sxy += x * y; sx += x;
+        syy += y * y; sy += y; n++;
+        sxd += x * d; syd += y * d; sd += d;
+      }
+    if (n < 3)
+      return null;
+    // Solves the normal equations by Cramer's rule.
+    double det = sxx * (syy * n - sy * sy) - sxy * (sxy * n - sy * sx) +
+                 sx * (sxy * sy - syy * sx);
+    if (Math.abs(det) < 1e-9)
+      return null;
+    double a = (sxd * (syy * n - sy * sy) - sxy * (syd * n - sy * sd) +
+                sx * (syd * sy - syy * sd)) / det;
+    double b = (sxx * (syd * n - sd * sy) - sxd * (sxy * n - sy * sx) +
+                sx * (sxy * sd - syd * sx)) / det;
+    double c = (sxx * (syy * sd - sy * syd) - sxy * (sxy * sd - sx * syd) +
+                sxd * (sxy * sy - syy * sx)) / det;
+    return new double[] {a, b, c};
+  }
+
+  private static double depth(double[] plane, int x, int y) {
+    return plane[0] * x + plane[1] * y + plane[2];
+  }
+
+  /**
+   * @return the first and the last index with a count of at least
+   *    <code>MIN_LINE_FRACTION</code> of the maximum count.
+   */
+  private static int[] span(int[] counts) {
+    int max = 0;
+    for (int c : counts)
+      max = Math.max(max, c);
+    int first = 0, last = counts.length - 1;
+    float min = Math.max(1, max * MIN_LINE_FRACTION);
+    while (first < last && counts[first] < min)
+      first++;
+    while (last > first && counts[last] < min)
+      last--;
+    return new int[] {first, last};
+  }
+}
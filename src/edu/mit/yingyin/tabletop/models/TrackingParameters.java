@@ -0,0 +1,129 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Tunable thresholds of the hand tracking pipeline. The defaults are the
+ * values the pipeline was developed with. Each parameter can be set by its
+ * key, e.g. in a properties file or a parameter sweep.
+ *
+ * @author yingyin
+ *
+ */
+public class TrackingParameters {
+  public static final String BG_DIFF_LSCALE = "bg-diff-lscale";
+  public static final String BG_DIFF_HSCALE = "bg-diff-hscale";
+  public static final String HAND_PERIM_SCALE = "hand-perim-scale";
+  public static final String FINGERTIP_ANGLE = "fingertip-angle";
+  public static final String FINGERTIP_WIDTH = "fingertip-width";
+  public static final String DEBOUNCE_COUNT = "debounce-count";
+  public static final String IDLE_MIN_SAMPLES = "idle-min-samples";
+
+  public static final String[] KEYS = {BG_DIFF_LSCALE, BG_DIFF_HSCALE,
+      HAND_PERIM_SCALE, FINGERTIP_ANGLE, FINGERTIP_WIDTH, DEBOUNCE_COUNT,
+      IDLE_MIN_SAMPLES};
+
+  /**
+   * Scales of the background depth variation below and above the mean depth
+   * within which a pixel is background.
+   */
+  public float bgDiffLowScale = 5, bgDiffHighScale = 6;
+  /**
+   * The ratio between the perimeter of the table and the perimeter of the hand.
+   * Assumes a fully extended hand's dimension is w = 15cm, h = 15cm, and the
+   * table's dimension is w = 122cm, h = 92cm.
+   */
+  public float handPerimScale = 7;
+  /**
+   * Maximum angle in radians at a fingertip on the contour. Around 45 deg.
+   */
+  public float fingertipAngle = 0.8f;
+  /**
+   * Fingertip width in pixels.
+   */
+  public float fingertipWidth = 7;
+  /**
+   * Number of consecutive frames for a contact change to generate an event in
+   * <code>HandTracker.filterPressed</code>. The engine delivers every
+   * fingertip through <code>HandTracker.noFilter</code>, so this has no
+   * effect on its events.
+   */
+  public int debounceCount = 3;
+  /**
+   * Minimum number of foreground samples on the sparse grid of a
+   * {@link ForegroundSampler} for a frame to go through the full pipeline.
+   * Frames with fewer samples are treated as an empty table. 0 processes all
+   * the frames.
+   */
+  public int idleMinSamples = 4;
+
+  /**
+   * Creates the parameters from the keys present in <code>props</code>, the
+   * others have the default values.
+   * @param props
+   * @return new parameters.
+   */
+  public static TrackingParameters fromProperties(Properties props) {
+    TrackingParameters params = new TrackingParameters();
+    for (String key : KEYS) {
+      String value = props.getProperty(key);
+      if (value != null)
+        params.set(key, value);
+    }
+    return params;
+  }
+
+  /**
+   * Sets a parameter by its key.
+   * @param key one of <code>KEYS</code>.
+   * @param value
+   * @throws IllegalArgumentException if the key is unknown or the value cannot
+   *    be parsed.
+   */
+  public void set(String key, String value) {
+    try {
+      if (key.equals(BG_DIFF_LSCALE))
+        bgDiffLowScale = Float.parseFloat(value);
+      else if (key.equals(BG_DIFF_HSCALE))
+        bgDiffHighScale = Float.parseFloat(value);
+      else if (key.equals(HAND_PERIM_SCALE))
+        handPerimScale = Float.parseFloat(value);
+      else if (key.equals(FINGERTIP_ANGLE))
+        fingertipAngle = Float.parseFloat(value);
+      else if (key.equals(FINGERTIP_WIDTH))
+        fingertipWidth = Float.parseFloat(value);
+      else if (key.equals(DEBOUNCE_COUNT))
+        debounceCount = Integer.parseInt(value);
+      else if (key.equals(IDLE_MIN_SAMPLES))
+        idleMinSamples = Integer.parseInt(value);
+      else
+        throw new IllegalArgumentException("Unknown parameter: " + key);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(String.format(
+          "Invalid value for %s: %s", key, value));
+    }
+  }
+
+  public TrackingParameters copy() {
+    TrackingParameters params = new TrackingParameters();
+    params.bgDiffLowScale = bgDiffLowScale;
+    params.bgDiffHighScale = bgDiffHighScale;
+    params.handPerimScale = handPerimScale;
+    params.fingertipAngle = fingertipAngle;
+    params.fingertipWidth = fingertipWidth;
+    params.debounceCount = debounceCount;
+    params.idleMinSamples = idleMinSamples;
+    return params;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.US,
+        "%s=%s %s=%s %s=%s %s=%s %s=%s %s=%d %s=%d",
+        BG_DIFF_LSCALE, bgDiffLowScale, BG_DIFF_HSCALE, bgDiffHighScale,
+        HAND_PERIM_SCALE, handPerimScale, FINGERTIP_ANGLE, fingertipAngle,
+        FINGERTIP_WIDTH, fingertipWidth, DEBOUNCE_COUNT, debounceCount,
+        IDLE_MIN_SAMPLES, idleMinSamples);
+  }
+}
@@ -26,7 +26,10 @@ public class HandDebugView implements DebugView {
   private final ImageFrame frame;
   private final BufferedImage bi;
  
-  public HandDebugView() {
+  private final FeatureBuilder featureBuilder;
+  
+  public HandDebugView(FeatureBuilder featureBuilder) {
+    this.featureBuilder = featureBuilder;
     bi = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
     frame = new ImageFrame(TITLE, bi);
   }
@@ -47,9 +50,9 @@ public class HandDebugView implements DebugView {
   }
   
   public void drawFeatureImage(byte[] imageArray, Forelimb forelimb) {
-    int width = FeatureBuilder.imageWidth();
+    int width = featureBuilder.imageWidth();
     int offset = FeatureBuilder.CONTINUOUS_FEATURE_SIZE;
-    float[] features = FeatureBuilder.create(forelimb);
+    float[] features = featureBuilder.create(forelimb);
     for (int y = 0; y < width; y++) 
       for (int x = 0; x < width; x++) {
         float z = features[offset + (width - 1 - y) * width + x];
@@ -28,7 +28,7 @@ public class OpenniViewThread extends Thread {
       depthHeight = openni.getDepthHeight();
       analyzer = new ForelimbFeatureDetector(depthWidth, depthHeight, openni);
       packetController = new ProcessPacketController(depthWidth, depthHeight, 
-          null);
+          analyzer.interactionSurface());
     } catch (GeneralException e) {
       LOGGER.severe(e.getMessage());
       System.exit(-1);
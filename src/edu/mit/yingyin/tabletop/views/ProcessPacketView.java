@@ -13,7 +13,6 @@ import java.awt.Rectangle;
 import java.awt.event.KeyListener;
 import java.awt.image.BufferedImage;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -33,11 +32,13 @@ import com.googlecode.javacv.cpp.opencv_core.IplImage;
 
 import edu.mit.yingyin.tabletop.controllers.ViewImageValueController;
 import edu.mit.yingyin.tabletop.models.EnvConstant;
+import edu.mit.yingyin.tabletop.models.FeatureBuilder;
 import edu.mit.yingyin.tabletop.models.HistogramImageComponent;
 import edu.mit.yingyin.tabletop.models.InteractionSurface;
 import edu.mit.yingyin.tabletop.models.ProcessPacket;
 import edu.mit.yingyin.tabletop.models.ProcessPacket.ForelimbFeatures;
 import edu.mit.yingyin.util.CvUtil;
+import edu.mit.yingyin.util.RowBandExecutor;
 import edu.mit.yingyin.util.ValConfidencePair;
 
 public class ProcessPacketView {
@@ -57,6 +58,15 @@ public class ProcessPacketView {
     
     private final HistogramImageComponent imageComp;
     private final ViewImageValueController imageController;
+    /**
+     * Rows of the band being masked on each thread, reused across frames.
+     */
+    private final ThreadLocal<byte[]> maskRows = new ThreadLocal<byte[]>() {
+      @Override
+      protected byte[] initialValue() {
+        return new byte[width];
+      }
+    };
     
     public BackgroundDebugView(int width, int height) {
       imageComp = new HistogramImageComponent(width, height, 
@@ -69,16 +79,23 @@ public class ProcessPacketView {
     
     @Override
     public void showDebugImage(ProcessPacket packet) {
-      Arrays.fill(debugImage, 0);
-      ByteBuffer maskBuffer = packet.foregroundMask.getByteBuffer();
-      int maskWidthStep = packet.foregroundMask.widthStep();
-      for (int h = 0; h < height; h++)
-        for (int w = 0; w < width; w++) {
-          int pos = h * width + w;
-          if ((maskBuffer.get(h * maskWidthStep + w) & 0xff) == 255) {
-            debugImage[pos] = packet.depthRawData[pos];
+      final ByteBuffer maskBuffer = packet.foregroundMask.getByteBuffer();
+      final int maskWidthStep = packet.foregroundMask.widthStep();
+      final int[] depth = packet.depthRawData;
+      RowBandExecutor.shared().run(width, height, new RowBandExecutor.Body() {
+        @Override
+        public int run(int startRow, int endRow) {
+          ByteBuffer masks = maskBuffer.duplicate();
+          byte[] mask = maskRows.get();
+          for (int h = startRow; h < endRow; h++) {
+            masks.position(h * maskWidthStep);
+            masks.get(mask);
+            for (int w = 0, pos = h * width; w < width; w++, pos++)
+              debugImage[pos] = (mask[w] & 0xff) == 255 ? depth[pos] : 0;
           }
+          return 0;
         }
+      });
       imageComp.setImage(debugImage);
       imageController.update();
     }
@@ -166,20 +183,29 @@ public class ProcessPacketView {
   private final int width, height;
   private final int[] debugImage;
   private List<Point> fingertipLabels;
+  private final InteractionSurface interactionSurface;
   
-  public ProcessPacketView(int width, int height) {
+  /**
+   * @param width
+   * @param height
+   * @param interactionSurface surface shown in the 3D view. Can be null.
+   * @param featureBuilder builds the features shown in the debug view.
+   */
+  public ProcessPacketView(int width, int height, 
+      InteractionSurface interactionSurface, FeatureBuilder featureBuilder) {
+    this.interactionSurface = interactionSurface;
     initToggles();
 
     this.width = width;
     this.height = height;
-    analysisImage = IplImage.create(width, height, IPL_DEPTH_8U, 3);
+    analysisImage = CvUtil.createImage(width, height, IPL_DEPTH_8U, 3);
     debugImage = new int[width * height];
     
     CanvasFrame cf = new CanvasFrame(ANALYSIS_FRAME_TITLE);
     cf.setPreferredSize(new Dimension(width, height));
     frames.put(ANALYSIS_FRAME_TITLE, cf);
 
-    debugView = new HandDebugView();
+    debugView = new HandDebugView(featureBuilder);
     frames.put(DEBUG_FRAME_TITLE, debugView.frame());
     
     if (toggleMap.get(Toggles.SHOW_DEPTH_VIEW)) {
@@ -314,9 +340,9 @@ public class ProcessPacketView {
   
   private void showTable3DFrame(ProcessPacket packet) {
     if (table3DView != null) {
-      if (!table3DView.talbeInitialized() && 
-          InteractionSurface.instanceInitialized()) {
-        table3DView.initTable(InteractionSurface.instance());
+      if (!table3DView.talbeInitialized() && interactionSurface != null &&
+          interactionSurface.isInitialized()) {
+        table3DView.initTable(interactionSurface);
       }
       
       if (table3DView.talbeInitialized())
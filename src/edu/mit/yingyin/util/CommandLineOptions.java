@@ -36,6 +36,15 @@ public class CommandLineOptions {
     return line.hasOption(option);
   }
   
+  /**
+   * @return the arguments that are not options.
+   */
+  public static String[] getArgs() {
+    if (line == null)
+      return new String[0];
+    return line.getArgs();
+  }
+  
   public static void printHelp(String programName) {
     HelpFormatter formatter = new HelpFormatter();
     formatter.printHelp(programName, options );
@@ -15,6 +15,7 @@ import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import javax.vecmath.Point2f;
@@ -36,6 +37,51 @@ import com.googlecode.javacv.cpp.opencv_imgproc.CvConvexityDefect;
  */
 public class CvUtil {
   private static final Logger LOGGER = Logger.getLogger(CvUtil.class.getName());
+  
+  /**
+   * Number of native images and matrices created through this class.
+   */
+  private static final AtomicLong nativeAllocations = new AtomicLong();
+  /**
+   * Rows of the float conversion on each thread, reused across calls.
+   */
+  private static final ThreadLocal<float[]> FLOAT_ROWS =
+      new ThreadLocal<float[]>() {
+    @Override
+    protected float[] initialValue() {
+      return new float[0];
+    }
+  };
+  
+  // Allocation methods.
+  
+  /**
+   * Creates an <code>IplImage</code> and counts the native allocation.
+   * @return a new image which should be released by the caller.
+   */
+  public static IplImage createImage(int width, int height, int depth, 
+                                     int channels) {
+    nativeAllocations.incrementAndGet();
+    return IplImage.create(width, height, depth, channels);
+  }
+  
+  /**
+   * Creates a <code>CvMat</code> and counts the native allocation.
+   * @return a new matrix which should be released by the caller.
+   */
+  public static CvMat createMat(int rows, int cols, int type) {
+    nativeAllocations.incrementAndGet();
+    return CvMat.create(rows, cols, type);
+  }
+  
+  /**
+   * @return the number of native images and matrices created with 
+   *    <code>createImage</code> and <code>createMat</code> so far.
+   */
+  public static long nativeAllocations() {
+    return nativeAllocations.get();
+  }
+  
   // Geometry methods.
   
   public static int distance2(CvPoint p1, CvPoint p2) {
@@ -154,18 +200,41 @@ public class CvUtil {
    * @param image an IplImage of type float (32-bit).
    * @param scale scaling factor to be multiplied to the raw value.
    */
-  public static void intToIplImage32F(int[] raw, IplImage image, float scale) 
-  {
-    FloatBuffer fb = image.getFloatBuffer();
-    int height = image.height();
-    int width = image.width();
-    int widthStep = image.widthStep() / 4;
-    // Converts to float.
-    for (int h = 0; h < height; h++)
-      for (int w = 0; w < width; w++) {
-        float depth = (float) raw[h * width + w] * scale;
-        fb.put(h * widthStep + w, depth);
+  public static void intToIplImage32F(final int[] raw, IplImage image, 
+                                      final float scale) {
+    final FloatBuffer fb = image.getFloatBuffer();
+    final int width = image.width();
+    final int widthStep = image.widthStep() / 4;
+    final PixelKernels kernels = PixelKernels.get();
+    // Converts to float a row at a time and writes the row in bulk.
+    RowBandExecutor.shared().run(width, image.height(), 
+        new RowBandExecutor.Body() {
+      @Override
+      public int run(int startRow, int endRow) {
+        FloatBuffer rows = fb.duplicate();
+        float[] row = floatRow(width);
+        for (int h = startRow; h < endRow; h++) {
+          kernels.toFloat(raw, h * width, row, 0, width, scale);
+          rows.position(h * widthStep);
+          rows.put(row, 0, width);
+        }
+        return 0;
+      }
+    });
+  }
+  
+  /**
+   * @param width
+   * @return a row of at least <code>width</code> floats for the calling
+   *    thread, reused across calls.
+   */
+  private static float[] floatRow(int width) {
+    float[] row = FLOAT_ROWS.get();
+    if (row.length < width) {
+      row = new float[width];
+      FLOAT_ROWS.set(row);
     }
+    return row;
   }
   
   /**
@@ -0,0 +1,124 @@
+package edu.mit.yingyin.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size log-linear histogram of non-negative long values (typically
+ * durations in nanoseconds).
+ *
+ * Values below <code>SUB_BUCKETS</code> are counted exactly. Above that, each
+ * power of two is split into <code>SUB_BUCKETS</code> linear buckets, so the
+ * relative error of a reported percentile is at most 1 / SUB_BUCKETS. Recording
+ * is lock-free and allocation-free, so it can be called from the processing
+ * thread while other threads query the statistics.
+ *
+ * @author yingyin
+ *
+ */
+public class LatencyHistogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int NUM_BUCKETS = SUB_BUCKETS +
+      (Long.SIZE - 1 - SUB_BITS) * SUB_BUCKETS;
+  private static final double NANOS_PER_MILLI = 1e6;
+
+  private final String name;
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public LatencyHistogram(String name) {
+    this.name = name;
+  }
+
+  public String name() { return name; }
+
+  /**
+   * Records one value. Negative values are ignored.
+   * @param value
+   */
+  public void record(long value) {
+    if (value < 0)
+      return;
+    counts.incrementAndGet(bucketIndex(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long currentMax = max.get();
+    while (value > currentMax && !max.compareAndSet(currentMax, value))
+      currentMax = max.get();
+  }
+
+  /**
+   * @return the number of recorded values.
+   */
+  public long count() { return count.get(); }
+
+  public long max() { return max.get(); }
+
+  public double mean() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  /**
+   * Returns an upper bound of the value at the given percentile.
+   *
+   * @param percentile between 0 and 100.
+   * @return 0 if no value has been recorded.
+   */
+  public long valueAtPercentile(double percentile) {
+    long total = count.get();
+    if (total == 0)
+      return 0;
+    long rank = (long) Math.ceil(percentile / 100 * total);
+    rank = Math.max(1, Math.min(total, rank));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank)
+        return Math.min(bucketUpperBound(i), max.get());
+    }
+    return max.get();
+  }
+
+  public void reset() {
+    for (int i = 0; i < NUM_BUCKETS; i++)
+      counts.set(i, 0);
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  /**
+   * @return a one line summary with the values in milliseconds.
+   */
+  public String summary() {
+    return String.format("%-16s n=%-8d p50=%.3fms p99=%.3fms max=%.3fms", name,
+        count(), valueAtPercentile(50) / NANOS_PER_MILLI,
+        valueAtPercentile(99) / NANOS_PER_MILLI, max() / NANOS_PER_MILLI);
+  }
+
+  public String toString() {
+    return summary();
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS)
+      return (int) value;
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BITS;
+    int sub = (int) (value >>> shift) - SUB_BUCKETS;
+    return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+  }
+
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS)
+      return index;
+    int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+    int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+    long lower = (long) (SUB_BUCKETS + sub) << shift;
+    return lower + (1L << shift) - 1;
+  }
+}
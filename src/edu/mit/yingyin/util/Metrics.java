@@ -0,0 +1,375 @@
+package edu.mit.yingyin.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * A process wide registry of named counters, gauges and timers.
+ *
+ * Metrics are grouped by component, e.g. the class that updates them. Each
+ * component is published as one JMX MBean whose attributes are the metric
+ * values, and all metrics can be written in the Prometheus text exposition
+ * format with {@link #writeText(Writer)}.
+ *
+ * Metrics are only collected when the system property
+ * <code>tabletop.metrics</code> is true. Since <code>ENABLED</code> is a
+ * constant, guarded updates are removed by the JIT when metrics are disabled.
+ *
+ * @author yingyin
+ *
+ */
+public class Metrics {
+  public static final boolean ENABLED = Boolean.getBoolean("tabletop.metrics");
+
+  private static final Logger LOGGER = Logger.getLogger(
+      Metrics.class.getName());
+  private static final String PREFIX = "tabletop_";
+  private static final String DOMAIN = "edu.mit.yingyin.tabletop";
+  private static final double NANOS_PER_SECOND = 1e9;
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+  /**
+   * A monotonically increasing count.
+   */
+  public static class Counter {
+    private final String name, help;
+    private final AtomicLong value = new AtomicLong();
+
+    private Counter(String name, String help) {
+      this.name = name;
+      this.help = help;
+    }
+
+    public void inc() {
+      if (ENABLED)
+        value.incrementAndGet();
+    }
+
+    public void add(long n) {
+      if (ENABLED)
+        value.addAndGet(n);
+    }
+
+    public long get() { return value.get(); }
+  }
+
+  /**
+   * The last observed value of a quantity.
+   */
+  public static class Gauge {
+    private final String name, help;
+    private final AtomicLong value = new AtomicLong();
+
+    private Gauge(String name, String help) {
+      this.name = name;
+      this.help = help;
+    }
+
+    public void set(long v) {
+      if (ENABLED)
+        value.set(v);
+    }
+
+    public long get() { return value.get(); }
+  }
+
+  /**
+   * The metrics of one component.
+   */
+  private static class Component implements DynamicMBean {
+    private final String name;
+    private final Map<String, Counter> counters =
+        new TreeMap<String, Counter>();
+    private final Map<String, Gauge> gauges = new TreeMap<String, Gauge>();
+    private final Map<String, LatencyHistogram> timers =
+        new TreeMap<String, LatencyHistogram>();
+
+    // All the maps are guarded by the lock of Metrics.components.
+    Component(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Object getAttribute(String attribute)
+        throws AttributeNotFoundException {
+      synchronized (components) {
+        if (counters.containsKey(attribute))
+          return counters.get(attribute).get();
+        if (gauges.containsKey(attribute))
+          return gauges.get(attribute).get();
+        int sep = attribute.lastIndexOf('_');
+        if (sep > 0) {
+          LatencyHistogram h = timers.get(attribute.substring(0, sep));
+          String stat = attribute.substring(sep + 1);
+          if (h != null) {
+            if (stat.equals("count"))
+              return h.count();
+            if (stat.equals("p50"))
+              return h.valueAtPercentile(50) / NANOS_PER_SECOND;
+            if (stat.equals("p99"))
+              return h.valueAtPercentile(99) / NANOS_PER_SECOND;
+            if (stat.equals("max"))
+              return h.max() / NANOS_PER_SECOND;
+          }
+        }
+      }
+      throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute)
+        throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("Metrics are read-only.");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      AttributeList list = new AttributeList();
+      for (String a : attributes) {
+        try {
+          list.add(new Attribute(a, getAttribute(a)));
+        } catch (AttributeNotFoundException e) {
+          // Skips unknown attributes as specified by DynamicMBean.
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params,
+                         String[] signature) {
+      throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+      synchronized (components) {
+        for (Counter c : counters.values())
+          attrs.add(new MBeanAttributeInfo(c.name, "long", c.help, true, false,
+              false));
+        for (Gauge g : gauges.values())
+          attrs.add(new MBeanAttributeInfo(g.name, "long", g.help, true, false,
+              false));
+        for (String t : timers.keySet()) {
+          attrs.add(new MBeanAttributeInfo(t + "_count", "long",
+              "Number of samples", true, false, false));
+          for (String stat : new String[] {"p50", "p99", "max"})
+            attrs.add(new MBeanAttributeInfo(t + "_" + stat, "double",
+                "Duration in seconds", true, false, false));
+        }
+      }
+      return new MBeanInfo(Component.class.getName(), name,
+          attrs.toArray(new MBeanAttributeInfo[attrs.size()]), null,
+          new MBeanOperationInfo[0], null);
+    }
+  }
+
+  private static final Map<String, Component> components =
+      new TreeMap<String, Component>();
+
+  /**
+   * Returns the counter with the given name in <code>component</code>,
+   * creating it if necessary.
+   */
+  public static Counter counter(String component, String name, String help) {
+    synchronized (components) {
+      Component c = component(component);
+      Counter counter = c.counters.get(name);
+      if (counter == null) {
+        counter = new Counter(name, help);
+        c.counters.put(name, counter);
+      }
+      return counter;
+    }
+  }
+
+  /**
+   * Returns the gauge with the given name in <code>component</code>,
+   * creating it if necessary.
+   */
+  public static Gauge gauge(String component, String name, String help) {
+    synchronized (components) {
+      Component c = component(component);
+      Gauge gauge = c.gauges.get(name);
+      if (gauge == null) {
+        gauge = new Gauge(name, help);
+        c.gauges.put(name, gauge);
+      }
+      return gauge;
+    }
+  }
+
+  /**
+   * Publishes a histogram of durations in nanoseconds. A histogram registered
+   * later with the same name in the same component replaces the earlier one,
+   * so each instance that records its own histograms should publish them
+   * under its own component.
+   */
+  public static void timer(String component, String name,
+                           LatencyHistogram histogram) {
+    synchronized (components) {
+      component(component).timers.put(name, histogram);
+    }
+  }
+
+  /**
+   * Removes <code>component</code> and all its metrics, and unregisters its
+   * MBean, e.g. when the instance that published them is released. Metrics
+   * of the component returned earlier can still be updated, but are no
+   * longer exported.
+   * @param component
+   */
+  public static void unregister(String component) {
+    synchronized (components) {
+      if (components.remove(component) != null && ENABLED)
+        unregisterMBean(component);
+    }
+  }
+
+  /**
+   * Writes all the metrics in the Prometheus text exposition format. Timers
+   * are written as summaries in seconds. Metrics with the same name in
+   * several components are written as one family with a sample per
+   * component.
+   * @param out
+   * @throws IOException
+   */
+  public static void writeText(Writer out) throws IOException {
+    Map<String, Family> families = new TreeMap<String, Family>();
+    synchronized (components) {
+      for (Component c : components.values()) {
+        String labels = "{component=\"" + c.name + "\"}";
+        for (Counter counter : c.counters.values()) {
+          String n = metricName(counter.name);
+          family(families, n, counter.help, "counter").samples.append(
+              n + labels + " " + counter.get() + "\n");
+        }
+        for (Gauge gauge : c.gauges.values()) {
+          String n = metricName(gauge.name);
+          family(families, n, gauge.help, "gauge").samples.append(
+              n + labels + " " + gauge.get() + "\n");
+        }
+        for (Map.Entry<String, LatencyHistogram> e : c.timers.entrySet()) {
+          LatencyHistogram h = e.getValue();
+          String n = metricName(e.getKey()) + "_seconds";
+          StringBuilder sb = family(families, n, "Duration of " + h.name(),
+                                    "summary").samples;
+          for (double q : QUANTILES) {
+            sb.append(String.format(Locale.US,
+                "%s{component=\"%s\",quantile=\"%s\"} %.9f\n", n, c.name, q,
+                h.valueAtPercentile(q * 100) / NANOS_PER_SECOND));
+          }
+          sb.append(String.format(Locale.US, "%s_sum%s %.9f\n", n, labels,
+              h.mean() * h.count() / NANOS_PER_SECOND));
+          sb.append(n + "_count" + labels + " " + h.count() + "\n");
+        }
+      }
+    }
+    for (Map.Entry<String, Family> e : families.entrySet()) {
+      Family f = e.getValue();
+      out.write("# HELP " + e.getKey() + " " + f.help + "\n");
+      out.write("# TYPE " + e.getKey() + " " + f.type + "\n");
+      out.write(f.samples.toString());
+    }
+  }
+
+  /**
+   * The samples of a metric name in all components, written after a single
+   * HELP and TYPE line.
+   */
+  private static class Family {
+    final String help, type;
+    final StringBuilder samples = new StringBuilder();
+
+    Family(String help, String type) {
+      this.help = help;
+      this.type = type;
+    }
+  }
+
+  /**
+   * @return the family of <code>name</code>, with the help of the first
+   *    component that has it.
+   */
+  private static Family family(Map<String, Family> families, String name,
+                               String help, String type) {
+    Family f = families.get(name);
+    if (f == null) {
+      f = new Family(help, type);
+      families.put(name, f);
+    }
+    return f;
+  }
+
+  private static Component component(String name) {
+    Component c = components.get(name);
+    if (c == null) {
+      c = new Component(name);
+      components.put(name, c);
+      if (ENABLED)
+        registerMBean(c);
+    }
+    return c;
+  }
+
+  private static void registerMBean(Component c) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = objectName(c.name);
+      if (!server.isRegistered(objectName))
+        server.registerMBean(c, objectName);
+    } catch (JMException e) {
+      LOGGER.log(Level.WARNING, "Failed to register metrics MBean.", e);
+    }
+  }
+
+  private static void unregisterMBean(String component) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = objectName(component);
+      if (server.isRegistered(objectName))
+        server.unregisterMBean(objectName);
+    } catch (JMException e) {
+      LOGGER.log(Level.WARNING, "Failed to unregister metrics MBean.", e);
+    }
+  }
+
+  private static ObjectName objectName(String component)
+      throws MalformedObjectNameException {
+    return new ObjectName(DOMAIN + ":type=Metrics,name=" +
+                          ObjectName.quote(component));
+  }
+
+  private static String metricName(String name) {
+    return PREFIX + name.toLowerCase(Locale.US).replaceAll("[^a-z0-9_]", "_");
+  }
+
+  private Metrics() {}
+}
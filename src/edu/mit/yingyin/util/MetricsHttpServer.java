@@ -0,0 +1,95 @@
+package edu.mit.yingyin.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the content of {@link Metrics} as text at <code>/metrics</code>. The
+ * server only binds to the loopback interface.
+ *
+ * @author yingyin
+ *
+ */
+public class MetricsHttpServer {
+  /**
+   * System property for the port of the server. The server is not started if
+   * the property is not set.
+   */
+  public static final String PORT_PROPERTY = "tabletop.metrics.port";
+
+  private static final Logger LOGGER = Logger.getLogger(
+      MetricsHttpServer.class.getName());
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static MetricsHttpServer instance;
+
+  /**
+   * Starts the server once if metrics are enabled and
+   * <code>PORT_PROPERTY</code> is set.
+   */
+  public static synchronized void startFromProperties() {
+    if (!Metrics.ENABLED || instance != null)
+      return;
+    Integer port = Integer.getInteger(PORT_PROPERTY);
+    if (port == null)
+      return;
+    try {
+      instance = new MetricsHttpServer(port);
+    } catch (IOException e) {
+      LOGGER.warning("Failed to start metrics server: " + e.getMessage());
+    }
+  }
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  public MetricsHttpServer(int port) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(
+        InetAddress.getByName(null), port), 0);
+    server.createContext("/metrics", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        StringWriter sw = new StringWriter();
+        Metrics.writeText(sw);
+        byte[] body = sw.toString().getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(body);
+        os.close();
+      }
+    });
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "metrics-http");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    server.setExecutor(executor);
+    server.start();
+    LOGGER.info("Serving metrics at http://localhost:" +
+        server.getAddress().getPort() + "/metrics");
+  }
+
+  public int port() { return server.getAddress().getPort(); }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,187 @@
+package edu.mit.yingyin.util;
+
+import java.util.logging.Logger;
+
+/**
+ * Per-pixel loops of the image stages, on rows of heap arrays.
+ *
+ * The kernels are selected once at startup. If the optional
+ * <code>VectorPixelKernels</code> built by <code>ant build-vector</code> is on
+ * the class path and the JVM is run with
+ * <code>--add-modules jdk.incubator.vector</code>, the kernels use the Java
+ * Vector API. Otherwise, or if the system property
+ * <code>tabletop.scalarKernels</code> is true, the scalar kernels are used.
+ * Both give the same results.
+ *
+ * A kernel only touches the elements in its ranges, so disjoint ranges can be
+ * processed concurrently, e.g. by a {@link RowBandExecutor}.
+ *
+ * @author yingyin
+ *
+ */
+public abstract class PixelKernels {
+  private static final Logger LOGGER = Logger.getLogger(
+      PixelKernels.class.getName());
+  private static final String VECTOR_CLASS =
+      "edu.mit.yingyin.util.VectorPixelKernels";
+
+  private static final PixelKernels SCALAR = new Scalar();
+  private static final PixelKernels SELECTED = select();
+
+  /**
+   * @return the kernels selected at startup.
+   */
+  public static PixelKernels get() {
+    return SELECTED;
+  }
+
+  /**
+   * @return the scalar kernels.
+   */
+  public static PixelKernels scalar() {
+    return SCALAR;
+  }
+
+  /**
+   * @return new vector kernels, or null if they are not built or not
+   *    supported by the JVM or the CPU.
+   */
+  static PixelKernels vector() {
+    try {
+      return (PixelKernels) Class.forName(VECTOR_CLASS).getConstructor().
+          newInstance();
+    } catch (ReflectiveOperationException e) {
+      // Not built, or not supported by the CPU.
+    } catch (LinkageError e) {
+      // Older JVM, or the vector module is not added.
+    }
+    return null;
+  }
+
+  private static PixelKernels select() {
+    PixelKernels kernels = null;
+    if (!Boolean.getBoolean("tabletop.scalarKernels"))
+      kernels = vector();
+    if (kernels == null)
+      kernels = SCALAR;
+    LOGGER.info("Using " + kernels.name() + " pixel kernels.");
+    return kernels;
+  }
+
+  /**
+   * @return a short description of the implementation.
+   */
+  public abstract String name();
+
+  /**
+   * dst[dstPos + i] = src[srcPos + i] * scale.
+   * @param src
+   * @param srcPos
+   * @param dst
+   * @param dstPos
+   * @param length number of elements converted.
+   * @param scale
+   */
+  public abstract void toFloat(int[] src, int srcPos, float[] dst, int dstPos,
+                               int length, float scale);
+
+  /**
+   * Compares depth values with the per-pixel bounds of the background.
+   * @param src depth values.
+   * @param srcPos
+   * @param low inclusive lower bounds, indexed like <code>src</code>.
+   * @param high exclusive upper bounds, indexed like <code>src</code>.
+   * @param mask set to 255 for a value outside its bounds and 0 otherwise.
+   * @param maskPos
+   * @param length
+   * @return number of values outside their bounds.
+   */
+  public abstract int outsideRange(int[] src, int srcPos, float[] low,
+      float[] high, byte[] mask, int maskPos, int length);
+
+  /**
+   * Scales the depth values under a mask to 8 bits:
+   * dst[i] = src[i] * 255 / maxDepth where the mask is 255, and 0 elsewhere.
+   * @param src depth values.
+   * @param srcPos
+   * @param mask
+   * @param dst
+   * @param dstPos position in both <code>mask</code> and <code>dst</code>.
+   * @param length
+   * @param maxDepth positive.
+   * @return number of pixels under the mask.
+   */
+  public abstract int maskedToByte(int[] src, int srcPos, byte[] mask,
+      byte[] dst, int dstPos, int length, int maxDepth);
+
+  /**
+   * Maps values through a table, e.g. a cumulative histogram to grey levels:
+   * dst[pos + i] = (short) (table[src[pos + i]] * scale) with the values
+   * clipped to the table.
+   * @param src
+   * @param pos position in both <code>src</code> and <code>dst</code>.
+   * @param table
+   * @param scale
+   * @param dst
+   * @param length
+   */
+  public abstract void lookup(int[] src, int pos, float[] table, float scale,
+                              short[] dst, int length);
+
+  /**
+   * Reference implementation of the kernels, and the base of the vector
+   * kernels.
+   */
+  static class Scalar extends PixelKernels {
+    @Override
+    public String name() {
+      return "scalar";
+    }
+
+    @Override
+    public void toFloat(int[] src, int srcPos, float[] dst, int dstPos,
+                        int length, float scale) {
+      for (int i = 0; i < length; i++)
+        dst[dstPos + i] = (float) src[srcPos + i] * scale;
+    }
+
+    @Override
+    public int outsideRange(int[] src, int srcPos, float[] low, float[] high,
+                            byte[] mask, int maskPos, int length) {
+      int count = 0;
+      for (int i = 0; i < length; i++) {
+        float v = src[srcPos + i];
+        if (v >= low[srcPos + i] && v < high[srcPos + i]) {
+          mask[maskPos + i] = 0;
+        } else {
+          mask[maskPos + i] = (byte) 255;
+          count++;
+        }
+      }
+      return count;
+    }
+
+    @Override
+    public int maskedToByte(int[] src, int srcPos, byte[] mask, byte[] dst,
+                            int dstPos, int length, int maxDepth) {
+      int count = 0;
+      for (int i = 0; i < length; i++) {
+        if ((mask[dstPos + i] & 0xff) == 255) {
+          count++;
+          dst[dstPos + i] = (byte) (src[srcPos + i] * 255 / maxDepth);
+        } else {
+          dst[dstPos + i] = 0;
+        }
+      }
+      return count;
+    }
+
+    @Override
+    public void lookup(int[] src, int pos, float[] table, float scale,
+                       short[] dst, int length) {
+      int last = table.length - 1;
+      for (int i = pos; i < pos + length; i++)
+        dst[i] = (short) (table[MathUtil.clip(src[i], 0, last)] * scale);
+    }
+  }
+}
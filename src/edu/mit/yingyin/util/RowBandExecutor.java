@@ -0,0 +1,156 @@
+package edu.mit.yingyin.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Runs per-pixel work on the rows of an image in parallel bands.
+ *
+ * The rows are split recursively on a fork-join pool until a band has about
+ * <code>bandPixels</code> pixels, which by default keeps the data of a band of
+ * a few 32-bit images within the L2 cache of a core. Each band is processed by
+ * one call on a contiguous range of rows, so the body can use bulk buffer
+ * operations on whole rows. Sums of the bands are added exactly, so the
+ * results do not depend on the number of threads.
+ *
+ * The number of threads of the shared executor is the number of cores
+ * divided by the number of concurrent jobs, e.g. recordings processed in
+ * parallel, unless the system property <code>tabletop.threads</code> is set.
+ * With one thread, or an image of a single band, the body runs on the calling
+ * thread.
+ *
+ * @author yingyin
+ *
+ */
+public class RowBandExecutor {
+  /**
+   * Work on a band of rows.
+   */
+  public interface Body {
+    /**
+     * Processes the rows [startRow, endRow). Called concurrently for
+     * disjoint bands.
+     * @return a count that is summed over the bands.
+     */
+    public int run(int startRow, int endRow);
+  }
+
+  /**
+   * 16K pixels are 64KB per 32-bit image.
+   */
+  public static final int DEFAULT_BAND_PIXELS = 1 << 14;
+  public static final int PARALLELISM = Math.max(1, Integer.getInteger(
+      "tabletop.threads", Runtime.getRuntime().availableProcessors()));
+
+  private static int concurrentJobs = 1;
+  private static volatile RowBandExecutor shared;
+
+  /**
+   * @return the executor shared by the image stages, created on first use.
+   */
+  public static RowBandExecutor shared() {
+    RowBandExecutor s = shared;
+    return s != null ? s : createShared();
+  }
+
+  private static synchronized RowBandExecutor createShared() {
+    if (shared == null) {
+      int parallelism = PARALLELISM;
+      if (Integer.getInteger("tabletop.threads") == null)
+        parallelism = Math.max(1, parallelism / concurrentJobs);
+      shared = new RowBandExecutor(parallelism, DEFAULT_BAND_PIXELS);
+    }
+    return shared;
+  }
+
+  /**
+   * Divides the cores among <code>jobs</code> frames processed concurrently,
+   * so that the threads of the shared executor and of the jobs do not exceed
+   * the number of cores.
+   * @param jobs positive.
+   * @throws IllegalStateException if the shared executor is already used.
+   */
+  public static synchronized void setConcurrentJobs(int jobs) {
+    if (jobs < 1)
+      throw new IllegalArgumentException("Jobs should be positive.");
+    if (shared != null)
+      throw new IllegalStateException("The shared executor is already used.");
+    concurrentJobs = jobs;
+  }
+
+  private class BandTask extends RecursiveTask<Integer> {
+    private static final long serialVersionUID = 1L;
+    private final Body body;
+    private final int startRow, endRow, bandRows;
+
+    BandTask(Body body, int startRow, int endRow, int bandRows) {
+      this.body = body;
+      this.startRow = startRow;
+      this.endRow = endRow;
+      this.bandRows = bandRows;
+    }
+
+    @Override
+    protected Integer compute() {
+      if (endRow - startRow <= bandRows)
+        return body.run(startRow, endRow);
+      int mid = (startRow + endRow) >>> 1;
+      BandTask left = new BandTask(body, startRow, mid, bandRows);
+      left.fork();
+      int right = new BandTask(body, mid, endRow, bandRows).compute();
+      return left.join() + right;
+    }
+  }
+
+  private final int bandPixels;
+  /**
+   * Null if the bands run on the calling thread.
+   */
+  private final ForkJoinPool pool;
+
+  /**
+   * @param parallelism number of threads.
+   * @param bandPixels approximate number of pixels in a band.
+   */
+  public RowBandExecutor(int parallelism, int bandPixels) {
+    if (parallelism < 1 || bandPixels < 1)
+      throw new IllegalArgumentException("Parallelism and band size should " +
+                                         "be positive.");
+    this.bandPixels = bandPixels;
+    pool = parallelism == 1 ? null : new ForkJoinPool(parallelism);
+  }
+
+  /**
+   * Runs <code>body</code> on all the rows of an image.
+   * @param width number of pixels in a row.
+   * @param height number of rows.
+   * @param body
+   * @return the sum of the results of the bands.
+   */
+  public int run(int width, int height, Body body) {
+    return runBands(height, Math.max(1, bandPixels / Math.max(1, width)),
+                    body);
+  }
+
+  /**
+   * Runs <code>body</code> on bands of at most <code>bandRows</code> rows,
+   * e.g. on work items that are not image rows.
+   * @param rows number of rows.
+   * @param bandRows positive.
+   * @param body
+   * @return the sum of the results of the bands.
+   */
+  public int runBands(int rows, int bandRows, Body body) {
+    if (pool == null || rows <= bandRows)
+      return body.run(0, rows);
+    return pool.invoke(new BandTask(body, 0, rows, bandRows));
+  }
+
+  /**
+   * Stops the threads. The shared executor should not be released.
+   */
+  public void release() {
+    if (pool != null)
+      pool.shutdown();
+  }
+}
@@ -0,0 +1,211 @@
+package edu.mit.yingyin.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Records begin and end events of named spans for viewing on a timeline.
+ *
+ * Each thread writes into its own fixed-size ring buffer, so recording takes
+ * no lock and allocates nothing after the first event of a thread. When a
+ * buffer is full, the oldest events are overwritten. The recorded events can
+ * be written at any time as Chrome trace-event JSON which can be loaded in
+ * chrome://tracing or Perfetto. The buffer of a thread that has exited is
+ * dropped once its events are written or cleared, so short-lived threads do
+ * not keep their buffers.
+ *
+ * Tracing is off unless the system property <code>tabletop.trace</code> is
+ * true. Span names should be string constants since only the references are
+ * stored.
+ *
+ * @author yingyin
+ *
+ */
+public class Tracer {
+  public static final boolean ENABLED = Boolean.getBoolean("tabletop.trace");
+
+  /**
+   * Number of events kept per thread, rounded down to a power of 2.
+   */
+  static final int CAPACITY = Integer.highestOneBit(
+      Integer.getInteger("tabletop.trace.capacity", 1 << 16));
+  private static final int MASK = CAPACITY - 1;
+  static final long NO_ARG = Long.MIN_VALUE;
+
+  static final char BEGIN = 'B', END = 'E';
+
+  /**
+   * Ring buffer of one thread. Only the owner thread writes. Readers copy the
+   * events and then discard the ones that may have been overwritten during
+   * the copy.
+   */
+  private static class Ring {
+    final long tid;
+    final String threadName;
+    /**
+     * Does not keep the thread from being collected after it exits.
+     */
+    final WeakReference<Thread> thread;
+    final String[] names = new String[CAPACITY];
+    final long[] nanos = new long[CAPACITY];
+    final long[] args = new long[CAPACITY];
+    final char[] phases = new char[CAPACITY];
+    /**
+     * Number of events ever written. Volatile write publishes the event.
+     */
+    volatile long head;
+
+    Ring(Thread t) {
+      tid = t.getId();
+      threadName = t.getName();
+      thread = new WeakReference<Thread>(t);
+    }
+
+    /**
+     * @return true if the owner thread has exited, so no more events are
+     *    written.
+     */
+    boolean isDead() {
+      Thread t = thread.get();
+      return t == null || !t.isAlive();
+    }
+
+    void add(char phase, String name, long arg) {
+      long h = head;
+      int i = (int) h & MASK;
+      names[i] = name;
+      nanos[i] = System.nanoTime();
+      args[i] = arg;
+      phases[i] = phase;
+      head = h + 1;
+    }
+  }
+
+  private static final List<Ring> rings = new CopyOnWriteArrayList<Ring>();
+
+  private static final ThreadLocal<Ring> localRing = new ThreadLocal<Ring>() {
+    @Override
+    protected Ring initialValue() {
+      Ring r = new Ring(Thread.currentThread());
+      rings.add(r);
+      return r;
+    }
+  };
+
+  /**
+   * Marks the beginning of a span on the current thread.
+   * @param name
+   */
+  public static void begin(String name) {
+    if (ENABLED)
+      record(BEGIN, name, NO_ARG);
+  }
+
+  /**
+   * Marks the beginning of a span with the ID of the frame being processed.
+   */
+  public static void begin(String name, long arg) {
+    if (ENABLED)
+      record(BEGIN, name, arg);
+  }
+
+  /**
+   * Marks the end of the innermost span on the current thread.
+   * @param name
+   */
+  public static void end(String name) {
+    if (ENABLED)
+      record(END, name, NO_ARG);
+  }
+
+  /**
+   * Records an event on the current thread even if tracing is disabled, so
+   * the buffers can be tested in the default configuration.
+   */
+  static void record(char phase, String name, long arg) {
+    localRing.get().add(phase, name, arg);
+  }
+
+  /**
+   * Discards all the recorded events. Should only be called when no thread
+   * is recording.
+   */
+  public static void clear() {
+    for (Ring r : rings) {
+      r.head = 0;
+      if (r.isDead())
+        rings.remove(r);
+    }
+  }
+
+  /**
+   * @return the number of threads whose buffers are kept.
+   */
+  static int numRings() {
+    return rings.size();
+  }
+
+  /**
+   * Writes the recorded events of all threads in the Chrome trace-event JSON
+   * format. Timestamps are in microseconds. The buffers of the threads that
+   * have exited are dropped after their events are written.
+   * @param out
+   * @throws IOException
+   */
+  public static void writeChromeTrace(Writer out) throws IOException {
+    out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+    boolean first = true;
+    for (Ring r : rings) {
+      // Checked before the copy so that no event written after it is lost.
+      boolean dead = r.isDead();
+      if (!first)
+        out.write(',');
+      first = false;
+      out.write(String.format(Locale.US,
+          "\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d," +
+          "\"args\":{\"name\":\"%s\"}}", r.tid, escape(r.threadName)));
+
+      long end = r.head;
+      long start = Math.max(0, end - CAPACITY);
+      int n = (int) (end - start);
+      String[] names = new String[n];
+      long[] nanos = new long[n];
+      long[] args = new long[n];
+      char[] phases = new char[n];
+      for (int k = 0; k < n; k++) {
+        int i = (int) (start + k) & MASK;
+        names[k] = r.names[i];
+        nanos[k] = r.nanos[i];
+        args[k] = r.args[i];
+        phases[k] = r.phases[i];
+      }
+      // Events before this index may have been overwritten during the copy.
+      int valid = (int) Math.max(0, r.head - CAPACITY - start);
+      for (int k = valid; k < n; k++) {
+        if (names[k] == null)
+          continue;
+        out.write(String.format(Locale.US,
+            ",\n{\"name\":\"%s\",\"ph\":\"%c\",\"pid\":1,\"tid\":%d," +
+            "\"ts\":%.3f", escape(names[k]), phases[k], r.tid,
+            nanos[k] / 1000.0));
+        if (args[k] != NO_ARG)
+          out.write(",\"args\":{\"frame\":" + args[k] + "}");
+        out.write('}');
+      }
+      if (dead)
+        rings.remove(r);
+    }
+    out.write("\n]}\n");
+    out.flush();
+  }
+
+  private static String escape(String s) {
+    return s.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+  private Tracer() {}
+}
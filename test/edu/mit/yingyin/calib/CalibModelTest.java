@@ -52,4 +52,61 @@ public class CalibModelTest {
     
     assertEquals(expectedString, calibModel.toString());
   }
+  
+  @Test
+  public void testLookupTable() {
+    CalibModel calibModel = new CalibModel(CALIB_FILE);
+    for (float y = 0.5f; y < 480; y += 7.3f)
+      for (float x = 0.5f; x < 640; x += 9.1f) {
+        Point2f exact = calibModel.imageToDisplayCoordsExact(x, y);
+        Point2f p = calibModel.imageToDisplayCoords(x, y);
+        assertEquals(exact.x, p.x, 0.5);
+        assertEquals(exact.y, p.y, 0.5);
+      }
+    // Outside the table.
+    Point2f exact = calibModel.imageToDisplayCoordsExact(-10, 500);
+    assertEquals(exact, calibModel.imageToDisplayCoords(-10, 500));
+    calibModel.release();
+  }
+  
+  @Test
+  public void testBatchConversion() {
+    CalibModel calibModel = new CalibModel(CALIB_FILE);
+    float[] points = {10, 20, 320, 240, 600.5f, 470.25f};
+    float[] display = new float[points.length];
+    calibModel.imageToDisplayCoords(points, display, 3);
+    for (int i = 0; i < 3; i++) {
+      Point2f p = calibModel.imageToDisplayCoordsExact(points[2 * i],
+                                                       points[2 * i + 1]);
+      assertEquals(p.x, display[2 * i], 1e-3);
+      assertEquals(p.y, display[2 * i + 1], 1e-3);
+    }
+    calibModel.release();
+  }
+  
+  @Test
+  public void testUndistortPoints() {
+    // Distorts normalized points with the Kinect parameters and checks that
+    // they are recovered.
+    double fx = 5.9421434211923247e+02, fy = 5.9104053696870778e+02;
+    double cx = 3.3930780975300314e+02, cy = 2.4273913761751615e+02;
+    double k1 = -2.6386489753128833e-01, k2 = 9.9966832163729757e-01;
+    double p1 = -7.6275862143610667e-04, p2 = 5.0350940090814270e-03;
+    double k3 = -1.3053628089976321e+00;
+    float[] normalized = {0, 0, 0.1f, -0.05f, -0.3f, 0.2f, 0.45f, 0.35f};
+    int n = normalized.length / 2;
+    float[] image = new float[normalized.length];
+    for (int i = 0; i < normalized.length; i += 2) {
+      double x = normalized[i], y = normalized[i + 1];
+      double r2 = x * x + y * y;
+      double radial = 1 + ((k3 * r2 + k2) * r2 + k1) * r2;
+      double xd = x * radial + 2 * p1 * x * y + p2 * (r2 + 2 * x * x);
+      double yd = y * radial + p1 * (r2 + 2 * y * y) + 2 * p2 * x * y;
+      image[i] = (float) (xd * fx + cx);
+      image[i + 1] = (float) (yd * fy + cy);
+    }
+    CalibModel.undistortPoints(image, image, n);
+    for (int i = 0; i < normalized.length; i++)
+      assertEquals(normalized[i], image[i], 1e-3);
+  }
 }
@@ -4,18 +4,40 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
+import edu.mit.yingyin.tabletop.models.ActivityIndexTest;
+import edu.mit.yingyin.tabletop.models.AllocationBudgetTest;
 import edu.mit.yingyin.tabletop.models.BackgroundTest;
 import edu.mit.yingyin.tabletop.models.CalibrationExampleTest;
+import edu.mit.yingyin.tabletop.models.DepthProjectionTest;
+import edu.mit.yingyin.tabletop.models.DepthRecordingTest;
+import edu.mit.yingyin.tabletop.models.EventFusionTest;
+import edu.mit.yingyin.tabletop.models.FingertipEvaluatorTest;
+import edu.mit.yingyin.tabletop.models.ForelimbFeatureDetectorTest;
+import edu.mit.yingyin.tabletop.models.FrameCacheTest;
+import edu.mit.yingyin.tabletop.models.GoldenOutputTest;
 import edu.mit.yingyin.tabletop.models.OpenNIDeviceTest;
+import edu.mit.yingyin.tabletop.models.PlaneEstimatorTest;
+import edu.mit.yingyin.tabletop.models.ReadAheadSourceTest;
+import edu.mit.yingyin.tabletop.models.SurfaceMapTest;
+import edu.mit.yingyin.tabletop.models.TableRegionTest;
 import edu.mit.yingyin.tabletop.models.HandTrackingEngineTest;
 import edu.mit.yingyin.tabletop.models.TableTest;
+import edu.mit.yingyin.tabletop.models.TrackingParametersTest;
 
 @RunWith(Suite.class)
 @SuiteClasses({OpenNIDeviceTest.class,
                TableTest.class, EnvTest.class,
                CvUtilTest.class, BackgroundTest.class, 
                CalibrationExampleTest.class, JavaCVTest.class,
-               HandTrackingEngineTest.class, 
+               DepthProjectionTest.class, GoldenOutputTest.class,
+               FingertipEvaluatorTest.class, FrameCacheTest.class,
+               TrackingParametersTest.class, EventFusionTest.class,
+               DepthRecordingTest.class, ReadAheadSourceTest.class,
+               ActivityIndexTest.class, TableRegionTest.class,
+               SurfaceMapTest.class, PlaneEstimatorTest.class,
+               HandTrackingEngineTest.class,
+               ForelimbFeatureDetectorTest.class,
+               AllocationBudgetTest.class,
                TableTest.class})
 
 public class TabletopTests {}
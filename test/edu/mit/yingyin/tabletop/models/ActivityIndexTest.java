@@ -0,0 +1,133 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ActivityIndexTest {
+  private static final int WIDTH = 32, HEIGHT = 24, STEP = 4, TABLE = 1000;
+
+  @Test
+  public void testCountForeground() {
+    ForegroundSampler sampler = sampler();
+    assertEquals(48, sampler.numSamples());
+    assertEquals(0, sampler.countForeground(frame(false)));
+    int[] depth = frame(true);
+    assertEquals(4, sampler.countForeground(depth));
+    assertEquals(2, sampler.countForeground(depth, 2));
+  }
+
+  @Test
+  public void testCountForegroundInRegion() {
+    // The right part of the frame, which covers a column of the hand.
+    TableRegion region = new TableRegion(12, 0, 20, HEIGHT);
+    int numSamples = (20 / STEP) * (HEIGHT / STEP);
+    float[] low = new float[numSamples], high = new float[numSamples];
+    Arrays.fill(low, TABLE - 5);
+    Arrays.fill(high, TABLE + 5);
+    ForegroundSampler sampler = new ForegroundSampler(WIDTH, HEIGHT, region,
+        STEP, low, high);
+    assertEquals(30, sampler.numSamples());
+    assertEquals(0, sampler.countForeground(frame(false)));
+    assertEquals(2, sampler.countForeground(frame(true)));
+  }
+
+  @Test
+  public void testThreshold() {
+    int[] counts = new int[40];
+    counts[20] = 5;
+    counts[30] = 1;
+    ActivityIndex index = new ActivityIndex(STEP, 48, counts);
+    index.setThreshold(2, 3);
+    assertEquals(7, index.numActive());
+    assertFalse(index.isActive(16));
+    assertTrue(index.isActive(17));
+    assertTrue(index.isActive(23));
+    assertFalse(index.isActive(30));
+    assertEquals(17, index.nextActive(0));
+    assertEquals(-1, index.nextActive(24));
+    assertEquals(23, index.previousActive(39));
+  }
+
+  @Test
+  public void testBuildAndSkip() throws IOException {
+    File file = File.createTempFile("recording", DepthRecording.SUFFIX);
+    file.deleteOnExit();
+    int numFrames = 100, first = ForelimbFeatureDetector.BG_INIT_FRAMES - 10;
+    DepthRecorder recorder = new DepthRecorder(file, WIDTH, HEIGHT, 0, 0,
+        DepthRecording.CODEC_DELTA, numFrames);
+    for (int i = 0; i < numFrames; i++) {
+      boolean hand = i >= 50 && i < 55;
+      recorder.record(first + i, i, frame(hand), null);
+    }
+    recorder.close();
+    DepthRecording recording = DepthRecording.open(file);
+    ActivityIndex index = ActivityIndex.build(recording, sampler());
+    index.setThreshold(1, 2);
+    // The background frames, including the one the model is created at.
+    assertEquals(ActivityIndex.NOT_MEASURED, index.foreground(10));
+    assertEquals(0, index.foreground(11));
+    assertEquals(4, index.foreground(50));
+    // The background frames and the hand, with 2 frames on either side.
+    assertEquals(11 + 2 + 9, index.numActive());
+
+    File indexFile = ActivityIndex.fileFor(file);
+    indexFile.deleteOnExit();
+    index.save(indexFile);
+    ActivityIndex loaded = ActivityIndex.load(indexFile);
+    assertEquals(numFrames, loaded.numFrames());
+    assertEquals(STEP, loaded.step());
+    assertEquals(4, loaded.foreground(52));
+
+    DepthRecording.Player player = recording.newPlayer();
+    player.skipIdle(index);
+    int[] played = new int[index.numActive() + 1];
+    for (int i = 0; i < played.length; i++) {
+      player.waitDepthUpdateAll();
+      played[i] = player.index();
+    }
+    assertEquals(12, played[12]);
+    assertEquals(48, played[13]);
+    assertEquals(56, played[21]);
+    // Restarts from the first active frame.
+    assertEquals(0, played[22]);
+    assertEquals(48 - 13 + 100 - 57, player.numIdleSkipped());
+
+    // Without padding, the frames the engine learns the background from are
+    // still played.
+    index.setThreshold(1, 0);
+    assertTrue(index.isActive(10));
+    assertFalse(index.isActive(11));
+    assertEquals(11 + 5, index.numActive());
+  }
+
+  private static ForegroundSampler sampler() {
+    int numSamples = (WIDTH / STEP) * (HEIGHT / STEP);
+    float[] low = new float[numSamples], high = new float[numSamples];
+    Arrays.fill(low, TABLE - 5);
+    Arrays.fill(high, TABLE + 5);
+    return new ForegroundSampler(WIDTH, HEIGHT, STEP, low, high);
+  }
+
+  /**
+   * @return a frame of the table with a noisy pixel between the samples, and
+   *    an optional 8 x 8 hand covering 4 samples.
+   */
+  private static int[] frame(boolean hand) {
+    int[] depth = new int[WIDTH * HEIGHT];
+    Arrays.fill(depth, TABLE);
+    depth[WIDTH + 1] = 0;
+    if (hand) {
+      for (int y = 8; y < 16; y++)
+        for (int x = 8; x < 16; x++)
+          depth[y * WIDTH + x] = TABLE - 80;
+    }
+    return depth;
+  }
+}
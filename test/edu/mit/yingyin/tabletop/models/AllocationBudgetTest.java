@@ -0,0 +1,134 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.mit.yingyin.calib.CalibModel;
+import edu.mit.yingyin.util.CvUtil;
+
+/**
+ * Runs the engine over a recorded background with a synthetic forelimb moving
+ * over it, and checks that the allocation per frame in steady state stays
+ * within budget. The measured values are logged, so that the budgets can be
+ * checked against a run.
+ *
+ * The budgets are derived from the code rather than from a measured run.
+ * The native budget is a count: with one forelimb in view, a frame creates
+ * its hull and the two matrices of the hand PCA. Images and matrices created
+ * other than through <code>CvUtil.createImage</code> and
+ * <code>CvUtil.createMat</code> are not counted.
+ *
+ * The heap budget is dominated by the points of the hand, at most the
+ * 100 x 80 = 8000 pixels of the synthetic hand. With compressed references,
+ * <code>HandFeatureDetector</code> allocates per point about
+ * <ul>
+ * <li>60 bytes to convert it to the world: a <code>Point3D</code>, its
+ *     converted copy, and their array and list slots,
+ * <li>48 bytes for the aligned point cloud: a <code>Point3f</code> and a
+ *     <code>LinkedList</code> node,
+ * <li>80 bytes to convert it back to the image: a <code>Point3f</code>, two
+ *     <code>Point3D</code>s and their array slots,
+ * </ul>
+ * i.e. about 190 bytes per point or 1.5 MB per frame. The rest of a frame
+ * allocates a few KB in contours, features and events. The 2 MB budget leaves
+ * a third as margin for the allocations of the OpenNI conversions, and is far
+ * below one extra <code>Point3D</code> per pixel of the frame (7.4 MB).
+ *
+ * The budgets can be changed with the system properties
+ * <code>tabletop.alloc.bytesPerFrame</code> and
+ * <code>tabletop.alloc.nativePerFrame</code>.
+ */
+public class AllocationBudgetTest {
+  private static final Logger LOGGER = Logger.getLogger(
+      AllocationBudgetTest.class.getName());
+  private static final String CALIB_FILE = "test_data/calibration.txt";
+  private static final long BYTES_PER_FRAME = Long.getLong(
+      "tabletop.alloc.bytesPerFrame", 2 << 20);
+  private static final long NATIVE_PER_FRAME = Long.getLong(
+      "tabletop.alloc.nativePerFrame", 3);
+  /**
+   * Frames needed to initialize the background.
+   */
+  private static final int BACKGROUND_FRAMES = 60;
+  private static final int WARMUP_FRAMES = 100;
+  private static final int MEASURED_FRAMES = 100;
+  /**
+   * Number of frames in a cycle of the forelimb motion.
+   */
+  private static final int MOTION_FRAMES = 20;
+
+  private HandTrackingEngine engine;
+  private ProcessPacket packet;
+
+  @Before
+  public void setUp() throws IOException {
+    int[] background = SyntheticFrames.readBackground();
+    int[][] motion = new int[MOTION_FRAMES][];
+    for (int i = 0; i < MOTION_FRAMES; i++)
+      motion[i] = SyntheticFrames.withForelimb(background, i * 4);
+    // The background frames followed by the forelimb sweeping repeatedly.
+    int[][] frames = new int[BACKGROUND_FRAMES + WARMUP_FRAMES + 
+                             MEASURED_FRAMES][];
+    for (int i = 0; i < frames.length; i++) {
+      frames[i] = i < BACKGROUND_FRAMES ? background : 
+          motion[(i - BACKGROUND_FRAMES) % MOTION_FRAMES];
+    }
+    RawFrameSource source = new RawFrameSource(SyntheticFrames.WIDTH,
+        SyntheticFrames.HEIGHT, frames);
+    engine = new HandTrackingEngine(source, new CalibModel(CALIB_FILE));
+    packet = new ProcessPacket(SyntheticFrames.WIDTH, SyntheticFrames.HEIGHT,
+                               source);
+  }
+
+  @After
+  public void tearDown() {
+    packet.release();
+    engine.release();
+  }
+
+  @Test
+  public void testSteadyStateAllocation() {
+    java.lang.management.ThreadMXBean bean =
+        ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+
+    for (int i = 0; i < BACKGROUND_FRAMES + WARMUP_FRAMES; i++)
+      engine.step(packet);
+    assertTrue(engine.interactionSurfaceInitialized());
+
+    long threadID = Thread.currentThread().getId();
+    long bytesBefore = threadBean.getThreadAllocatedBytes(threadID);
+    long nativeBefore = CvUtil.nativeAllocations();
+    int framesWithForelimbs = 0;
+    for (int i = 0; i < MEASURED_FRAMES; i++) {
+      engine.step(packet);
+      if (!packet.forelimbFeatures.isEmpty())
+        framesWithForelimbs++;
+    }
+    long bytesPerFrame = (threadBean.getThreadAllocatedBytes(threadID) -
+        bytesBefore) / MEASURED_FRAMES;
+    long nativePerFrame = (CvUtil.nativeAllocations() - nativeBefore) /
+        MEASURED_FRAMES;
+    LOGGER.info(String.format("%d bytes and %d native allocations per frame.",
+                              bytesPerFrame, nativePerFrame));
+
+    assertTrue("The synthetic forelimb is not detected.",
+               framesWithForelimbs > 0);
+    assertTrue(String.format("%d bytes allocated per frame, budget is %d.",
+        bytesPerFrame, BYTES_PER_FRAME), bytesPerFrame <= BYTES_PER_FRAME);
+    assertTrue(String.format("%d native allocations per frame, budget is %d.",
+        nativePerFrame, NATIVE_PER_FRAME), nativePerFrame <= NATIVE_PER_FRAME);
+  }
+}
@@ -0,0 +1,36 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+
+import org.OpenNI.Point3D;
+import org.junit.Test;
+
+public class DepthProjectionTest {
+  private static final float EPSILON = 1e-3f;
+
+  @Test
+  public void testCenterIsOnAxis() {
+    DepthProjection projection = new DepthProjection(640, 480);
+    Point3D[] world = projection.convertProjectiveToRealWorld(
+        new Point3D[] {new Point3D(320, 240, 1000)});
+    assertEquals(0, world[0].getX(), EPSILON);
+    assertEquals(0, world[0].getY(), EPSILON);
+    assertEquals(-1000, world[0].getZ(), EPSILON);
+  }
+
+  @Test
+  public void testRoundTrip() {
+    DepthProjection projection = new DepthProjection(640, 480);
+    Point3D[] points = {new Point3D(10, 20, 800), new Point3D(600, 400, 1200)};
+    Point3D[] projective = projection.convertRealWorldToProjective(
+        projection.convertProjectiveToRealWorld(points));
+    for (int i = 0; i < points.length; i++) {
+      assertEquals(points[i].getX(), projective[i].getX(), EPSILON);
+      assertEquals(points[i].getY(), projective[i].getY(), EPSILON);
+      assertEquals(points[i].getZ(), projective[i].getZ(), EPSILON);
+    }
+    // Upper left of the image is to the left and above the optical axis.
+    Point3D world = projection.convertProjectiveToRealWorld(points)[0];
+    assertEquals(true, world.getX() < 0 && world.getY() > 0);
+  }
+}
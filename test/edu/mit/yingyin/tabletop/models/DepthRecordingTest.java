@@ -0,0 +1,251 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DepthRecordingTest {
+  private static final int WIDTH = 64, HEIGHT = 48;
+
+  @Test
+  public void testCodec() {
+    int[] depth = tabletop(0, new Random(1));
+    byte[] encoded = new byte[DepthCodec.maxEncodedSize(depth.length) + 3];
+    int length = DepthCodec.encode(depth, WIDTH, HEIGHT, encoded, 3);
+    assertTrue(length < depth.length);
+    int[] decoded = new int[depth.length];
+    DepthCodec.decode(encoded, 3, length, WIDTH, HEIGHT, decoded);
+    assertArrayEquals(depth, decoded);
+  }
+
+  @Test
+  public void testCodecRecordedFrame() throws IOException {
+    int[] background = SyntheticFrames.readBackground();
+    int[][] frames = {background, SyntheticFrames.withForelimb(background, 0)};
+    byte[] encoded = new byte[DepthCodec.maxEncodedSize(background.length)];
+    int[] decoded = new int[background.length];
+    for (int[] depth : frames) {
+      int length = DepthCodec.encode(depth, SyntheticFrames.WIDTH,
+          SyntheticFrames.HEIGHT, encoded, 0);
+      assertTrue(length < depth.length);
+      DepthCodec.decode(encoded, 0, length, SyntheticFrames.WIDTH,
+                        SyntheticFrames.HEIGHT, decoded);
+      assertArrayEquals(depth, decoded);
+    }
+  }
+
+  @Test
+  public void testCodecWorstCase() {
+    Random random = new Random(2);
+    int[] depth = new int[WIDTH * HEIGHT];
+    for (int i = 0; i < depth.length; i++)
+      depth[i] = random.nextBoolean() ? 0 : 65535 - random.nextInt(3);
+    byte[] encoded = new byte[DepthCodec.maxEncodedSize(depth.length)];
+    int length = DepthCodec.encode(depth, WIDTH, HEIGHT, encoded, 0);
+    int[] decoded = new int[depth.length];
+    DepthCodec.decode(encoded, 0, length, WIDTH, HEIGHT, decoded);
+    assertArrayEquals(depth, decoded);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCorruptFrame() {
+    int[] depth = tabletop(0, new Random(3));
+    byte[] encoded = new byte[DepthCodec.maxEncodedSize(depth.length)];
+    int length = DepthCodec.encode(depth, WIDTH, HEIGHT, encoded, 0);
+    DepthCodec.decode(encoded, 0, length - 1, WIDTH, HEIGHT,
+                      new int[depth.length]);
+  }
+
+  @Test
+  public void testRecordDelta() throws IOException {
+    testRecord(DepthRecording.CODEC_DELTA);
+  }
+
+  @Test
+  public void testRecordRaw() throws IOException {
+    testRecord(DepthRecording.CODEC_RAW);
+  }
+
+  private void testRecord(int codec) throws IOException {
+    File file = File.createTempFile("recording", DepthRecording.SUFFIX);
+    file.deleteOnExit();
+    int numFrames = 20, imageWidth = 8, imageHeight = 6;
+    Random random = new Random(4);
+    int[][] frames = new int[numFrames][];
+    byte[] image = new byte[imageWidth * imageHeight * 3];
+    DepthRecorder recorder = new DepthRecorder(file, WIDTH, HEIGHT,
+        imageWidth, imageHeight, codec, numFrames);
+    for (int i = 0; i < numFrames; i++) {
+      frames[i] = tabletop(i, random);
+      image[0] = (byte) i;
+      assertTrue(recorder.record(i + 10, i * 33333L, frames[i],
+                                 i % 2 == 0 ? ByteBuffer.wrap(image) : null));
+    }
+    recorder.close();
+    assertEquals(numFrames, recorder.numRecorded());
+
+    DepthRecording recording = DepthRecording.open(file);
+    assertEquals(numFrames, recording.numFrames());
+    assertEquals(WIDTH, recording.width());
+    assertEquals(HEIGHT, recording.height());
+    assertEquals(codec, recording.codec());
+    assertTrue(recording.hasImages());
+    int[] depth = new int[WIDTH * HEIGHT];
+    byte[] decodedImage = new byte[image.length];
+    // Reads backwards to exercise seeking.
+    for (int i = numFrames - 1; i >= 0; i--) {
+      assertEquals(i + 10, recording.frameID(i));
+      assertEquals(i * 33333L, recording.timestamp(i));
+      recording.readDepth(i, depth);
+      assertArrayEquals(frames[i], depth);
+      if (i % 2 == 0) {
+        assertTrue(recording.readImage(i, decodedImage));
+        assertEquals(i, decodedImage[0]);
+      } else {
+        assertFalse(recording.readImage(i, decodedImage));
+      }
+    }
+  }
+
+  @Test
+  public void testPlayerSeek() throws IOException {
+    File file = File.createTempFile("recording", DepthRecording.SUFFIX);
+    file.deleteOnExit();
+    int[][] frames = new int[10][];
+    DepthRecorder recorder = new DepthRecorder(file, WIDTH, HEIGHT, 0, 0,
+        DepthRecording.CODEC_DELTA, frames.length);
+    Random random = new Random(6);
+    for (int i = 0; i < frames.length; i++) {
+      frames[i] = tabletop(i, random);
+      recorder.record(i, i, frames[i], null);
+    }
+    recorder.close();
+
+    DepthRecording.Player player = DepthRecording.open(file).newPlayer();
+    int[] depth = new int[WIDTH * HEIGHT];
+    player.waitDepthUpdateAll();
+    assertEquals(0, player.index());
+    player.seekBy(7);
+    player.waitDepthUpdateAll();
+    assertEquals(7, player.getDepthFrameID());
+    player.getDepthArray(depth);
+    assertArrayEquals(frames[7], depth);
+    player.seekBy(-5);
+    player.waitDepthUpdateAll();
+    assertEquals(2, player.index());
+    player.seek(100);
+    player.waitDepthUpdateAll();
+    assertEquals(9, player.index());
+    // Restarts after the last frame.
+    player.waitDepthUpdateAll();
+    assertEquals(0, player.index());
+  }
+
+  @Test
+  public void testRawFile() throws IOException {
+    File file = File.createTempFile("depth", DepthRecording.RAW_SUFFIX);
+    file.deleteOnExit();
+    int numFrames = 3;
+    ByteBuffer bytes = ByteBuffer.allocate(numFrames * WIDTH * HEIGHT * 2 + 1).
+        order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < numFrames * WIDTH * HEIGHT; i++)
+      bytes.putShort((short) (60000 + i % 5000));
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes.array());
+    } finally {
+      out.close();
+    }
+
+    DepthRecording recording = DepthRecording.openRaw(file, WIDTH, HEIGHT);
+    // The incomplete frame at the end is ignored.
+    assertEquals(numFrames, recording.numFrames());
+    assertEquals(2, recording.frameID(2));
+    ShortBuffer frame = recording.frame(2);
+    assertEquals(WIDTH * HEIGHT, frame.remaining());
+    assertTrue(frame.isReadOnly());
+    int first = 2 * WIDTH * HEIGHT;
+    assertEquals(60000 + first % 5000, frame.get(0) & 0xffff);
+    int[] depth = new int[WIDTH * HEIGHT];
+    recording.readDepth(2, depth);
+    assertEquals(60000 + (first + 1) % 5000, depth[1]);
+    assertFalse(recording.readImage(2, new byte[0]));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testCompressedFrameView() throws IOException {
+    File file = File.createTempFile("recording", DepthRecording.SUFFIX);
+    file.deleteOnExit();
+    DepthRecorder recorder = new DepthRecorder(file, WIDTH, HEIGHT);
+    recorder.record(0, 0, tabletop(0, new Random(7)), null);
+    recorder.close();
+    DepthRecording.open(file).frame(0);
+  }
+
+  @Test(expected = IOException.class)
+  public void testIncompleteRecording() throws IOException {
+    File file = File.createTempFile("recording", DepthRecording.SUFFIX);
+    file.deleteOnExit();
+    DepthRecorder recorder = new DepthRecorder(file, WIDTH, HEIGHT);
+    recorder.record(0, 0, tabletop(0, new Random(5)), null);
+    try {
+      // The index is only written when the recorder is closed.
+      DepthRecording.open(file);
+    } finally {
+      recorder.close();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testEmptyRecording() throws IOException {
+    File file = File.createTempFile("recording", DepthRecording.SUFFIX);
+    file.deleteOnExit();
+    new DepthRecorder(file, WIDTH, HEIGHT).close();
+    DepthRecording.open(file);
+  }
+
+  @Test(expected = IOException.class)
+  public void testRawFileWithoutFrame() throws IOException {
+    File file = File.createTempFile("depth", DepthRecording.RAW_SUFFIX);
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(new byte[WIDTH * HEIGHT * 2 - 1]);
+    } finally {
+      out.close();
+    }
+    DepthRecording.openRaw(file, WIDTH, HEIGHT);
+  }
+
+  /**
+   * @return a frame of a tilted table with a moving hand, sensor noise and
+   *    missing depth.
+   */
+  private static int[] tabletop(int frame, Random random) {
+    int[] depth = new int[WIDTH * HEIGHT];
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        int d = 1200 + y / 4;
+        if (Math.abs(x - 10 - frame) < 6 && Math.abs(y - 20) < 8)
+          d -= 60 + random.nextInt(3);
+        if (x > WIDTH - 5)
+          d = 0;
+        else if (random.nextInt(10) == 0)
+          d += random.nextInt(3) - 1;
+        depth[y * WIDTH + x] = d;
+      }
+    }
+    return depth;
+  }
+}
@@ -0,0 +1,194 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.vecmath.Point2f;
+import javax.vecmath.Point3f;
+
+import org.OpenNI.Point3D;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.mit.yingyin.tabletop.models.EventFusion.SpatialHash;
+import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent.FingerEventType;
+import edu.mit.yingyin.tabletop.models.HandTrackingEngine.IHandEventListener;
+
+public class EventFusionTest {
+  private static final float EPS = 1e-4f;
+  private static final long MS = 1000000L;
+
+  private EventFusion fusion;
+  private List<List<ManipulativeEvent>> fused;
+  private List<DiecticEvent> pointed;
+
+  @Before
+  public void setUp() {
+    fusion = new EventFusion(2, 10, 15 * MS);
+    fused = new ArrayList<List<ManipulativeEvent>>();
+    pointed = new ArrayList<DiecticEvent>();
+    fusion.addListener(new IHandEventListener() {
+      @Override
+      public void fingerPressed(List<ManipulativeEvent> feList) {
+        fused.add(feList);
+      }
+
+      @Override
+      public void fingerPointed(DiecticEvent de) {
+        pointed.add(de);
+      }
+    });
+  }
+
+  @Test
+  public void testMergeOverlap() {
+    frame(0, 100 * MS, 100, 100, 500, 500);
+    assertEquals(0, pointed.size());
+    frame(1, 105 * MS, 104, 103, 900, 900);
+
+    assertEquals(1, fused.size());
+    List<ManipulativeEvent> events = fused.get(0);
+    assertEquals(3, events.size());
+    assertEquals(102, events.get(0).posDisplay.x, EPS);
+    assertEquals(101.5f, events.get(0).posDisplay.y, EPS);
+    assertEquals(500, events.get(1).posDisplay.x, EPS);
+    assertEquals(900, events.get(2).posDisplay.x, EPS);
+    assertEquals(1, events.get(0).frameID);
+    assertEquals(100 * MS, events.get(0).frameReadyNanos);
+    assertEquals(1, pointed.size());
+  }
+
+  @Test
+  public void testAlignByTime() {
+    // Frames too far apart are not fused.
+    frame(0, 100 * MS, 100, 100);
+    frame(1, 130 * MS, 100, 100);
+    assertEquals(2, fused.size());
+    assertEquals(1, fused.get(0).size());
+    assertEquals(100 * MS, fused.get(0).get(0).frameReadyNanos);
+    assertEquals(130 * MS, fused.get(1).get(0).frameReadyNanos);
+    assertEquals(2, pointed.size());
+  }
+
+  @Test
+  public void testStalledSensor() {
+    frame(0, 100 * MS, 100, 100);
+    // Sensor 0 delivers again before sensor 1.
+    frame(0, 133 * MS, 200, 200);
+    assertEquals(1, fused.size());
+    assertEquals(100, fused.get(0).get(0).posDisplay.x, EPS);
+    fusion.flush();
+    assertEquals(2, fused.size());
+    assertEquals(200, fused.get(1).get(0).posDisplay.x, EPS);
+  }
+
+  @Test
+  public void testBoundedEvents() {
+    float[] xy = new float[2 * (EventFusion.MAX_EVENTS_PER_FRAME + 10)];
+    for (int i = 0; i < xy.length; i += 2)
+      xy[i] = i * 100;
+    frame(0, 100 * MS, xy);
+    frame(1, 100 * MS);
+    assertEquals(EventFusion.MAX_EVENTS_PER_FRAME, fused.get(0).size());
+  }
+
+  @Test
+  public void testMergePointing() {
+    IHandEventListener l0 = fusion.sensorListener(0),
+                       l1 = fusion.sensorListener(1);
+    l0.fingerPointed(pointing(100 * MS, 50, 50));
+    l1.fingerPointed(pointing(101 * MS, 52, 50));
+    assertEquals(0, fused.size());
+    assertEquals(1, pointed.size());
+    Point2f[] locations = pointed.get(0).pointingLocationsD();
+    assertEquals(1, locations.length);
+    assertEquals(51, locations[0].x, EPS);
+    assertEquals(1, pointed.get(0).pointingLocationsI().length);
+  }
+
+  @Test
+  public void testCloseFingertipsOfOneSensor() {
+    // Two fingertips of sensor 0 within the merge radius, and one of sensor 1
+    // close to both.
+    frame(0, 100 * MS, 100, 100, 106, 100);
+    frame(1, 101 * MS, 103, 100);
+    List<ManipulativeEvent> events = fused.get(0);
+    assertEquals(2, events.size());
+    assertEquals(101.5f, events.get(0).posDisplay.x, EPS);
+    assertEquals(106, events.get(1).posDisplay.x, EPS);
+  }
+
+  @Test
+  public void testListenersCalledWithoutLock() {
+    final boolean[] locked = new boolean[1];
+    fusion.addListener(new IHandEventListener() {
+      @Override
+      public void fingerPressed(List<ManipulativeEvent> feList) {
+        locked[0] |= Thread.holdsLock(fusion);
+      }
+
+      @Override
+      public void fingerPointed(DiecticEvent de) {
+        locked[0] |= Thread.holdsLock(fusion);
+        // Calls back while delivering.
+        fusion.flush();
+      }
+    });
+    frame(0, 100 * MS, 100, 100);
+    frame(0, 133 * MS, 200, 200);
+    fusion.flush();
+    assertEquals(2, fused.size());
+    assertFalse(locked[0]);
+  }
+
+  @Test
+  public void testSpatialHash() {
+    SpatialHash hash = new SpatialHash(10, 4);
+    assertEquals(0, hash.insert(-5, -5, 0));
+    assertEquals(1, hash.insert(20, 20, 0));
+    assertEquals(0, hash.find(3, 0, 1));
+    assertEquals(1, hash.find(26, 26, 1));
+    assertEquals(-1, hash.find(40, 40, 1));
+    // Points of the same sensor are not found.
+    assertEquals(-1, hash.find(3, 0, 0));
+    hash.merge(0, 1);
+    assertEquals(-1, hash.find(3, 0, 1));
+    hash.clear();
+    assertEquals(-1, hash.find(-5, -5, 1));
+  }
+
+  /**
+   * Delivers a frame of finger events at display positions <code>xy</code>
+   * from <code>sensor</code>.
+   */
+  private void frame(int sensor, long frameReadyNanos, float... xy) {
+    IHandEventListener l = fusion.sensorListener(sensor);
+    List<ManipulativeEvent> events = new ArrayList<ManipulativeEvent>();
+    for (int i = 0; i < xy.length; i += 2) {
+      ManipulativeEvent fe = new ManipulativeEvent(new Point3f(),
+          new Point2f(xy[i], xy[i + 1]), 1, FingerEventType.PRESSED);
+      fe.frameReadyNanos = frameReadyNanos;
+      events.add(fe);
+    }
+    if (!events.isEmpty())
+      l.fingerPressed(events);
+    l.fingerPointed(pointing(frameReadyNanos));
+  }
+
+  private static DiecticEvent pointing(long frameReadyNanos, float... xy) {
+    int n = xy.length / 2;
+    Point3D[] pointsI = new Point3D[n], pointsW = new Point3D[n];
+    Point2f[] pointsD = new Point2f[n];
+    for (int i = 0; i < n; i++) {
+      pointsI[i] = new Point3D(0, 0, 0);
+      pointsW[i] = new Point3D(0, 0, 0);
+      pointsD[i] = new Point2f(xy[2 * i], xy[2 * i + 1]);
+    }
+    return new DiecticEvent(pointsI, pointsW, pointsD, 0, frameReadyNanos);
+  }
+}
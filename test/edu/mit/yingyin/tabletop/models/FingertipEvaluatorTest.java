@@ -0,0 +1,120 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.vecmath.Point2f;
+import javax.vecmath.Point3f;
+
+import org.junit.Test;
+
+import edu.mit.yingyin.tabletop.models.FingertipEvaluator.GroundTruth;
+import edu.mit.yingyin.tabletop.models.FingertipEvaluator.Result;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent;
+import edu.mit.yingyin.tabletop.models.HandTracker.ManipulativeEvent.FingerEventType;
+
+public class FingertipEvaluatorTest {
+  private static final float EPS = 1e-6f;
+
+  @Test
+  public void testGroundTruthFrames() {
+    GroundTruth gt = new GroundTruth(new int[] {3, 3, 5},
+        new float[][] {{0, 0}, {1, 1}, {2, 2}});
+    assertEquals(2, gt.numFrames());
+    assertEquals(3, gt.numPoints());
+    assertEquals(2, gt.numPoints(gt.indexOf(3)));
+    assertEquals(1, gt.numPoints(gt.indexOf(5)));
+    assertEquals(true, gt.indexOf(4) < 0);
+  }
+
+  @Test
+  public void testFingertips() {
+    // Frames 10 and 11 form one click, frame 20 another.
+    GroundTruth gt = new GroundTruth(new int[] {10, 10, 11, 20},
+        new float[][] {{100, 100}, {200, 100}, {100, 100}, {50, 50}});
+    FingertipEvaluator evaluator = new FingertipEvaluator(gt);
+
+    evaluator.fingerPressed(events(5, 0, 0));
+    evaluator.fingerPressed(events(10, 203, 104, 100, 101));
+    evaluator.fingerPressed(events(11, 100, 100, 300, 300));
+    evaluator.finish();
+
+    Result r = evaluator.result();
+    assertEquals(3, r.truePositives);
+    // Frame 5 and the extra event at frame 11.
+    assertEquals(2, r.falsePositives);
+    // Frame 20 has no event.
+    assertEquals(1, r.falseNegatives);
+    assertEquals((5 + 1) / 3.0, r.meanError(), EPS);
+    assertEquals(3, r.xOffset, EPS);
+    assertEquals(5, r.yOffset, EPS);
+
+    assertEquals(1, r.clickTruePositives);
+    assertEquals(1, r.clickFalsePositives);
+    assertEquals(1, r.clickFalseNegatives);
+    assertEquals(0.5, r.clickPrecision(), EPS);
+    assertEquals(0.5, r.clickRecall(), EPS);
+  }
+
+  @Test
+  public void testResultBeforeFinish() {
+    GroundTruth gt = new GroundTruth(new int[] {1, 2, 8},
+        new float[][] {{0, 0}, {0, 0}, {0, 0}});
+    FingertipEvaluator evaluator = new FingertipEvaluator(gt);
+    evaluator.fingerPressed(events(2, 0, 0));
+    Result r = evaluator.result();
+    assertEquals(1, r.truePositives);
+    assertEquals(1, r.falseNegatives);
+    assertEquals(1, r.clickTruePositives);
+    assertEquals(0, r.clickFalseNegatives);
+
+    evaluator.finish();
+    r = evaluator.result();
+    assertEquals(2, r.falseNegatives);
+    assertEquals(1, r.clickFalseNegatives);
+  }
+
+  @Test
+  public void testClicksAsEvalClicks() {
+    // Frames 10 to 12 form one click.
+    GroundTruth gt = new GroundTruth(new int[] {10, 11, 12},
+        new float[][] {{0, 0}, {0, 0}, {0, 0}});
+    FingertipEvaluator evaluator = new FingertipEvaluator(gt);
+    // Each event before the click is a false positive.
+    evaluator.fingerPressed(events(3, 0, 0, 10, 10));
+    evaluator.fingerPressed(events(11, 0, 0, 10, 10));
+    evaluator.fingerPressed(events(12, 0, 0));
+    // Events after the last click are not counted.
+    evaluator.fingerPressed(events(20, 0, 0));
+    evaluator.finish();
+
+    Result r = evaluator.result();
+    assertEquals(1, r.clickTruePositives);
+    assertEquals(2, r.clickFalsePositives);
+    assertEquals(0, r.clickFalseNegatives);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testOutOfOrderFrames() {
+    FingertipEvaluator evaluator = new FingertipEvaluator(
+        new GroundTruth(new int[0], new float[0][]));
+    evaluator.fingerPressed(events(2, 0, 0));
+    evaluator.fingerPressed(events(1, 0, 0));
+  }
+
+  /**
+   * @param frameID
+   * @param xy image coordinates of the events.
+   * @return finger events in a frame.
+   */
+  private static List<ManipulativeEvent> events(int frameID, float... xy) {
+    List<ManipulativeEvent> list = new ArrayList<ManipulativeEvent>();
+    for (int i = 0; i < xy.length; i += 2) {
+      list.add(new ManipulativeEvent(new Point3f(xy[i], xy[i + 1], 0),
+          new Point2f(), frameID, FingerEventType.PRESSED));
+    }
+    return list;
+  }
+}
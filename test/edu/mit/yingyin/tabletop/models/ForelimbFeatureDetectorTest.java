@@ -0,0 +1,94 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.OpenNI.StatusException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.mit.yingyin.tabletop.models.ProcessPacket.Stage;
+import edu.mit.yingyin.util.Metrics;
+
+public class ForelimbFeatureDetectorTest {
+  /**
+   * Frames of the empty table after the background is learned.
+   */
+  private static final int IDLE_FRAMES = 5;
+  private static final Metrics.Counter IDLE_COUNTER = Metrics.counter(
+      ForelimbFeatureDetector.class.getSimpleName(), "idle_frames_total", "");
+
+  private RawFrameSource source;
+  private ForelimbFeatureDetector detector;
+  private ProcessPacket packet;
+
+  @Before
+  public void setUp() throws IOException {
+    int[] background = SyntheticFrames.readBackground();
+    // The background, empty frames, a frame with a hand and an empty frame.
+    int[][] frames = new int[ForelimbFeatureDetector.BG_INIT_FRAMES + 1 +
+                             IDLE_FRAMES + 2][];
+    for (int i = 0; i < frames.length; i++)
+      frames[i] = background;
+    frames[frames.length - 2] = SyntheticFrames.withForelimb(background, 0);
+    source = new RawFrameSource(SyntheticFrames.WIDTH, SyntheticFrames.HEIGHT,
+                                frames);
+    detector = new ForelimbFeatureDetector(SyntheticFrames.WIDTH,
+        SyntheticFrames.HEIGHT, source);
+    packet = new ProcessPacket(SyntheticFrames.WIDTH, SyntheticFrames.HEIGHT,
+                               source);
+  }
+
+  @After
+  public void tearDown() {
+    packet.release();
+    detector.interactionSurface().release();
+    detector.release();
+  }
+
+  @Test
+  public void testIdleFramesSkipPipeline() throws StatusException {
+    for (int i = 0; i <= ForelimbFeatureDetector.BG_INIT_FRAMES; i++)
+      detectNext();
+    assertFalse(detector.isCalibratingBackground());
+
+    long idleBefore = IDLE_COUNTER.get();
+    for (int i = 0; i < IDLE_FRAMES; i++) {
+      detectNext();
+      assertTrue(detector.isIdle(packet));
+      assertEquals(0, packet.stageNanos(Stage.PREPROCESSED));
+      assertTrue(packet.forelimbs.isEmpty());
+    }
+    if (Metrics.ENABLED)
+      assertEquals(IDLE_FRAMES, IDLE_COUNTER.get() - idleBefore);
+
+    // The first frame with a hand goes through the full pipeline.
+    detectNext();
+    assertFalse(detector.isIdle(packet));
+    assertTrue(packet.stageNanos(Stage.MODEL) != 0);
+    assertFalse(packet.forelimbs.isEmpty());
+    int hand = SyntheticFrames.handPixel();
+    assertTrue(packet.depthImage32F.getFloatBuffer().get(hand) != 0);
+
+    // The images of an idle frame do not keep the last hand.
+    detectNext();
+    assertTrue(detector.isIdle(packet));
+    assertEquals(0, packet.depthImage32F.getFloatBuffer().get(hand), 0);
+    assertEquals(0, packet.depthImageBlur32F.getFloatBuffer().get(hand), 0);
+    assertEquals(0, packet.foregroundMask.getByteBuffer().get(hand));
+    if (Metrics.ENABLED)
+      assertEquals(IDLE_FRAMES + 1, IDLE_COUNTER.get() - idleBefore);
+  }
+
+  private void detectNext() throws StatusException {
+    source.waitDepthUpdateAll();
+    source.getDepthArray(packet.depthRawData);
+    packet.depthFrameID = source.getDepthFrameID();
+    packet.resetStages();
+    detector.detect(packet);
+  }
+}
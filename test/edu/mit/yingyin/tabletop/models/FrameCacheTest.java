@@ -0,0 +1,65 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+
+import org.OpenNI.StatusException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FrameCacheTest {
+  private static final int WIDTH = 4, HEIGHT = 3, NUM_FRAMES = 5;
+
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("FrameCacheTest", FrameCache.SUFFIX);
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testDecodeAndPlay() throws IOException, StatusException {
+    int[][] frames = new int[NUM_FRAMES][WIDTH * HEIGHT];
+    for (int f = 0; f < NUM_FRAMES; f++)
+      for (int i = 0; i < WIDTH * HEIGHT; i++)
+        frames[f][i] = f * 10000 + i;
+    RawFrameSource raw = new RawFrameSource(WIDTH, HEIGHT, frames);
+    // The raw source loops forever, so the number of frames is limited.
+    FrameCache cache = FrameCache.decode(raw, NUM_FRAMES, file);
+
+    assertEquals(WIDTH, cache.width());
+    assertEquals(HEIGHT, cache.height());
+    assertEquals(NUM_FRAMES, cache.numFrames());
+    ShortBuffer frame = cache.frame(4);
+    assertEquals(40000 + 11, frame.get(11) & 0xffff);
+
+    FrameCache reopened = FrameCache.open(file);
+    IFrameSource source = reopened.newSource();
+    int[] depth = new int[WIDTH * HEIGHT];
+    for (int f = 0; f < NUM_FRAMES; f++) {
+      source.waitDepthUpdateAll();
+      source.getDepthArray(depth);
+      assertEquals(f, source.getDepthFrameID());
+      assertEquals(raw.getDepthTimestamp() / (NUM_FRAMES - 1) * f,
+                   source.getDepthTimestamp());
+      assertEquals(f * 10000 + 7, depth[7]);
+    }
+    // Restarts after the last frame.
+    source.waitDepthUpdateAll();
+    assertEquals(0, source.getDepthFrameID());
+  }
+
+  @Test(expected = IOException.class)
+  public void testOpenInvalidFile() throws IOException {
+    FrameCache.open(file);
+  }
+}
@@ -0,0 +1,126 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.vecmath.Point2f;
+
+import org.OpenNI.GeneralException;
+import org.OpenNI.Point3D;
+import org.junit.Test;
+
+import edu.mit.yingyin.calib.CalibModel;
+import edu.mit.yingyin.tabletop.models.GoldenOutput.Tolerance;
+import edu.mit.yingyin.tabletop.models.HandTracker.DiecticEvent;
+
+/**
+ * Compares the pipeline output on the recording in test_data with the golden
+ * output. Run with <code>-Dtabletop.golden.update=true</code> to write the
+ * golden file, the first time or after an intended change of the output. A
+ * missing golden file fails the test.
+ */
+public class GoldenOutputTest {
+  private static final String RECORDING_FILE = "test_data/Captured.oni";
+  private static final String CALIB_FILE = "test_data/calibration.txt";
+  private static final String GOLDEN_FILE = "test_data/golden/Captured.golden";
+  private static final int NUM_FRAMES = 300;
+  private static final Tolerance TOLERANCE = new Tolerance(0.5f, 1f, 2f);
+
+  @Test
+  public void testDiffWithinTolerance() {
+    List<String> expected = Arrays.asList("frame 1 forelimbs 1",
+        "limb 0 hand 10.00 20.00 -900.00 tips 100.00 200.00 850.00",
+        "event PRESSED 100.00 200.00");
+    List<String> actual = Arrays.asList("frame 1 forelimbs 1",
+        "limb 0 hand 10.90 20.00 -900.00 tips 100.40 200.00 850.00",
+        "event PRESSED 100.00 199.60");
+    assertTrue(GoldenOutput.diff(expected, actual, TOLERANCE).isEmpty());
+  }
+
+  @Test
+  public void testDiffOutsideTolerance() {
+    List<String> expected = Arrays.asList("frame 1 forelimbs 1",
+        "limb 0 hand 10.00 20.00 -900.00 tips 100.00 200.00 850.00");
+    // The hand tolerance does not apply to the fingertips.
+    List<String> actual = Arrays.asList("frame 1 forelimbs 1",
+        "limb 0 hand 10.00 20.00 -900.00 tips 100.90 200.00 850.00");
+    assertEquals(1, GoldenOutput.diff(expected, actual, TOLERANCE).size());
+
+    actual = Arrays.asList("frame 2 forelimbs 1",
+        "limb 0 hand 10.00 20.00 -900.00 tips 100.00 200.00 850.00",
+        "event PRESSED 100.00 200.00");
+    assertEquals(2, GoldenOutput.diff(expected, actual, TOLERANCE).size());
+  }
+
+  @Test
+  public void testDepthTolerance() {
+    // The depth of image points has its own tolerance.
+    List<String> expected = Arrays.asList(
+        "limb 0 hand 10.00 20.00 -900.00 tips 100.00 200.00 850.00",
+        "pointing 50.00 60.00 900.00");
+    List<String> actual = Arrays.asList(
+        "limb 0 hand 10.00 20.00 -900.00 tips 100.00 200.00 851.50",
+        "pointing 50.00 60.00 898.50");
+    assertTrue(GoldenOutput.diff(expected, actual, TOLERANCE).isEmpty());
+    actual = Arrays.asList(
+        "limb 0 hand 10.00 20.00 -900.00 tips 100.00 200.00 853.00",
+        "pointing 50.00 60.60 900.00");
+    assertEquals(2, GoldenOutput.diff(expected, actual, TOLERANCE).size());
+  }
+
+  @Test
+  public void testPointingEvents() {
+    GoldenOutput output = new GoldenOutput();
+    output.fingerPointed(new DiecticEvent(
+        new Point3D[] {new Point3D(1, 2, 900)},
+        new Point3D[] {new Point3D(0, 0, 0)}, new Point2f[] {new Point2f()},
+        0, 0));
+    ProcessPacket packet = new ProcessPacket(8, 8, null);
+    packet.depthFrameID = 3;
+    output.addFrame(packet);
+    packet.release();
+    assertEquals(Arrays.asList("frame 3 forelimbs 0",
+        "pointing 1.00 2.00 900.00"), output.lines());
+  }
+
+  @Test
+  public void testRecordingMatchesGolden() throws GeneralException,
+      IOException {
+    OpenNIDevice openni = new OpenNIDevice(RECORDING_FILE);
+    HandTrackingEngine engine = new HandTrackingEngine(openni, 
+        new CalibModel(CALIB_FILE));
+    GoldenOutput output = new GoldenOutput();
+    engine.addHandEventListener(output);
+    ProcessPacket packet = new ProcessPacket(engine.depthWidth(),
+        engine.depthHeight(), openni);
+    for (int i = 0; i < NUM_FRAMES && !engine.isDone(); i++) {
+      engine.step(packet);
+      output.addFrame(packet);
+    }
+    packet.release();
+    engine.release();
+
+    File golden = new File(GOLDEN_FILE);
+    if (Boolean.getBoolean("tabletop.golden.update")) {
+      golden.getParentFile().mkdirs();
+      PrintWriter pw = new PrintWriter(golden);
+      output.write(pw);
+      pw.close();
+      assumeTrue("Golden output written to " + GOLDEN_FILE, false);
+    }
+    assertTrue(GOLDEN_FILE + " is missing. Run with " +
+               "-Dtabletop.golden.update=true to write it.", golden.exists());
+
+    List<String> diffs = GoldenOutput.diff(GoldenOutput.read(GOLDEN_FILE),
+                                           output.lines(), TOLERANCE);
+    assertTrue("Output differs from " + GOLDEN_FILE + ":\n" + diffs,
+               diffs.isEmpty());
+  }
+}
@@ -1,13 +1,26 @@
 package edu.mit.yingyin.tabletop.models;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.IOException;
+
 import org.OpenNI.GeneralException;
 import org.junit.Test;
 
+import edu.mit.yingyin.calib.CalibModel;
+
 public class HandTrackingEngineTest {
   private static final String OPENNI_CONFIG_FILE = "test_data/config.xml";
   private static final String CALIB_FILE = "test_data/calibration.txt";
+  private static final String DEPTH_FILE = "test_data/Depth_0.raw";
+  private static final int WIDTH = 640, HEIGHT = 480;
+  /**
+   * More than the frames needed to learn the background.
+   */
+  private static final int NUM_FRAMES = 80;
   
   @Test
   public void testStep() {
@@ -20,4 +33,50 @@ public class HandTrackingEngineTest {
       fail();
     }
   }
+  
+  @Test
+  public void testIndependentEngines() throws IOException, 
+      InterruptedException {
+    final HandTrackingEngine engine1 = createEngine();
+    final HandTrackingEngine engine2 = createEngine();
+    assertNotSame(engine1.interactionSurface(), engine2.interactionSurface());
+    
+    run(engine1);
+    assertTrue(engine1.interactionSurfaceInitialized());
+    assertFalse(engine2.interactionSurfaceInitialized());
+    
+    // Both engines run concurrently.
+    engine1.recalibrateBackground();
+    // The old surface is kept while the background is learned again.
+    assertTrue(engine1.interactionSurfaceInitialized());
+    assertTrue(engine1.isCalibratingBackground());
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        HandTrackingEngineTest.run(engine2);
+      }
+    };
+    t.start();
+    run(engine1);
+    t.join();
+    assertFalse(engine1.isCalibratingBackground());
+    assertTrue(engine1.interactionSurfaceInitialized());
+    assertTrue(engine2.interactionSurfaceInitialized());
+    
+    engine1.release();
+    engine2.release();
+  }
+  
+  private static HandTrackingEngine createEngine() throws IOException {
+    return new HandTrackingEngine(
+        RawFrameSource.fromFile(DEPTH_FILE, WIDTH, HEIGHT), 
+        new CalibModel(CALIB_FILE));
+  }
+  
+  private static void run(HandTrackingEngine engine) {
+    ProcessPacket packet = new ProcessPacket(WIDTH, HEIGHT, null);
+    for (int i = 0; i < NUM_FRAMES; i++)
+      engine.step(packet);
+    packet.release();
+  }
 }
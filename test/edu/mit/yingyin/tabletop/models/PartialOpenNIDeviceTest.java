@@ -5,6 +5,7 @@ import static org.junit.Assert.assertTrue;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferUShort;
+import java.io.IOException;
 
 import org.junit.Test;
 
@@ -35,7 +36,7 @@ public class PartialOpenNIDeviceTest {
   }
   
   @Test
-  public void testRawDepthToBufferedImage() {
+  public void testRawDepthToBufferedImage() throws IOException {
     BufferedImage image = PartialOpenNIDevice.rawDepthToBufferedImage(
         "test_data/Depth_0.raw");
     assertEquals(PartialOpenNIDevice.DEFAULT_DEPTH_WIDTH, image.getWidth());
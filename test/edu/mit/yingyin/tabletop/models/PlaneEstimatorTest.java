@@ -0,0 +1,99 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.FloatBuffer;
+
+import javax.vecmath.Point3f;
+import javax.vecmath.Vector3f;
+
+import org.OpenNI.StatusException;
+import org.junit.Test;
+
+import edu.mit.yingyin.tabletop.models.PlaneEstimator.Plane;
+import edu.mit.yingyin.util.RowBandExecutor;
+
+public class PlaneEstimatorTest {
+  private static final int WIDTH = 64, HEIGHT = 48;
+  private static final RowBandExecutor SINGLE = new RowBandExecutor(1, 1);
+
+  @Test
+  public void testLevelTableWithObjects() throws StatusException {
+    SurfaceMap map = map(0);
+    PlaneEstimator estimator = new PlaneEstimator(4, 64, 10, SINGLE);
+    Plane plane = estimator.estimate(map);
+    assertNotNull(plane);
+    // Faces the camera at the origin.
+    assertEquals(0, plane.normal.x, 1e-3);
+    assertEquals(0, plane.normal.y, 1e-3);
+    assertEquals(1, plane.normal.z, 1e-3);
+    assertEquals(-1000, plane.center.z, 1e-2);
+    assertTrue(plane.numInliers < plane.numSamples);
+  }
+
+  @Test
+  public void testTiltedTable() throws StatusException {
+    SurfaceMap map = map(0.3f);
+    PlaneEstimator estimator = new PlaneEstimator(4, 64, 10, SINGLE);
+    Plane plane = estimator.estimate(map);
+    Point3f p = new Point3f();
+    for (int y = 0; y < HEIGHT - 6; y += 5)
+      for (int x = 41; x < WIDTH; x += 5) {
+        map.worldAt(x, y, p);
+        assertEquals(0, plane.distance(p.x, p.y, p.z), 0.5);
+      }
+    // A point on the side of the camera is above the table.
+    map.worldAt(20, 20, p);
+    assertTrue(plane.distance(p.x, p.y, p.z) > 50);
+    assertTrue(plane.normal.dot(new Vector3f(plane.center)) < 0);
+  }
+
+  @Test
+  public void testThreadsGiveTheSameResult() throws StatusException {
+    SurfaceMap map = map(0.3f);
+    RowBandExecutor executor = new RowBandExecutor(4, 1);
+    PlaneEstimator single = new PlaneEstimator(4, 128, 10, SINGLE);
+    PlaneEstimator parallel = new PlaneEstimator(4, 128, 10, executor);
+    Plane a = single.estimate(map), b = parallel.estimate(map);
+    executor.release();
+    assertEquals(a.normal, b.normal);
+    assertEquals(a.center, b.center);
+    assertEquals(a.numInliers, b.numInliers);
+  }
+
+  @Test
+  public void testUnknownDepth() throws StatusException {
+    FloatBuffer avg = FloatBuffer.allocate(WIDTH * HEIGHT);
+    SurfaceMap map = SurfaceMap.build(avg, WIDTH, WIDTH, HEIGHT,
+        new RawFrameSource(WIDTH, HEIGHT, new int[][] {
+            new int[WIDTH * HEIGHT]}));
+    PlaneEstimator estimator = new PlaneEstimator(4, 16, 10, SINGLE);
+    assertNull(estimator.estimate(map));
+  }
+
+  /**
+   * @param tilt of the table about the x axis of the camera. Its depth is
+   *    that of the world plane z = 1000 + tilt * y / yzFactor.
+   * @return a map of a table with a box on it, a strip of floor and a column
+   *    of unknown depth.
+   */
+  private static SurfaceMap map(float tilt) throws StatusException {
+    FloatBuffer avg = FloatBuffer.allocate(WIDTH * HEIGHT);
+    for (int y = 0; y < HEIGHT; y++)
+      for (int x = 0; x < WIDTH; x++) {
+        float d = 1000 / (1 - tilt * (0.5f - (float) y / HEIGHT));
+        if (x >= 10 && x < 30 && y >= 10 && y < 30)
+          d -= 100;
+        else if (y >= HEIGHT - 6)
+          d += 700;
+        else if (x == 50)
+          d = 0;
+        avg.put(y * WIDTH + x, d);
+      }
+    return SurfaceMap.build(avg, WIDTH, WIDTH, HEIGHT, new RawFrameSource(
+        WIDTH, HEIGHT, new int[][] {new int[WIDTH * HEIGHT]}));
+  }
+}
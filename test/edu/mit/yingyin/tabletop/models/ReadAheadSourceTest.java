@@ -0,0 +1,109 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.OpenNI.StatusException;
+import org.junit.Test;
+
+public class ReadAheadSourceTest {
+  private static final int WIDTH = 16, HEIGHT = 12, NUM_FRAMES = 12;
+
+  @Test
+  public void testPlaysEveryFrameOnce() throws IOException, StatusException {
+    ReadAheadSource source = new ReadAheadSource(
+        recording().newPlayer(), 2, Integer.MAX_VALUE);
+    int[] depth = new int[WIDTH * HEIGHT];
+    try {
+      for (int i = 0; i < NUM_FRAMES; i++) {
+        assertTrue(source.hasNext());
+        source.waitDepthUpdateAll();
+        assertEquals(i + 1, source.getDepthFrameID());
+        assertEquals(i * 33333L, source.getDepthTimestamp());
+        source.getDepthArray(depth);
+        assertArrayEquals(frame(i), depth);
+      }
+      // Ends instead of restarting from the first frame.
+      assertFalse(source.hasNext());
+      assertEquals(NUM_FRAMES, source.numDelivered());
+      assertEquals(0, source.numSkipped());
+    } finally {
+      source.release();
+    }
+  }
+
+  @Test
+  public void testIdleFramesAreNotMissing() throws IOException,
+      StatusException {
+    // Frames 3 to 8 are idle.
+    int[] counts = new int[NUM_FRAMES];
+    for (int i = 3; i < 9; i++)
+      counts[i] = 0;
+    for (int i : new int[] {0, 1, 2, 9, 10, 11})
+      counts[i] = ActivityIndex.NOT_MEASURED;
+    ActivityIndex index = new ActivityIndex(1, 1, counts);
+    index.setThreshold(1, 0);
+    DepthRecording.Player player = recording().newPlayer();
+    player.skipIdle(index);
+    ReadAheadSource source = new ReadAheadSource(player, 2,
+                                                 Integer.MAX_VALUE);
+    try {
+      while (source.hasNext())
+        source.waitDepthUpdateAll();
+      assertEquals(6, source.numDelivered());
+      assertEquals(0, source.numSkipped());
+      assertEquals(6, source.numIdleSkipped());
+    } finally {
+      source.release();
+    }
+  }
+
+  @Test
+  public void testMaxFrames() throws IOException, StatusException {
+    ReadAheadSource source = new ReadAheadSource(
+        recording().newPlayer(), 4, 5);
+    try {
+      int frames = 0;
+      while (source.hasNext()) {
+        source.waitDepthUpdateAll();
+        frames++;
+      }
+      assertEquals(5, frames);
+    } finally {
+      source.release();
+    }
+  }
+
+  @Test
+  public void testReleaseWhileReading() throws IOException, StatusException {
+    ReadAheadSource source = new ReadAheadSource(
+        recording().newPlayer(), 1, Integer.MAX_VALUE);
+    source.waitDepthUpdateAll();
+    // The reader is blocked on the full buffer.
+    source.release();
+    assertEquals(1, source.numDelivered());
+  }
+
+  private static DepthRecording recording() throws IOException {
+    File file = File.createTempFile("recording", DepthRecording.SUFFIX);
+    file.deleteOnExit();
+    DepthRecorder recorder = new DepthRecorder(file, WIDTH, HEIGHT, 0, 0,
+        DepthRecording.CODEC_DELTA, NUM_FRAMES);
+    for (int i = 0; i < NUM_FRAMES; i++)
+      recorder.record(i + 1, i * 33333L, frame(i), null);
+    recorder.close();
+    return DepthRecording.open(file);
+  }
+
+  private static int[] frame(int i) {
+    int[] depth = new int[WIDTH * HEIGHT];
+    for (int j = 0; j < depth.length; j++)
+      depth[j] = 1000 + (j * 7 + i * 13) % 100;
+    return depth;
+  }
+}
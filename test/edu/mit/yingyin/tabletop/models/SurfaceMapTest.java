@@ -0,0 +1,72 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.FloatBuffer;
+
+import javax.vecmath.Point3f;
+import javax.vecmath.Vector3f;
+
+import org.OpenNI.Point3D;
+import org.OpenNI.StatusException;
+import org.junit.Test;
+
+public class SurfaceMapTest {
+  private static final int WIDTH = 40, HEIGHT = 70, WIDTH_STEP = 48;
+
+  @Test
+  public void testWorldCoordinates() throws StatusException {
+    FloatBuffer avg = tilted();
+    RawFrameSource source = source();
+    SurfaceMap map = SurfaceMap.build(avg, WIDTH_STEP, WIDTH, HEIGHT, source);
+    Point3f p = new Point3f();
+    for (int y = 0; y < HEIGHT; y++)
+      for (int x = 0; x < WIDTH; x++) {
+        map.worldAt(x, y, p);
+        if (x == 3) {
+          assertFalse(map.isKnown(x, y));
+          assertTrue(Float.isNaN(p.x));
+        } else {
+          Point3D expected = source.convertProjectiveToRealWorld(
+              new Point3D[] {new Point3D(x, y, 1000 + y)})[0];
+          assertEquals(expected.getX(), p.x, 1e-3);
+          assertEquals(expected.getY(), p.y, 1e-3);
+          assertEquals(expected.getZ(), p.z, 1e-3);
+        }
+      }
+    assertFalse(map.isKnown(WIDTH, 0));
+  }
+
+  @Test
+  public void testHeightAbove() throws StatusException {
+    FloatBuffer avg = FloatBuffer.allocate(WIDTH_STEP * HEIGHT);
+    for (int i = 0; i < avg.capacity(); i++)
+      avg.put(i, 1000);
+    SurfaceMap map = SurfaceMap.build(avg, WIDTH_STEP, WIDTH, HEIGHT,
+                                      source());
+    Vector3f normal = new Vector3f(0, 0, 1);
+    assertEquals(100, map.heightAbove(5, 6, 900, normal), 1e-3);
+    assertEquals(-20, map.heightAbove(30, 60, 1020, normal), 1e-3);
+    normal.negate();
+    assertEquals(100, map.heightAbove(5, 6, 900, normal), 1e-3);
+    assertTrue(Float.isNaN(map.heightAbove(-1, 6, 900, normal)));
+  }
+
+  /**
+   * @return depth of a table tilted along y with an unknown column at x = 3.
+   */
+  private static FloatBuffer tilted() {
+    FloatBuffer avg = FloatBuffer.allocate(WIDTH_STEP * HEIGHT);
+    for (int y = 0; y < HEIGHT; y++)
+      for (int x = 0; x < WIDTH; x++)
+        avg.put(y * WIDTH_STEP + x, x == 3 ? 0 : 1000 + y);
+    return avg;
+  }
+
+  private static RawFrameSource source() {
+    return new RawFrameSource(WIDTH, HEIGHT, new int[][] {
+        new int[WIDTH * HEIGHT]});
+  }
+}
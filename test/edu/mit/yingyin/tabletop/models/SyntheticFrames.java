@@ -0,0 +1,65 @@
+package edu.mit.yingyin.tabletop.models;
+
+import java.io.IOException;
+
+/**
+ * Depth frames of the recorded empty table in test_data, with a synthetic
+ * forelimb added over it.
+ *
+ * @author yingyin
+ *
+ */
+final class SyntheticFrames {
+  static final int WIDTH = 640, HEIGHT = 480;
+
+  private static final String DEPTH_FILE = "test_data/Depth_0.raw";
+  /**
+   * Height of the forelimb above the table in mm.
+   */
+  private static final int FORELIMB_HEIGHT = 150;
+
+  /**
+   * @return a new frame of the empty table.
+   * @throws IOException
+   */
+  static int[] readBackground() throws IOException {
+    RawFrameSource source = RawFrameSource.fromFile(DEPTH_FILE, WIDTH, HEIGHT);
+    int[] background = new int[WIDTH * HEIGHT];
+    source.waitDepthUpdateAll();
+    source.getDepthArray(background);
+    return background;
+  }
+
+  /**
+   * Adds a forelimb entering from the bottom of the image.
+   * @param background
+   * @param offset horizontal offset of the forelimb in pixels.
+   * @return a new frame.
+   */
+  static int[] withForelimb(int[] background, int offset) {
+    int[] frame = background.clone();
+    int armLeft = 260 + offset, armRight = armLeft + 70;
+    int handLeft = armLeft - 15, handRight = armRight + 15;
+    for (int y = 220; y < HEIGHT; y++) {
+      boolean hand = y < 300;
+      int left = hand ? handLeft : armLeft;
+      int right = hand ? handRight : armRight;
+      for (int x = left; x < right; x++) {
+        int i = y * WIDTH + x;
+        if (frame[i] > FORELIMB_HEIGHT)
+          frame[i] -= FORELIMB_HEIGHT;
+      }
+    }
+    return frame;
+  }
+
+  /**
+   * @return the index of a pixel inside the hand of
+   *    <code>withForelimb(background, 0)</code>.
+   */
+  static int handPixel() {
+    return 260 * WIDTH + 295;
+  }
+
+  private SyntheticFrames() {}
+}
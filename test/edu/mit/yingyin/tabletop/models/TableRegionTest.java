@@ -0,0 +1,65 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+import org.junit.Test;
+
+public class TableRegionTest {
+  private static final int WIDTH = 64, HEIGHT = 48, WIDTH_STEP = 66;
+
+  @Test
+  public void testFromDepth() {
+    FloatBuffer avg = FloatBuffer.allocate(WIDTH_STEP * HEIGHT);
+    for (int y = 0; y < HEIGHT; y++)
+      for (int x = 0; x < WIDTH; x++) {
+        // A tilted table over the floor, with missing depth in a few places.
+        float d = 1800;
+        if (x >= 10 && x < 54 && y >= 6 && y < 41)
+          d = 1100 + 2 * y + 0.5f * x;
+        if ((x * 7 + y * 3) % 11 == 0)
+          d = 0;
+        avg.put(y * WIDTH_STEP + x, d);
+      }
+    // An object on the table.
+    avg.put(20 * WIDTH_STEP + 30, 900);
+
+    TableRegion region = TableRegion.fromDepth(avg, WIDTH_STEP, WIDTH, HEIGHT,
+                                               2);
+    assertEquals(8, region.x());
+    assertEquals(4, region.y());
+    assertEquals(56, region.right());
+    assertEquals(43, region.bottom());
+    assertTrue(region.contains(8, 4));
+    assertFalse(region.contains(56, 20));
+  }
+
+  @Test
+  public void testNoDepth() {
+    FloatBuffer avg = FloatBuffer.allocate(WIDTH * HEIGHT);
+    TableRegion region = TableRegion.fromDepth(avg, WIDTH, WIDTH, HEIGHT, 2);
+    assertEquals(WIDTH * HEIGHT, region.area());
+  }
+
+  @Test
+  public void testSaveAndLoad() throws IOException {
+    File file = File.createTempFile("table-region", ".txt");
+    file.deleteOnExit();
+    TableRegion region = new TableRegion(3, 4, 50, 40);
+    region.save(file);
+    TableRegion loaded = TableRegion.load(file);
+    assertEquals(region.toString(), loaded.toString());
+    assertTrue(loaded.fits(WIDTH, HEIGHT));
+    assertFalse(loaded.fits(52, HEIGHT));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEmptyRegion() {
+    new TableRegion(0, 0, 0, 10);
+  }
+}
@@ -1,5 +1,7 @@
 package edu.mit.yingyin.tabletop.models;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.nio.FloatBuffer;
@@ -27,16 +29,45 @@ public class TableTest {
     
     InteractionSurface table;
     try {
-      table = InteractionSurface.initInstance(avg, diff, WIDTH, WIDTH, WIDTH, 
-          HEIGHT, null);
+      table = new InteractionSurface(avg, diff, WIDTH, WIDTH, WIDTH, HEIGHT,
+                                     null);
       assertTrue(table.isInContact(0, 0, 1));
       assertTrue(table.isInContact(0, 1, (float)1.9));
       assertTrue(table.isInContact(1, 1, (float)0.1));
       assertTrue(!table.isInContact(2, 2, (float)6.3));
       assertTrue(!table.isInContact(3, 3, (float)-6.1));
+      
+      table.clear();
+      assertTrue(!table.isInContact(0, 0, 1));
     } catch (StatusException e) {
       // TODO Auto-generated catch block
       e.printStackTrace();
     }
   }
+
+  @Test
+  public void testBatchContact() throws StatusException {
+    FloatBuffer avg = DirectBufferUtil.allocateFloatBuffer(WIDTH * HEIGHT);
+    FloatBuffer diff = DirectBufferUtil.allocateFloatBuffer(WIDTH * HEIGHT);
+    for (int i = 0; i < WIDTH * HEIGHT; i++) {
+      avg.put(i, 1000);
+      diff.put(i, 2);
+    }
+    InteractionSurface table = new InteractionSurface(avg, diff, WIDTH, WIDTH,
+        WIDTH, HEIGHT, null);
+    // The contact band is owned by the surface.
+    avg.put(0, 0);
+    assertTrue(table.isInContact(0, 0, 1005));
+    assertFalse(table.isInContact(-1, 0, 1000));
+    assertFalse(table.isInContact(0, HEIGHT, 1000));
+
+    float[] points = {0, 0, 991, 3.5f, 4.5f, 1009, 9, 9, 1010, 10, 0, 1000};
+    boolean[] inContact = new boolean[4];
+    assertEquals(2, table.isInContact(points, 4, inContact));
+    assertTrue(inContact[0] && inContact[1]);
+    assertFalse(inContact[2] || inContact[3]);
+
+    table.clear();
+    assertEquals(0, table.isInContact(points, 4, null));
+  }
 }
@@ -0,0 +1,46 @@
+package edu.mit.yingyin.tabletop.models;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class TrackingParametersTest {
+  private static final float EPS = 1e-6f;
+
+  @Test
+  public void testFromProperties() {
+    Properties props = new Properties();
+    props.setProperty(TrackingParameters.FINGERTIP_ANGLE, "0.6");
+    props.setProperty(TrackingParameters.DEBOUNCE_COUNT, "5");
+    props.setProperty(TrackingParameters.IDLE_MIN_SAMPLES, "0");
+    props.setProperty("display-on", "false");
+    TrackingParameters params = TrackingParameters.fromProperties(props);
+    assertEquals(0.6f, params.fingertipAngle, EPS);
+    assertEquals(5, params.debounceCount);
+    assertEquals(0, params.idleMinSamples);
+    assertEquals(new TrackingParameters().fingertipWidth,
+                 params.fingertipWidth, EPS);
+  }
+
+  @Test
+  public void testCopy() {
+    TrackingParameters params = new TrackingParameters();
+    params.set(TrackingParameters.BG_DIFF_LSCALE, "4.5");
+    TrackingParameters copy = params.copy();
+    params.set(TrackingParameters.BG_DIFF_LSCALE, "3");
+    assertEquals(4.5f, copy.bgDiffLowScale, EPS);
+    assertEquals(copy.toString(), copy.copy().toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownKey() {
+    new TrackingParameters().set("fingertip-length", "1");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidValue() {
+    new TrackingParameters().set(TrackingParameters.DEBOUNCE_COUNT, "1.5");
+  }
+}
@@ -0,0 +1,56 @@
+package edu.mit.yingyin.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testSmallValuesAreExact() {
+    LatencyHistogram h = new LatencyHistogram("test");
+    for (int i = 1; i <= 10; i++)
+      h.record(i);
+    assertEquals(10, h.count());
+    assertEquals(10, h.max());
+    assertEquals(5.5, h.mean(), 1e-9);
+    assertEquals(5, h.valueAtPercentile(50));
+    assertEquals(10, h.valueAtPercentile(100));
+  }
+  
+  @Test
+  public void testPercentileRelativeError() {
+    LatencyHistogram h = new LatencyHistogram("test");
+    for (long v = 1000; v <= 1000000; v += 1000)
+      h.record(v);
+    long p50 = h.valueAtPercentile(50);
+    long p99 = h.valueAtPercentile(99);
+    assertTrue(p50 >= 500000 && p50 <= 500000 * 17 / 16);
+    assertTrue(p99 >= 990000 && p99 <= 1000000);
+    assertEquals(1000000, h.max());
+  }
+  
+  @Test
+  public void testBucketBounds() {
+    long[] values = {0, 15, 16, 17, 31, 32, 1023, 1024, 123456789, 
+                     Long.MAX_VALUE};
+    for (long v : values) {
+      int index = LatencyHistogram.bucketIndex(v);
+      assertTrue(LatencyHistogram.bucketUpperBound(index) >= v);
+      if (index > 0)
+        assertTrue(LatencyHistogram.bucketUpperBound(index - 1) < v);
+    }
+  }
+  
+  @Test
+  public void testResetAndNegative() {
+    LatencyHistogram h = new LatencyHistogram("test");
+    h.record(-1);
+    assertEquals(0, h.count());
+    h.record(100);
+    h.reset();
+    assertEquals(0, h.count());
+    assertEquals(0, h.valueAtPercentile(99));
+  }
+}
@@ -0,0 +1,80 @@
+package edu.mit.yingyin.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class MetricsTest {
+
+  @Test
+  public void testWriteText() throws IOException {
+    Metrics.counter("Test", "frames_total", "Frames");
+    Metrics.gauge("Test", "pixels", "Pixels");
+    LatencyHistogram h = new LatencyHistogram("stage");
+    h.record(2000000);
+    Metrics.timer("Test", "stage", h);
+
+    StringWriter sw = new StringWriter();
+    Metrics.writeText(sw);
+    String text = sw.toString();
+    assertTrue(text.contains("# TYPE tabletop_frames_total counter\n"));
+    assertTrue(text.contains("tabletop_frames_total{component=\"Test\"} "));
+    assertTrue(text.contains("# TYPE tabletop_pixels gauge\n"));
+    assertTrue(text.contains("# TYPE tabletop_stage_seconds summary\n"));
+    assertTrue(text.contains(
+        "tabletop_stage_seconds_count{component=\"Test\"} 1\n"));
+  }
+  
+  @Test
+  public void testSharedNameIsOneFamily() throws IOException {
+    Metrics.counter("TestA", "shared_total", "Shared");
+    Metrics.counter("TestB", "shared_total", "Shared");
+    Metrics.timer("TestA", "shared_stage", new LatencyHistogram("a"));
+    Metrics.timer("TestB", "shared_stage", new LatencyHistogram("b"));
+
+    StringWriter sw = new StringWriter();
+    Metrics.writeText(sw);
+    String text = sw.toString();
+    assertEquals(1, count(text, "# TYPE tabletop_shared_total counter\n"));
+    assertEquals(1, count(text, "# HELP tabletop_shared_total "));
+    assertTrue(text.contains("tabletop_shared_total{component=\"TestA\"} "));
+    assertTrue(text.contains("tabletop_shared_total{component=\"TestB\"} "));
+    assertEquals(1, count(text, "# TYPE tabletop_shared_stage_seconds "));
+    assertTrue(text.contains(
+        "tabletop_shared_stage_seconds_count{component=\"TestA\"} 0\n"));
+    assertTrue(text.contains(
+        "tabletop_shared_stage_seconds_count{component=\"TestB\"} 0\n"));
+  }
+
+  @Test
+  public void testSameNameReturnsSameMetric() {
+    assertTrue(Metrics.counter("Test", "same", "") == 
+               Metrics.counter("Test", "same", ""));
+    assertTrue(Metrics.gauge("Test", "same_gauge", "") == 
+               Metrics.gauge("Test", "same_gauge", ""));
+  }
+
+  @Test
+  public void testUnregister() throws IOException {
+    Metrics.counter("TestRemoved", "removed_total", "Removed");
+    Metrics.unregister("TestRemoved");
+
+    StringWriter sw = new StringWriter();
+    Metrics.writeText(sw);
+    assertFalse(sw.toString().contains("component=\"TestRemoved\""));
+    // Unregistering twice or an unknown component is harmless.
+    Metrics.unregister("TestRemoved");
+  }
+
+  private static int count(String text, String s) {
+    int n = 0;
+    for (int i = text.indexOf(s); i >= 0; i = text.indexOf(s, i + 1))
+      n++;
+    return n;
+  }
+}
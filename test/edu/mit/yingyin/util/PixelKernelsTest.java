@@ -0,0 +1,93 @@
+package edu.mit.yingyin.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the scalar kernels, and that the selected and the vector kernels
+ * give the same results on ranges that do not fill whole vectors. The vector
+ * kernels are only checked if they are built and the vector module is added,
+ * e.g. by <code>ant test-vector</code>.
+ */
+public class PixelKernelsTest {
+  private static final int LENGTH = 1001, POS = 3;
+  private static final int MAX_DEPTH = 4000;
+
+  private final Random random = new Random(7);
+
+  @Test
+  public void testScalar() {
+    PixelKernels kernels = PixelKernels.scalar();
+    int[] src = {0, 1000, 4000, 5000};
+    float[] f = new float[4];
+    kernels.toFloat(src, 0, f, 0, 4, 0.5f);
+    assertArrayEquals(new float[] {0, 500, 2000, 2500}, f, 0);
+
+    float[] low = {1, 900, 3000, 5000}, high = {2, 1100, 4000, 6000};
+    byte[] mask = new byte[4];
+    assertEquals(2, kernels.outsideRange(src, 0, low, high, mask, 0, 4));
+    assertArrayEquals(new byte[] {-1, 0, -1, 0}, mask);
+
+    byte[] depth = new byte[4];
+    assertEquals(2, kernels.maskedToByte(src, 0, mask, depth, 0, 4,
+                                         MAX_DEPTH));
+    assertArrayEquals(new byte[] {0, 0, (byte) 255, 0}, depth);
+
+    float[] table = {0.25f, 0.5f, 1};
+    short[] grey = new short[4];
+    kernels.lookup(new int[] {-1, 1, 2, 9}, 0, table, 100, grey, 4);
+    assertArrayEquals(new short[] {25, 50, 100, 100}, grey);
+  }
+
+  @Test
+  public void testSelectedMatchesScalar() {
+    assertMatchesScalar(PixelKernels.get());
+  }
+
+  @Test
+  public void testVectorMatchesScalar() {
+    PixelKernels vector = PixelKernels.vector();
+    assumeTrue(vector != null);
+    assertMatchesScalar(vector);
+  }
+
+  private void assertMatchesScalar(PixelKernels selected) {
+    PixelKernels scalar = PixelKernels.scalar();
+    int n = POS + LENGTH;
+    int[] src = new int[n];
+    float[] low = new float[n], high = new float[n];
+    for (int i = 0; i < n; i++) {
+      src[i] = random.nextInt(MAX_DEPTH + 100);
+      low[i] = random.nextInt(MAX_DEPTH);
+      high[i] = low[i] + random.nextInt(50);
+    }
+
+    float[] f1 = new float[n], f2 = new float[n];
+    scalar.toFloat(src, POS, f1, 0, LENGTH, 1f / MAX_DEPTH);
+    selected.toFloat(src, POS, f2, 0, LENGTH, 1f / MAX_DEPTH);
+    assertArrayEquals(f1, f2, 0);
+
+    byte[] m1 = new byte[n], m2 = new byte[n];
+    assertEquals(scalar.outsideRange(src, POS, low, high, m1, 1, LENGTH),
+                 selected.outsideRange(src, POS, low, high, m2, 1, LENGTH));
+    assertArrayEquals(m1, m2);
+
+    byte[] d1 = new byte[n], d2 = new byte[n];
+    assertEquals(scalar.maskedToByte(src, POS, m1, d1, 1, LENGTH, MAX_DEPTH),
+        selected.maskedToByte(src, POS, m1, d2, 1, LENGTH, MAX_DEPTH));
+    assertArrayEquals(d1, d2);
+
+    float[] table = new float[MAX_DEPTH];
+    for (int i = 0; i < table.length; i++)
+      table[i] = (float) i / table.length;
+    short[] g1 = new short[n], g2 = new short[n];
+    scalar.lookup(src, POS, table, 65536, g1, LENGTH);
+    selected.lookup(src, POS, table, 65536, g2, LENGTH);
+    assertArrayEquals(g1, g2);
+  }
+}
@@ -0,0 +1,65 @@
+package edu.mit.yingyin.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+public class RowBandExecutorTest {
+  private static final int WIDTH = 100, HEIGHT = 77;
+
+  @Test
+  public void testEveryRowOnce() {
+    RowBandExecutor executor = new RowBandExecutor(4, WIDTH * 3);
+    final AtomicIntegerArray visits = new AtomicIntegerArray(HEIGHT);
+    int rows = executor.run(WIDTH, HEIGHT, new RowBandExecutor.Body() {
+      @Override
+      public int run(int startRow, int endRow) {
+        for (int r = startRow; r < endRow; r++)
+          visits.incrementAndGet(r);
+        return endRow - startRow;
+      }
+    });
+    executor.release();
+    assertEquals(HEIGHT, rows);
+    for (int r = 0; r < HEIGHT; r++)
+      assertEquals(1, visits.get(r));
+  }
+
+  @Test
+  public void testSameSumWithAnyParallelism() {
+    final int[] image = new int[WIDTH * HEIGHT];
+    for (int i = 0; i < image.length; i++)
+      image[i] = (i * 7919) % 1000;
+    RowBandExecutor.Body countAbove = new RowBandExecutor.Body() {
+      @Override
+      public int run(int startRow, int endRow) {
+        int count = 0;
+        for (int i = startRow * WIDTH; i < endRow * WIDTH; i++)
+          if (image[i] > 500)
+            count++;
+        return count;
+      }
+    };
+    RowBandExecutor single = new RowBandExecutor(1, 64);
+    RowBandExecutor parallel = new RowBandExecutor(3, 64);
+    int expected = single.run(WIDTH, HEIGHT, countAbove);
+    assertEquals(expected, parallel.run(WIDTH, HEIGHT, countAbove));
+    assertEquals(expected, RowBandExecutor.shared().run(WIDTH, HEIGHT,
+                                                        countAbove));
+    single.release();
+    parallel.release();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidParallelism() {
+    new RowBandExecutor(0, 64);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testJobsAfterSharedUsed() {
+    RowBandExecutor.shared();
+    RowBandExecutor.setConcurrentJobs(2);
+  }
+}
@@ -0,0 +1,83 @@
+package edu.mit.yingyin.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class TracerTest {
+
+  @Test
+  public void testWriteChromeTrace() throws IOException {
+    Tracer.clear();
+    Tracer.record(Tracer.BEGIN, "frame", 42);
+    Tracer.record(Tracer.END, "frame", Tracer.NO_ARG);
+    String json = chromeTrace();
+    assertTrue(json.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+    assertTrue(json.endsWith("]}"));
+    assertTrue(json.contains("\"name\":\"frame\",\"ph\":\"B\""));
+    assertTrue(json.contains("\"args\":{\"frame\":42}"));
+    assertTrue(json.contains("\"name\":\"frame\",\"ph\":\"E\""));
+  }
+
+  @Test
+  public void testRingKeepsNewestEvents() throws IOException {
+    Tracer.clear();
+    int n = Tracer.CAPACITY + 3;
+    for (int i = 0; i < n; i++)
+      Tracer.record(Tracer.BEGIN, "wrap", i);
+    String json = chromeTrace();
+    assertEquals(Tracer.CAPACITY, count(json, "\"name\":\"wrap\""));
+    assertFalse(json.contains("\"args\":{\"frame\":2}"));
+    assertTrue(json.contains("\"args\":{\"frame\":3}"));
+    assertTrue(json.contains("\"args\":{\"frame\":" + (n - 1) + "}"));
+    Tracer.clear();
+  }
+
+  @Test
+  public void testDropsExitedThreads() throws IOException,
+      InterruptedException {
+    Tracer.clear();
+    Thread t = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Tracer.record(Tracer.BEGIN, "exited", 7);
+        Tracer.record(Tracer.END, "exited", Tracer.NO_ARG);
+      }
+    });
+    t.start();
+    t.join();
+    int numRings = Tracer.numRings();
+    // The events of the exited thread are written once.
+    assertTrue(chromeTrace().contains("\"name\":\"exited\""));
+    assertEquals(numRings - 1, Tracer.numRings());
+    assertFalse(chromeTrace().contains("\"name\":\"exited\""));
+  }
+
+  @Test
+  public void testDisabledRecordsNothing() throws IOException {
+    assumeFalse(Tracer.ENABLED);
+    Tracer.clear();
+    Tracer.begin("off", 1);
+    Tracer.end("off");
+    assertFalse(chromeTrace().contains("\"name\":\"off\""));
+  }
+
+  private static String chromeTrace() throws IOException {
+    StringWriter sw = new StringWriter();
+    Tracer.writeChromeTrace(sw);
+    return sw.toString().trim();
+  }
+
+  private static int count(String text, String s) {
+    int n = 0;
+    for (int i = text.indexOf(s); i >= 0; i = text.indexOf(s, i + 1))
+      n++;
+    return n;
+  }
+}
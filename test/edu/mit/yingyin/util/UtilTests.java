@@ -5,7 +5,10 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
-@SuiteClasses({FileUtilTest.class, GeometryTest.class, MathUtilTest.class})
+@SuiteClasses({FileUtilTest.class, GeometryTest.class, MathUtilTest.class,
+               LatencyHistogramTest.class, MetricsTest.class,
+               TracerTest.class, RowBandExecutorTest.class,
+               PixelKernelsTest.class})
 
 public class UtilTests {
 